@@ -0,0 +1,26 @@
+-- 压测数据：模拟服务配置、压测角色和100台压测设备（loadtest-0001 ~ loadtest-0100）
+-- 模拟服务不访问外部接口，apiUrl为延迟参数，说明见 docs/LOADTEST.md
+-- 用法：mysql -uroot -p xiaozhi < db/loadtest.sql，userId按实际管理员修改
+
+SET @userId = 1;
+
+INSERT INTO `xiaozhi`.`sys_config` (`userId`, `configType`, `provider`, `configName`, `configDesc`, `apiUrl`)
+VALUES (@userId, 'llm', 'mock', 'mock-llm', '压测用模拟大模型', 'latency=300&jitter=50&rate=20&seed=1');
+SET @llmId = LAST_INSERT_ID();
+
+INSERT INTO `xiaozhi`.`sys_config` (`userId`, `configType`, `provider`, `configName`, `configDesc`, `apiUrl`)
+VALUES (@userId, 'stt', 'mock', 'mock-stt', '压测用模拟语音识别', 'latency=200&jitter=50&seed=2');
+SET @sttId = LAST_INSERT_ID();
+
+INSERT INTO `xiaozhi`.`sys_config` (`userId`, `configType`, `provider`, `configName`, `configDesc`, `apiUrl`)
+VALUES (@userId, 'tts', 'mock', 'mock-tts', '压测用模拟语音合成', 'latency=150&jitter=50&speed=10&seed=3');
+SET @ttsId = LAST_INSERT_ID();
+
+INSERT INTO `xiaozhi`.`sys_role` (`roleName`, `roleDesc`, `ttsId`, `voiceName`, `userId`)
+VALUES ('压测角色', '你是一个用于压测的语音助手。', @ttsId, 'mock', @userId);
+SET @roleId = LAST_INSERT_ID();
+
+INSERT INTO `xiaozhi`.`sys_device` (`deviceId`, `deviceName`, `modelId`, `sttId`, `roleId`, `userId`)
+WITH RECURSIVE seq (n) AS (SELECT 1 UNION ALL SELECT n + 1 FROM seq WHERE n < 100)
+SELECT CONCAT('loadtest-', LPAD(n, 4, '0')), CONCAT('压测设备', n), @llmId, @sttId, @roleId, @userId
+FROM seq;
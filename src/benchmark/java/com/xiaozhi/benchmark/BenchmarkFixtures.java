@@ -0,0 +1,175 @@
+package com.xiaozhi.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xiaozhi.entity.SysMessage;
+import com.xiaozhi.utils.OpusProcessor;
+import com.xiaozhi.websocket.llm.memory.ChatMemory;
+import com.xiaozhi.websocket.llm.memory.ModelContext;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import com.xiaozhi.websocket.service.SessionManager;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 基准测试的固定输入和组件
+ * <br/>
+ * 输入数据在src/benchmark/resources/fixtures下：
+ * utterance-16k-mono.pcm为3.6秒16kHz单声道16位PCM（静音-三段浊音-静音，60帧）；
+ * llm-tokens.txt为一段模型回复按流式token切分的结果（每行一个JSON字符串）；
+ * openai-stream.sse为同一段回复的OpenAI流式响应；sentences.txt为带表情的回复句子。
+ * 组件不经过Spring容器创建，只注入基准测试路径上用到的依赖。
+ */
+public final class BenchmarkFixtures {
+
+    /**
+     * 每帧PCM字节数（60ms, 16kHz, 16bit, mono）
+     */
+    public static final int FRAME_BYTES = 1920;
+
+    /**
+     * utterance-16k-mono.pcm的帧数，用于@OperationsPerInvocation
+     */
+    public static final int UTTERANCE_FRAMES = 60;
+
+    /**
+     * llm-tokens.txt和openai-stream.sse中的token数
+     */
+    public static final int LLM_TOKENS = 49;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private BenchmarkFixtures() {
+    }
+
+    public static byte[] utterancePcm() {
+        byte[] pcm = read("utterance-16k-mono.pcm");
+        check("utterance-16k-mono.pcm", pcm.length / FRAME_BYTES, UTTERANCE_FRAMES);
+        return pcm;
+    }
+
+    public static List<byte[]> utteranceFrames() {
+        byte[] pcm = utterancePcm();
+        List<byte[]> frames = new ArrayList<>(UTTERANCE_FRAMES);
+        for (int offset = 0; offset + FRAME_BYTES <= pcm.length; offset += FRAME_BYTES) {
+            frames.add(Arrays.copyOfRange(pcm, offset, offset + FRAME_BYTES));
+        }
+        return frames;
+    }
+
+    public static List<String> llmTokens() {
+        List<String> tokens = new ArrayList<>();
+        try {
+            for (String line : lines("llm-tokens.txt")) {
+                tokens.add(objectMapper.readValue(line, String.class));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        check("llm-tokens.txt", tokens.size(), LLM_TOKENS);
+        return tokens;
+    }
+
+    public static byte[] openAiStream() {
+        return read("openai-stream.sse");
+    }
+
+    public static List<String> sentences() {
+        return lines("sentences.txt");
+    }
+
+    /**
+     * 使用内存指标注册表的链路指标
+     */
+    public static PipelineMetrics pipelineMetrics() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        ReflectionTestUtils.setField(metrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metrics, "sessionManager", new SessionManager());
+        metrics.init();
+        return metrics;
+    }
+
+    /**
+     * 不启用函数调用、不保存历史的模型上下文
+     */
+    public static ModelContext modelContext(String sessionId) {
+        return new ModelContext(sessionId, sessionId, null, false, new EmptyChatMemory(), null);
+    }
+
+    public static OpusProcessor opusProcessor(PipelineMetrics metrics) {
+        OpusProcessor opusProcessor = new OpusProcessor();
+        ReflectionTestUtils.setField(opusProcessor, "pipelineMetrics", metrics);
+        return opusProcessor;
+    }
+
+    private static List<String> lines(String name) {
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(read(name), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static byte[] read(String name) {
+        try (InputStream in = BenchmarkFixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null) {
+                throw new IllegalStateException("缺少基准测试数据: fixtures/" + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void check(String name, int actual, int expected) {
+        if (actual != expected) {
+            // 数据变化后需要同步修改常量，否则按操作数折算的结果不准确
+            throw new IllegalStateException(name + " 数量为 " + actual + "，与常量 " + expected + " 不一致");
+        }
+    }
+
+    /**
+     * 不保存任何消息的对话记忆
+     */
+    private static class EmptyChatMemory implements ChatMemory {
+        @Override
+        public void addMessage(String deviceId, String sessionId, String sender, String content, Integer roleId,
+                String messageType, String audioPath) {
+        }
+
+        @Override
+        public List<SysMessage> getMessages(String deviceId, String messageType, Integer limit) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void clearMessages(String deviceId) {
+        }
+
+        @Override
+        public String getSystemMessage(String deviceId, Integer roleId) {
+            return null;
+        }
+
+        @Override
+        public void setSystemMessage(String deviceId, Integer roleId, String systemMessage) {
+        }
+    }
+}
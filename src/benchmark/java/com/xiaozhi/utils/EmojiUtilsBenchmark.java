@@ -0,0 +1,44 @@
+package com.xiaozhi.utils;
+
+import com.xiaozhi.benchmark.BenchmarkFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 句子表情处理（每个句子合成语音前调用一次）的耗时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmojiUtilsBenchmark {
+
+    private List<String> sentences;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sentences = BenchmarkFixtures.sentences();
+    }
+
+    @Benchmark
+    public EmojiUtils.EmoSentence processSentence() {
+        String sentence = sentences.get(next);
+        next = (next + 1) % sentences.size();
+        return EmojiUtils.processSentence(sentence);
+    }
+}
@@ -0,0 +1,64 @@
+package com.xiaozhi.utils;
+
+import com.xiaozhi.benchmark.BenchmarkFixtures;
+import io.github.jaredmdobson.concentus.OpusException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opus编解码的单帧耗时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpusProcessorBenchmark {
+
+    private static final String SESSION_ID = "benchmark";
+
+    private OpusProcessor opusProcessor;
+    private byte[] pcm;
+    private List<byte[]> opusFrames;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws OpusException {
+        opusProcessor = BenchmarkFixtures.opusProcessor(BenchmarkFixtures.pipelineMetrics());
+        pcm = BenchmarkFixtures.utterancePcm();
+        opusFrames = opusProcessor.pcmToOpus("fixture", pcm);
+    }
+
+    /**
+     * 设备上行：解码一帧Opus
+     */
+    @Benchmark
+    public byte[] opusToPcm() throws OpusException {
+        byte[] frame = opusFrames.get(next);
+        next = (next + 1) % opusFrames.size();
+        return opusProcessor.opusToPcm(SESSION_ID, frame);
+    }
+
+    /**
+     * 下行：把一段合成音频编码为Opus帧，按帧折算
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkFixtures.UTTERANCE_FRAMES)
+    public List<byte[]> pcmToOpus() throws OpusException {
+        return opusProcessor.pcmToOpus(SESSION_ID, pcm);
+    }
+}
@@ -0,0 +1,116 @@
+package com.xiaozhi.utils;
+
+import com.xiaozhi.benchmark.BenchmarkFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PCM基础运算的单帧耗时，与按ByteBuffer逐个读取样本的写法对比
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PcmOpsBenchmark {
+
+    private List<byte[]> frames;
+    private float[] floats;
+    private byte[] out;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        frames = BenchmarkFixtures.utteranceFrames();
+        int maxBytes = 0;
+        for (byte[] frame : frames) {
+            maxBytes = Math.max(maxBytes, frame.length);
+        }
+        floats = new float[maxBytes / 2];
+        out = new byte[maxBytes];
+    }
+
+    @Benchmark
+    public float[] toFloatByteBuffer() {
+        byte[] frame = nextFrame();
+        ByteBuffer buffer = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        float[] samples = new float[frame.length / 2];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = buffer.getShort() / 32768.0f;
+        }
+        return samples;
+    }
+
+    @Benchmark
+    public float[] toFloat() {
+        byte[] frame = nextFrame();
+        PcmOps.toFloat(frame, 0, floats, 0, PcmOps.samples(frame));
+        return floats;
+    }
+
+    @Benchmark
+    public byte[] gainByteBuffer() {
+        byte[] frame = nextFrame();
+        ByteBuffer in = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer result = ByteBuffer.allocate(frame.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frame.length / 2; i++) {
+            int value = (int) (in.getShort() * 1.5f);
+            result.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value)));
+        }
+        return result.array();
+    }
+
+    @Benchmark
+    public byte[] gain() {
+        byte[] frame = nextFrame();
+        PcmOps.gain(frame, 0, out, 0, PcmOps.samples(frame), 1.5f);
+        return out;
+    }
+
+    @Benchmark
+    public float absMeanByteBuffer() {
+        byte[] frame = nextFrame();
+        ByteBuffer buffer = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        int samples = frame.length / 2;
+        float sum = 0;
+        for (int i = 0; i < samples; i++) {
+            sum += Math.abs(buffer.getShort() / 32768.0f);
+        }
+        return sum / samples;
+    }
+
+    @Benchmark
+    public float absMean() {
+        byte[] frame = nextFrame();
+        return PcmOps.absMean(frame, 0, PcmOps.samples(frame));
+    }
+
+    @Benchmark
+    public byte[] mix() {
+        byte[] a = nextFrame();
+        byte[] b = nextFrame();
+        PcmOps.mix(a, 0, b, 0, out, 0, Math.min(PcmOps.samples(a), PcmOps.samples(b)));
+        return out;
+    }
+
+    private byte[] nextFrame() {
+        byte[] frame = frames.get(next);
+        next = (next + 1) % frames.size();
+        return frame;
+    }
+}
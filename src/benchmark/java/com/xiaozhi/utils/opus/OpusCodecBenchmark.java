@@ -0,0 +1,106 @@
+package com.xiaozhi.utils.opus;
+
+import com.xiaozhi.benchmark.BenchmarkFixtures;
+import com.xiaozhi.utils.AudioUtils;
+import com.xiaozhi.utils.PcmOps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concentus与原生libopus的单帧编解码耗时
+ * <br/>
+ * 没有原生libopus时native参数会在初始化时失败，可用 -p codec=concentus 只运行Concentus。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpusCodecBenchmark {
+
+    private static final int FRAME_SIZE = AudioUtils.SAMPLE_RATE * AudioUtils.OPUS_FRAME_DURATION_MS / 1000;
+
+    @Param({ ConcentusOpusCodec.NAME, NativeOpusCodec.NAME })
+    public String codec;
+
+    private List<short[]> frames;
+    private List<byte[]> packets;
+    private OpusCodec.Encoder encoder;
+    private OpusCodec.Decoder decoder;
+    private byte[] packet;
+    private short[] pcm;
+    private int nextFrame;
+    private int nextPacket;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        OpusCodec selected;
+        if (NativeOpusCodec.NAME.equals(codec)) {
+            try {
+                selected = NativeOpusCodec.load("opus");
+            } catch (UnsatisfiedLinkError e) {
+                throw new IllegalStateException("未找到原生libopus，可使用 -p codec=concentus", e);
+            }
+        } else {
+            selected = new ConcentusOpusCodec();
+        }
+        encoder = selected.createEncoder(AudioUtils.SAMPLE_RATE, AudioUtils.CHANNELS, AudioUtils.BITRATE, 5);
+        decoder = selected.createDecoder(AudioUtils.SAMPLE_RATE, AudioUtils.CHANNELS);
+        packet = new byte[1275];
+        pcm = new short[FRAME_SIZE];
+
+        frames = new ArrayList<>();
+        for (byte[] frame : BenchmarkFixtures.utteranceFrames()) {
+            short[] samples = new short[FRAME_SIZE];
+            PcmOps.toShort(frame, 0, samples, 0, FRAME_SIZE);
+            frames.add(samples);
+        }
+        // 解码用例统一使用Concentus编码的数据包，两种实现解码相同的输入
+        OpusCodec.Encoder reference = new ConcentusOpusCodec().createEncoder(AudioUtils.SAMPLE_RATE,
+                AudioUtils.CHANNELS, AudioUtils.BITRATE, 5);
+        packets = new ArrayList<>();
+        for (short[] frame : frames) {
+            int length = reference.encode(frame, 0, FRAME_SIZE, packet, 0, packet.length);
+            packets.add(Arrays.copyOf(packet, length));
+        }
+        reference.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        encoder.close();
+        decoder.close();
+    }
+
+    @Benchmark
+    public int encode() throws Exception {
+        short[] frame = frames.get(nextFrame);
+        nextFrame = (nextFrame + 1) % frames.size();
+        return encoder.encode(frame, 0, FRAME_SIZE, packet, 0, packet.length);
+    }
+
+    @Benchmark
+    public short[] decode() throws Exception {
+        byte[] data = packets.get(nextPacket);
+        nextPacket = (nextPacket + 1) % packets.size();
+        decoder.decode(data, 0, data.length, pcm, 0, FRAME_SIZE, false);
+        return pcm;
+    }
+}
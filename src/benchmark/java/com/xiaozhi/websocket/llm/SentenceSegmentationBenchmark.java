@@ -0,0 +1,68 @@
+package com.xiaozhi.websocket.llm;
+
+import com.xiaozhi.benchmark.BenchmarkFixtures;
+import com.xiaozhi.entity.SysDevice;
+import com.xiaozhi.utils.CancellationToken;
+import com.xiaozhi.websocket.llm.memory.ModelContext;
+import com.xiaozhi.websocket.service.SessionManager;
+import com.xiaozhi.websocket.trace.TurnTracer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 大模型流式回复按句子切分的单token耗时
+ * <br/>
+ * 通过SpeculativeChat把固定的token序列送入LlmManager的句子监听器，不调用模型、不合成语音、不写历史
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SentenceSegmentationBenchmark {
+
+    private static final String SESSION_ID = "benchmark";
+
+    private LlmManager llmManager;
+    private SysDevice device;
+    private List<String> tokens;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        llmManager = new LlmManager();
+        ReflectionTestUtils.setField(llmManager, "sessionManager", new SessionManager());
+        ReflectionTestUtils.setField(llmManager, "turnTracer", new TurnTracer());
+        ReflectionTestUtils.setField(llmManager, "pipelineMetrics", BenchmarkFixtures.pipelineMetrics());
+        device = new SysDevice().setDeviceId(SESSION_ID).setSessionId(SESSION_ID);
+        tokens = BenchmarkFixtures.llmTokens();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkFixtures.LLM_TOKENS)
+    public void segment(Blackhole blackhole) {
+        ModelContext modelContext = BenchmarkFixtures.modelContext(SESSION_ID);
+        SpeculativeChat chat = new SpeculativeChat("benchmark", modelContext);
+        llmManager.chatStreamBySentence(device, chat, CancellationToken.NONE,
+                (sentence, isFirst, isLast) -> blackhole.consume(sentence));
+        chat.onStart();
+        for (String token : tokens) {
+            chat.onToken(token);
+        }
+    }
+}
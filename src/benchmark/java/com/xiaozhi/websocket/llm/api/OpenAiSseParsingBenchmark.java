@@ -0,0 +1,109 @@
+package com.xiaozhi.websocket.llm.api;
+
+import com.xiaozhi.benchmark.BenchmarkFixtures;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OpenAI协议流式响应（SSE）逐行解析delta的单事件耗时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpenAiSseParsingBenchmark {
+
+    private static final MediaType EVENT_STREAM = MediaType.parse("text/event-stream");
+
+    private BenchmarkLlmService llmService;
+    private Request request;
+    private byte[] stream;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        llmService = new BenchmarkLlmService();
+        request = new Request.Builder().url("http://localhost/chat/completions").build();
+        stream = BenchmarkFixtures.openAiStream();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkFixtures.LLM_TOKENS)
+    public void parse(Blackhole blackhole) throws IOException {
+        Response response = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(stream, EVENT_STREAM))
+                .build();
+        llmService.callback(new StreamResponseListener() {
+            @Override
+            public void onStart() {
+            }
+
+            @Override
+            public void onToken(String token) {
+                blackhole.consume(token);
+            }
+
+            @Override
+            public void onComplete(String fullResponse, List<Map<String, Object>> hisMessages, LlmService service,
+                    String messageType) {
+                blackhole.consume(fullResponse);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }).onResponse(null, response);
+    }
+
+    /**
+     * 只用于解析响应的服务，不发起任何请求
+     */
+    static class BenchmarkLlmService extends AbstractOpenAiLlmService {
+
+        BenchmarkLlmService() {
+            super("http://localhost", null, null, null, "bench-model");
+        }
+
+        OpenAiResponseCallBack callback(StreamResponseListener listener) {
+            return new OpenAiResponseCallBack(new ArrayList<>(), listener, BenchmarkFixtures.modelContext("benchmark"));
+        }
+
+        @Override
+        protected void testFunctionCall() {
+            // 不探测函数调用能力
+        }
+
+        @Override
+        public String getProviderName() {
+            return "benchmark";
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.xiaozhi.websocket.service;
+
+import com.xiaozhi.benchmark.BenchmarkFixtures;
+import com.xiaozhi.utils.OpusProcessor;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import com.xiaozhi.websocket.vad.impl.SileroVadModel;
+import io.github.jaredmdobson.concentus.OpusException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * VAD处理的单帧耗时，模型推断替换为固定开销的桩，只衡量服务自身的处理
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VadServiceBenchmark {
+
+    private static final String SESSION_ID = "benchmark";
+
+    private VadService vadService;
+    private List<byte[]> pcmFrames;
+    private List<byte[]> opusFrames;
+    private float[] samples;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws OpusException {
+        PipelineMetrics metrics = BenchmarkFixtures.pipelineMetrics();
+        OpusProcessor opusProcessor = BenchmarkFixtures.opusProcessor(metrics);
+        pcmFrames = BenchmarkFixtures.utteranceFrames();
+        opusFrames = opusProcessor.pcmToOpus("fixture", BenchmarkFixtures.utterancePcm());
+
+        vadService = new VadService();
+        ReflectionTestUtils.setField(vadService, "opusDecoder", opusProcessor);
+        ReflectionTestUtils.setField(vadService, "sileroVadModel", new StubVadModel());
+        ReflectionTestUtils.setField(vadService, "pipelineMetrics", metrics);
+        // 与application-local.yml中的默认值一致
+        ReflectionTestUtils.setField(vadService, "speechThreshold", 0.5f);
+        ReflectionTestUtils.setField(vadService, "silenceThreshold", 0.35f);
+        ReflectionTestUtils.setField(vadService, "energyThreshold", 0.01f);
+        ReflectionTestUtils.setField(vadService, "minSilenceDuration", 500);
+        ReflectionTestUtils.setField(vadService, "preBufferDuration", 300);
+        ReflectionTestUtils.setField(vadService, "enableVoiceEnhancement", true);
+        ReflectionTestUtils.setField(vadService, "voiceEnhancementGain", 1.5f);
+        ReflectionTestUtils.setField(vadService, "gateEnabled", true);
+        ReflectionTestUtils.setField(vadService, "gateEnergyThreshold", 0.005f);
+        ReflectionTestUtils.setField(vadService, "gateZcrThreshold", 0.25f);
+        ReflectionTestUtils.setField(vadService, "gateHangoverMs", 300);
+        vadService.initializeSession(SESSION_ID);
+    }
+
+    /**
+     * 完整处理一段语音（解码、增强、能量、推断、状态判断），按帧折算
+     */
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkFixtures.UTTERANCE_FRAMES)
+    public void processAudio(Blackhole blackhole) {
+        for (byte[] frame : opusFrames) {
+            blackhole.consume(vadService.processAudio(SESSION_ID, frame));
+        }
+        // 会话状态会累积整段音频，每段结束后清空
+        vadService.removeState(SESSION_ID);
+    }
+
+    @Benchmark
+    public float[] convertBytesToFloats() {
+        byte[] frame = nextPcmFrame();
+        if (samples == null || samples.length != frame.length / 2) {
+            samples = new float[frame.length / 2];
+        }
+        vadService.convertBytesToFloats(frame, samples);
+        return samples;
+    }
+
+    @Benchmark
+    public byte[] applyVoiceEnhancement() {
+        return vadService.applyVoiceEnhancement(nextPcmFrame());
+    }
+
+    private byte[] nextPcmFrame() {
+        byte[] frame = pcmFrames.get(next);
+        next = (next + 1) % pcmFrames.size();
+        return frame;
+    }
+
+    /**
+     * 按窗口能量给出语音概率，代替ONNX推断
+     */
+    static class StubVadModel extends SileroVadModel {
+        @Override
+        public float getSpeechProbability(float[] samples) {
+            float energy = 0;
+            for (float sample : samples) {
+                energy += sample * sample;
+            }
+            return Math.min(1f, energy / samples.length * 400f);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.xiaozhi.loadtest;
+
+import com.xiaozhi.utils.AudioUtils;
+import io.github.jaredmdobson.concentus.OpusApplication;
+import io.github.jaredmdobson.concentus.OpusEncoder;
+import io.github.jaredmdobson.concentus.OpusException;
+import io.github.jaredmdobson.concentus.OpusSignal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 设备压测工具，模拟N台ESP32设备通过WebSocket与服务端对话
+ * <br/>
+ * 每台设备依次发送hello、listen start、按60ms节奏发送语音Opus帧、listen stop，等待服务端回复语音结束后进入下一轮。
+ * 设备在爬坡时间内均匀接入，全部接入后保持一段时间再结束。
+ * 统计握手耗时、首包耗时（listen stop到收到第一帧语音）、下行帧抖动，并从/actuator/prometheus采集服务端CPU和堆内存（需要--metrics-token）。
+ * <br/>
+ * 设备ID为 前缀+四位序号（如loadtest-0001），需要预先在数据库中创建并绑定角色，未绑定的设备会进入验证码流程。
+ * <br/>
+ * 运行：mvn -Ploadtest test-compile exec:exec -Dloadtest.args="--devices 100 --ramp 60 --hold 120"
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    static final int SAMPLE_RATE = 16000;
+    static final int CHANNELS = 1;
+    static final int FRAME_DURATION_MS = 60;
+    static final int FRAME_SAMPLES = SAMPLE_RATE * FRAME_DURATION_MS / 1000;
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        if (options == null) {
+            Options.printUsage();
+            return;
+        }
+        List<byte[]> speechFrames = encodeSpeech(options.audio);
+        logger.info("压测开始 - 地址: {}, 设备数: {}, 爬坡: {}秒, 保持: {}秒, 语音: {}（{}帧）",
+                options.url, options.devices, options.rampSeconds, options.holdSeconds, options.audio,
+                speechFrames.size());
+
+        LoadStats stats = new LoadStats();
+        ServerMetricsProbe probe = new ServerMetricsProbe(options.metricsUrl, options.metricsToken);
+        ReactorNettyWebSocketClient client = new ReactorNettyWebSocketClient();
+        URI uri = URI.create(options.url);
+
+        long start = System.nanoTime();
+        long deadline = start + Duration.ofSeconds(options.rampSeconds + options.holdSeconds).toNanos();
+        long rampMillis = options.rampSeconds * 1000L;
+
+        Disposable reporter = Flux.interval(Duration.ofSeconds(options.reportSeconds))
+                .subscribe(tick -> {
+                    probe.poll();
+                    logger.info(stats.progress(options.devices) + " | " + probe.progress());
+                });
+        try {
+            Flux.range(0, options.devices)
+                    .flatMap(index -> {
+                        String deviceId = String.format("%s%04d", options.devicePrefix, index + 1);
+                        long offset = options.devices > 1 ? rampMillis * index / (options.devices - 1) : 0;
+                        SimulatedDevice device = new SimulatedDevice(deviceId, client, uri, options, speechFrames,
+                                stats, deadline);
+                        return Mono.delay(Duration.ofMillis(offset)).then(device.run());
+                    }, options.devices)
+                    .then()
+                    .block();
+        } finally {
+            reporter.dispose();
+        }
+        probe.poll();
+
+        logger.info("压测结束 - 耗时: {}秒", Duration.ofNanos(System.nanoTime() - start).getSeconds());
+        for (String line : stats.summary()) {
+            logger.info(line);
+        }
+        logger.info(probe.summary());
+        System.exit(stats.turnsCompleted() > 0 ? 0 : 1);
+    }
+
+    /**
+     * 把语音文件编码为设备上行的Opus帧（16kHz、单声道、60ms），参数与固件一致
+     */
+    static List<byte[]> encodeSpeech(String audio) throws IOException, OpusException {
+        if (audio.toLowerCase().endsWith(".mp3")) {
+            // mp3通过ffmpeg转换，临时文件写在音频目录
+            Files.createDirectories(Paths.get(AudioUtils.AUDIO_PATH));
+        }
+        byte[] pcm = AudioUtils.readAsPcm(audio);
+
+        OpusEncoder encoder = new OpusEncoder(SAMPLE_RATE, CHANNELS, OpusApplication.OPUS_APPLICATION_VOIP);
+        encoder.setBitrate(AudioUtils.BITRATE);
+        encoder.setSignalType(OpusSignal.OPUS_SIGNAL_VOICE);
+        encoder.setUseDTX(false);
+
+        short[] samples = new short[pcm.length / 2];
+        ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        List<byte[]> frames = new ArrayList<>();
+        byte[] opusBuf = new byte[1275];
+        // 最后不足一帧的部分补静音
+        for (int offset = 0; offset < samples.length; offset += FRAME_SAMPLES) {
+            short[] frame = Arrays.copyOfRange(samples, offset, offset + FRAME_SAMPLES);
+            int length = encoder.encode(frame, 0, FRAME_SAMPLES, opusBuf, 0, opusBuf.length);
+            frames.add(Arrays.copyOf(opusBuf, length));
+        }
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("语音文件为空: " + audio);
+        }
+        return frames;
+    }
+
+    /**
+     * 命令行参数
+     */
+    static class Options {
+        String url = "ws://localhost:8091/ws/xiaozhi/v1/";
+        String metricsUrl = "http://localhost:8091/actuator/prometheus";
+        String metricsToken = "";
+        String devicePrefix = "loadtest-";
+        String audio = "models/SenseVoiceSmall/example/en.mp3";
+        int devices = 10;
+        int rampSeconds = 10;
+        int holdSeconds = 60;
+        int turns = 0;
+        int thinkMillis = 1000;
+        int handshakeTimeoutSeconds = 10;
+        int turnTimeoutSeconds = 30;
+        int reportSeconds = 5;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String name = args[i];
+                if ("--help".equals(name) || "-h".equals(name)) {
+                    return null;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("参数缺少值: " + name);
+                }
+                String value = args[++i];
+                switch (name) {
+                    case "--url":
+                        options.url = value;
+                        break;
+                    case "--metrics-url":
+                        options.metricsUrl = value;
+                        break;
+                    case "--metrics-token":
+                        options.metricsToken = value;
+                        break;
+                    case "--device-prefix":
+                        options.devicePrefix = value;
+                        break;
+                    case "--audio":
+                        options.audio = value;
+                        break;
+                    case "--devices":
+                        options.devices = Integer.parseInt(value);
+                        break;
+                    case "--ramp":
+                        options.rampSeconds = Integer.parseInt(value);
+                        break;
+                    case "--hold":
+                        options.holdSeconds = Integer.parseInt(value);
+                        break;
+                    case "--turns":
+                        options.turns = Integer.parseInt(value);
+                        break;
+                    case "--think":
+                        options.thinkMillis = Integer.parseInt(value);
+                        break;
+                    case "--handshake-timeout":
+                        options.handshakeTimeoutSeconds = Integer.parseInt(value);
+                        break;
+                    case "--turn-timeout":
+                        options.turnTimeoutSeconds = Integer.parseInt(value);
+                        break;
+                    case "--report":
+                        options.reportSeconds = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("未知参数: " + name);
+                }
+            }
+            if (options.devices < 1) {
+                throw new IllegalArgumentException("设备数至少为1");
+            }
+            return options;
+        }
+
+        static void printUsage() {
+            logger.info("用法: LoadGenerator [参数]\n"
+                    + "  --url                WebSocket地址，默认 ws://localhost:8091/ws/xiaozhi/v1/\n"
+                    + "  --metrics-url        服务端Prometheus指标地址，为空则不采集，默认 http://localhost:8091/actuator/prometheus\n"
+                    + "  --metrics-token      访问指标地址的令牌，与服务端app.metrics.token一致\n"
+                    + "  --device-prefix      设备ID前缀，默认 loadtest-\n"
+                    + "  --audio              上行语音文件（pcm/wav/mp3），默认 models/SenseVoiceSmall/example/en.mp3\n"
+                    + "  --devices            设备数，默认 10\n"
+                    + "  --ramp               爬坡秒数，设备在此时间内均匀接入，默认 10\n"
+                    + "  --hold               全部接入后保持的秒数，默认 60\n"
+                    + "  --turns              每台设备的对话轮数，0表示持续到保持时间结束，默认 0\n"
+                    + "  --think              两轮对话之间的间隔毫秒，默认 1000\n"
+                    + "  --handshake-timeout  等待hello回复的秒数，默认 10\n"
+                    + "  --turn-timeout       等待一轮回复结束的秒数，默认 30\n"
+                    + "  --report             进度输出间隔秒数，默认 5");
+        }
+    }
+}
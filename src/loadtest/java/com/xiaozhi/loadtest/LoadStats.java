@@ -0,0 +1,134 @@
+package com.xiaozhi.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压测统计，耗时以微秒记录在直方图中，输出时换算为毫秒
+ */
+class LoadStats {
+
+    private final Histogram handshake = new ConcurrentHistogram(3);
+    private final Histogram firstAudio = new ConcurrentHistogram(3);
+    private final Histogram turnDuration = new ConcurrentHistogram(3);
+    private final Histogram jitter = new ConcurrentHistogram(3);
+    private final Histogram uplinkLag = new ConcurrentHistogram(3);
+
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger online = new AtomicInteger();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder handshakeTimeouts = new LongAdder();
+    private final LongAdder turnsCompleted = new LongAdder();
+    private final LongAdder turnsWithoutAudio = new LongAdder();
+    private final LongAdder turnTimeouts = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+
+    void connected() {
+        connected.incrementAndGet();
+        online.incrementAndGet();
+    }
+
+    void disconnected() {
+        online.decrementAndGet();
+    }
+
+    void connectFailed() {
+        connectFailures.increment();
+    }
+
+    void handshakeTimeout() {
+        handshakeTimeouts.increment();
+    }
+
+    void recordHandshake(long nanos) {
+        handshake.recordValue(toMicros(nanos));
+    }
+
+    void recordFirstAudio(long nanos) {
+        firstAudio.recordValue(toMicros(nanos));
+    }
+
+    void recordJitter(long nanos) {
+        jitter.recordValue(toMicros(nanos));
+    }
+
+    void recordUplinkLag(long nanos) {
+        uplinkLag.recordValue(toMicros(nanos));
+    }
+
+    void turnCompleted(long nanos, boolean withAudio) {
+        turnsCompleted.increment();
+        turnDuration.recordValue(toMicros(nanos));
+        if (!withAudio) {
+            turnsWithoutAudio.increment();
+        }
+    }
+
+    void turnTimeout() {
+        turnTimeouts.increment();
+    }
+
+    void reconnectRequested() {
+        reconnects.increment();
+    }
+
+    void frameSent() {
+        framesSent.increment();
+    }
+
+    void frameReceived() {
+        framesReceived.increment();
+    }
+
+    long turnsCompleted() {
+        return turnsCompleted.sum();
+    }
+
+    /**
+     * 一行进度，包含累计值
+     */
+    String progress(int devices) {
+        return String.format("设备 %d/%d 在线 %d | 轮次 %d 超时 %d | 握手 p95 %s | 首包 p50 %s p95 %s | 抖动 p95 %s",
+                connected.get(), devices, online.get(), turnsCompleted.sum(), turnTimeouts.sum(),
+                millis(handshake, 95), millis(firstAudio, 50), millis(firstAudio, 95), millis(jitter, 95));
+    }
+
+    List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("连接 成功 %d 失败 %d 握手超时 %d 服务端要求重连 %d",
+                connected.get(), connectFailures.sum(), handshakeTimeouts.sum(), reconnects.sum()));
+        lines.add(String.format("对话 完成 %d（无语音 %d） 超时 %d | 上行帧 %d 下行帧 %d",
+                turnsCompleted.sum(), turnsWithoutAudio.sum(), turnTimeouts.sum(), framesSent.sum(),
+                framesReceived.sum()));
+        lines.add(String.format("%-12s %8s %8s %8s %8s %8s", "指标(ms)", "p50", "p90", "p99", "max", "样本数"));
+        lines.add(row("握手", handshake));
+        lines.add(row("首包", firstAudio));
+        lines.add(row("整轮回复", turnDuration));
+        lines.add(row("下行帧抖动", jitter));
+        lines.add(row("上行发送延迟", uplinkLag));
+        return lines;
+    }
+
+    private static String row(String name, Histogram histogram) {
+        return String.format("%-12s %8s %8s %8s %8s %8d", name, millis(histogram, 50), millis(histogram, 90),
+                millis(histogram, 99), millis(histogram, 100), histogram.getTotalCount());
+    }
+
+    private static String millis(Histogram histogram, double percentile) {
+        if (histogram.getTotalCount() == 0) {
+            return "-";
+        }
+        return String.format("%.1f", histogram.getValueAtPercentile(percentile) / 1000.0);
+    }
+
+    private static long toMicros(long nanos) {
+        return Math.max(0, nanos / 1000);
+    }
+}
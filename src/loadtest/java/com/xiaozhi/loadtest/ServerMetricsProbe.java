@@ -0,0 +1,135 @@
+package com.xiaozhi.loadtest;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StringUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定期读取服务端/actuator/prometheus，记录CPU使用率、堆内存和活跃会话数
+ * <br/>
+ * 读取失败时只提示一次，不影响压测本身
+ */
+class ServerMetricsProbe {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerMetricsProbe.class);
+
+    private final String metricsUrl;
+    private final String metricsToken;
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .connectTimeout(2, TimeUnit.SECONDS)
+            .readTimeout(5, TimeUnit.SECONDS)
+            // 未通过认证时服务端会跳转到登录页，按失败处理
+            .followRedirects(false)
+            .build();
+
+    private boolean failureLogged;
+    private int samples;
+
+    private double cpu = -1;
+    private double cpuSum;
+    private double cpuMax;
+    private double heapUsed = -1;
+    private double heapMax = -1;
+    private double heapUsedMax;
+    private double sessions = -1;
+
+    ServerMetricsProbe(String metricsUrl, String metricsToken) {
+        this.metricsUrl = metricsUrl;
+        this.metricsToken = metricsToken;
+    }
+
+    synchronized void poll() {
+        if (!StringUtils.hasText(metricsUrl)) {
+            return;
+        }
+        Request.Builder builder = new Request.Builder().url(metricsUrl);
+        if (StringUtils.hasText(metricsToken)) {
+            builder.header("Authorization", "Bearer " + metricsToken);
+        }
+        Request request = builder.build();
+        try (Response response = client.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                logFailure("HTTP " + response.code() + "，服务端开启认证时需要通过--metrics-token传入app.metrics.token");
+                return;
+            }
+            parse(body.string());
+        } catch (Exception e) {
+            logFailure(e.toString());
+        }
+    }
+
+    private void parse(String text) {
+        double cpuValue = -1;
+        double heapUsedValue = 0;
+        double heapMaxValue = 0;
+        double sessionsValue = -1;
+        for (String line : text.split("\n")) {
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            int space = line.lastIndexOf(' ');
+            if (space < 0) {
+                continue;
+            }
+            double value;
+            try {
+                value = Double.parseDouble(line.substring(space + 1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (line.startsWith("process_cpu_usage")) {
+                cpuValue = value;
+            } else if (line.startsWith("jvm_memory_used_bytes") && line.contains("area=\"heap\"")) {
+                heapUsedValue += value;
+            } else if (line.startsWith("jvm_memory_max_bytes") && line.contains("area=\"heap\"") && value > 0) {
+                heapMaxValue += value;
+            } else if (line.startsWith("xiaozhi_sessions_active")) {
+                sessionsValue = value;
+            }
+        }
+        samples++;
+        cpu = cpuValue;
+        if (cpuValue >= 0) {
+            cpuSum += cpuValue;
+            cpuMax = Math.max(cpuMax, cpuValue);
+        }
+        heapUsed = heapUsedValue;
+        heapMax = heapMaxValue;
+        heapUsedMax = Math.max(heapUsedMax, heapUsedValue);
+        sessions = sessionsValue;
+    }
+
+    private void logFailure(String reason) {
+        if (!failureLogged) {
+            failureLogged = true;
+            logger.warn("读取服务端指标失败，CPU和内存将不统计 - 地址: {}, 原因: {}", metricsUrl, reason);
+        }
+    }
+
+    synchronized String progress() {
+        if (samples == 0) {
+            return "服务端 -";
+        }
+        return String.format("服务端 CPU %.0f%% 堆 %s/%s 会话 %.0f", cpu * 100, megabytes(heapUsed),
+                megabytes(heapMax), sessions);
+    }
+
+    synchronized String summary() {
+        if (samples == 0) {
+            return "服务端 未采集到指标";
+        }
+        return String.format("服务端 CPU 平均 %.0f%% 最高 %.0f%% | 堆 最高 %s 上限 %s | 采样 %d次",
+                cpuSum / samples * 100, cpuMax * 100, megabytes(heapUsedMax), megabytes(heapMax), samples);
+    }
+
+    private static String megabytes(double bytes) {
+        return bytes > 0 ? String.format("%.0fMB", bytes / 1024 / 1024) : "-";
+    }
+}
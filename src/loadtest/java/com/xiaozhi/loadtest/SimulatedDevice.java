@@ -0,0 +1,204 @@
+package com.xiaozhi.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 一台模拟设备的连接和对话过程
+ */
+class SimulatedDevice {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimulatedDevice.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final long FRAME_INTERVAL_NANOS = Duration.ofMillis(LoadGenerator.FRAME_DURATION_MS).toNanos();
+
+    private final String deviceId;
+    private final WebSocketClient client;
+    private final URI uri;
+    private final LoadGenerator.Options options;
+    private final List<byte[]> speechFrames;
+    private final LoadStats stats;
+    private final long deadline;
+
+    private final Sinks.Many<WebSocketMessage> outbound = Sinks.many().unicast().onBackpressureBuffer();
+    private final Sinks.Empty<Void> helloReply = Sinks.empty();
+    private volatile Sinks.Empty<Void> turnEnd;
+
+    private volatile long connectStart;
+    private volatile long speechEnd;
+    private volatile long lastFrameTime;
+    private volatile boolean firstAudioReceived;
+    private int turns;
+
+    SimulatedDevice(String deviceId, WebSocketClient client, URI uri, LoadGenerator.Options options,
+            List<byte[]> speechFrames, LoadStats stats, long deadline) {
+        this.deviceId = deviceId;
+        this.client = client;
+        this.uri = uri;
+        this.options = options;
+        this.speechFrames = speechFrames;
+        this.stats = stats;
+        this.deadline = deadline;
+    }
+
+    Mono<Void> run() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("device-Id", deviceId);
+        return Mono.defer(() -> {
+            connectStart = System.nanoTime();
+            return client.execute(uri, headers, this::converse);
+        })
+                .onErrorResume(e -> {
+                    stats.connectFailed();
+                    logger.warn("设备连接失败 - DeviceId: {}, 原因: {}", deviceId, e.toString());
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> converse(WebSocketSession session) {
+        stats.connected();
+        Sinks.One<Boolean> closed = Sinks.one();
+        Mono<Void> send = session.send(outbound.asFlux());
+        Mono<Void> receive = session.receive()
+                .doOnNext(this::onMessage)
+                .doFinally(signal -> {
+                    closed.tryEmitValue(true);
+                    outbound.tryEmitComplete();
+                })
+                .then();
+        Mono<Void> script = handshake(session)
+                .then(Mono.defer(() -> turn(session))
+                        .repeat(this::hasNextTurn)
+                        .then())
+                .onErrorResume(TimeoutException.class, e -> {
+                    stats.handshakeTimeout();
+                    logger.warn("等待hello回复超时 - DeviceId: {}", deviceId);
+                    return Mono.empty();
+                })
+                // 服务端先断开时不再等待剩余的对话
+                .takeUntilOther(closed.asMono())
+                .then(Mono.defer(session::close));
+        return Mono.when(send, receive, script)
+                .doFinally(signal -> stats.disconnected());
+    }
+
+    private Mono<Void> handshake(WebSocketSession session) {
+        String hello = "{\"type\":\"hello\",\"version\":1,\"transport\":\"websocket\",\"audio_params\":"
+                + "{\"format\":\"opus\",\"sample_rate\":" + LoadGenerator.SAMPLE_RATE
+                + ",\"channels\":" + LoadGenerator.CHANNELS
+                + ",\"frame_duration\":" + LoadGenerator.FRAME_DURATION_MS + "}}";
+        return Mono.fromRunnable(() -> sendText(session, hello))
+                .then(helloReply.asMono())
+                .timeout(Duration.ofSeconds(options.handshakeTimeoutSeconds));
+    }
+
+    private boolean hasNextTurn() {
+        if (options.turns > 0) {
+            return turns < options.turns;
+        }
+        return System.nanoTime() < deadline;
+    }
+
+    /**
+     * 一轮对话：listen start，按60ms节奏发送语音帧，listen stop，等待服务端的tts stop
+     */
+    private Mono<Void> turn(WebSocketSession session) {
+        turns++;
+        Sinks.Empty<Void> end = Sinks.empty();
+        turnEnd = end;
+        speechEnd = 0;
+        firstAudioReceived = false;
+        lastFrameTime = 0;
+        sendText(session, "{\"type\":\"listen\",\"state\":\"start\",\"mode\":\"manual\"}");
+
+        long sendStart = System.nanoTime();
+        return Flux.interval(Duration.ZERO, Duration.ofMillis(LoadGenerator.FRAME_DURATION_MS))
+                .take(speechFrames.size())
+                .doOnNext(index -> {
+                    // 记录客户端自身的发送延迟，用于确认压测机没有成为瓶颈
+                    long scheduled = sendStart + index * FRAME_INTERVAL_NANOS;
+                    stats.recordUplinkLag(System.nanoTime() - scheduled);
+                    byte[] frame = speechFrames.get(index.intValue());
+                    outbound.tryEmitNext(session.binaryMessage(factory -> factory.wrap(frame)));
+                    stats.frameSent();
+                })
+                .then(Mono.fromRunnable(() -> {
+                    speechEnd = System.nanoTime();
+                    sendText(session, "{\"type\":\"listen\",\"state\":\"stop\",\"mode\":\"manual\"}");
+                }))
+                .then(end.asMono().timeout(Duration.ofSeconds(options.turnTimeoutSeconds)))
+                .doOnSuccess(v -> stats.turnCompleted(System.nanoTime() - speechEnd, firstAudioReceived))
+                .onErrorResume(TimeoutException.class, e -> {
+                    stats.turnTimeout();
+                    logger.warn("等待回复超时 - DeviceId: {}, 第{}轮", deviceId, turns);
+                    sendText(session, "{\"type\":\"abort\",\"reason\":\"loadtest_timeout\"}");
+                    return Mono.empty();
+                })
+                .then(Mono.delay(Duration.ofMillis(options.thinkMillis)))
+                .then();
+    }
+
+    private void onMessage(WebSocketMessage message) {
+        long now = System.nanoTime();
+        if (message.getType() == WebSocketMessage.Type.BINARY) {
+            stats.frameReceived();
+            if (!firstAudioReceived && speechEnd > 0) {
+                firstAudioReceived = true;
+                stats.recordFirstAudio(now - speechEnd);
+            }
+            // 同一句话内的帧间隔与60ms的偏差，句子之间的合成等待不计入
+            if (lastFrameTime > 0) {
+                stats.recordJitter(Math.abs(now - lastFrameTime - FRAME_INTERVAL_NANOS));
+            }
+            lastFrameTime = now;
+            return;
+        }
+        if (message.getType() != WebSocketMessage.Type.TEXT) {
+            return;
+        }
+        JsonNode json;
+        try {
+            json = objectMapper.readTree(message.getPayloadAsText());
+        } catch (Exception e) {
+            logger.warn("无法解析服务端消息 - DeviceId: {}", deviceId);
+            return;
+        }
+        String type = json.path("type").asText();
+        if ("hello".equals(type)) {
+            stats.recordHandshake(now - connectStart);
+            helloReply.tryEmitEmpty();
+        } else if ("tts".equals(type)) {
+            String state = json.path("state").asText();
+            if ("sentence_start".equals(state)) {
+                lastFrameTime = 0;
+            } else if ("stop".equals(state)) {
+                Sinks.Empty<Void> end = turnEnd;
+                if (end != null) {
+                    end.tryEmitEmpty();
+                }
+            }
+        } else if ("reconnect".equals(type)) {
+            stats.reconnectRequested();
+        }
+    }
+
+    private void sendText(WebSocketSession session, String text) {
+        outbound.tryEmitNext(session.textMessage(text));
+    }
+}
@@ -3,6 +3,8 @@ package com.xiaozhi.common.interceptor;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpCookie;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.server.reactive.ServerHttpRequest;
@@ -22,6 +24,8 @@ import com.xiaozhi.utils.CmsUtils;
 import reactor.core.publisher.Mono;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.List;
 
@@ -41,7 +45,15 @@ public class AuthenticationInterceptor implements WebFilter {
             "/api/device/addDevice",
             "/audio/",
             "/avatar/",
-            "/ws/");
+            "/ws/",
+            "/actuator/health");
+
+    // 指标中包含服务配置等信息，不公开，抓取时需要令牌或登录
+    private static final String METRICS_PATH = "/actuator/prometheus";
+
+    // Prometheus抓取指标使用的令牌，为空时只允许已登录用户访问
+    @Value("${app.metrics.token:}")
+    private String metricsToken;
 
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
@@ -53,6 +65,11 @@ public class AuthenticationInterceptor implements WebFilter {
             return chain.filter(exchange);
         }
 
+        // 携带指标令牌的抓取请求
+        if (path.startsWith(METRICS_PATH) && hasMetricsToken(request)) {
+            return chain.filter(exchange);
+        }
+
         // 获取会话
         return exchange.getSession()
                 .flatMap(session -> {
@@ -138,4 +155,13 @@ public class AuthenticationInterceptor implements WebFilter {
     private boolean isPublicPath(String path) {
         return PUBLIC_PATHS.stream().anyMatch(path::startsWith);
     }
+
+    private boolean hasMetricsToken(ServerHttpRequest request) {
+        String authorization = request.getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        if (StringUtils.isBlank(metricsToken) || authorization == null || !authorization.startsWith("Bearer ")) {
+            return false;
+        }
+        return MessageDigest.isEqual(metricsToken.getBytes(StandardCharsets.UTF_8),
+                authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.UTF_8));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package com.xiaozhi.common.interceptor;
+
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Signature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * 统计数据库写操作（INSERT/UPDATE/DELETE）耗时的MyBatis插件
+ */
+@Component
+@Intercepts(@Signature(type = Executor.class, method = "update", args = { MappedStatement.class, Object.class }))
+public class SqlMetricsInterceptor implements Interceptor {
+
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        long start = System.nanoTime();
+        try {
+            return invocation.proceed();
+        } finally {
+            MappedStatement statement = (MappedStatement) invocation.getArgs()[0];
+            pipelineMetrics.recordDbWrite(statement.getId(), System.nanoTime() - start);
+        }
+    }
+}
@@ -11,6 +11,7 @@ import com.xiaozhi.entity.SysUser;
 import com.xiaozhi.service.SysConfigService;
 import com.xiaozhi.utils.CmsUtils;
 import com.xiaozhi.websocket.service.SessionManager;
+import com.xiaozhi.websocket.stt.factory.SttServiceFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +42,9 @@ public class ConfigController {
     @Resource
     private SessionManager sessionManager;
 
+    @Resource
+    private SttServiceFactory sttServiceFactory;
+
     /**
      * 配置查询
      * 
@@ -86,6 +90,8 @@ public class ConfigController {
                 int rows = configService.update(config);
                 if (rows > 0) {
                     sessionManager.cacheConfig(config.getConfigId(), config);;
+                    // 缓存的语音识别服务仍使用旧配置，关闭后按新配置重建
+                    sttServiceFactory.evictService(config.getConfigId());
                 }
                 return AjaxResult.success();
             } catch (Exception e) {
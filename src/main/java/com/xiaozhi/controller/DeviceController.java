@@ -1,9 +1,12 @@
 package com.xiaozhi.controller;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -18,6 +21,11 @@ import com.xiaozhi.service.SysConfigService;
 import com.xiaozhi.service.SysDeviceService;
 import com.xiaozhi.service.SysRoleService;
 import com.xiaozhi.utils.CmsUtils;
+import com.xiaozhi.utils.JsonUtil;
+import com.xiaozhi.websocket.cluster.ClusterCommand;
+import com.xiaozhi.websocket.cluster.ClusterService;
+import com.xiaozhi.websocket.service.DevicePresenceService;
+import com.xiaozhi.websocket.service.IotService;
 import com.xiaozhi.websocket.service.SessionManager;
 
 import org.springframework.util.ObjectUtils;
@@ -56,11 +64,29 @@ public class DeviceController {
     @Resource
     private SessionManager sessionManager;
 
+    @Resource
+    private ClusterService clusterService;
+
+    @Resource
+    private IotService iotService;
+
+    @Resource
+    private DevicePresenceService devicePresenceService;
+
     @Autowired
     private Environment environment;
 
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    /**
+     * 其他节点转发过来的配置刷新在本节点的设备会话上执行
+     */
+    @PostConstruct
+    public void init() {
+        clusterService.registerHandler(ClusterCommand.TYPE_REFRESH, command -> refreshLocalSessionConfig(
+                JsonUtil.fromJson(command.getPayload(), SysDevice.class)));
+    }
+
     /**
      * 设备查询
      * 
@@ -88,6 +114,40 @@ public class DeviceController {
         });
     }
 
+    /**
+     * 设备在线状态，直接读取内存中的状态，只返回当前用户的设备
+     * <br/>
+     * 集群模式下只包含连接在本节点上的设备，连接在其他节点上的设备不在结果中
+     * 
+     * @return 本节点上当前用户在线设备（以及离线状态还未写库的设备）的状态
+     */
+    @GetMapping("/presence")
+    public Mono<AjaxResult> presence(ServerWebExchange exchange) {
+        return Mono.fromCallable(() -> {
+            try {
+                SysUser user = exchange.getAttribute(CmsUtils.USER_ATTRIBUTE_KEY);
+                if (user == null) {
+                    return AjaxResult.error("用户未登录");
+                }
+                SysDevice query = new SysDevice();
+                query.setUserId(user.getUserId());
+                List<DevicePresenceService.Presence> presences = new ArrayList<>();
+                for (SysDevice device : deviceService.query(query)) {
+                    DevicePresenceService.Presence presence = devicePresenceService.getPresence(device.getDeviceId());
+                    if (presence != null) {
+                        presences.add(presence);
+                    }
+                }
+                AjaxResult result = AjaxResult.success();
+                result.put("data", presences);
+                return result;
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                return AjaxResult.error();
+            }
+        });
+    }
+
     /**
      * 设备信息更新
      * 
@@ -112,7 +172,15 @@ public class DeviceController {
         });
     }
 
+    /**
+     * 刷新设备会话的配置，设备连接在其他节点时转发到该节点
+     */
     private boolean refreshSessionConfig(SysDevice device) {
+        return clusterService.dispatch(new ClusterCommand(ClusterCommand.TYPE_REFRESH, device.getDeviceId(),
+                JsonUtil.toJson(device)));
+    }
+
+    private void refreshLocalSessionConfig(SysDevice device) {
         try {
             String deviceId = device.getDeviceId();
             String sessionId = sessionManager.getSessionByDeviceId(deviceId);
@@ -154,7 +222,6 @@ public class DeviceController {
         } catch (Exception e) {
             logger.error("刷新设备会话配置时发生错误", e);
         }
-        return false;
     }
 
     /**
@@ -186,11 +253,7 @@ public class DeviceController {
                             device.setDeviceName(query.getType().length() > 0 ? query.getType() : "小智");
                             int row = deviceService.add(device);
                             if (row > 0) {
-                                String deviceId = device.getDeviceId();
-                                String sessionId = sessionManager.getSessionByDeviceId(deviceId);
-                                if (sessionId != null) {
-                                    sessionManager.closeSession(sessionId);
-                                }
+                                clusterService.closeDeviceSession(device.getDeviceId());
                                 return AjaxResult.success();
                             } else {
                                 return AjaxResult.error();
@@ -222,10 +285,7 @@ public class DeviceController {
 
             int row = deviceService.add(device);
             if (row > 0) {
-                String sessionId = sessionManager.getSessionByDeviceId(sysDevice.getDeviceId());
-                if (sessionId != null) {
-                    sessionManager.closeSession(sessionId);
-                }
+                clusterService.closeDeviceSession(sysDevice.getDeviceId());
                 return Mono.just(AjaxResult.success());
             } else {
                 return Mono.just(AjaxResult.error());
@@ -257,11 +317,7 @@ public class DeviceController {
 
                 if (rows > 0) {
                     // 如果设备有会话，清除会话
-                    String deviceId = device.getDeviceId();
-                    String sessionId = sessionManager.getSessionByDeviceId(deviceId);
-                    if (sessionId != null) {
-                        sessionManager.closeSession(sessionId);
-                    }
+                    clusterService.closeDeviceSession(device.getDeviceId());
                     return AjaxResult.success("删除成功");
                 } else {
                     return AjaxResult.error("删除失败");
@@ -273,6 +329,47 @@ public class DeviceController {
         });
     }
 
+    /**
+     * 向设备发送IoT指令，设备可以连接在集群中的任意节点，只能操作当前用户的设备
+     * 
+     * @param command deviceId、name、method、parameters
+     * @return
+     */
+    @PostMapping("/iot")
+    @SuppressWarnings("unchecked")
+    public Mono<AjaxResult> iot(@RequestBody Map<String, Object> command, ServerWebExchange exchange) {
+        return Mono.fromCallable(() -> {
+            try {
+                String deviceId = (String) command.get("deviceId");
+                String iotName = (String) command.get("name");
+                String methodName = (String) command.get("method");
+                if (deviceId == null || iotName == null || methodName == null) {
+                    return AjaxResult.error("参数不完整");
+                }
+
+                // 按当前用户查询设备，不是自己的设备不允许发送指令
+                SysUser user = exchange.getAttribute(CmsUtils.USER_ATTRIBUTE_KEY);
+                if (user == null) {
+                    return AjaxResult.error("用户未登录");
+                }
+                SysDevice device = new SysDevice();
+                device.setUserId(user.getUserId());
+                device.setDeviceId(deviceId);
+                if (deviceService.query(device).isEmpty()) {
+                    return AjaxResult.error("设备不存在");
+                }
+
+                Object parameters = command.get("parameters");
+                boolean sent = iotService.sendIotMessageToDevice(deviceId, iotName, methodName,
+                        parameters instanceof Map ? (Map<String, Object>) parameters : new HashMap<>());
+                return sent ? AjaxResult.success() : AjaxResult.error("设备不在线或指令发送失败");
+            } catch (Exception e) {
+                logger.error("发送IoT指令时发生错误", e);
+                return AjaxResult.error("发送IoT指令时发生错误");
+            }
+        });
+    }
+
     @PostMapping("/ota")
     public Mono<Map<String, Object>> ota(ServerWebExchange exchange) {
         // 读取请求体内容
@@ -331,14 +428,14 @@ public class DeviceController {
                         }
 
                         if (deviceIdAuth == null) {
-                            Map<String, Object> errorResponse = new java.util.HashMap<>();
+                            Map<String, Object> errorResponse = new HashMap<>();
                             errorResponse.put("error", "设备ID为空");
                             return Mono.just(errorResponse);
                         }
 
                         final String deviceId = deviceIdAuth;
                         device.setDeviceId(deviceId);
-                        device.setLastLogin(new Date().toString());
+                        device.setLastLogin(new Date());
                         logger.debug("设备ID：{}",deviceId);
                         // 设置设备IP地址（如果JSON中没有获取到）
                         if (device.getIp() == null) {
@@ -349,10 +446,10 @@ public class DeviceController {
                         // 查询设备是否已绑定
                         return Mono.fromCallable(() -> deviceService.selectDeviceById(deviceId))
                                 .flatMap(queryDevice -> {
-                                    Map<String, Object> responseData = new java.util.HashMap<>();
-                                    Map<String, Object> firmwareData = new java.util.HashMap<>();
-                                    Map<String, Object> serverTimeData = new java.util.HashMap<>();
-                                    Map<String, Object> websocketData = new java.util.HashMap<>();
+                                    Map<String, Object> responseData = new HashMap<>();
+                                    Map<String, Object> firmwareData = new HashMap<>();
+                                    Map<String, Object> serverTimeData = new HashMap<>();
+                                    Map<String, Object> websocketData = new HashMap<>();
 
                                     // 设置服务器时间
                                     long timestamp = System.currentTimeMillis();
@@ -378,13 +475,13 @@ public class DeviceController {
                                         // 设备未绑定，生成验证码
                                         try {
                                             SysDevice codeResult = deviceService.generateCode(device);
-                                            Map<String, Object> activationData = new java.util.HashMap<>();
+                                            Map<String, Object> activationData = new HashMap<>();
                                             activationData.put("code", codeResult.getCode());
                                             activationData.put("message", codeResult.getCode());
                                             responseData.put("activation", activationData);
                                         } catch (Exception e) {
                                             logger.error("生成验证码失败", e);
-                                            Map<String, Object> errorResponse = new java.util.HashMap<>();
+                                            Map<String, Object> errorResponse = new HashMap<>();
                                             errorResponse.put("error", "生成验证码失败");
                                             return Mono.just(errorResponse);
                                         }
@@ -409,7 +506,7 @@ public class DeviceController {
                                 });
                     } catch (Exception e) {
                         logger.error("处理OTA请求失败", e);
-                        Map<String, Object> errorResponse = new java.util.HashMap<>();
+                        Map<String, Object> errorResponse = new HashMap<>();
                         errorResponse.put("error", "处理请求失败: " + e.getMessage());
                         return Mono.just(errorResponse);
                     }
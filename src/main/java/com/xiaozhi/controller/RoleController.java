@@ -12,6 +12,7 @@ import com.xiaozhi.entity.SysUser;
 import com.xiaozhi.service.SysConfigService;
 import com.xiaozhi.service.SysRoleService;
 import com.xiaozhi.utils.CmsUtils;
+import com.xiaozhi.utils.ProviderExecutors;
 import com.xiaozhi.websocket.tts.factory.TtsServiceFactory;
 
 import org.slf4j.Logger;
@@ -140,6 +141,6 @@ public class RoleController {
                 logger.error(e.getMessage(), e);
                 return AjaxResult.error();
             }
-        });
+        }).subscribeOn(ProviderExecutors.scheduler());
     }
 }
\ No newline at end of file
@@ -2,6 +2,8 @@ package com.xiaozhi.dao;
 
 import java.util.List;
 
+import org.apache.ibatis.annotations.Param;
+
 import com.xiaozhi.entity.SysDevice;
 
 /**
@@ -23,6 +25,8 @@ public interface DeviceMapper {
 
   int update(SysDevice device);
 
+  int batchUpdateState(@Param("devices") List<SysDevice> devices, @Param("state") String state);
+
   int add(SysDevice device);
 
   int delete(SysDevice device);
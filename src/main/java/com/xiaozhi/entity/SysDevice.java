@@ -1,5 +1,7 @@
 package com.xiaozhi.entity;
 
+import java.util.Date;
+
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
@@ -49,7 +51,7 @@ public class SysDevice extends SysRole {
      * 最后在线时间
      */
     @JsonFormat(timezone = "GMT+8", pattern = "yyyy-MM-dd HH:mm:ss")
-    private String lastLogin;
+    private Date lastLogin;
 
     /**
      * WiFi名称
@@ -222,11 +224,11 @@ public class SysDevice extends SysRole {
         return this;
     }
 
-    public String getLastLogin() {
+    public Date getLastLogin() {
         return lastLogin;
     }
 
-    public SysDevice setLastLogin(String lastLogin) {
+    public SysDevice setLastLogin(Date lastLogin) {
         this.lastLogin = lastLogin;
         return this;
     }
@@ -0,0 +1,105 @@
+package com.xiaozhi.mapper.redis;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群模式下设备与服务节点的归属关系
+ * <br/>
+ * 每个设备连接所在的节点以租约方式写入Redis，节点定期续期；节点异常退出时租约过期自动释放。
+ */
+@Repository
+public class DeviceRouteRedisMapper {
+
+    private static final String DEVICE_ROUTE_KEY = "xiaozhi:cluster:device:%s";
+
+    private static final String NODE_ALIVE_KEY = "xiaozhi:cluster:node:%s";
+
+    // 只有归属节点是自己时才续期或删除，避免覆盖设备重连到其他节点后写入的归属
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end",
+            Long.class);
+
+    // 写入归属和租约放在同一个脚本中，避免写入后、设置过期前节点退出留下永久归属
+    private static final DefaultRedisScript<String> REGISTER_SCRIPT = new DefaultRedisScript<>(
+            "local previous = redis.call('get', KEYS[1]) redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2]) return previous",
+            String.class);
+
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 登记设备归属节点
+     *
+     * @return 之前的归属节点，没有时返回null
+     */
+    public String register(String deviceId, String nodeId, long leaseMillis) {
+        return stringRedisTemplate.execute(REGISTER_SCRIPT, Collections.singletonList(getDeviceRouteKey(deviceId)),
+                nodeId, String.valueOf(leaseMillis));
+    }
+
+    /**
+     * 续期设备归属
+     *
+     * @return 设备仍归属该节点时返回true
+     */
+    public boolean renew(String deviceId, String nodeId, long leaseMillis) {
+        Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(getDeviceRouteKey(deviceId)),
+                nodeId, String.valueOf(leaseMillis));
+        return result != null && result > 0;
+    }
+
+    /**
+     * 释放设备归属，设备已归属其他节点时不处理；也用于清理失效节点留下的归属
+     */
+    public void release(String deviceId, String nodeId) {
+        stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(getDeviceRouteKey(deviceId)), nodeId);
+    }
+
+    /**
+     * 查询设备归属节点
+     */
+    public String getOwner(String deviceId) {
+        return stringRedisTemplate.opsForValue().get(getDeviceRouteKey(deviceId));
+    }
+
+    /**
+     * 节点心跳
+     */
+    public void heartbeat(String nodeId, long leaseMillis) {
+        stringRedisTemplate.opsForValue().set(getNodeAliveKey(nodeId), String.valueOf(System.currentTimeMillis()),
+                leaseMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 节点是否存活
+     */
+    public boolean isNodeAlive(String nodeId) {
+        Boolean exists = stringRedisTemplate.hasKey(getNodeAliveKey(nodeId));
+        return exists != null && exists;
+    }
+
+    /**
+     * 节点下线
+     */
+    public void removeNode(String nodeId) {
+        stringRedisTemplate.delete(getNodeAliveKey(nodeId));
+    }
+
+    private String getDeviceRouteKey(String deviceId) {
+        return String.format(DEVICE_ROUTE_KEY, deviceId);
+    }
+
+    private String getNodeAliveKey(String nodeId) {
+        return String.format(NODE_ALIVE_KEY, nodeId);
+    }
+}
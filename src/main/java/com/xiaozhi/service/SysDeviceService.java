@@ -53,6 +53,15 @@ public interface SysDeviceService {
    */
   public int update(SysDevice device);
 
+  /**
+   * 批量更新设备状态和最后在线时间，一条SQL完成
+   * 
+   * @param devices 设备ID和最后在线时间
+   * @param state
+   * @return
+   */
+  public int batchUpdateState(List<SysDevice> devices, String state);
+
   /**
    * 删除设备
    * 
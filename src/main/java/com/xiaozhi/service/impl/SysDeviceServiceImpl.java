@@ -207,4 +207,19 @@ public class SysDeviceServiceImpl implements SysDeviceService {
         return deviceMapper.update(device);
     }
 
+    /**
+     * 批量更新设备状态和最后在线时间
+     *
+     * @param devices
+     * @param state
+     * @return
+     */
+    @Override
+    public int batchUpdateState(List<SysDevice> devices, String state) {
+        if (devices == null || devices.isEmpty()) {
+            return 0;
+        }
+        return deviceMapper.batchUpdateState(devices, state);
+    }
+
 }
\ No newline at end of file
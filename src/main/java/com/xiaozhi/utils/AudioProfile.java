@@ -0,0 +1,89 @@
+package com.xiaozhi.utils;
+
+/**
+ * 会话协商的下行音频参数
+ * <br/>
+ * 服务端内部（TTS、VAD、STT）统一使用16kHz单声道PCM。设备上行的Opus不论编码采样率如何都按16kHz解码，
+ * 因此协商只影响下行：编码前把16kHz的PCM重采样到输出采样率，并按协商的帧时长分帧和控制发送节奏。
+ * 帧时长越短，设备收到第一帧越早、打断越及时，代价是包数和编码次数增加。
+ */
+public final class AudioProfile {
+
+    /**
+     * 支持的帧时长（毫秒）
+     */
+    public static final int[] FRAME_DURATIONS = { 20, 40, 60 };
+
+    /**
+     * 支持的下行采样率
+     */
+    public static final int[] SAMPLE_RATES = { 16000, 24000 };
+
+    /**
+     * 未协商时使用的参数，与固件默认值一致
+     */
+    public static final AudioProfile DEFAULT = new AudioProfile(AudioUtils.SAMPLE_RATE,
+            AudioUtils.OPUS_FRAME_DURATION_MS);
+
+    private final int sampleRate;
+    private final int frameDuration;
+
+    private AudioProfile(int sampleRate, int frameDuration) {
+        this.sampleRate = sampleRate;
+        this.frameDuration = frameDuration;
+    }
+
+    /**
+     * 按设备请求协商，不支持的值使用默认值
+     *
+     * @param sampleRate    设备请求的下行采样率
+     * @param frameDuration 设备请求的帧时长（毫秒）
+     */
+    public static AudioProfile negotiate(int sampleRate, int frameDuration) {
+        int rate = contains(SAMPLE_RATES, sampleRate) ? sampleRate : DEFAULT.sampleRate;
+        int duration = contains(FRAME_DURATIONS, frameDuration) ? frameDuration : DEFAULT.frameDuration;
+        if (rate == DEFAULT.sampleRate && duration == DEFAULT.frameDuration) {
+            return DEFAULT;
+        }
+        return new AudioProfile(rate, duration);
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 下行采样率
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return AudioUtils.CHANNELS;
+    }
+
+    /**
+     * 帧时长（毫秒）
+     */
+    public int getFrameDuration() {
+        return frameDuration;
+    }
+
+    /**
+     * 每帧每声道的样本数
+     */
+    public int getFrameSamples() {
+        return sampleRate * frameDuration / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return sampleRate + "Hz/" + frameDuration + "ms";
+    }
+}
@@ -0,0 +1,105 @@
+package com.xiaozhi.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reactor.core.Disposable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一轮对话的取消令牌
+ * <br/>
+ * 对话中止时取消令牌，LLM流式请求、排队中的语音合成和正在进行的播放通过onCancel注册的回调或轮询isCancelled尽快停止。
+ * 回调只执行一次，在调用cancel的线程上执行；令牌已取消时注册的回调立即执行。
+ */
+public final class CancellationToken {
+    private static final Logger logger = LoggerFactory.getLogger(CancellationToken.class);
+
+    /**
+     * 不会被取消的令牌，用于不需要取消的调用
+     */
+    public static final CancellationToken NONE = new CancellationToken(false);
+
+    private final boolean cancellable;
+    private volatile boolean cancelled;
+    private volatile String reason;
+    // 由this保护，取消后置为null
+    private List<Runnable> callbacks = new ArrayList<>();
+
+    public CancellationToken() {
+        this(true);
+    }
+
+    private CancellationToken(boolean cancellable) {
+        this.cancellable = cancellable;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 取消原因，未取消时为null
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * 取消令牌并执行已注册的回调
+     *
+     * @return 本次调用取消了令牌时返回true，已经取消过返回false
+     */
+    public boolean cancel(String reason) {
+        if (!cancellable) {
+            return false;
+        }
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+            this.reason = reason;
+            cancelled = true;
+            toRun = callbacks;
+            callbacks = null;
+        }
+        for (Runnable callback : toRun) {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                logger.warn("执行取消回调失败: {}", e.getMessage(), e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 注册取消时执行的回调
+     *
+     * @return 用于注销回调，工作正常结束后应注销，避免令牌持有已完成的工作
+     */
+    public Disposable onCancel(Runnable callback) {
+        if (!cancellable) {
+            return () -> {
+            };
+        }
+        synchronized (this) {
+            if (!cancelled) {
+                callbacks.add(callback);
+                return () -> {
+                    synchronized (this) {
+                        if (callbacks != null) {
+                            callbacks.remove(callback);
+                        }
+                    }
+                };
+            }
+        }
+        callback.run();
+        return () -> {
+        };
+    }
+}
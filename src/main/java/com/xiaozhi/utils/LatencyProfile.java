@@ -0,0 +1,102 @@
+package com.xiaozhi.utils;
+
+import org.springframework.util.StringUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 模拟服务（mock）的延迟参数
+ * <br/>
+ * 从配置的apiUrl解析，格式为 key=value&amp;key=value，例如 latency=300&amp;jitter=50&amp;rate=20，
+ * 值按URL编码解码。未配置的参数使用各服务的默认值。
+ * 抖动在[-jitter, +jitter]毫秒内均匀分布；配置seed后随机序列固定，便于重复实验。
+ */
+public class LatencyProfile {
+
+    private final Map<String, String> params;
+    private final Random random;
+
+    private LatencyProfile(Map<String, String> params) {
+        this.params = params;
+        String seed = params.get("seed");
+        this.random = StringUtils.hasText(seed) ? new Random(Long.parseLong(seed.trim())) : new Random();
+    }
+
+    /**
+     * 解析参数，为空时全部使用默认值
+     */
+    public static LatencyProfile parse(String spec) {
+        if (!StringUtils.hasText(spec)) {
+            return new LatencyProfile(Collections.emptyMap());
+        }
+        Map<String, String> params = new HashMap<>();
+        for (String pair : spec.trim().split("&")) {
+            int index = pair.indexOf('=');
+            if (index <= 0) {
+                continue;
+            }
+            params.put(pair.substring(0, index).trim(), decode(pair.substring(index + 1)));
+        }
+        return new LatencyProfile(params);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = params.get(key);
+        return StringUtils.hasText(value) ? value : defaultValue;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = params.get(key);
+        return StringUtils.hasText(value) ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = params.get(key);
+        return StringUtils.hasText(value) ? Double.parseDouble(value.trim()) : defaultValue;
+    }
+
+    /**
+     * 基础延迟加上随机抖动，不小于0
+     *
+     * @param latency 基础延迟（毫秒）
+     * @param jitter  抖动幅度（毫秒）
+     * @return 本次延迟（毫秒）
+     */
+    public long nextDelay(long latency, long jitter) {
+        if (jitter <= 0) {
+            return Math.max(0, latency);
+        }
+        long offset;
+        synchronized (random) {
+            offset = (long) ((random.nextDouble() * 2 - 1) * jitter);
+        }
+        return Math.max(0, latency + offset);
+    }
+
+    /**
+     * 阻塞等待指定毫秒，被中断时恢复中断标记并提前返回
+     */
+    public static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return value;
+        }
+    }
+}
@@ -1,25 +1,26 @@
 package com.xiaozhi.utils;
 
-import io.github.jaredmdobson.concentus.OpusEncoder;
-import io.github.jaredmdobson.concentus.OpusApplication;
-import io.github.jaredmdobson.concentus.OpusDecoder;
 import io.github.jaredmdobson.concentus.OpusException;
-import io.github.jaredmdobson.concentus.OpusSignal;
 
+import com.xiaozhi.utils.opus.ConcentusOpusCodec;
+import com.xiaozhi.utils.opus.NativeOpusCodec;
+import com.xiaozhi.utils.opus.OpusCodec;
+import com.xiaozhi.utils.opus.OpusCoderPool;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.nio.file.Files;
 
@@ -27,9 +28,26 @@ import java.nio.file.Files;
 public class OpusProcessor {
     private static final Logger logger = LoggerFactory.getLogger(OpusProcessor.class);
 
-    // 缓存
-    private final ConcurrentHashMap<String, OpusDecoder> decoders = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, OpusEncoder> encoders = new ConcurrentHashMap<>();
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    // 编解码实现：auto优先使用原生libopus，不可用时回退到Concentus；native | concentus 强制指定
+    @Value("${app.opus.codec:auto}")
+    private String codecMode;
+
+    // 原生库名或完整路径，按JNA规则查找（jna.library.path、系统库路径）
+    @Value("${app.opus.native-library:opus}")
+    private String nativeLibrary;
+
+    // 编码器、解码器各自最多保留的空闲数量，为0时不复用
+    @Value("${app.opus.pool.max-idle:64}")
+    private int poolMaxIdle;
+
+    private volatile OpusCodec codec = new ConcentusOpusCodec();
+
+    // 每个会话正在使用的编解码器，会话结束时归还到复用池
+    private final ConcurrentHashMap<String, OpusCodec.Decoder> decoders = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SessionEncoder> encoders = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, short[]> overlaps = new ConcurrentHashMap<>();
 
     // 常量
@@ -42,6 +60,74 @@ public class OpusProcessor {
     // 预热帧数量 - 添加几个静音帧来预热编解码器
     private static final int PREWARM_FRAMES = 2;
 
+    // 编码复杂度，高音质好，低速度快
+    private static final int COMPLEXITY = 5;
+
+    // 上行统一按内部采样率解码，所有会话的解码器参数相同；编码器按会话的下行采样率区分
+    private static final OpusCoderPool.Key DECODER_KEY = OpusCoderPool.Key.decoder(SAMPLE_RATE, CHANNELS);
+
+    // 淡入时长（毫秒）
+    private static final int FADE_IN_MS = 20;
+
+    // 空闲上限在init中按配置调整
+    private final OpusCoderPool<OpusCodec.Decoder> decoderPool = new OpusCoderPool<>("解码器", 64,
+            key -> codec.createDecoder(key.getSampleRate(), key.getChannels()));
+    private final OpusCoderPool<OpusCodec.Encoder> encoderPool = new OpusCoderPool<>("编码器", 64,
+            key -> codec.createEncoder(key.getSampleRate(), key.getChannels(), key.getBitrate(),
+                    key.getComplexity()));
+
+    /**
+     * 按配置选择编解码实现，设置复用池上限
+     */
+    @PostConstruct
+    public void init() {
+        codec = selectCodec(codecMode, nativeLibrary);
+        decoderPool.setMaxIdle(poolMaxIdle);
+        encoderPool.setMaxIdle(poolMaxIdle);
+        pipelineMetrics.registerOpusPool("decoder", decoderPool);
+        pipelineMetrics.registerOpusPool("encoder", encoderPool);
+    }
+
+    /**
+     * 选择编解码实现，原生库加载失败时auto模式回退到Concentus，native模式启动失败
+     */
+    static OpusCodec selectCodec(String mode, String library) {
+        String normalized = mode == null ? "auto" : mode.trim().toLowerCase();
+        if (ConcentusOpusCodec.NAME.equals(normalized)) {
+            logger.info("Opus编解码使用Concentus（配置指定）");
+            return new ConcentusOpusCodec();
+        }
+        try {
+            NativeOpusCodec nativeCodec = NativeOpusCodec.load(library);
+            // 创建一次编解码器，确认导出函数可用
+            nativeCodec.createEncoder(SAMPLE_RATE, CHANNELS, AudioUtils.BITRATE, COMPLEXITY).close();
+            nativeCodec.createDecoder(SAMPLE_RATE, CHANNELS).close();
+            logger.info("Opus编解码使用原生库: {}", nativeCodec.getVersion());
+            return nativeCodec;
+        } catch (Throwable e) {
+            if (NativeOpusCodec.NAME.equals(normalized)) {
+                throw new IllegalStateException("加载原生libopus失败: " + library, e);
+            }
+            logger.info("未找到可用的原生libopus({})，Opus编解码使用Concentus: {}", library, e.getMessage());
+            return new ConcentusOpusCodec();
+        }
+    }
+
+    /**
+     * 当前使用的编解码实现
+     */
+    public OpusCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * 替换编解码实现并清空已创建和池中的编解码器，用于基准测试和对比
+     */
+    public void setCodec(OpusCodec codec) {
+        cleanup();
+        this.codec = codec;
+    }
+
     /**
      * PCM转MP3字节数组
      * 
@@ -178,17 +264,22 @@ public class OpusProcessor {
         }
 
         try {
-            OpusDecoder decoder = getDecoder(sid);
-            short[] buf = new short[FRAME_SIZE * 12];
-            int samples = decoder.decode(data, 0, data.length, buf, 0, buf.length, false);
-
-            byte[] pcm = new byte[samples * 2];
-            for (int i = 0; i < samples; i++) {
-                pcm[i * 2] = (byte) (buf[i] & 0xFF);
-                pcm[i * 2 + 1] = (byte) ((buf[i] >> 8) & 0xFF);
-            }
+            OpusCodec.Decoder decoder = getDecoder(sid);
+            synchronized (decoder) {
+                if (decoders.get(sid) != decoder) {
+                    // 会话已清理，解码器已归还
+                    return new byte[0];
+                }
+                short[] buf = new short[FRAME_SIZE * 12];
+                long start = System.nanoTime();
+                int samples = decoder.decode(data, 0, data.length, buf, 0, buf.length, false);
+                pipelineMetrics.recordOpusDecode(System.nanoTime() - start);
+
+                byte[] pcm = new byte[samples * 2];
+                PcmOps.toBytes(buf, 0, pcm, 0, samples);
 
-            return pcm;
+                return pcm;
+            }
         } catch (OpusException e) {
             logger.warn("解码失败: {}", e.getMessage());
             resetDecoder(sid);
@@ -205,17 +296,25 @@ public class OpusProcessor {
         }
 
         try {
-            OpusDecoder decoder = getDecoder(sid);
-            short[] buf = new short[FRAME_SIZE * 6];
-            int samples = decoder.decode(data, 0, data.length, buf, 0, buf.length, false);
-
-            if (samples < buf.length) {
-                short[] result = new short[samples];
-                System.arraycopy(buf, 0, result, 0, samples);
-                return result;
-            }
+            OpusCodec.Decoder decoder = getDecoder(sid);
+            synchronized (decoder) {
+                if (decoders.get(sid) != decoder) {
+                    // 会话已清理，解码器已归还
+                    return new short[0];
+                }
+                short[] buf = new short[FRAME_SIZE * 6];
+                long start = System.nanoTime();
+                int samples = decoder.decode(data, 0, data.length, buf, 0, buf.length, false);
+                pipelineMetrics.recordOpusDecode(System.nanoTime() - start);
+
+                if (samples < buf.length) {
+                    short[] result = new short[samples];
+                    System.arraycopy(buf, 0, result, 0, samples);
+                    return result;
+                }
 
-            return buf;
+                return buf;
+            }
         } catch (OpusException e) {
             logger.warn("解码失败: {}", e.getMessage());
             resetDecoder(sid);
@@ -548,6 +647,44 @@ public class OpusProcessor {
         return frames;
     }
 
+    /**
+     * 根据Opus数据包的TOC字节计算包内音频时长（毫秒），用于按实际时长发送预先编码的文件
+     *
+     * @return 时长，数据包无效时返回defaultMs
+     */
+    public static int packetDurationMs(byte[] packet, int defaultMs) {
+        if (packet == null || packet.length == 0) {
+            return defaultMs;
+        }
+        int toc = packet[0] & 0xFF;
+        int config = toc >> 3;
+        // 单帧时长，以0.1毫秒为单位
+        int frameTenths;
+        if (config < 12) {
+            // SILK：10/20/40/60ms
+            frameTenths = new int[] { 100, 200, 400, 600 }[config & 3];
+        } else if (config < 16) {
+            // Hybrid：10/20ms
+            frameTenths = (config & 1) == 0 ? 100 : 200;
+        } else {
+            // CELT：2.5/5/10/20ms
+            frameTenths = new int[] { 25, 50, 100, 200 }[config & 3];
+        }
+        int frames;
+        switch (toc & 3) {
+            case 0:
+                frames = 1;
+                break;
+            case 3:
+                frames = packet.length > 1 ? packet[1] & 0x3F : 0;
+                break;
+            default:
+                frames = 2;
+        }
+        int duration = frameTenths * frames / 10;
+        return duration > 0 ? duration : defaultMs;
+    }
+
     /**
      * 获取帧大小
      */
@@ -608,14 +745,12 @@ public class OpusProcessor {
     }
 
     /**
-     * 获取解码器
+     * 获取解码器，优先从复用池取
      */
-    public OpusDecoder getDecoder(String sid) {
+    public OpusCodec.Decoder getDecoder(String sid) {
         return decoders.computeIfAbsent(sid, k -> {
             try {
-                OpusDecoder decoder = new OpusDecoder(SAMPLE_RATE, CHANNELS);
-                decoder.setGain(0);
-                return decoder;
+                return decoderPool.acquire(DECODER_KEY);
             } catch (OpusException e) {
                 logger.error("创建解码器失败", e);
                 throw new RuntimeException("创建解码器失败", e);
@@ -624,25 +759,51 @@ public class OpusProcessor {
     }
 
     /**
-     * 重置解码器
+     * 重置解码器，清除解码状态后继续使用，重置失败时换一个
      */
     public void resetDecoder(String sid) {
-        decoders.remove(sid);
+        OpusCodec.Decoder decoder = decoders.get(sid);
+        if (decoder == null) {
+            return;
+        }
         try {
-            getDecoder(sid);
+            decoder.reset();
         } catch (Exception e) {
-            logger.error("重置解码器失败", e);
+            logger.warn("重置解码器失败，重新获取: {}", e.getMessage());
+            if (decoders.remove(sid, decoder)) {
+                close(decoder);
+            }
+            try {
+                getDecoder(sid);
+            } catch (Exception ex) {
+                logger.error("重置解码器失败", ex);
+            }
         }
     }
 
     /**
-     * PCM转Opus
+     * PCM转Opus，使用默认的16kHz、60ms参数
      */
     public List<byte[]> pcmToOpus(String sid, byte[] pcm) throws OpusException {
+        return pcmToOpus(sid, pcm, AudioProfile.DEFAULT);
+    }
+
+    /**
+     * PCM转Opus，按会话协商的参数重采样和分帧
+     *
+     * @param pcm     内部采样率（16kHz）的PCM
+     * @param profile 会话的下行音频参数
+     */
+    public List<byte[]> pcmToOpus(String sid, byte[] pcm, AudioProfile profile) throws OpusException {
         if (pcm == null || pcm.length == 0) {
             return new ArrayList<>();
         }
 
+        // 重采样到下行采样率
+        if (profile.getSampleRate() != SAMPLE_RATE) {
+            pcm = Resampler.of(SAMPLE_RATE, profile.getSampleRate()).resample(pcm);
+        }
+
         // 确保PCM长度是偶数
         int pcmLen = pcm.length;
         if (pcmLen % 2 != 0) {
@@ -650,24 +811,30 @@ public class OpusProcessor {
         }
 
         // 每帧样本数
-        int frameSize = (SAMPLE_RATE * OPUS_FRAME_DURATION_MS) / 1000;
+        int frameSize = profile.getFrameSamples();
 
-        // 确保frameSize与FRAME_SIZE一致
-        if (frameSize != FRAME_SIZE) {
-            frameSize = FRAME_SIZE; // 使用常量值
+        // 获取编码器
+        SessionEncoder holder = getEncoder(sid, profile.getSampleRate());
+        OpusCodec.Encoder encoder = holder.encoder;
+        synchronized (encoder) {
+            if (encoders.get(sid) != holder) {
+                // 会话已清理或参数已变化，编码器已归还
+                return new ArrayList<>();
+            }
+            return encode(encoder, pcm, pcmLen, frameSize, profile.getSampleRate() * FADE_IN_MS / 1000);
         }
+    }
 
-        // 获取编码器
-        OpusEncoder encoder = getEncoder(sid, SAMPLE_RATE, CHANNELS);
+    /**
+     * 编码整段PCM，调用方持有编码器的锁
+     */
+    private List<byte[]> encode(OpusCodec.Encoder encoder, byte[] pcm, int pcmLen, int frameSize,
+            int fadeInLength) {
+        long encodeStart = System.nanoTime();
 
         // 处理PCM
         List<byte[]> frames = new ArrayList<>();
 
-        // 字节序处理
-        ByteBuffer pcmBuf = ByteBuffer.wrap(pcm, 0, pcmLen);
-        pcmBuf.order(ByteOrder.LITTLE_ENDIAN);
-        ShortBuffer shorts = pcmBuf.asShortBuffer();
-
         int totalShorts = pcmLen / 2;
         int frameCount = (totalShorts + frameSize - 1) / frameSize;
 
@@ -682,19 +849,13 @@ public class OpusProcessor {
         if (totalShorts > 0) {
             // 创建第一帧的拷贝，并应用淡入效果
             short[] firstFrameBuf = new short[frameSize];
-            Arrays.fill(firstFrameBuf, (short) 0);
 
             int firstFrameSamples = Math.min(frameSize, totalShorts);
-            shorts.position(0);
-            shorts.get(firstFrameBuf, 0, firstFrameSamples);
-
-            // 应用淡入效果 - 前20毫秒（大约320个样本）
-            int fadeInSamples = Math.min(320, firstFrameSamples);
-            for (int i = 0; i < fadeInSamples; i++) {
-                // 线性淡入
-                float gain = (float) i / fadeInSamples;
-                firstFrameBuf[i] = (short) (firstFrameBuf[i] * gain);
-            }
+            PcmOps.toShort(pcm, 0, firstFrameBuf, 0, firstFrameSamples);
+
+            // 应用淡入效果 - 前20毫秒，线性淡入
+            int fadeInSamples = Math.min(fadeInLength, firstFrameSamples);
+            PcmOps.fadeIn(firstFrameBuf, 0, fadeInSamples);
 
             try {
                 // 编码第一帧
@@ -716,14 +877,10 @@ public class OpusProcessor {
                 // 当前帧样本数
                 int samples = Math.min(frameSize, totalShorts - start);
 
-                // 重置缓冲区
-                Arrays.fill(shortBuf, (short) 0);
-
-                // 读取样本
+                // 读取样本，最后一帧不足时补零
                 if (start < totalShorts) {
-                    shorts.position(start);
-                    int actual = Math.min(samples, shorts.remaining());
-                    shorts.get(shortBuf, 0, actual);
+                    PcmOps.toShort(pcm, start * 2, shortBuf, 0, samples);
+                    Arrays.fill(shortBuf, samples, frameSize, (short) 0);
 
                     try {
                         // 编码
@@ -741,6 +898,7 @@ public class OpusProcessor {
                 }
             }
         }
+        pipelineMetrics.recordOpusEncode(System.nanoTime() - encodeStart);
 
         return frames;
     }
@@ -748,7 +906,7 @@ public class OpusProcessor {
     /**
      * 添加预热帧 - 解决开头破音问题
      */
-    private void addPrewarmFrames(List<byte[]> frames, OpusEncoder encoder, int frameSize, byte[] opusBuf) {
+    private void addPrewarmFrames(List<byte[]> frames, OpusCodec.Encoder encoder, int frameSize, byte[] opusBuf) {
         // 创建静音帧
         short[] silenceBuf = new short[frameSize];
         Arrays.fill(silenceBuf, (short) 0);
@@ -769,50 +927,78 @@ public class OpusProcessor {
     }
 
     /**
-     * 清理会话
+     * 清理会话，编解码器归还到复用池
      */
     public void cleanup(String sid) {
-        decoders.remove(sid);
+        release(decoderPool, DECODER_KEY, decoders.remove(sid));
+        SessionEncoder holder = encoders.remove(sid);
+        if (holder != null) {
+            release(encoderPool, holder.key, holder.encoder);
+        }
         overlaps.remove(sid);
+    }
 
-        // 清理编码器
-        List<String> toRemove = new ArrayList<>();
-        for (String key : encoders.keySet()) {
-            if (key.startsWith(sid + "_")) {
-                toRemove.add(key);
-            }
-        }
+    /**
+     * 会话当前使用的编码器及其参数
+     */
+    private static final class SessionEncoder {
+        final OpusCoderPool.Key key;
+        final OpusCodec.Encoder encoder;
 
-        for (String key : toRemove) {
-            encoders.remove(key);
+        SessionEncoder(OpusCoderPool.Key key, OpusCodec.Encoder encoder) {
+            this.key = key;
+            this.encoder = encoder;
         }
     }
 
     /**
-     * 获取编码器
+     * 获取编码器，优先从复用池取；会话的下行采样率变化时归还原来的编码器
      */
-    private OpusEncoder getEncoder(String sid, int rate, int channels) {
-        String key = sid + "_" + rate + "_" + channels;
-        return encoders.computeIfAbsent(key, k -> {
+    private SessionEncoder getEncoder(String sid, int rate) {
+        OpusCoderPool.Key key = OpusCoderPool.Key.encoder(rate, CHANNELS, AudioUtils.BITRATE, COMPLEXITY);
+        SessionEncoder current = encoders.get(sid);
+        if (current != null && current.key.equals(key)) {
+            return current;
+        }
+        SessionEncoder[] replaced = new SessionEncoder[1];
+        SessionEncoder result = encoders.compute(sid, (k, existing) -> {
+            if (existing != null && existing.key.equals(key)) {
+                return existing;
+            }
+            replaced[0] = existing;
             try {
-                OpusEncoder encoder = new OpusEncoder(rate, channels, OpusApplication.OPUS_APPLICATION_VOIP);
-
-                // 优化设置
-                encoder.setBitrate(AudioUtils.BITRATE);
-                // 这里后续看是不是要针对音乐做一个切换
-                encoder.setSignalType(OpusSignal.OPUS_SIGNAL_VOICE);
-                encoder.setComplexity(5); // 复杂度高音质好，低速度快
-                encoder.setPacketLossPercent(0); // 降低丢包补偿，减少处理延迟
-                encoder.setForceChannels(channels);
-                encoder.setUseVBR(false); // 使用CBR模式确保稳定的比特率
-                encoder.setUseDTX(false); // 禁用DTX以确保连续的帧
-
-                return encoder;
+                // 语音信号、CBR、关闭DTX和丢包补偿，这里后续看是不是要针对音乐做一个切换
+                return new SessionEncoder(key, encoderPool.acquire(key));
             } catch (OpusException e) {
-                logger.error("创建编码器失败: 采样率={}, 通道={}", rate, channels, e);
+                logger.error("创建编码器失败: 采样率={}, 通道={}", rate, CHANNELS, e);
                 throw new RuntimeException("创建编码器失败", e);
             }
         });
+        if (replaced[0] != null) {
+            release(encoderPool, replaced[0].key, replaced[0].encoder);
+        }
+        return result;
+    }
+
+    /**
+     * 归还编解码器，等正在进行的编解码结束后再重置
+     */
+    private static <T extends OpusCodec.Coder> void release(OpusCoderPool<T> pool, OpusCoderPool.Key key,
+            T coder) {
+        if (coder == null) {
+            return;
+        }
+        synchronized (coder) {
+            pool.release(key, coder);
+        }
+    }
+
+    public OpusCoderPool<OpusCodec.Decoder> getDecoderPool() {
+        return decoderPool;
+    }
+
+    public OpusCoderPool<OpusCodec.Encoder> getEncoderPool() {
+        return encoderPool;
     }
 
     /**
@@ -820,8 +1006,28 @@ public class OpusProcessor {
      */
     @PreDestroy
     public void cleanup() {
-        decoders.clear();
-        encoders.clear();
+        for (String sid : new ArrayList<>(decoders.keySet())) {
+            close(decoders.remove(sid));
+        }
+        for (String key : new ArrayList<>(encoders.keySet())) {
+            SessionEncoder holder = encoders.remove(key);
+            if (holder != null) {
+                close(holder.encoder);
+            }
+        }
         overlaps.clear();
+        decoderPool.clear();
+        encoderPool.clear();
+    }
+
+    private static void close(AutoCloseable coder) {
+        if (coder == null) {
+            return;
+        }
+        try {
+            coder.close();
+        } catch (Exception e) {
+            logger.warn("释放Opus编解码器失败", e);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+package com.xiaozhi.utils;
+
+/**
+ * 16位小端PCM的常用运算
+ * <br/>
+ * 所有方法都写入调用方提供的数组，不分配内存，便于在每帧处理中复用缓冲区。
+ * 循环直接按下标读写数组，不经过ByteBuffer，便于JIT展开和向量化。
+ * 浮点样本归一化到[-1, 1)，即除以32768；写回PCM时截断到16位范围。
+ */
+public final class PcmOps {
+
+    private static final float SCALE = 1f / 32768f;
+
+    private PcmOps() {
+    }
+
+    /**
+     * PCM字节数组中的样本数
+     */
+    public static int samples(byte[] pcm) {
+        return pcm == null ? 0 : pcm.length / 2;
+    }
+
+    /**
+     * PCM转归一化浮点
+     */
+    public static void toFloat(byte[] pcm, int byteOffset, float[] out, int outOffset, int samples) {
+        for (int i = 0; i < samples; i++) {
+            int b = byteOffset + 2 * i;
+            out[outOffset + i] = (short) ((pcm[b] & 0xff) | (pcm[b + 1] << 8)) * SCALE;
+        }
+    }
+
+    /**
+     * 归一化浮点转PCM，超出范围的样本截断
+     */
+    public static void toPcm(float[] in, int inOffset, byte[] out, int byteOffset, int samples) {
+        for (int i = 0; i < samples; i++) {
+            int value = clip((int) (in[inOffset + i] * 32768f));
+            int b = byteOffset + 2 * i;
+            out[b] = (byte) value;
+            out[b + 1] = (byte) (value >> 8);
+        }
+    }
+
+    /**
+     * PCM字节转short样本
+     */
+    public static void toShort(byte[] pcm, int byteOffset, short[] out, int outOffset, int samples) {
+        for (int i = 0; i < samples; i++) {
+            int b = byteOffset + 2 * i;
+            out[outOffset + i] = (short) ((pcm[b] & 0xff) | (pcm[b + 1] << 8));
+        }
+    }
+
+    /**
+     * short样本转PCM字节
+     */
+    public static void toBytes(short[] in, int inOffset, byte[] out, int byteOffset, int samples) {
+        for (int i = 0; i < samples; i++) {
+            short value = in[inOffset + i];
+            int b = byteOffset + 2 * i;
+            out[b] = (byte) value;
+            out[b + 1] = (byte) (value >> 8);
+        }
+    }
+
+    /**
+     * 按增益缩放PCM并截断到16位范围，输入输出可以是同一数组
+     */
+    public static void gain(byte[] in, int inOffset, byte[] out, int outOffset, int samples, float gain) {
+        for (int i = 0; i < samples; i++) {
+            int src = inOffset + 2 * i;
+            int dst = outOffset + 2 * i;
+            int value = clip((int) (((short) ((in[src] & 0xff) | (in[src + 1] << 8))) * gain));
+            out[dst] = (byte) value;
+            out[dst + 1] = (byte) (value >> 8);
+        }
+    }
+
+    /**
+     * 两段PCM相加混音，溢出时截断，输出可以是任一输入数组
+     */
+    public static void mix(byte[] a, int aOffset, byte[] b, int bOffset, byte[] out, int outOffset, int samples) {
+        for (int i = 0; i < samples; i++) {
+            int ia = aOffset + 2 * i;
+            int ib = bOffset + 2 * i;
+            int io = outOffset + 2 * i;
+            int value = clip((short) ((a[ia] & 0xff) | (a[ia + 1] << 8))
+                    + (short) ((b[ib] & 0xff) | (b[ib + 1] << 8)));
+            out[io] = (byte) value;
+            out[io + 1] = (byte) (value >> 8);
+        }
+    }
+
+    /**
+     * 浮点样本的平均绝对值
+     */
+    public static float absMean(float[] samples, int offset, int length) {
+        if (length <= 0) {
+            return 0f;
+        }
+        float sum = 0f;
+        for (int i = 0; i < length; i++) {
+            sum += Math.abs(samples[offset + i]);
+        }
+        return sum / length;
+    }
+
+    /**
+     * PCM的平均绝对值（归一化），不需要先转换为浮点
+     */
+    public static float absMean(byte[] pcm, int byteOffset, int samples) {
+        if (samples <= 0) {
+            return 0f;
+        }
+        long sum = 0;
+        for (int i = 0; i < samples; i++) {
+            int b = byteOffset + 2 * i;
+            sum += Math.abs((short) ((pcm[b] & 0xff) | (pcm[b + 1] << 8)));
+        }
+        return sum * SCALE / samples;
+    }
+
+    /**
+     * 浮点样本的均方根
+     */
+    public static float rms(float[] samples, int offset, int length) {
+        if (length <= 0) {
+            return 0f;
+        }
+        float sum = 0f;
+        for (int i = 0; i < length; i++) {
+            float sample = samples[offset + i];
+            sum += sample * sample;
+        }
+        return (float) Math.sqrt(sum / length);
+    }
+
+    /**
+     * PCM的均方根（归一化），不需要先转换为浮点
+     */
+    public static float rms(byte[] pcm, int byteOffset, int samples) {
+        if (samples <= 0) {
+            return 0f;
+        }
+        long sum = 0;
+        for (int i = 0; i < samples; i++) {
+            int b = byteOffset + 2 * i;
+            int sample = (short) ((pcm[b] & 0xff) | (pcm[b + 1] << 8));
+            sum += sample * sample;
+        }
+        return (float) Math.sqrt((double) sum / samples) * SCALE;
+    }
+
+    /**
+     * 过零率，相邻样本符号变化的次数与样本间隔数之比
+     */
+    public static float zeroCrossingRate(float[] samples, int offset, int length) {
+        if (length <= 1) {
+            return 0f;
+        }
+        int crossings = 0;
+        for (int i = 1; i < length; i++) {
+            if ((samples[offset + i - 1] >= 0) != (samples[offset + i] >= 0)) {
+                crossings++;
+            }
+        }
+        return (float) crossings / (length - 1);
+    }
+
+    /**
+     * 线性淡入，第i个样本乘以 i/length
+     */
+    public static void fadeIn(short[] samples, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            samples[offset + i] = (short) (samples[offset + i] * ((float) i / length));
+        }
+    }
+
+    private static int clip(int value) {
+        return value > Short.MAX_VALUE ? Short.MAX_VALUE : (value < Short.MIN_VALUE ? Short.MIN_VALUE : value);
+    }
+}
@@ -0,0 +1,118 @@
+package com.xiaozhi.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 第三方服务商（STT/TTS/LLM）阻塞调用的统一执行器
+ *
+ * 腾讯、阿里云NLS、DashScope、Coze、Dify等SDK在等待网络时会阻塞线程。
+ * 默认模式下这些调用跑在boundedElastic上，每个进行中的调用占用一个平台线程（上限为10倍CPU核数）；
+ * 虚拟线程模式下每个调用一个虚拟线程，阻塞时不再占用平台线程。
+ *
+ * 服务商实例不是Spring Bean，因此这里以静态方式提供，由ProviderExecutorConfig在启动时完成配置。
+ */
+public final class ProviderExecutors {
+    private static final Logger logger = LoggerFactory.getLogger(ProviderExecutors.class);
+
+    public static final String MODE_BOUNDED_ELASTIC = "bounded-elastic";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private static volatile ExecutorService virtualExecutor;
+    private static volatile Scheduler scheduler = Schedulers.boundedElastic();
+    private static volatile io.reactivex.Scheduler rxScheduler = io.reactivex.schedulers.Schedulers.io();
+
+    private ProviderExecutors() {
+    }
+
+    /**
+     * 按模式配置执行器，虚拟线程不可用时回退到boundedElastic
+     *
+     * @param mode bounded-elastic 或 virtual
+     * @return 实际生效的模式
+     */
+    public static synchronized String configure(String mode) {
+        shutdown();
+        if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor != null) {
+                virtualExecutor = executor;
+                scheduler = Schedulers.fromExecutorService(executor, "provider-virtual");
+                rxScheduler = io.reactivex.schedulers.Schedulers.from(executor);
+                return MODE_VIRTUAL;
+            }
+            logger.warn("当前JVM({})不支持虚拟线程，服务商调用回退到boundedElastic", System.getProperty("java.version"));
+        }
+        return MODE_BOUNDED_ELASTIC;
+    }
+
+    /**
+     * 恢复默认的boundedElastic模式并关闭虚拟线程执行器
+     */
+    public static synchronized void shutdown() {
+        ExecutorService executor = virtualExecutor;
+        virtualExecutor = null;
+        scheduler = Schedulers.boundedElastic();
+        rxScheduler = io.reactivex.schedulers.Schedulers.io();
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 是否运行在虚拟线程模式
+     */
+    public static boolean isVirtual() {
+        return virtualExecutor != null;
+    }
+
+    /**
+     * 用于CompletableFuture等场景的执行器
+     */
+    public static Executor executor() {
+        Scheduler current = scheduler;
+        return task -> current.schedule(task);
+    }
+
+    /**
+     * 用于Reactor的调度器
+     */
+    public static Scheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * 用于RxJava（Coze、DashScope SDK）的调度器
+     */
+    public static io.reactivex.Scheduler rxScheduler() {
+        return rxScheduler;
+    }
+
+    /**
+     * 通过反射创建虚拟线程执行器，保持Java 8源码兼容
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            logger.error("创建虚拟线程执行器失败", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.xiaozhi.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 16位PCM的有理数倍重采样，用于把内部16kHz音频转换为会话协商的下行采样率
+ * <br/>
+ * 输入输出采样率之比约分为L/M，第i个输出样本位于输入的i*M/L处。每个小数位置（共L种相位）预先计算一组
+ * 加Hann窗的sinc插值系数，截止频率取两者中较低的奈奎斯特频率，降采样时同时起抗混叠作用。
+ * 每组系数归一化为直流增益1，没有群延迟，输出与输入在时间上对齐。
+ * 按整段音频处理，段首尾之外的样本视为0。实例不可变，可以在线程间共享。
+ */
+public final class Resampler {
+
+    // 每个输出样本使用的输入样本数
+    private static final int TAPS = 16;
+
+    private static final ConcurrentHashMap<Long, Resampler> CACHE = new ConcurrentHashMap<>();
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int up;
+    private final int down;
+    private final float[][] kernels;
+
+    private Resampler(int inputRate, int outputRate) {
+        int gcd = gcd(inputRate, outputRate);
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+        this.kernels = new float[up][TAPS];
+
+        double cutoff = Math.min(1.0, (double) outputRate / inputRate);
+        int half = TAPS / 2;
+        for (int phase = 0; phase < up; phase++) {
+            double fraction = (double) phase / up;
+            double sum = 0;
+            for (int k = 0; k < TAPS; k++) {
+                // 第k个系数对应的输入样本与输出位置之间的距离
+                double x = k - (half - 1) - fraction;
+                double value = cutoff * sinc(cutoff * x) * 0.5 * (1 + Math.cos(Math.PI * x / half));
+                kernels[phase][k] = (float) value;
+                sum += value;
+            }
+            for (int k = 0; k < TAPS; k++) {
+                kernels[phase][k] /= sum;
+            }
+        }
+    }
+
+    /**
+     * 获取指定采样率转换的实例，相同参数共享同一实例
+     */
+    public static Resampler of(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("采样率必须大于0: " + inputRate + " -> " + outputRate);
+        }
+        long key = ((long) inputRate << 32) | outputRate;
+        return CACHE.computeIfAbsent(key, k -> new Resampler(inputRate, outputRate));
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * 输入samples个样本时的输出样本数
+     */
+    public int outputLength(int samples) {
+        return (int) ((long) samples * up / down);
+    }
+
+    /**
+     * 重采样，输出写入调用方提供的数组
+     *
+     * @return 写入的样本数，即outputLength(length)
+     */
+    public int resample(short[] in, int offset, int length, short[] out, int outOffset) {
+        int count = outputLength(length);
+        if (up == down) {
+            System.arraycopy(in, offset, out, outOffset, count);
+            return count;
+        }
+        int half = TAPS / 2;
+        for (int i = 0; i < count; i++) {
+            long position = (long) i * down;
+            int base = (int) (position / up);
+            float[] kernel = kernels[(int) (position % up)];
+            int start = base - (half - 1);
+            float sum = 0f;
+            if (start >= 0 && start + TAPS <= length) {
+                int index = offset + start;
+                for (int k = 0; k < TAPS; k++) {
+                    sum += kernel[k] * in[index + k];
+                }
+            } else {
+                for (int k = 0; k < TAPS; k++) {
+                    int j = start + k;
+                    if (j >= 0 && j < length) {
+                        sum += kernel[k] * in[offset + j];
+                    }
+                }
+            }
+            int value = Math.round(sum);
+            out[outOffset + i] = (short) (value > Short.MAX_VALUE ? Short.MAX_VALUE
+                    : (value < Short.MIN_VALUE ? Short.MIN_VALUE : value));
+        }
+        return count;
+    }
+
+    /**
+     * 重采样16位小端PCM，采样率相同时返回原数组
+     */
+    public byte[] resample(byte[] pcm) {
+        if (up == down || pcm == null || pcm.length < 2) {
+            return pcm;
+        }
+        int samples = PcmOps.samples(pcm);
+        short[] in = new short[samples];
+        PcmOps.toShort(pcm, 0, in, 0, samples);
+        short[] out = new short[outputLength(samples)];
+        int count = resample(in, 0, samples, out, 0);
+        byte[] result = new byte[count * 2];
+        PcmOps.toBytes(out, 0, result, 0, count);
+        return result;
+    }
+
+    private static double sinc(double x) {
+        if (x == 0) {
+            return 1.0;
+        }
+        double px = Math.PI * x;
+        return Math.sin(px) / px;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -91,36 +92,26 @@ public class TarsosNoiseReducer {
             initializeSession(sessionId);
         }
 
-        // 将PCM字节数据转换为short数组
-        short[] samples = new short[pcmData.length / 2];
-        for (int i = 0; i < samples.length; i++) {
-            samples[i] = (short) ((pcmData[i * 2] & 0xFF) | ((pcmData[i * 2 + 1] & 0xFF) << 8));
-        }
+        // 将PCM转换为归一化浮点样本，原地处理后写回新的字节数组
+        int sampleCount = PcmOps.samples(pcmData);
+        float[] samples = new float[sampleCount];
+        PcmOps.toFloat(pcmData, 0, samples, 0, sampleCount);
 
         // 处理音频数据
-        short[] processedSamples = processShortSamples(sessionId, samples);
-
-        // 将处理后的short数组转换回字节数组
-        byte[] processedPcm = new byte[processedSamples.length * 2];
-        for (int i = 0; i < processedSamples.length; i++) {
-            processedPcm[i * 2] = (byte) (processedSamples[i] & 0xFF);
-            processedPcm[i * 2 + 1] = (byte) ((processedSamples[i] >> 8) & 0xFF);
-        }
+        processSamples(sessionId, samples);
 
+        byte[] processedPcm = new byte[sampleCount * 2];
+        PcmOps.toPcm(samples, 0, processedPcm, 0, sampleCount);
         return processedPcm;
     }
 
     /**
-     * 处理short类型的音频样本
+     * 按块原地处理归一化的浮点样本
      * 
      * @param sessionId 会话ID
-     * @param samples   原始音频样本
-     * @return 处理后的音频样本
+     * @param samples   音频样本，处理结果直接写回
      */
-    private short[] processShortSamples(String sessionId, short[] samples) {
-        // 创建输出缓冲区
-        short[] output = new short[samples.length];
-
+    private void processSamples(String sessionId, float[] samples) {
         // 获取会话的噪声配置文件和训练状态
         float[] noiseProfile = sessionNoiseProfiles.get(sessionId);
         int trainingFrames = sessionTrainingFrames.get(sessionId);
@@ -128,11 +119,8 @@ public class TarsosNoiseReducer {
         // 确定要处理的块数
         int blockCount = (samples.length + bufferSize - 1) / bufferSize;
 
-        // 转换为float数组进行处理
-        float[] floatSamples = new float[samples.length];
-        for (int i = 0; i < samples.length; i++) {
-            floatSamples[i] = samples[i] / 32767.0f;
-        }
+        // 块缓冲区在各块之间复用，最后一块不足时补零
+        float[] buffer = new float[bufferSize];
 
         // 处理每个块
         for (int i = 0; i < blockCount; i++) {
@@ -141,10 +129,8 @@ public class TarsosNoiseReducer {
 
             if (length > 0) {
                 // 提取当前块
-                float[] buffer = new float[bufferSize];
-                for (int j = 0; j < length; j++) {
-                    buffer[j] = (j < length) ? floatSamples[offset + j] : 0.0f;
-                }
+                System.arraycopy(samples, offset, buffer, 0, length);
+                Arrays.fill(buffer, length, bufferSize, 0.0f);
 
                 // 如果在训练阶段，更新噪声配置文件
                 if (trainingFrames < noiseEstimationFrames) {
@@ -152,23 +138,14 @@ public class TarsosNoiseReducer {
                     trainingFrames++;
                     sessionTrainingFrames.put(sessionId, trainingFrames);
 
-                    // 训练阶段直接返回原始数据
-                    for (int j = 0; j < length; j++) {
-                        output[offset + j] = samples[offset + j];
-                    }
+                    // 训练阶段保留原始数据
                 } else {
-                    // 应用噪声抑制
-                    float[] processedBuffer = applyNoiseReduction(buffer, noiseProfile);
-
-                    // 转换回short
-                    for (int j = 0; j < length; j++) {
-                        output[offset + j] = (short) (processedBuffer[j] * 32767.0f);
-                    }
+                    // 应用噪声抑制，结果写回样本
+                    applyNoiseReduction(buffer, noiseProfile);
+                    System.arraycopy(buffer, 0, samples, offset, length);
                 }
             }
         }
-
-        return output;
     }
 
     /**
@@ -188,12 +165,11 @@ public class TarsosNoiseReducer {
     /**
      * 应用噪声抑制
      */
-    private float[] applyNoiseReduction(float[] buffer, float[] noiseProfile) {
-        float[] result = new float[buffer.length];
-
+    private void applyNoiseReduction(float[] buffer, float[] noiseProfile) {
         for (int i = 0; i < buffer.length; i++) {
             // 计算当前样本的幅度
             float magnitude = Math.abs(buffer[i]);
+            float result = buffer[i];
 
             // 如果幅度小于噪声阈值的spectralSubtractionFactor倍，则减弱信号
             float threshold = noiseProfile[i] * (float) spectralSubtractionFactor;
@@ -201,18 +177,15 @@ public class TarsosNoiseReducer {
                 // 应用软门限，而不是简单地将信号设为零
                 float gain = (magnitude / threshold);
                 gain = gain * gain; // 平方以获得更陡峭的曲线
-                result[i] = buffer[i] * gain;
-            } else {
-                result[i] = buffer[i];
+                result = buffer[i] * gain;
             }
 
             // 确保信号不会小于噪声地板
-            if (Math.abs(result[i]) < noiseFloor) {
-                result[i] *= 0.1f; // 降低非常小的值，而不是完全消除
+            if (Math.abs(result) < noiseFloor) {
+                result *= 0.1f; // 降低非常小的值，而不是完全消除
             }
+            buffer[i] = result;
         }
-
-        return result;
     }
 
     /**
@@ -0,0 +1,72 @@
+package com.xiaozhi.utils.opus;
+
+import io.github.jaredmdobson.concentus.OpusApplication;
+import io.github.jaredmdobson.concentus.OpusDecoder;
+import io.github.jaredmdobson.concentus.OpusEncoder;
+import io.github.jaredmdobson.concentus.OpusException;
+import io.github.jaredmdobson.concentus.OpusSignal;
+
+/**
+ * 纯Java的Concentus实现，不依赖本地库，原生libopus不可用时使用
+ */
+public class ConcentusOpusCodec implements OpusCodec {
+
+    public static final String NAME = "concentus";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Encoder createEncoder(int sampleRate, int channels, int bitrate, int complexity) throws OpusException {
+        OpusEncoder encoder = new OpusEncoder(sampleRate, channels, OpusApplication.OPUS_APPLICATION_VOIP);
+        encoder.setBitrate(bitrate);
+        encoder.setSignalType(OpusSignal.OPUS_SIGNAL_VOICE);
+        encoder.setComplexity(complexity);
+        encoder.setPacketLossPercent(0);
+        encoder.setForceChannels(channels);
+        encoder.setUseVBR(false);
+        encoder.setUseDTX(false);
+        return new Encoder() {
+            @Override
+            public int encode(short[] pcm, int pcmOffset, int frameSize, byte[] out, int outOffset, int maxBytes)
+                    throws OpusException {
+                return encoder.encode(pcm, pcmOffset, frameSize, out, outOffset, maxBytes);
+            }
+
+            @Override
+            public void reset() {
+                encoder.resetState();
+            }
+
+            @Override
+            public void close() {
+                // 纯Java实现，由GC回收
+            }
+        };
+    }
+
+    @Override
+    public Decoder createDecoder(int sampleRate, int channels) throws OpusException {
+        OpusDecoder decoder = new OpusDecoder(sampleRate, channels);
+        decoder.setGain(0);
+        return new Decoder() {
+            @Override
+            public int decode(byte[] data, int offset, int length, short[] pcm, int pcmOffset, int frameSize,
+                    boolean fec) throws OpusException {
+                return decoder.decode(data, offset, length, pcm, pcmOffset, frameSize, fec);
+            }
+
+            @Override
+            public void reset() {
+                decoder.resetState();
+            }
+
+            @Override
+            public void close() {
+                // 纯Java实现，由GC回收
+            }
+        };
+    }
+}
@@ -0,0 +1,219 @@
+package com.xiaozhi.utils.opus;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import io.github.jaredmdobson.concentus.OpusException;
+
+/**
+ * 基于原生libopus的实现，通过JNA调用，系统中没有libopus时无法创建
+ * <br/>
+ * 编解码器状态在native内存中分配，必须调用close释放；编解码与close互斥，避免会话关闭时释放正在使用的状态。
+ * JNA数组参数不支持偏移，偏移不为0时先复制到临时数组。
+ */
+public class NativeOpusCodec implements OpusCodec {
+
+    public static final String NAME = "native";
+
+    // opus_defines.h
+    private static final int OPUS_OK = 0;
+    private static final int OPUS_APPLICATION_VOIP = 2048;
+    private static final int OPUS_SIGNAL_VOICE = 3001;
+    private static final int OPUS_SET_BITRATE_REQUEST = 4002;
+    private static final int OPUS_SET_VBR_REQUEST = 4006;
+    private static final int OPUS_SET_COMPLEXITY_REQUEST = 4010;
+    private static final int OPUS_SET_PACKET_LOSS_PERC_REQUEST = 4014;
+    private static final int OPUS_SET_DTX_REQUEST = 4016;
+    private static final int OPUS_SET_FORCE_CHANNELS_REQUEST = 4022;
+    private static final int OPUS_SET_SIGNAL_REQUEST = 4024;
+    private static final int OPUS_RESET_STATE = 4028;
+
+    /**
+     * libopus导出函数
+     */
+    interface LibOpus extends Library {
+        String opus_get_version_string();
+
+        String opus_strerror(int error);
+
+        Pointer opus_encoder_create(int fs, int channels, int application, IntByReference error);
+
+        int opus_encode(Pointer st, short[] pcm, int frameSize, byte[] data, int maxDataBytes);
+
+        int opus_encoder_ctl(Pointer st, int request, Object... args);
+
+        void opus_encoder_destroy(Pointer st);
+
+        Pointer opus_decoder_create(int fs, int channels, IntByReference error);
+
+        int opus_decode(Pointer st, byte[] data, int len, short[] pcm, int frameSize, int decodeFec);
+
+        int opus_decoder_ctl(Pointer st, int request, Object... args);
+
+        void opus_decoder_destroy(Pointer st);
+    }
+
+    private final LibOpus lib;
+    private final String version;
+
+    private NativeOpusCodec(LibOpus lib) {
+        this.lib = lib;
+        this.version = lib.opus_get_version_string();
+    }
+
+    /**
+     * 加载libopus
+     *
+     * @param library 库名（如opus）或完整路径
+     * @throws UnsatisfiedLinkError 找不到库或缺少导出函数
+     */
+    public static NativeOpusCodec load(String library) {
+        return new NativeOpusCodec(Native.load(library, LibOpus.class));
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * libopus版本，如 libopus 1.4
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public Encoder createEncoder(int sampleRate, int channels, int bitrate, int complexity) throws OpusException {
+        IntByReference error = new IntByReference();
+        Pointer st = lib.opus_encoder_create(sampleRate, channels, OPUS_APPLICATION_VOIP, error);
+        check(error.getValue(), "创建编码器");
+        try {
+            // 与Concentus实现的设置一致
+            ctl(st, OPUS_SET_BITRATE_REQUEST, bitrate);
+            ctl(st, OPUS_SET_SIGNAL_REQUEST, OPUS_SIGNAL_VOICE);
+            ctl(st, OPUS_SET_COMPLEXITY_REQUEST, complexity);
+            ctl(st, OPUS_SET_PACKET_LOSS_PERC_REQUEST, 0);
+            ctl(st, OPUS_SET_FORCE_CHANNELS_REQUEST, channels);
+            ctl(st, OPUS_SET_VBR_REQUEST, 0);
+            ctl(st, OPUS_SET_DTX_REQUEST, 0);
+        } catch (OpusException e) {
+            lib.opus_encoder_destroy(st);
+            throw e;
+        }
+        return new NativeEncoder(st, channels);
+    }
+
+    @Override
+    public Decoder createDecoder(int sampleRate, int channels) throws OpusException {
+        IntByReference error = new IntByReference();
+        Pointer st = lib.opus_decoder_create(sampleRate, channels, error);
+        check(error.getValue(), "创建解码器");
+        return new NativeDecoder(st, channels);
+    }
+
+    private void ctl(Pointer st, int request, int value) throws OpusException {
+        check(lib.opus_encoder_ctl(st, request, value), "设置编码参数" + request);
+    }
+
+    private int check(int result, String operation) throws OpusException {
+        if (result < OPUS_OK) {
+            throw new OpusException(operation + "失败: " + lib.opus_strerror(result), result);
+        }
+        return result;
+    }
+
+    private class NativeEncoder implements Encoder {
+        private final int channels;
+        private Pointer st;
+
+        NativeEncoder(Pointer st, int channels) {
+            this.st = st;
+            this.channels = channels;
+        }
+
+        @Override
+        public synchronized int encode(short[] pcm, int pcmOffset, int frameSize, byte[] out, int outOffset,
+                int maxBytes) throws OpusException {
+            if (st == null) {
+                throw new OpusException("编码器已释放");
+            }
+            short[] input = pcm;
+            if (pcmOffset != 0) {
+                input = new short[frameSize * channels];
+                System.arraycopy(pcm, pcmOffset, input, 0, input.length);
+            }
+            if (outOffset == 0) {
+                return check(lib.opus_encode(st, input, frameSize, out, maxBytes), "编码");
+            }
+            byte[] packet = new byte[maxBytes];
+            int length = check(lib.opus_encode(st, input, frameSize, packet, maxBytes), "编码");
+            System.arraycopy(packet, 0, out, outOffset, length);
+            return length;
+        }
+
+        @Override
+        public synchronized void reset() throws OpusException {
+            if (st == null) {
+                throw new OpusException("编码器已释放");
+            }
+            check(lib.opus_encoder_ctl(st, OPUS_RESET_STATE), "重置编码器");
+        }
+
+        @Override
+        public synchronized void close() {
+            if (st != null) {
+                lib.opus_encoder_destroy(st);
+                st = null;
+            }
+        }
+    }
+
+    private class NativeDecoder implements Decoder {
+        private final int channels;
+        private Pointer st;
+
+        NativeDecoder(Pointer st, int channels) {
+            this.st = st;
+            this.channels = channels;
+        }
+
+        @Override
+        public synchronized int decode(byte[] data, int offset, int length, short[] pcm, int pcmOffset,
+                int frameSize, boolean fec) throws OpusException {
+            if (st == null) {
+                throw new OpusException("解码器已释放");
+            }
+            byte[] packet = data;
+            if (data != null && offset != 0) {
+                packet = new byte[length];
+                System.arraycopy(data, offset, packet, 0, length);
+            }
+            int packetLength = data == null ? 0 : length;
+            if (pcmOffset == 0) {
+                return check(lib.opus_decode(st, packet, packetLength, pcm, frameSize, fec ? 1 : 0), "解码");
+            }
+            short[] output = new short[frameSize * channels];
+            int samples = check(lib.opus_decode(st, packet, packetLength, output, frameSize, fec ? 1 : 0), "解码");
+            System.arraycopy(output, 0, pcm, pcmOffset, samples * channels);
+            return samples;
+        }
+
+        @Override
+        public synchronized void reset() throws OpusException {
+            if (st == null) {
+                throw new OpusException("解码器已释放");
+            }
+            check(lib.opus_decoder_ctl(st, OPUS_RESET_STATE), "重置解码器");
+        }
+
+        @Override
+        public synchronized void close() {
+            if (st != null) {
+                lib.opus_decoder_destroy(st);
+                st = null;
+            }
+        }
+    }
+}
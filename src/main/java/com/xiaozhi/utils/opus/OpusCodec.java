@@ -0,0 +1,82 @@
+package com.xiaozhi.utils.opus;
+
+import io.github.jaredmdobson.concentus.OpusException;
+
+/**
+ * Opus编解码实现
+ * <br/>
+ * OpusProcessor通过该接口创建每个会话的编码器和解码器，启动时在原生libopus与纯Java的Concentus之间选择。
+ * 编码器按服务端的下行配置创建：VOIP模式、语音信号、固定码率、关闭DTX。
+ * 编解码器可以重置后复用，由OpusCoderPool在会话之间共享。
+ */
+public interface OpusCodec {
+
+    /**
+     * 实现名称，用于日志
+     */
+    String getName();
+
+    /**
+     * 创建编码器
+     *
+     * @param sampleRate 采样率
+     * @param channels   声道数
+     * @param bitrate    码率（bps）
+     * @param complexity 复杂度（0-10），越高音质越好、越慢
+     */
+    Encoder createEncoder(int sampleRate, int channels, int bitrate, int complexity) throws OpusException;
+
+    /**
+     * 创建解码器
+     *
+     * @param sampleRate 采样率
+     * @param channels   声道数
+     */
+    Decoder createDecoder(int sampleRate, int channels) throws OpusException;
+
+    /**
+     * 编码器和解码器的公共操作
+     */
+    interface Coder extends AutoCloseable {
+
+        /**
+         * 清除编解码状态，保留创建时的参数，相当于重新创建
+         */
+        void reset() throws OpusException;
+
+        /**
+         * 释放编解码器，原生实现会释放native内存
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * 编码器，有状态，同一时刻只能在一个线程中使用
+     */
+    interface Encoder extends Coder {
+
+        /**
+         * 编码一帧
+         *
+         * @return 写入out的字节数
+         */
+        int encode(short[] pcm, int pcmOffset, int frameSize, byte[] out, int outOffset, int maxBytes)
+                throws OpusException;
+    }
+
+    /**
+     * 解码器，有状态，同一时刻只能在一个线程中使用
+     */
+    interface Decoder extends Coder {
+
+        /**
+         * 解码一个数据包
+         *
+         * @param data 数据包，为null时进行丢包补偿
+         * @return 每个声道解码出的样本数
+         */
+        int decode(byte[] data, int offset, int length, short[] pcm, int pcmOffset, int frameSize, boolean fec)
+                throws OpusException;
+    }
+}
@@ -0,0 +1,292 @@
+package com.xiaozhi.utils.opus;
+
+import io.github.jaredmdobson.concentus.OpusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 编码器或解码器的复用池
+ * <br/>
+ * 会话结束时归还的编解码器重置状态后放入池中，新会话按参数取用，避免设备集中重连时大量创建编解码器。
+ * 同一参数的空闲编解码器后进先出，最近归还的优先复用；空闲总数超过上限时按LRU释放最久未使用的。
+ * 池只保存空闲的编解码器，借出的由调用方管理，归还时传入取用时的参数，归还后调用方不能再使用。
+ */
+public class OpusCoderPool<T extends OpusCodec.Coder> {
+    private static final Logger logger = LoggerFactory.getLogger(OpusCoderPool.class);
+
+    /**
+     * 按参数创建编解码器
+     */
+    public interface Factory<T> {
+        T create(Key key) throws OpusException;
+    }
+
+    /**
+     * 编解码器参数，参数相同的编解码器重置后可以互换
+     * <br/>
+     * 编码模式固定为VOIP（见OpusCodec），因此编码器只按采样率、声道、码率和复杂度区分；解码器码率和复杂度为0。
+     */
+    public static final class Key {
+        private final int sampleRate;
+        private final int channels;
+        private final int bitrate;
+        private final int complexity;
+
+        private Key(int sampleRate, int channels, int bitrate, int complexity) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.bitrate = bitrate;
+            this.complexity = complexity;
+        }
+
+        public static Key encoder(int sampleRate, int channels, int bitrate, int complexity) {
+            return new Key(sampleRate, channels, bitrate, complexity);
+        }
+
+        public static Key decoder(int sampleRate, int channels) {
+            return new Key(sampleRate, channels, 0, 0);
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        public int getBitrate() {
+            return bitrate;
+        }
+
+        public int getComplexity() {
+            return complexity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return sampleRate == key.sampleRate && channels == key.channels && bitrate == key.bitrate
+                    && complexity == key.complexity;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((sampleRate * 31 + channels) * 31 + bitrate) * 31 + complexity;
+        }
+
+        @Override
+        public String toString() {
+            return sampleRate + "Hz/" + channels + "ch" + (bitrate > 0 ? "/" + bitrate + "bps/c" + complexity : "");
+        }
+    }
+
+    private static final class Idle<T> {
+        final T coder;
+        final long sequence;
+
+        Idle(T coder, long sequence) {
+            this.coder = coder;
+            this.sequence = sequence;
+        }
+    }
+
+    private final String name;
+    private final Factory<T> factory;
+    private volatile int maxIdle;
+
+    // 每组内按归还顺序排列，队尾最新；由this保护
+    private final Map<Key, ArrayDeque<Idle<T>>> idle = new HashMap<>();
+    private int idleCount;
+    private long sequence;
+
+    // 统计信息
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder creations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param name    名称，用于日志
+     * @param maxIdle 最多保留的空闲编解码器数，为0时不复用
+     * @param factory 池中没有可用的编解码器时用来创建
+     */
+    public OpusCoderPool(String name, int maxIdle, Factory<T> factory) {
+        this.name = name;
+        this.maxIdle = Math.max(0, maxIdle);
+        this.factory = factory;
+    }
+
+    /**
+     * 调整空闲上限，超出的部分立即释放
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = Math.max(0, maxIdle);
+        closeAll(trim());
+    }
+
+    /**
+     * 取用一个编解码器，池中有相同参数的空闲编解码器时直接复用，否则新建
+     */
+    public T acquire(Key key) throws OpusException {
+        synchronized (this) {
+            ArrayDeque<Idle<T>> group = idle.get(key);
+            Idle<T> entry = group == null ? null : group.pollLast();
+            if (entry != null) {
+                idleCount--;
+                hits.increment();
+                return entry.coder;
+            }
+        }
+        T coder = factory.create(key);
+        creations.increment();
+        return coder;
+    }
+
+    /**
+     * 归还编解码器，重置状态后放回池中；重置失败或超出上限的直接释放
+     *
+     * @param key   取用时的参数
+     * @param coder 编解码器，为null时忽略
+     */
+    public void release(Key key, T coder) {
+        if (coder == null) {
+            return;
+        }
+        if (maxIdle == 0) {
+            close(coder);
+            return;
+        }
+        try {
+            coder.reset();
+        } catch (Exception e) {
+            logger.warn("重置Opus{}失败，直接释放: {}", name, e.getMessage());
+            close(coder);
+            return;
+        }
+        List<T> evicted;
+        synchronized (this) {
+            idle.computeIfAbsent(key, k -> new ArrayDeque<>()).offerLast(new Idle<>(coder, sequence++));
+            idleCount++;
+            evicted = trim();
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * 释放所有空闲的编解码器，用于切换编解码实现和停机
+     */
+    public void clear() {
+        List<T> removed = new ArrayList<>();
+        synchronized (this) {
+            for (ArrayDeque<Idle<T>> group : idle.values()) {
+                for (Idle<T> entry : group) {
+                    removed.add(entry.coder);
+                }
+            }
+            idle.clear();
+            idleCount = 0;
+        }
+        closeAll(removed);
+    }
+
+    /**
+     * 空闲数超过上限时取出最久未使用的，由调用方在锁外释放
+     * <br/>
+     * 参数组合很少（通常一种编码、一种解码），逐组比较队首即可找到全局最旧的一个。
+     */
+    private synchronized List<T> trim() {
+        List<T> evicted = null;
+        while (idleCount > maxIdle) {
+            ArrayDeque<Idle<T>> oldestGroup = null;
+            for (ArrayDeque<Idle<T>> group : idle.values()) {
+                Idle<T> head = group.peekFirst();
+                if (head != null && (oldestGroup == null || head.sequence < oldestGroup.peekFirst().sequence)) {
+                    oldestGroup = group;
+                }
+            }
+            if (oldestGroup == null) {
+                break;
+            }
+            if (evicted == null) {
+                evicted = new ArrayList<>();
+            }
+            evicted.add(oldestGroup.pollFirst().coder);
+            idleCount--;
+            evictions.increment();
+        }
+        return evicted;
+    }
+
+    private void closeAll(List<T> coders) {
+        if (coders != null) {
+            for (T coder : coders) {
+                close(coder);
+            }
+        }
+    }
+
+    private void close(T coder) {
+        try {
+            coder.close();
+        } catch (Exception e) {
+            logger.warn("释放Opus{}失败", name, e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * 当前空闲的编解码器数
+     */
+    public synchronized int getIdleCount() {
+        return idleCount;
+    }
+
+    /**
+     * 复用池中编解码器的次数
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * 新建编解码器的次数
+     */
+    public long getCreations() {
+        return creations.sum();
+    }
+
+    /**
+     * 超出空闲上限被释放的次数
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * 统计信息摘要，用于日志
+     */
+    public String stats() {
+        return String.format("空闲: %d/%d, 复用: %d, 新建: %d, 淘汰: %d", getIdleCount(), maxIdle, getHits(),
+                getCreations(), getEvictions());
+    }
+}
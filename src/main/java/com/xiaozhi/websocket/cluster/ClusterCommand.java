@@ -0,0 +1,88 @@
+package com.xiaozhi.websocket.cluster;
+
+/**
+ * 节点间转发的命令
+ * <br/>
+ * 发往设备所在节点，由该节点在本地会话上执行
+ */
+public class ClusterCommand {
+
+    /**
+     * 向设备发送IoT指令，payload为{name, method, parameters}
+     */
+    public static final String TYPE_IOT = "iot";
+
+    /**
+     * 关闭设备会话
+     */
+    public static final String TYPE_CLOSE = "close";
+
+    /**
+     * 刷新设备会话的配置，payload为设备信息
+     */
+    public static final String TYPE_REFRESH = "refresh";
+
+    private String type;
+
+    private String deviceId;
+
+    /**
+     * 发送命令的节点
+     */
+    private String sourceNodeId;
+
+    /**
+     * 命令内容（JSON）
+     */
+    private String payload;
+
+    public ClusterCommand() {
+    }
+
+    public ClusterCommand(String type, String deviceId, String payload) {
+        this.type = type;
+        this.deviceId = deviceId;
+        this.payload = payload;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public ClusterCommand setType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public ClusterCommand setDeviceId(String deviceId) {
+        this.deviceId = deviceId;
+        return this;
+    }
+
+    public String getSourceNodeId() {
+        return sourceNodeId;
+    }
+
+    public ClusterCommand setSourceNodeId(String sourceNodeId) {
+        this.sourceNodeId = sourceNodeId;
+        return this;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public ClusterCommand setPayload(String payload) {
+        this.payload = payload;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterCommand{type='" + type + "', deviceId='" + deviceId + "', sourceNodeId='" + sourceNodeId + "'}";
+    }
+}
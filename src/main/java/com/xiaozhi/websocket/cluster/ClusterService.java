@@ -0,0 +1,321 @@
+package com.xiaozhi.websocket.cluster;
+
+import com.xiaozhi.mapper.redis.DeviceRouteRedisMapper;
+import com.xiaozhi.utils.JsonUtil;
+import com.xiaozhi.websocket.service.SessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 集群服务 - 负责多节点部署时的设备路由
+ * <br/>
+ * 会话状态仍保存在各节点本地，Redis中只记录设备连接在哪个节点（带租约）。
+ * 管理端操作和IoT指令如果目标设备不在本节点，通过Redis发布订阅转发到设备所在节点执行。
+ * 未开启集群模式时所有操作只在本地执行，行为与单机部署一致。
+ */
+@Service
+public class ClusterService {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterService.class);
+
+    // 每个节点订阅自己的命令频道
+    private static final String COMMAND_CHANNEL = "xiaozhi:cluster:command:%s";
+
+    @Value("${app.cluster.enabled:false}")
+    private boolean enabled;
+
+    // 节点ID，为空时使用主机名加随机后缀
+    @Value("${app.cluster.node-id:}")
+    private String configuredNodeId;
+
+    // 设备归属租约时长，节点每1/3租约续期一次
+    @Value("${app.cluster.lease-seconds:30}")
+    private int leaseSeconds;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private DeviceRouteRedisMapper deviceRouteRedisMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisConnectionFactory redisConnectionFactory;
+
+    private String nodeId;
+
+    // 本节点上的设备：deviceId -> sessionId
+    private final ConcurrentHashMap<String, String> localDevices = new ConcurrentHashMap<>();
+
+    // 命令处理器
+    private final ConcurrentHashMap<String, Consumer<ClusterCommand>> handlers = new ConcurrentHashMap<>();
+
+    private RedisMessageListenerContainer listenerContainer;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        nodeId = StringUtils.hasText(configuredNodeId) ? configuredNodeId : defaultNodeId();
+        registerHandler(ClusterCommand.TYPE_CLOSE, command -> {
+            String sessionId = sessionManager.getSessionByDeviceId(command.getDeviceId());
+            if (sessionId != null) {
+                sessionManager.closeSession(sessionId);
+            }
+        });
+        if (!enabled) {
+            return;
+        }
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(redisConnectionFactory);
+        listenerContainer.addMessageListener((message, pattern) -> onMessage(
+                new String(message.getBody(), StandardCharsets.UTF_8)), new ChannelTopic(getCommandChannel(nodeId)));
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, leaseSeconds * 1000L / 3);
+        scheduler.scheduleAtFixedRate(this::heartbeat, 0, period, TimeUnit.MILLISECONDS);
+        logger.info("集群模式已开启 - NodeId: {}, 租约: {}秒", nodeId, leaseSeconds);
+    }
+
+    /**
+     * 节点下线：释放本节点上所有设备的归属，停止接收命令
+     */
+    @PreDestroy
+    public void destroy() {
+        if (!enabled) {
+            return;
+        }
+        scheduler.shutdownNow();
+        try {
+            for (String deviceId : localDevices.keySet()) {
+                deviceRouteRedisMapper.release(deviceId, nodeId);
+            }
+            deviceRouteRedisMapper.removeNode(nodeId);
+        } catch (Exception e) {
+            logger.warn("释放设备归属失败 - NodeId: {}", nodeId, e);
+        }
+        try {
+            listenerContainer.destroy();
+        } catch (Exception e) {
+            logger.warn("关闭集群命令订阅失败", e);
+        }
+        logger.info("集群节点已下线 - NodeId: {}, 设备数: {}", nodeId, localDevices.size());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 注册命令处理器，收到该类型的命令时在本节点执行
+     */
+    public void registerHandler(String type, Consumer<ClusterCommand> handler) {
+        handlers.put(type, handler);
+    }
+
+    /**
+     * 设备连接到本节点
+     */
+    public void onDeviceConnected(String deviceId, String sessionId) {
+        localDevices.put(deviceId, sessionId);
+        if (!enabled) {
+            return;
+        }
+        try {
+            String previous = deviceRouteRedisMapper.register(deviceId, nodeId, leaseMillis());
+            if (previous != null && !previous.equals(nodeId)) {
+                // 设备重连到了本节点，关闭原节点上残留的会话
+                logger.info("设备已从节点 {} 迁移到本节点 - DeviceId: {}", previous, deviceId);
+                publish(previous, new ClusterCommand(ClusterCommand.TYPE_CLOSE, deviceId, null));
+            }
+        } catch (Exception e) {
+            logger.error("登记设备归属失败 - DeviceId: {}", deviceId, e);
+        }
+    }
+
+    /**
+     * 设备从本节点断开
+     */
+    public void onDeviceDisconnected(String deviceId, String sessionId) {
+        // 同一设备可能已经用新会话重连，只移除当前会话的记录
+        if (!localDevices.remove(deviceId, sessionId) || !enabled) {
+            return;
+        }
+        try {
+            deviceRouteRedisMapper.release(deviceId, nodeId);
+        } catch (Exception e) {
+            logger.error("释放设备归属失败 - DeviceId: {}", deviceId, e);
+        }
+    }
+
+    /**
+     * 本节点上的设备：deviceId -> sessionId
+     */
+    public Map<String, String> getLocalDevices() {
+        return localDevices;
+    }
+
+    /**
+     * 设备当前是否连接在其他节点
+     */
+    public boolean isOwnedByOtherNode(String deviceId) {
+        if (!enabled) {
+            return false;
+        }
+        try {
+            String owner = deviceRouteRedisMapper.getOwner(deviceId);
+            return owner != null && !owner.equals(nodeId);
+        } catch (Exception e) {
+            logger.warn("查询设备归属失败 - DeviceId: {}", deviceId, e);
+            return false;
+        }
+    }
+
+    /**
+     * 在设备所在节点执行命令
+     *
+     * @return 设备在本节点时返回是否已执行；在其他节点时返回命令是否已送达该节点
+     */
+    public boolean dispatch(ClusterCommand command) {
+        String deviceId = command.getDeviceId();
+        if (sessionManager.getSessionByDeviceId(deviceId) != null) {
+            return execute(command);
+        }
+        if (!enabled) {
+            return false;
+        }
+        try {
+            String owner = deviceRouteRedisMapper.getOwner(deviceId);
+            if (owner == null || owner.equals(nodeId)) {
+                return false;
+            }
+            if (!deviceRouteRedisMapper.isNodeAlive(owner) || !publish(owner, command)) {
+                // 节点已失效，清理残留的归属
+                logger.warn("设备所在节点已失效 - DeviceId: {}, NodeId: {}", deviceId, owner);
+                deviceRouteRedisMapper.release(deviceId, owner);
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("转发集群命令失败 - {}", command, e);
+            return false;
+        }
+    }
+
+    /**
+     * 关闭设备会话，设备可以在任意节点
+     */
+    public boolean closeDeviceSession(String deviceId) {
+        return dispatch(new ClusterCommand(ClusterCommand.TYPE_CLOSE, deviceId, null));
+    }
+
+    private boolean publish(String targetNodeId, ClusterCommand command) {
+        command.setSourceNodeId(nodeId);
+        byte[] channel = getCommandChannel(targetNodeId).getBytes(StandardCharsets.UTF_8);
+        byte[] body = JsonUtil.toJson(command).getBytes(StandardCharsets.UTF_8);
+        Long receivers = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.publish(channel, body));
+        logger.debug("已转发集群命令 - 目标节点: {}, {}", targetNodeId, command);
+        return receivers != null && receivers > 0;
+    }
+
+    private void onMessage(String body) {
+        ClusterCommand command = JsonUtil.fromJson(body, ClusterCommand.class);
+        if (command == null) {
+            return;
+        }
+        logger.info("收到集群命令 - 来源节点: {}, {}", command.getSourceNodeId(), command);
+        execute(command);
+    }
+
+    private boolean execute(ClusterCommand command) {
+        Consumer<ClusterCommand> handler = handlers.get(command.getType());
+        if (handler == null) {
+            logger.warn("未知的集群命令类型: {}", command.getType());
+            return false;
+        }
+        try {
+            handler.accept(command);
+            return true;
+        } catch (Exception e) {
+            logger.error("执行集群命令失败 - {}", command, e);
+            return false;
+        }
+    }
+
+    /**
+     * 节点心跳并续期本节点上所有设备的归属
+     */
+    private void heartbeat() {
+        try {
+            long lease = leaseMillis();
+            deviceRouteRedisMapper.heartbeat(nodeId, lease);
+            localDevices.forEach((deviceId, sessionId) -> {
+                if (deviceRouteRedisMapper.renew(deviceId, nodeId, lease)) {
+                    return;
+                }
+                String owner = deviceRouteRedisMapper.getOwner(deviceId);
+                if (owner == null) {
+                    // 租约已过期（例如Redis短暂不可用），重新登记
+                    deviceRouteRedisMapper.register(deviceId, nodeId, lease);
+                } else if (!owner.equals(nodeId)) {
+                    // 设备已连接到其他节点，本地会话已失效
+                    logger.info("设备已归属节点 {}，关闭本地会话 - DeviceId: {}", owner, deviceId);
+                    localDevices.remove(deviceId, sessionId);
+                    sessionManager.closeSession(sessionId);
+                }
+            });
+        } catch (Exception e) {
+            logger.warn("集群心跳失败 - NodeId: {}", nodeId, e);
+        }
+    }
+
+    private long leaseMillis() {
+        return leaseSeconds * 1000L;
+    }
+
+    private static String getCommandChannel(String nodeId) {
+        return String.format(COMMAND_CHANNEL, nodeId);
+    }
+
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "node";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+}
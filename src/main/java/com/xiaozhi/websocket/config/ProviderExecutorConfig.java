@@ -0,0 +1,37 @@
+package com.xiaozhi.websocket.config;
+
+import com.xiaozhi.utils.ProviderExecutors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * 服务商调用执行器配置
+ *
+ * app.provider.executor 可选值：
+ * bounded-elastic（默认）：使用Reactor的boundedElastic平台线程池
+ * virtual：使用Java 21虚拟线程，需要以 -Pjdk21 构建并运行在21及以上的JVM
+ */
+@Configuration
+public class ProviderExecutorConfig {
+    private static final Logger logger = LoggerFactory.getLogger(ProviderExecutorConfig.class);
+
+    @Value("${app.provider.executor:bounded-elastic}")
+    private String executorMode;
+
+    @PostConstruct
+    public void init() {
+        String mode = ProviderExecutors.configure(executorMode);
+        logger.info("服务商调用执行模式: {}", mode);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        ProviderExecutors.shutdown();
+    }
+}
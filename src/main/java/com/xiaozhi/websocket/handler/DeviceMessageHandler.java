@@ -0,0 +1,397 @@
+package com.xiaozhi.websocket.handler;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.xiaozhi.entity.SysConfig;
+import com.xiaozhi.entity.SysDevice;
+import com.xiaozhi.service.SysConfigService;
+import com.xiaozhi.service.SysDeviceService;
+import com.xiaozhi.utils.AudioProfile;
+import com.xiaozhi.utils.ProviderExecutors;
+import com.xiaozhi.websocket.cluster.ClusterService;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import com.xiaozhi.websocket.service.*;
+import com.xiaozhi.websocket.transport.DeviceSession;
+import com.xiaozhi.websocket.tts.factory.TtsServiceFactory;
+
+import org.springframework.util.ObjectUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+
+/**
+ * 设备消息处理，与传输方式无关
+ * <br/>
+ * WebSocket和MQTT+UDP两种传输各自负责连接、鉴权和收发，解析出的控制消息和音频帧都交给这里处理：
+ * 连接建立时加载设备信息，hello协商音频参数，listen/abort/iot分发到对应服务，音频投递到会话信箱，连接关闭时清理资源。
+ */
+@Component
+public class DeviceMessageHandler {
+
+    @Autowired
+    private SysDeviceService deviceService;
+
+    @Autowired
+    private SysConfigService configService;
+
+    @Autowired
+    private AudioService audioService;
+
+    @Autowired
+    private TtsServiceFactory ttsService;
+
+    @Autowired
+    private VadService vadService;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private DialogueService dialogueService;
+
+    @Autowired
+    private IotService iotService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private DevicePresenceService devicePresenceService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    // 下行采样率：0表示按设备hello中的sample_rate，16000或24000表示对所有设备使用该值
+    @Value("${app.audio.output-sample-rate:0}")
+    private int outputSampleRate;
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceMessageHandler.class);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * 连接建立后加载设备信息并登记上线，会话需已在SessionManager中注册
+     */
+    public Mono<Void> onOpen(DeviceSession session, String deviceId) {
+        String sessionId = session.getId();
+        return Mono.fromCallable(() -> {
+            logger.info("开始查询设备信息 - DeviceId: {}", deviceId);
+            return deviceService.selectDeviceById(deviceId);
+        })
+                .subscribeOn(Schedulers.boundedElastic())
+                .doOnError(e -> {
+                    logger.error("查询设备信息失败 - DeviceId: " + deviceId, e);
+                })
+                .flatMap(device -> {
+                    if (ObjectUtils.isEmpty(device)) {
+                        device.setDeviceId(deviceId);
+                        device.setSessionId(sessionId);
+                    } else {
+                        device.setSessionId(sessionId);
+                        if (device.getSttId() != null) {
+                            SysConfig sttConfig = configService.selectConfigById(device.getSttId());
+                            sessionManager.cacheConfig(device.getSttId(), sttConfig);
+                        }
+                        if (device.getTtsId() != null) {
+                            SysConfig ttsConfig = configService.selectConfigById(device.getTtsId());
+                            sessionManager.cacheConfig(device.getTtsId(), ttsConfig);
+                        }
+                    }
+                    sessionManager.registerDevice(sessionId, device);
+                    clusterService.onDeviceConnected(deviceId, sessionId);
+                    logger.info("设备连接建立成功 - SessionId: {}, DeviceId: {}, Transport: {}", sessionId, deviceId,
+                            session.getTransport());
+
+                    // 更新设备状态，由DevicePresenceService批量写库
+                    devicePresenceService.online(deviceId, sessionId);
+                    return Mono.<Void>empty();
+                });
+    }
+
+    /**
+     * 连接关闭时清理会话相关的资源
+     */
+    public void onClose(DeviceSession session, String deviceId) {
+        String sessionId = session.getId();
+        SysDevice device = sessionManager.getDeviceConfig(sessionId);
+        devicePresenceService.offline(deviceId, sessionId);
+        if (device != null) {
+            logger.info("设备连接关闭 - SessionId: {}, DeviceId: {}, Transport: {}", sessionId,
+                    device.getDeviceId(), session.getTransport());
+        }
+        clusterService.onDeviceDisconnected(deviceId, sessionId);
+        admissionService.releaseDialogue(sessionId);
+        admissionService.releaseConnection(sessionId);
+
+        // 取消进行中的对话（中断大模型请求、跳过未开始的语音合成）并清理对话和音频处理的会话状态，
+        // 需要在关闭会话之前调用，取消时还要读取会话的流式状态
+        try {
+            dialogueService.cleanupSession(sessionId);
+        } catch (Exception e) {
+            logger.error("清理对话会话失败 - SessionId: {}", sessionId, e);
+        }
+
+        // 清理会话
+        sessionManager.closeSession(sessionId);
+        // 清理VAD会话
+        vadService.resetSession(sessionId);
+    }
+
+    /**
+     * 处理一条控制消息（JSON）
+     */
+    public Mono<Void> onText(DeviceSession session, String payload) {
+        String sessionId = session.getId();
+        SysDevice device = sessionManager.getDeviceConfig(sessionId);
+
+        try {
+            // 首先尝试解析JSON消息
+            JsonNode jsonNode = objectMapper.readTree(payload);
+            String messageType = jsonNode.path("type").asText();
+
+            // hello消息应该始终处理，无论设备是否绑定
+            if ("hello".equals(messageType)) {
+                return handleHelloMessage(session, jsonNode);
+            }
+
+            // 对于其他消息类型，检查设备是否已绑定
+            if (device == null) {
+                // 设备信息不存在，需要查询
+                return Mono.fromCallable(() -> deviceService.selectDeviceById(device.getDeviceId()))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .flatMap(queryDevice -> {
+                        if (ObjectUtils.isEmpty(queryDevice) || queryDevice.getModelId() == null) {
+                            // 设备未绑定，处理未绑定设备的消息
+                            return handleUnboundDevice(session, queryDevice != null ? queryDevice : device);
+                        } else {
+                            // 更新缓存的设备信息
+                            sessionManager.registerDevice(sessionId, queryDevice);
+                            // 继续处理消息
+                            return handleMessageByType(session, jsonNode, messageType, queryDevice);
+                        }
+                    });
+            } else if (device.getModelId() == null) {
+                // 设备存在但未绑定模型，直接处理未绑定设备
+                return handleUnboundDevice(session, device);
+            } else {
+                // 设备已绑定且信息已缓存，直接处理消息
+                return handleMessageByType(session, jsonNode, messageType, device);
+            }
+        } catch (Exception e) {
+            logger.error("处理文本消息失败", e);
+            return Mono.empty();
+        }
+    }
+
+    /**
+     * 处理一帧上行Opus音频
+     */
+    public Mono<Void> onBinary(DeviceSession session, byte[] opusData) {
+        SysDevice device = sessionManager.getDeviceConfig(session.getId());
+        if (device == null) {
+            sessionManager.closeSession(session.getId());
+            return Mono.empty();
+        }
+        if (device.getModelId() == null) {
+            return handleUnboundDevice(session, device);
+        }
+        pipelineMetrics.frameIn();
+
+        // 投递到会话信箱，由共享工作线程按顺序处理，接收线程不等待VAD
+        dialogueService.enqueueAudioData(session, opusData);
+        return Mono.empty();
+    }
+
+    /**
+     * 设备关闭音频通道（MQTT+UDP传输的goodbye），停止监听并中止进行中的对话，连接保持
+     */
+    public Mono<Void> onGoodbye(DeviceSession session) {
+        String sessionId = session.getId();
+        logger.info("设备关闭音频通道 - SessionId: {}", sessionId);
+        sessionManager.setListeningState(sessionId, false);
+        sessionManager.closeAudioChannel(sessionId);
+        sessionManager.setStreamingState(sessionId, false);
+        vadService.resetSession(sessionId);
+        return dialogueService.abortDialogue(session, "goodbye");
+    }
+
+    private Mono<Void> handleMessageByType(DeviceSession session, JsonNode jsonNode,
+            String messageType, SysDevice device) {
+        switch (messageType) {
+            case "listen":
+                return handleListenMessage(session, jsonNode);
+            case "abort":
+                return dialogueService.abortDialogue(session, jsonNode.path("reason").asText());
+            case "iot":
+                return handleIotMessage(session, jsonNode);
+            default:
+                logger.warn("未知的消息类型: {}", messageType);
+                return Mono.empty();
+        }
+    }
+
+    private Mono<Void> handleUnboundDevice(DeviceSession session, SysDevice device) {
+        String deviceId = device.getDeviceId();
+        String sessionId = session.getId();
+
+        // 检查是否已经在处理中
+        if (!sessionManager.markCaptchaGeneration(deviceId)) {
+            return Mono.empty();
+        }
+
+        // 设备已注册但未配置模型
+        if (device.getDeviceName() != null && device.getModelId() == null) {
+            String message = "设备未配置对话模型，请到配置页面完成配置后开始对话";
+
+            // 语音合成会阻塞线程，交给服务商执行器
+            return Mono.fromCallable(() -> ttsService.getTtsService().textToSpeech(message))
+                .subscribeOn(ProviderExecutors.scheduler())
+                .flatMap(audioFilePath -> audioService.sendAudioMessage(session, audioFilePath, message, true, true))
+                .doFinally(signal -> {
+                    // 延迟一段时间后再解除标记
+                    Mono.delay(Duration.ofMillis(1000))
+                        .doOnNext(l -> sessionManager.unmarkCaptchaGeneration(deviceId))
+                        .subscribe();
+                });
+        }
+
+        // 设备未命名，生成验证码
+        return Mono.fromCallable(() -> {
+            // 生成新验证码
+            SysDevice codeResult = deviceService.generateCode(device);
+            String audioFilePath;
+            if (!StringUtils.hasText(codeResult.getAudioPath())) {
+                String codeMessage = "请到设备管理页面添加设备，输入验证码" + codeResult.getCode();
+                audioFilePath = ttsService.getTtsService().textToSpeech(codeMessage);
+                codeResult.setDeviceId(deviceId);
+                codeResult.setSessionId(sessionId);
+                codeResult.setAudioPath(audioFilePath);
+                deviceService.updateCode(codeResult);
+            } else {
+                audioFilePath = codeResult.getAudioPath();
+            }
+            return codeResult;
+        })
+        .subscribeOn(ProviderExecutors.scheduler())
+        .flatMap(codeResult ->
+            audioService.sendAudioMessage(session, codeResult.getAudioPath(), codeResult.getCode(), true, true)
+        )
+        .doFinally(signal -> {
+            // 延迟一段时间后再解除标记
+            Mono.delay(Duration.ofMillis(1000))
+                .doOnNext(l -> sessionManager.unmarkCaptchaGeneration(deviceId))
+                .subscribe();
+        });
+    }
+
+    private Mono<Void> handleHelloMessage(DeviceSession session, JsonNode jsonNode) {
+        logger.info("收到hello消息 - SessionId: {},JsonNode: {}", session.getId(), jsonNode);
+
+        // 解析音频参数
+        JsonNode audioParams = jsonNode.path("audio_params");
+        String format = audioParams.path("format").asText();
+        int sampleRate = audioParams.path("sample_rate").asInt();
+        int channels = audioParams.path("channels").asInt();
+        int frameDuration = audioParams.path("frame_duration").asInt();
+
+        logger.info("客户端音频参数 - 格式: {}, 采样率: {}, 声道: {}, 帧时长: {}ms",
+                format, sampleRate, channels, frameDuration);
+
+        // 协商下行音频参数，不支持的采样率和帧时长使用默认的16kHz、60ms
+        AudioProfile profile = AudioProfile.negotiate(outputSampleRate > 0 ? outputSampleRate : sampleRate,
+                frameDuration);
+        sessionManager.setAudioProfile(session.getId(), profile);
+        logger.info("下行音频参数 - SessionId: {}, {}", session.getId(), profile);
+
+        // 回复hello消息，传输相关的字段（如UDP地址和密钥）由会话填写
+        ObjectNode response = objectMapper.createObjectNode();
+        response.put("type", "hello");
+        session.fillHello(response);
+        response.put("session_id", session.getId());
+
+        // 添加协商后的下行音频参数
+        ObjectNode responseAudioParams = response.putObject("audio_params");
+        responseAudioParams.put("format", format);
+        responseAudioParams.put("sample_rate", profile.getSampleRate());
+        responseAudioParams.put("channels", profile.getChannels());
+        responseAudioParams.put("frame_duration", profile.getFrameDuration());
+
+        return sessionManager.sendText(session, response.toString());
+    }
+
+    private Mono<Void> handleListenMessage(DeviceSession session, JsonNode jsonNode) {
+        String sessionId = session.getId();
+        // 解析listen消息中的state和mode字段
+        String state = jsonNode.path("state").asText();
+        String mode = jsonNode.path("mode").asText();
+
+        logger.info("收到listen消息 - SessionId: {}, State: {}, Mode: {}", sessionId, state, mode);
+
+        // 根据state处理不同的监听状态
+        switch (state) {
+            case "start":
+                // 开始监听，准备接收音频数据
+                logger.info("开始监听 - Mode: {}", mode);
+                sessionManager.setListeningState(sessionId, true);
+
+                // 初始化VAD会话
+                vadService.initializeSession(sessionId);
+
+                return Mono.empty();
+            case "stop":
+                // 停止监听
+                logger.info("停止监听");
+                sessionManager.setListeningState(sessionId, false);
+
+                // 关闭音频流
+                sessionManager.closeAudioChannel(sessionId);
+                sessionManager.setStreamingState(sessionId, false);
+                // 重置VAD会话
+                vadService.resetSession(sessionId);
+
+                return Mono.empty();
+            case "detect":
+                // 检测到唤醒词
+                String text = jsonNode.path("text").asText();
+                return dialogueService.handleWakeWord(session, text);
+            default:
+                logger.warn("未知的listen状态: {}", state);
+                return Mono.empty();
+        }
+    }
+
+    private Mono<Void> handleIotMessage(DeviceSession session, JsonNode jsonNode) {
+        String sessionId = session.getId();
+        logger.info("收到IoT消息 - SessionId: {}", sessionId);
+
+        // 处理设备描述信息
+        if (jsonNode.has("descriptors")) {
+            JsonNode descriptors = jsonNode.path("descriptors");
+            logger.info("收到设备描述信息: {}", descriptors);
+            // 处理设备描述信息的逻辑
+            iotService.handleDeviceDescriptors(sessionId, descriptors);
+        }
+
+        // 处理设备状态更新
+        if (jsonNode.has("states")) {
+            JsonNode states = jsonNode.path("states");
+            logger.info("收到设备状态更新: {}", states);
+            // 处理设备状态更新的逻辑
+            iotService.handleDeviceStates(sessionId, states);
+        }
+
+        return Mono.empty();
+    }
+}
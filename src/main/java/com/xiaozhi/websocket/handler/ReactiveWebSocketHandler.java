@@ -1,70 +1,48 @@
 package com.xiaozhi.websocket.handler;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.xiaozhi.entity.SysConfig;
-import com.xiaozhi.entity.SysDevice;
-import com.xiaozhi.service.SysConfigService;
-import com.xiaozhi.service.SysDeviceService;
 import com.xiaozhi.websocket.service.*;
-import com.xiaozhi.websocket.tts.factory.TtsServiceFactory;
+import com.xiaozhi.websocket.transport.WebSocketDeviceSession;
 
-import org.springframework.util.ObjectUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
 import org.springframework.web.reactive.socket.WebSocketHandler;
 import org.springframework.web.reactive.socket.WebSocketMessage;
 import org.springframework.web.reactive.socket.WebSocketSession;
 
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 
 import java.net.URI;
-import java.time.Duration;
-import java.util.Date;
 
 @Component
 public class ReactiveWebSocketHandler implements WebSocketHandler {
 
     @Autowired
-    private SysDeviceService deviceService;
-
-    @Autowired
-    private SysConfigService configService;
-
-    @Autowired
-    private AudioService audioService;
-
-    @Autowired
-    private TtsServiceFactory ttsService;
-
-    @Autowired
-    private VadService vadService;
+    private SessionManager sessionManager;
 
     @Autowired
-    private SessionManager sessionManager;
+    private ConnectionDrainService connectionDrainService;
 
     @Autowired
-    private DialogueService dialogueService;
+    private AdmissionService admissionService;
 
     @Autowired
-    private IotService iotService;
+    private DeviceMessageHandler deviceMessageHandler;
 
     private static final Logger logger = LoggerFactory.getLogger(ReactiveWebSocketHandler.class);
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-
     @Override
     public Mono<Void> handle(WebSocketSession session) {
         String sessionId = session.getId();
+        WebSocketDeviceSession deviceSession = new WebSocketDeviceSession(session);
+        if (connectionDrainService.isDraining()) {
+            return connectionDrainService.reject(deviceSession);
+        }
         // 注册会话
-        sessionManager.registerSession(sessionId, session);
+        sessionManager.registerSession(sessionId, deviceSession);
         logger.info(session.getHandshakeInfo().getHeaders().toString());
 
         // 尝试从请求头获取设备ID，按优先级顺序尝试不同的头
@@ -100,47 +78,32 @@ public class ReactiveWebSocketHandler implements WebSocketHandler {
             logger.error("设备ID为空");
             return session.close();
         }
+        if (!admissionService.admitConnection(sessionId)) {
+            return admissionService.rejectConnection(deviceSession)
+                    .doFinally(signal -> sessionManager.closeSession(sessionId));
+        }
         final String deviceId = deviceIdAuth;
-        return Mono.fromCallable(() -> {
-            logger.info("开始查询设备信息 - DeviceId: {}", deviceId);
-            return deviceService.selectDeviceById(deviceId);
-        })
-                .subscribeOn(Schedulers.boundedElastic())
-                .doOnError(e -> {
-                    logger.error("查询设备信息失败 - DeviceId: " + deviceId, e);
-                })
-                .flatMap(device -> {
-                    if (ObjectUtils.isEmpty(device)) {
-                        device.setDeviceId(deviceId);
-                        device.setSessionId(sessionId);
-                    } else {
-                        device.setSessionId(sessionId);
-                        if (device.getSttId() != null) {
-                            SysConfig sttConfig = configService.selectConfigById(device.getSttId());
-                            sessionManager.cacheConfig(device.getSttId(), sttConfig);
-                        }
-                        if (device.getTtsId() != null) {
-                            SysConfig ttsConfig = configService.selectConfigById(device.getTtsId());
-                            sessionManager.cacheConfig(device.getTtsId(), ttsConfig);
-                        }
+
+        // 整个连接期间只有一个下行写出流，所有下行消息经会话的下行队列发送
+        SessionOutbound outbound = sessionManager.openOutbound(sessionId);
+        deviceSession.setOutbound(outbound);
+        Mono<Void> outboundMono = session.send(outbound.asFlux())
+                .onErrorResume(e -> {
+                    if (!isConnectionClosedError(e)) {
+                        logger.error("发送WebSocket消息失败 - SessionId: {}", sessionId, e);
                     }
-                    sessionManager.registerDevice(sessionId, device);
-                    logger.info("WebSocket连接建立成功 - SessionId: {}, DeviceId: {}", sessionId, deviceId);
+                    return Mono.empty();
+                });
 
-                    // 更新设备状态
-                    return Mono.fromRunnable(() -> deviceService.update(new SysDevice()
-                            .setDeviceId(device.getDeviceId())
-                            .setState("1")
-                            .setLastLogin(new Date().toString()))).subscribeOn(Schedulers.boundedElastic()).then();
-                })
+        Mono<Void> inboundMono = deviceMessageHandler.onOpen(deviceSession, deviceId)
                 .then(
                         // 处理接收到的消息
                         session.receive()
                                 .flatMap(message -> {
                                     if (message.getType() == WebSocketMessage.Type.TEXT) {
-                                        return handleTextMessage(session, message);
+                                        return deviceMessageHandler.onText(deviceSession, message.getPayloadAsText());
                                     } else if (message.getType() == WebSocketMessage.Type.BINARY) {
-                                        return handleBinaryMessage(session, message);
+                                        return deviceMessageHandler.onBinary(deviceSession, readPayload(message));
                                     }
                                     return Mono.empty();
                                 })
@@ -158,25 +121,21 @@ public class ReactiveWebSocketHandler implements WebSocketHandler {
                                     return Mono.empty();
                                 })
                                 .then())
-                .doFinally(signal -> {
-                    // 连接关闭时清理资源
-                    SysDevice device = sessionManager.getDeviceConfig(sessionId);
-                    if (device != null) {
-                        deviceService.update(new SysDevice()
-                                .setDeviceId(device.getDeviceId())
-                                .setState("0")
-                                .setLastLogin(new Date().toString()));
-                        logger.info("WebSocket连接关闭 - SessionId: {}, DeviceId: {}", sessionId, device.getDeviceId());
-                    }
+                // 接收结束后结束下行流，否则下行流会一直等待新消息
+                .doFinally(signal -> outbound.complete());
 
-                    // 清理会话
-                    sessionManager.closeSession(sessionId);
-                    // 清理VAD会话
-                    vadService.resetSession(sessionId);
+        return Mono.when(inboundMono, outboundMono)
+                // 连接关闭时清理资源
+                .doFinally(signal -> deviceMessageHandler.onClose(deviceSession, deviceId));
+    }
 
-                    // 清理音频处理会话
-                    audioService.cleanupSession(sessionId);
-                });
+    private byte[] readPayload(WebSocketMessage message) {
+        DataBuffer dataBuffer = message.getPayload();
+        DataBuffer retainedBuffer = DataBufferUtils.retain(dataBuffer);
+        byte[] data = new byte[retainedBuffer.readableByteCount()];
+        retainedBuffer.read(data);
+        DataBufferUtils.release(retainedBuffer);
+        return data;
     }
 
     /**
@@ -192,237 +151,4 @@ public class ReactiveWebSocketHandler implements WebSocketHandler {
         }
         return false;
     }
-
-    private Mono<Void> handleTextMessage(WebSocketSession session, WebSocketMessage message) {
-        String sessionId = session.getId();
-        SysDevice device = sessionManager.getDeviceConfig(sessionId);
-        String payload = message.getPayloadAsText();
-
-        try {
-            // 首先尝试解析JSON消息
-            JsonNode jsonNode = objectMapper.readTree(payload);
-            String messageType = jsonNode.path("type").asText();
-
-            // hello消息应该始终处理，无论设备是否绑定
-            if ("hello".equals(messageType)) {
-                return handleHelloMessage(session, jsonNode);
-            }
-
-            // 对于其他消息类型，检查设备是否已绑定
-            if (device == null) {
-                // 设备信息不存在，需要查询
-                return Mono.fromCallable(() -> deviceService.selectDeviceById(device.getDeviceId()))
-                    .subscribeOn(Schedulers.boundedElastic())
-                    .flatMap(queryDevice -> {
-                        if (ObjectUtils.isEmpty(queryDevice) || queryDevice.getModelId() == null) {
-                            // 设备未绑定，处理未绑定设备的消息
-                            return handleUnboundDevice(session, queryDevice != null ? queryDevice : device);
-                        } else {
-                            // 更新缓存的设备信息
-                            sessionManager.registerDevice(sessionId, queryDevice);
-                            // 继续处理消息
-                            return handleMessageByType(session, jsonNode, messageType, queryDevice);
-                        }
-                    });
-            } else if (device.getModelId() == null) {
-                // 设备存在但未绑定模型，直接处理未绑定设备
-                return handleUnboundDevice(session, device);
-            } else {
-                // 设备已绑定且信息已缓存，直接处理消息
-                return handleMessageByType(session, jsonNode, messageType, device);
-            }
-        } catch (Exception e) {
-            logger.error("处理文本消息失败", e);
-            return Mono.empty();
-        }
-    }
-
-    private Mono<Void> handleMessageByType(WebSocketSession session, JsonNode jsonNode,
-            String messageType, SysDevice device) {
-        switch (messageType) {
-            case "listen":
-                return handleListenMessage(session, jsonNode);
-            case "abort":
-                return dialogueService.abortDialogue(session, jsonNode.path("reason").asText());
-            case "iot":
-                return handleIotMessage(session, jsonNode);
-            default:
-                logger.warn("未知的消息类型: {}", messageType);
-                return Mono.empty();
-        }
-    }
-
-    private Mono<Void> handleBinaryMessage(WebSocketSession session, WebSocketMessage message) {
-        SysDevice device = sessionManager.getDeviceConfig(session.getId());
-        if (device == null) {
-            sessionManager.closeSession(session.getId());
-            return Mono.empty();
-        }
-        if (device.getModelId() == null) {
-            return handleUnboundDevice(session, device);
-        }
-        // 获取二进制数据
-        DataBuffer dataBuffer = message.getPayload();
-        DataBuffer retainedBuffer = DataBufferUtils.retain(dataBuffer);
-        byte[] opusData = new byte[retainedBuffer.readableByteCount()];
-        retainedBuffer.read(opusData);
-        DataBufferUtils.release(retainedBuffer);
-
-        // 委托给DialogueService处理音频数据
-        return dialogueService.processAudioData(session, opusData);
-    }
-
-    private Mono<Void> handleUnboundDevice(WebSocketSession session, SysDevice device) {
-        String deviceId = device.getDeviceId();
-        String sessionId = session.getId();
-
-        // 检查是否已经在处理中
-        if (!sessionManager.markCaptchaGeneration(deviceId)) {
-            return Mono.empty();
-        }
-
-        // 设备已注册但未配置模型
-        if (device.getDeviceName() != null && device.getModelId() == null) {
-            String message = "设备未配置对话模型，请到配置页面完成配置后开始对话";
-
-            return Mono.fromCallable(() -> ttsService.getTtsService().textToSpeech(message))
-                .subscribeOn(Schedulers.boundedElastic())
-                .flatMap(audioFilePath -> audioService.sendAudioMessage(session, audioFilePath, message, true, true))
-                .doFinally(signal -> {
-                    // 延迟一段时间后再解除标记
-                    Mono.delay(Duration.ofMillis(1000))
-                        .doOnNext(l -> sessionManager.unmarkCaptchaGeneration(deviceId))
-                        .subscribe();
-                });
-        }
-
-        // 设备未命名，生成验证码
-        return Mono.fromCallable(() -> {
-            // 生成新验证码
-            SysDevice codeResult = deviceService.generateCode(device);
-            String audioFilePath;
-            if (!StringUtils.hasText(codeResult.getAudioPath())) {
-                String codeMessage = "请到设备管理页面添加设备，输入验证码" + codeResult.getCode();
-                audioFilePath = ttsService.getTtsService().textToSpeech(codeMessage);
-                codeResult.setDeviceId(deviceId);
-                codeResult.setSessionId(sessionId);
-                codeResult.setAudioPath(audioFilePath);
-                deviceService.updateCode(codeResult);
-            } else {
-                audioFilePath = codeResult.getAudioPath();
-            }
-            return codeResult;
-        })
-        .subscribeOn(Schedulers.boundedElastic())
-        .flatMap(codeResult ->
-            audioService.sendAudioMessage(session, codeResult.getAudioPath(), codeResult.getCode(), true, true)
-        )
-        .doFinally(signal -> {
-            // 延迟一段时间后再解除标记
-            Mono.delay(Duration.ofMillis(1000))
-                .doOnNext(l -> sessionManager.unmarkCaptchaGeneration(deviceId))
-                .subscribe();
-        });
-    }
-
-    private Mono<Void> handleHelloMessage(WebSocketSession session, JsonNode jsonNode) {
-        logger.info("收到hello消息 - SessionId: {},JsonNode: {}", session.getId(), jsonNode);
-
-        // 验证客户端hello消息
-        /*
-         * if (!jsonNode.path("transport").asText().equals("websocket")) {
-         * logger.warn("不支持的传输方式: {}", jsonNode.path("transport").asText());
-         * return session.close();
-         * }
-         */
-
-        // 解析音频参数
-        JsonNode audioParams = jsonNode.path("audio_params");
-        String format = audioParams.path("format").asText();
-        int sampleRate = audioParams.path("sample_rate").asInt();
-        int channels = audioParams.path("channels").asInt();
-        int frameDuration = audioParams.path("frame_duration").asInt();
-
-        logger.info("客户端音频参数 - 格式: {}, 采样率: {}, 声道: {}, 帧时长: {}ms",
-                format, sampleRate, channels, frameDuration);
-
-        // 回复hello消息
-        ObjectNode response = objectMapper.createObjectNode();
-        response.put("type", "hello");
-        response.put("transport", "websocket");
-        response.put("session_id", session.getId());
-
-        // 添加音频参数（可以根据服务器配置调整）
-        ObjectNode responseAudioParams = response.putObject("audio_params");
-        responseAudioParams.put("format", format);
-        responseAudioParams.put("sample_rate", sampleRate);
-        responseAudioParams.put("channels", channels);
-        responseAudioParams.put("frame_duration", frameDuration);
-
-        return session.send(Mono.just(session.textMessage(response.toString())));
-    }
-
-    private Mono<Void> handleListenMessage(WebSocketSession session, JsonNode jsonNode) {
-        String sessionId = session.getId();
-        // 解析listen消息中的state和mode字段
-        String state = jsonNode.path("state").asText();
-        String mode = jsonNode.path("mode").asText();
-
-        logger.info("收到listen消息 - SessionId: {}, State: {}, Mode: {}", sessionId, state, mode);
-
-        // 根据state处理不同的监听状态
-        switch (state) {
-            case "start":
-                // 开始监听，准备接收音频数据
-                logger.info("开始监听 - Mode: {}", mode);
-                sessionManager.setListeningState(sessionId, true);
-
-                // 初始化VAD会话
-                vadService.initializeSession(sessionId);
-
-                return Mono.empty();
-            case "stop":
-                // 停止监听
-                logger.info("停止监听");
-                sessionManager.setListeningState(sessionId, false);
-
-                // 关闭音频流
-                sessionManager.closeAudioSink(sessionId);
-                sessionManager.setStreamingState(sessionId, false);
-                // 重置VAD会话
-                vadService.resetSession(sessionId);
-
-                return Mono.empty();
-            case "detect":
-                // 检测到唤醒词
-                String text = jsonNode.path("text").asText();
-                return dialogueService.handleWakeWord(session, text);
-            default:
-                logger.warn("未知的listen状态: {}", state);
-                return Mono.empty();
-        }
-    }
-
-    private Mono<Void> handleIotMessage(WebSocketSession session, JsonNode jsonNode) {
-        String sessionId = session.getId();
-        logger.info("收到IoT消息 - SessionId: {}", sessionId);
-
-        // 处理设备描述信息
-        if (jsonNode.has("descriptors")) {
-            JsonNode descriptors = jsonNode.path("descriptors");
-            logger.info("收到设备描述信息: {}", descriptors);
-            // 处理设备描述信息的逻辑
-            iotService.handleDeviceDescriptors(sessionId, descriptors);
-        }
-
-        // 处理设备状态更新
-        if (jsonNode.has("states")) {
-            JsonNode states = jsonNode.path("states");
-            logger.info("收到设备状态更新: {}", states);
-            // 处理设备状态更新的逻辑
-            iotService.handleDeviceStates(sessionId, states);
-        }
-
-        return Mono.empty();
-    }
-}
\ No newline at end of file
+}
@@ -3,14 +3,19 @@ package com.xiaozhi.websocket.llm;
 import com.xiaozhi.entity.SysConfig;
 import com.xiaozhi.entity.SysDevice;
 import com.xiaozhi.service.SysConfigService;
+import com.xiaozhi.utils.CancellationToken;
 import com.xiaozhi.utils.EmojiUtils;
+import com.xiaozhi.utils.ProviderExecutors;
 import com.xiaozhi.websocket.llm.api.LlmService;
 import com.xiaozhi.websocket.llm.api.StreamResponseListener;
 import com.xiaozhi.websocket.llm.factory.LlmServiceFactory;
 import com.xiaozhi.websocket.llm.memory.ChatMemory;
 import com.xiaozhi.websocket.llm.memory.ModelContext;
 import com.xiaozhi.websocket.llm.tool.function.FunctionSessionHolder;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
 import com.xiaozhi.websocket.service.SessionManager;
+import com.xiaozhi.websocket.trace.TurnTrace.Stage;
+import com.xiaozhi.websocket.trace.TurnTracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,6 +28,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -68,6 +74,12 @@ public class LlmManager {
     @Autowired
     private SessionManager sessionManager;
 
+    @Autowired
+    private TurnTracer turnTracer;
+
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
     // 设备LLM服务缓存，每个设备只保留一个服务
     private Map<String, LlmService> deviceLlmServices = new ConcurrentHashMap<>();
     // 设备当前使用的configId缓存
@@ -192,228 +204,351 @@ public class LlmManager {
 
     public void chatStreamBySentence(SysDevice device, String message, boolean useFunctionCall,
             TriConsumer<String, Boolean, Boolean> sentenceHandler) {
-        try {
-            final String deviceId = device.getDeviceId();
-            final String sessionId = device.getSessionId();
-            final Integer roleId = device.getRoleId();
-
-            // 为这个会话创建或重置完成标志
-            AtomicBoolean sessionCompleted = sessionCompletionFlags.computeIfAbsent(sessionId,
-                    k -> new AtomicBoolean(false));
-            sessionCompleted.set(false);
+        chatStreamBySentence(device, message, useFunctionCall, CancellationToken.NONE, sentenceHandler);
+    }
 
-            FunctionSessionHolder functionSessionHolder = sessionManager
-                    .getFunctionSessionHolder(device.getSessionId());
+    /**
+     * 按句子处理流式响应，令牌取消后中断请求，之后的响应不再断句也不写入历史
+     *
+     * @param device          设备信息
+     * @param message         用户消息
+     * @param useFunctionCall 是否使用函数调用
+     * @param token           本轮对话的取消令牌
+     * @param sentenceHandler 句子处理函数
+     */
+    public void chatStreamBySentence(SysDevice device, String message, boolean useFunctionCall,
+            CancellationToken token, TriConsumer<String, Boolean, Boolean> sentenceHandler) {
+        try {
             // 创建模型上下文
-            ModelContext modelContext = new ModelContext(
-                    deviceId,
-                    sessionId,
-                    roleId,
-                    useFunctionCall,
-                    chatMemory,
-                    functionSessionHolder);
-
-            final StringBuilder currentSentence = new StringBuilder(); // 当前句子的缓冲区
-            final StringBuilder contextBuffer = new StringBuilder(); // 上下文缓冲区，用于检测数字中的小数点
-            final AtomicInteger sentenceCount = new AtomicInteger(0); // 已发送句子的计数
-            final StringBuilder fullResponse = new StringBuilder(); // 完整响应的缓冲区
-            final AtomicBoolean finalSentenceSent = new AtomicBoolean(false); // 跟踪最后一个句子是否已发送
-
-            // 创建流式响应监听器
-            StreamResponseListener streamListener = new StreamResponseListener() {
-                @Override
-                public void onStart() {
-                    sessionCompleted.set(false);
-                    finalSentenceSent.set(false);
+            ModelContext modelContext = createModelContext(device, useFunctionCall);
+            modelContext.setCancellationToken(token);
+            StreamResponseListener streamListener = createSentenceListener(device, modelContext, sentenceHandler);
+
+            // 部分服务商（Dify、星火、智谱等）的流式接口会阻塞调用线程，放到服务商执行器上发起
+            ProviderExecutors.executor().execute(() -> {
+                try {
+                    // 调用LLM流式接口
+                    LlmService llmService = getLlmService(device.getDeviceId(), device.getModelId());
+                    llmService.chatStream(message, modelContext, streamListener);
+                } catch (Exception e) {
+                    logger.error("处理流式查询时出错: {}", e.getMessage(), e);
+                    streamListener.onError(e);
                 }
+            });
 
-                @Override
-                public void onToken(String token) {
-                    // 将token添加到完整响应
-                    fullResponse.append(token);
-
-                    // 逐字符处理token
-                    for (int i = 0; i < token.length();) {
-                        int codePoint = token.codePointAt(i);
-                        String charStr = new String(Character.toChars(codePoint));
-
-                        // 将字符添加到上下文缓冲区（保留最近的字符以检测数字模式）
-                        contextBuffer.append(charStr);
-                        if (contextBuffer.length() > 20) { // 保留足够的上下文
-                            contextBuffer.delete(0, contextBuffer.length() - 20);
-                        }
+        } catch (Exception e) {
+            logger.error("处理流式查询时出错: {}", e.getMessage(), e);
+            // 发送错误信号
+            sentenceHandler.accept("抱歉，我在处理您的请求时遇到了问题。", true, true);
 
-                        // 将字符添加到当前句子缓冲区
-                        currentSentence.append(charStr);
-
-                        // 检查各种断句标记
-                        boolean shouldSendSentence = false;
-                        boolean isEndMark = SENTENCE_END_PATTERN.matcher(charStr).find();
-                        boolean isPauseMark = PAUSE_PATTERN.matcher(charStr).find();
-                        boolean isSpecialMark = SPECIAL_PATTERN.matcher(charStr).find();
-                        boolean isNewline = NEWLINE_PATTERN.matcher(charStr).find();
-                        boolean isEmoji = EmojiUtils.isEmoji(codePoint);
-
-                        // 检查当前句子是否包含颜文字
-                        boolean containsKaomoji = false;
-                        if (currentSentence.length() >= 3) { // 颜文字至少需要3个字符
-                            containsKaomoji = EmojiUtils.containsKaomoji(currentSentence.toString());
-                        }
+            // 清除会话完成标志
+            sessionCompletionFlags.remove(device.getSessionId());
+        }
+    }
 
-                        // 如果当前字符是句号，检查它是否是数字中的小数点
-                        if (isEndMark && charStr.equals(".")) {
-                            String context = contextBuffer.toString();
-                            Matcher numberMatcher = NUMBER_PATTERN.matcher(context);
-                            // 如果找到数字模式（如"0.271"），则不视为句子结束标点
-                            if (numberMatcher.find() && numberMatcher.end() >= context.length() - 3) {
-                                isEndMark = false;
-                            }
-                        }
+    /**
+     * 基于部分识别结果提前发起LLM调用
+     * 响应先缓存在返回的SpeculativeChat中，由chatStreamBySentence(device, speculation, token, sentenceHandler)接管
+     *
+     * @param device          设备信息
+     * @param message         预测的用户消息
+     * @param useFunctionCall 是否使用函数调用
+     * @return 预测调用
+     */
+    public SpeculativeChat speculate(SysDevice device, String message, boolean useFunctionCall) {
+        ModelContext modelContext = createModelContext(device, useFunctionCall);
+        modelContext.setSpeculative(true);
+        // 预测调用使用自己的令牌，丢弃时中断请求；被接管后随对话一起取消
+        modelContext.setCancellationToken(new CancellationToken());
+        SpeculativeChat speculation = new SpeculativeChat(message, modelContext);
+        // 部分服务商的流式接口会阻塞调用线程，放到服务商执行器上发起
+        ProviderExecutors.executor().execute(() -> {
+            try {
+                LlmService llmService = getLlmService(device.getDeviceId(), device.getModelId());
+                llmService.chatStream(message, modelContext, speculation);
+            } catch (Exception e) {
+                logger.warn("预测调用LLM失败: {}", e.getMessage());
+                speculation.onError(e);
+            }
+        });
+        return speculation;
+    }
 
-                        // 判断是否应该发送当前句子
-                        if (isEndMark) {
-                            // 句子结束标点是强断句信号
-                            shouldSendSentence = true;
-                        } else if (isNewline) {
-                            // 换行符也是强断句信号
-                            shouldSendSentence = true;
-                        } else if ((isPauseMark || isSpecialMark || isEmoji || containsKaomoji)
-                                && currentSentence.length() >= MIN_SENTENCE_LENGTH) {
-                            // 停顿标点、特殊标点、表情符号或颜文字在句子足够长时可以断句
-                            shouldSendSentence = true;
-                        }
+    /**
+     * 接管提前发起的LLM调用，按句子处理响应
+     *
+     * @param device          设备信息
+     * @param speculation     预测调用
+     * @param token           本轮对话的取消令牌，取消时一并取消预测调用
+     * @param sentenceHandler 句子处理函数
+     * @return 预测调用已失败或不可接管时返回false，调用方需要重新发起请求
+     */
+    public boolean chatStreamBySentence(SysDevice device, SpeculativeChat speculation, CancellationToken token,
+            TriConsumer<String, Boolean, Boolean> sentenceHandler) {
+        StreamResponseListener streamListener = createSentenceListener(device, speculation.getModelContext(),
+                sentenceHandler);
+        if (!speculation.adopt(streamListener)) {
+            return false;
+        }
+        CancellationToken speculationToken = speculation.getModelContext().getCancellationToken();
+        token.onCancel(() -> speculationToken.cancel(token.getReason()));
+        return true;
+    }
 
-                        // 如果应该发送句子，且当前句子长度满足要求
-                        if (shouldSendSentence && currentSentence.length() >= MIN_SENTENCE_LENGTH) {
-                            String sentence = currentSentence.toString().trim();
+    private ModelContext createModelContext(SysDevice device, boolean useFunctionCall) {
+        FunctionSessionHolder functionSessionHolder = sessionManager
+                .getFunctionSessionHolder(device.getSessionId());
+        return new ModelContext(
+                device.getDeviceId(),
+                device.getSessionId(),
+                device.getRoleId(),
+                useFunctionCall,
+                chatMemory,
+                functionSessionHolder);
+    }
 
-                            // 过滤颜文字
-                            sentence = EmojiUtils.filterKaomoji(sentence);
+    /**
+     * 创建按句子切分响应的监听器，完成时将本轮消息入库
+     */
+    private StreamResponseListener createSentenceListener(SysDevice device, ModelContext modelContext,
+            TriConsumer<String, Boolean, Boolean> sentenceHandler) {
+        final String sessionId = device.getSessionId();
+
+        // 为这个会话创建或重置完成标志
+        AtomicBoolean sessionCompleted = sessionCompletionFlags.computeIfAbsent(sessionId,
+                k -> new AtomicBoolean(false));
+        sessionCompleted.set(false);
+
+        final StringBuilder currentSentence = new StringBuilder(); // 当前句子的缓冲区
+        final StringBuilder contextBuffer = new StringBuilder(); // 上下文缓冲区，用于检测数字中的小数点
+        final AtomicInteger sentenceCount = new AtomicInteger(0); // 已发送句子的计数
+        final StringBuilder fullResponse = new StringBuilder(); // 完整响应的缓冲区
+        final AtomicBoolean finalSentenceSent = new AtomicBoolean(false); // 跟踪最后一个句子是否已发送
+        final AtomicInteger tokenCount = new AtomicInteger(0); // 已收到的token数
+        final AtomicLong firstTokenTime = new AtomicLong(0); // 第一个token到达的时间(纳秒)
+
+        final AtomicBoolean cancelled = new AtomicBoolean(false); // 取消后的事件全部忽略
+
+        // 创建流式响应监听器
+        StreamResponseListener streamListener = new StreamResponseListener() {
+            @Override
+            public void onStart() {
+                sessionCompleted.set(false);
+                finalSentenceSent.set(false);
+            }
+
+            /**
+             * 对话已取消时记录一次并返回true
+             * <br/>
+             * 能中断请求的服务商取消后不再回调，SDK不支持中断的服务商（如Dify）继续返回的内容在这里丢弃。
+             */
+            private boolean checkCancelled() {
+                if (!modelContext.getCancellationToken().isCancelled()) {
+                    return false;
+                }
+                if (cancelled.compareAndSet(false, true)) {
+                    pipelineMetrics.llmCancelled();
+                    logger.info("对话已取消，丢弃后续响应 - SessionId: {}, 已接收token: {}, 原因: {}", sessionId,
+                            tokenCount.get(), modelContext.getCancellationToken().getReason());
+                }
+                return true;
+            }
 
-                            if (containsSubstantialContent(sentence)) {
-                                boolean isFirst = sentenceCount.get() == 0;
-                                boolean isLast = false; // 只有在onComplete中才会有最后一个句子
+            @Override
+            public void onToken(String token) {
+                if (checkCancelled()) {
+                    return;
+                }
+                if (tokenCount.getAndIncrement() == 0) {
+                    firstTokenTime.set(System.nanoTime());
+                    turnTracer.mark(sessionId, Stage.LLM_FIRST_TOKEN);
+                }
+                // 将token添加到完整响应
+                fullResponse.append(token);
+
+                // 逐字符处理token
+                for (int i = 0; i < token.length();) {
+                    int codePoint = token.codePointAt(i);
+                    String charStr = new String(Character.toChars(codePoint));
+
+                    // 将字符添加到上下文缓冲区（保留最近的字符以检测数字模式）
+                    contextBuffer.append(charStr);
+                    if (contextBuffer.length() > 20) { // 保留足够的上下文
+                        contextBuffer.delete(0, contextBuffer.length() - 20);
+                    }
 
-                                sentenceHandler.accept(sentence, isFirst, isLast);
-                                sentenceCount.incrementAndGet();
+                    // 将字符添加到当前句子缓冲区
+                    currentSentence.append(charStr);
+
+                    // 检查各种断句标记
+                    boolean shouldSendSentence = false;
+                    boolean isEndMark = SENTENCE_END_PATTERN.matcher(charStr).find();
+                    boolean isPauseMark = PAUSE_PATTERN.matcher(charStr).find();
+                    boolean isSpecialMark = SPECIAL_PATTERN.matcher(charStr).find();
+                    boolean isNewline = NEWLINE_PATTERN.matcher(charStr).find();
+                    boolean isEmoji = EmojiUtils.isEmoji(codePoint);
+
+                    // 检查当前句子是否包含颜文字
+                    boolean containsKaomoji = false;
+                    if (currentSentence.length() >= 3) { // 颜文字至少需要3个字符
+                        containsKaomoji = EmojiUtils.containsKaomoji(currentSentence.toString());
+                    }
 
-                                // 清空当前句子缓冲区
-                                currentSentence.setLength(0);
-                            }
+                    // 如果当前字符是句号，检查它是否是数字中的小数点
+                    if (isEndMark && charStr.equals(".")) {
+                        String context = contextBuffer.toString();
+                        Matcher numberMatcher = NUMBER_PATTERN.matcher(context);
+                        // 如果找到数字模式（如"0.271"），则不视为句子结束标点
+                        if (numberMatcher.find() && numberMatcher.end() >= context.length() - 3) {
+                            isEndMark = false;
                         }
+                    }
 
-                        // 移动到下一个码点
-                        i += Character.charCount(codePoint);
+                    // 判断是否应该发送当前句子
+                    if (isEndMark) {
+                        // 句子结束标点是强断句信号
+                        shouldSendSentence = true;
+                    } else if (isNewline) {
+                        // 换行符也是强断句信号
+                        shouldSendSentence = true;
+                    } else if ((isPauseMark || isSpecialMark || isEmoji || containsKaomoji)
+                            && currentSentence.length() >= MIN_SENTENCE_LENGTH) {
+                        // 停顿标点、特殊标点、表情符号或颜文字在句子足够长时可以断句
+                        shouldSendSentence = true;
                     }
-                }
 
-                @Override
-                public void onComplete(String completeResponse, List<Map<String, Object>> hisMessages,
-                                       LlmService llmService, String messageType) {
-                    // 检查该会话是否已完成处理
-                    if (sessionCompleted.compareAndSet(false, true)) {
-                        // 处理当前缓冲区剩余的内容（如果有）
-                        if (currentSentence.length() > 0 && containsSubstantialContent(currentSentence.toString())
-                                && !finalSentenceSent.get()) {
-                            String sentence = currentSentence.toString().trim();
+                    // 如果应该发送句子，且当前句子长度满足要求
+                    if (shouldSendSentence && currentSentence.length() >= MIN_SENTENCE_LENGTH) {
+                        String sentence = currentSentence.toString().trim();
+
+                        // 过滤颜文字
+                        sentence = EmojiUtils.filterKaomoji(sentence);
+
+                        if (containsSubstantialContent(sentence)) {
                             boolean isFirst = sentenceCount.get() == 0;
-                            boolean isLast = true; // 这是最后一个句子
+                            boolean isLast = false; // 只有在onComplete中才会有最后一个句子
 
                             sentenceHandler.accept(sentence, isFirst, isLast);
                             sentenceCount.incrementAndGet();
-                            finalSentenceSent.set(true);
-                        } else if (!finalSentenceSent.get()) {
-                            // 如果没有剩余内容但也没有发送过最后一个句子，发送一个空的最后句子标记
-                            // 这确保即使没有剩余内容，也会发送最后一个句子标记
-                            boolean isFirst = sentenceCount.get() == 0;
-                            sentenceHandler.accept("", isFirst, true);
-                            finalSentenceSent.set(true);
-                        }
 
-                        Map<String, Object> responseMessage = new HashMap<>();
-                        responseMessage.put("role", "assistant");
-                        responseMessage.put("content", fullResponse);
-                        responseMessage.put("messageType", messageType);
-                        hisMessages.add(responseMessage);
+                            // 清空当前句子缓冲区
+                            currentSentence.setLength(0);
+                        }
+                    }
 
-                        persistMessages(hisMessages, llmService);
-                        // 记录处理的句子数量
-                        logger.debug("总共处理了 {} 个句子", sentenceCount.get());
+                    // 移动到下一个码点
+                    i += Character.charCount(codePoint);
+                }
+            }
+
+            @Override
+            public void onComplete(String completeResponse, List<Map<String, Object>> hisMessages,
+                                   LlmService llmService, String messageType) {
+                // 已取消的回复没有播放完，不写入历史
+                if (checkCancelled()) {
+                    return;
+                }
+                // 检查该会话是否已完成处理
+                if (sessionCompleted.compareAndSet(false, true)) {
+                    if (tokenCount.get() > 0 && llmService != null) {
+                        pipelineMetrics.recordLlmTokens(llmService.getProviderName(), tokenCount.get(),
+                                System.nanoTime() - firstTokenTime.get());
+                    }
+                    // 处理当前缓冲区剩余的内容（如果有）
+                    if (currentSentence.length() > 0 && containsSubstantialContent(currentSentence.toString())
+                            && !finalSentenceSent.get()) {
+                        String sentence = currentSentence.toString().trim();
+                        boolean isFirst = sentenceCount.get() == 0;
+                        boolean isLast = true; // 这是最后一个句子
+
+                        sentenceHandler.accept(sentence, isFirst, isLast);
+                        sentenceCount.incrementAndGet();
+                        finalSentenceSent.set(true);
+                    } else if (!finalSentenceSent.get()) {
+                        // 如果没有剩余内容但也没有发送过最后一个句子，发送一个空的最后句子标记
+                        // 这确保即使没有剩余内容，也会发送最后一个句子标记
+                        boolean isFirst = sentenceCount.get() == 0;
+                        sentenceHandler.accept("", isFirst, true);
+                        finalSentenceSent.set(true);
                     }
+
+                    Map<String, Object> responseMessage = new HashMap<>();
+                    responseMessage.put("role", "assistant");
+                    responseMessage.put("content", fullResponse);
+                    responseMessage.put("messageType", messageType);
+                    hisMessages.add(responseMessage);
+
+                    persistMessages(hisMessages, llmService);
+                    // 记录处理的句子数量
+                    logger.debug("总共处理了 {} 个句子", sentenceCount.get());
                 }
+            }
 
-                void persistMessages(List<Map<String, Object>> allMessages, LlmService llmService) {
-                    if (allMessages.isEmpty()) {
-                        return;
-                    }
-                    List<Map<String, Object>> newMessages = new ArrayList<>();
-                    // 如果本轮对话是function_all或mcp调用(最后一条信息的类型)，把用户的消息类型也修正为同样类型
-                    String lastMessageType = allMessages.get(allMessages.size() - 1).get("messageType").toString();
-                    // 获取当前对话ID
-                    String dialogueId = (String) sessionManager.getSessionAttribute(modelContext.getSessionId(),
-                            "currentDialogueId");
-
-                    // 遍历allMessages，将未保存的user及assistant入库
-                    allMessages.forEach(message -> {
-                        Object messageId = message.get("messageId");
-                        String role = String.valueOf(message.get("role"));
-
-                        // 消息入库
-                        if (!"system".equals(role) && messageId == null) {// 系统消息跳过
-                            // 这里后续看下，是否需要把content为空和角色为tool的入库，目前不入库（这类主要是function_call的二次调用llm进行总结时的过程消息）
-                            String messageContent = message.get("content") == null ? ""
-                                    : String.valueOf(message.get("content"));
-                            if (!"tool".equals(role) && !messageContent.isEmpty()
-                                    && !message.containsKey("messageId")) {// 非空未入库消息，则进行入库
-                                // 获取音频路径
-                                String audioPath = null;
-                                if (dialogueId != null) {
-                                    if ("user".equals(role)) {
-                                        audioPath = (String) sessionManager.getSessionAttribute(
-                                                modelContext.getSessionId(), "userAudioPath_" + dialogueId);
-                                    } else if ("assistant".equals(role)) {
-                                        audioPath = (String) sessionManager.getSessionAttribute(
-                                                modelContext.getSessionId(), "assistantAudioPath_" + dialogueId);
-                                    }
+            void persistMessages(List<Map<String, Object>> allMessages, LlmService llmService) {
+                if (allMessages.isEmpty()) {
+                    return;
+                }
+                List<Map<String, Object>> newMessages = new ArrayList<>();
+                // 如果本轮对话是function_all或mcp调用(最后一条信息的类型)，把用户的消息类型也修正为同样类型
+                String lastMessageType = allMessages.get(allMessages.size() - 1).get("messageType").toString();
+                // 获取当前对话ID
+                String dialogueId = (String) sessionManager.getSessionAttribute(modelContext.getSessionId(),
+                        "currentDialogueId");
+
+                // 遍历allMessages，将未保存的user及assistant入库
+                allMessages.forEach(message -> {
+                    Object messageId = message.get("messageId");
+                    String role = String.valueOf(message.get("role"));
+
+                    // 消息入库
+                    if (!"system".equals(role) && messageId == null) {// 系统消息跳过
+                        // 这里后续看下，是否需要把content为空和角色为tool的入库，目前不入库（这类主要是function_call的二次调用llm进行总结时的过程消息）
+                        String messageContent = message.get("content") == null ? ""
+                                : String.valueOf(message.get("content"));
+                        if (!"tool".equals(role) && !messageContent.isEmpty()
+                                && !message.containsKey("messageId")) {// 非空未入库消息，则进行入库
+                            // 获取音频路径
+                            String audioPath = null;
+                            if (dialogueId != null) {
+                                if ("user".equals(role)) {
+                                    audioPath = (String) sessionManager.getSessionAttribute(
+                                            modelContext.getSessionId(), "userAudioPath_" + dialogueId);
+                                } else if ("assistant".equals(role)) {
+                                    audioPath = (String) sessionManager.getSessionAttribute(
+                                            modelContext.getSessionId(), "assistantAudioPath_" + dialogueId);
                                 }
-                                modelContext.addMessage(messageContent, role, lastMessageType, audioPath);
-                                // 数据入库后，给个id，避免下次再被入库
-                                message.put("messageId", 0);
-                                message.put("messageType", lastMessageType);
-                                newMessages.add(message);
                             }
+                            modelContext.addMessage(messageContent, role, lastMessageType, audioPath);
+                            // 数据入库后，给个id，避免下次再被入库
+                            message.put("messageId", 0);
+                            message.put("messageType", lastMessageType);
+                            newMessages.add(message);
                         }
-                    });
-                    newMessages.forEach(message -> {
-                        if ("NORMAL".equals(String.valueOf(message.get("messageType")))) {
-                            // 普通消息才加入历史缓存
-                            llmService.updateHistoryCache(modelContext, message);
-                        }
-                    });
-                }
-
-                @Override
-                public void onError(Throwable e) {
-                    logger.error("流式响应出错: {}", e.getMessage(), e);
-                    // 发送错误信号
-                    sentenceHandler.accept("抱歉，我在处理您的请求时遇到了问题。", true, true);
+                    }
+                });
+                newMessages.forEach(message -> {
+                    if ("NORMAL".equals(String.valueOf(message.get("messageType")))) {
+                        // 普通消息才加入历史缓存
+                        llmService.updateHistoryCache(modelContext, message);
+                    }
+                });
+            }
 
-                    // 清除会话完成标志
-                    sessionCompletionFlags.remove(sessionId);
+            @Override
+            public void onError(Throwable e) {
+                if (checkCancelled()) {
+                    return;
                 }
-            };
-
-            // 调用现有的流式方法
-            chatStream(device, message, useFunctionCall, streamListener);
+                logger.error("流式响应出错: {}", e.getMessage(), e);
+                // 发送错误信号
+                sentenceHandler.accept("抱歉，我在处理您的请求时遇到了问题。", true, true);
 
-        } catch (Exception e) {
-            logger.error("处理流式查询时出错: {}", e.getMessage(), e);
-            // 发送错误信号
-            sentenceHandler.accept("抱歉，我在处理您的请求时遇到了问题。", true, true);
+                // 清除会话完成标志
+                sessionCompletionFlags.remove(sessionId);
+            }
+        };
 
-            // 清除会话完成标志
-            sessionCompletionFlags.remove(device.getSessionId());
-        }
+        return streamListener;
     }
 
     /**
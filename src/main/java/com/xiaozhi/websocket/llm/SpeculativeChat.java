@@ -0,0 +1,121 @@
+package com.xiaozhi.websocket.llm;
+
+import com.xiaozhi.websocket.llm.api.LlmService;
+import com.xiaozhi.websocket.llm.api.StreamResponseListener;
+import com.xiaozhi.websocket.llm.memory.ModelContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 基于部分识别结果提前发起的LLM调用
+ * <br/>
+ * 在被接管之前，模型返回的所有事件都缓存在这里，不会断句、合成或写入历史；
+ * 最终识别结果与预测文本一致时由正式的监听器接管，先回放缓存的事件再继续实时转发；
+ * 不一致时丢弃并取消预测调用的令牌，能中断的服务商随即关闭请求，其余后续事件全部忽略。
+ */
+public class SpeculativeChat implements StreamResponseListener {
+
+    private final String message;
+    private final ModelContext modelContext;
+    private final long startTime = System.currentTimeMillis();
+
+    // 以下状态由this保护
+    private final List<Consumer<StreamResponseListener>> pendingEvents = new ArrayList<>();
+    private StreamResponseListener target;
+    private boolean discarded;
+    private boolean failed;
+
+    public SpeculativeChat(String message, ModelContext modelContext) {
+        this.message = message;
+        this.modelContext = modelContext;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public ModelContext getModelContext() {
+        return modelContext;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public synchronized boolean isDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * 由正式监听器接管
+     *
+     * @return 预测调用已失败、已丢弃或推迟过函数调用时返回false，调用方需要重新发起请求
+     */
+    public synchronized boolean adopt(StreamResponseListener listener) {
+        if (discarded || failed || modelContext.isToolCallDeferred()) {
+            discard();
+            return false;
+        }
+        // 接管后后续的函数调用正常执行
+        modelContext.setSpeculative(false);
+        target = listener;
+        for (Consumer<StreamResponseListener> event : pendingEvents) {
+            event.accept(listener);
+        }
+        pendingEvents.clear();
+        return true;
+    }
+
+    /**
+     * 丢弃预测结果
+     */
+    public synchronized void discard() {
+        discarded = true;
+        pendingEvents.clear();
+        // 中断还在进行的请求，不再为没人用的回复付费
+        modelContext.getCancellationToken().cancel("discarded");
+    }
+
+    @Override
+    public void onStart() {
+        dispatch(StreamResponseListener::onStart);
+    }
+
+    @Override
+    public void onToken(String token) {
+        dispatch(listener -> listener.onToken(token));
+    }
+
+    @Override
+    public void onComplete(String fullResponse, List<Map<String, Object>> hisMessages, LlmService llmService,
+            String messageType) {
+        dispatch(listener -> listener.onComplete(fullResponse, hisMessages, llmService, messageType));
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        synchronized (this) {
+            if (target == null) {
+                // 接管前失败的预测不再接管，由正式调用重试
+                failed = true;
+                pendingEvents.clear();
+                return;
+            }
+        }
+        dispatch(listener -> listener.onError(e));
+    }
+
+    private synchronized void dispatch(Consumer<StreamResponseListener> event) {
+        if (discarded || failed) {
+            return;
+        }
+        if (target != null) {
+            event.accept(target);
+        } else {
+            pendingEvents.add(event);
+        }
+    }
+}
@@ -7,10 +7,15 @@ import com.xiaozhi.websocket.llm.tool.ActionType;
 import com.xiaozhi.websocket.llm.tool.ToolResponse;
 import com.xiaozhi.websocket.llm.tool.function.FunctionSessionHolder;
 import com.xiaozhi.websocket.llm.tool.function.bean.FunctionCallTool;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -247,6 +252,10 @@ public abstract class AbstractLlmService implements LlmService {
     @Override
     public void chatStream(String userMessage, ModelContext modelContext, StreamResponseListener streamListener)
             throws IOException {
+        if (modelContext.getCancellationToken().isCancelled()) {
+            logger.debug("对话已取消，不再发起流式请求 - SessionId: {}", modelContext.getSessionId());
+            return;
+        }
 
         // 初始化历史记录缓存
         initializeHistory(modelContext);
@@ -283,6 +292,36 @@ public abstract class AbstractLlmService implements LlmService {
     protected abstract void chatStream(List<Map<String, Object>> messages, StreamResponseListener streamListener, ModelContext modelContext)
             throws IOException;
 
+    /**
+     * 发起流式请求，对话取消时中断请求
+     * <br/>
+     * 取消后未发出的请求直接失败，已在读取的响应抛出IOException，回调中用call.isCanceled()区分，
+     * 被取消的请求不再通知监听器。回调返回（响应读取完毕或失败）后注销取消回调。
+     */
+    protected void enqueueStreamCall(Request request, ModelContext modelContext, Callback callback) {
+        Call call = client.newCall(request);
+        Disposable registration = modelContext.getCancellationToken().onCancel(call::cancel);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                try {
+                    callback.onFailure(call, e);
+                } finally {
+                    registration.dispose();
+                }
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                try {
+                    callback.onResponse(call, response);
+                } finally {
+                    registration.dispose();
+                }
+            }
+        });
+    }
+
     /**
      * 执行函数调用，返回函数调用后的消息结果
      * @param modelContext 执行上下文
@@ -294,6 +333,12 @@ public abstract class AbstractLlmService implements LlmService {
      */
     protected ToolResponse doFunctionCall(ModelContext modelContext, ToolCallInfo toolCallInfo, StreamResponseListener streamListener,
                                   List<Map<String, Object>> messages) {
+        if (modelContext.isSpeculative()) {
+            // 预测调用中不执行有副作用的函数，标记后由正式调用重新执行
+            modelContext.setToolCallDeferred(true);
+            logger.debug("Function call: 预测调用中推迟函数: {}", toolCallInfo.getName());
+            return null;
+        }
         FunctionSessionHolder functionSessionHolder = modelContext.getFunctionSessionHolder();
         if(functionSessionHolder != null){
             FunctionCallTool functionCallTool = functionSessionHolder.getFunction(toolCallInfo.getName());
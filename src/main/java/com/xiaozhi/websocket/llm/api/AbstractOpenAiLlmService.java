@@ -93,7 +93,7 @@ public abstract class AbstractOpenAiLlmService extends AbstractLlmService {
         // 通知开始
         streamListener.onStart();
         // 发送请求
-        client.newCall(request).enqueue(new OpenAiResponseCallBack(messages, streamListener, modelContext));
+        enqueueStreamCall(request, modelContext, new OpenAiResponseCallBack(messages, streamListener, modelContext));
     }
 
     @NotNull
@@ -140,12 +140,27 @@ public abstract class AbstractOpenAiLlmService extends AbstractLlmService {
 
         @Override
         public void onFailure(Call call, IOException e) {
+            if (call.isCanceled()) {
+                logger.debug("流式请求已取消 - SessionId: {}", modelContext.getSessionId());
+                return;
+            }
             logger.error("流式请求失败: {}", e.getMessage(), e);
             streamListener.onError(e);
         }
 
         @Override
         public void onResponse(Call call, Response response) throws IOException {
+            try {
+                handleResponse(response);
+            } catch (IOException e) {
+                if (!call.isCanceled()) {
+                    throw e;
+                }
+                logger.debug("流式请求已取消 - SessionId: {}", modelContext.getSessionId());
+            }
+        }
+
+        private void handleResponse(Response response) throws IOException {
             if (!response.isSuccessful()) {
                 String errorMsg = "流式请求响应失败: " + response;
                 logger.error(errorMsg);
@@ -204,6 +219,11 @@ public abstract class AbstractOpenAiLlmService extends AbstractLlmService {
                     }
                 }
 
+                if (modelContext.getCancellationToken().isCancelled()) {
+                    // 对话已取消，不再执行函数调用和通知完成
+                    return;
+                }
+
                 boolean isFunctionResultReqLlm = false;//是否存在REQLLM的函数调用
                 String messageType = SysMessage.MESSAGE_TYPE_NORMAL;
                 // 处理函数调用
@@ -3,6 +3,7 @@ package com.xiaozhi.websocket.llm.memory;
 import java.util.List;
 
 import com.xiaozhi.entity.SysMessage;
+import com.xiaozhi.utils.CancellationToken;
 import com.xiaozhi.websocket.llm.tool.function.FunctionSessionHolder;
 
 /**
@@ -17,6 +18,12 @@ public class ModelContext {
     private final boolean useFunctionCall;// 是否启用函数调用
     private final ChatMemory chatMemory;
     private final FunctionSessionHolder functionSessionHolder;
+    // 是否为提前启动的预测调用，预测调用中不执行函数
+    private volatile boolean speculative;
+    // 预测调用中是否有被推迟的函数调用
+    private volatile boolean toolCallDeferred;
+    // 本轮对话的取消令牌，取消后服务商应尽快中断流式请求
+    private volatile CancellationToken cancellationToken = CancellationToken.NONE;
 
     /**
      * 构造函数
@@ -56,6 +63,39 @@ public class ModelContext {
         this.functionSessionHolder = functionSessionHolder;
     }
 
+    /**
+     * 是否为提前启动的预测调用
+     */
+    public boolean isSpeculative() {
+        return speculative;
+    }
+
+    public void setSpeculative(boolean speculative) {
+        this.speculative = speculative;
+    }
+
+    /**
+     * 预测调用中模型是否请求过函数调用
+     */
+    public boolean isToolCallDeferred() {
+        return toolCallDeferred;
+    }
+
+    public void setToolCallDeferred(boolean toolCallDeferred) {
+        this.toolCallDeferred = toolCallDeferred;
+    }
+
+    /**
+     * 本轮对话的取消令牌
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken != null ? cancellationToken : CancellationToken.NONE;
+    }
+
     /**
      * 获取设备ID
      * 
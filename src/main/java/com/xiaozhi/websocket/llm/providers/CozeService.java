@@ -10,6 +10,7 @@ import com.coze.openapi.client.connversations.message.model.Message;
 import com.coze.openapi.service.auth.TokenAuth;
 import com.coze.openapi.service.service.CozeAPI;
 import com.xiaozhi.entity.SysMessage;
+import com.xiaozhi.utils.ProviderExecutors;
 import com.xiaozhi.websocket.llm.api.AbstractLlmService;
 import com.xiaozhi.websocket.llm.api.StreamResponseListener;
 import com.xiaozhi.websocket.llm.api.ToolCallInfo;
@@ -17,14 +18,12 @@ import com.xiaozhi.websocket.llm.memory.ModelContext;
 import com.xiaozhi.websocket.llm.tool.ActionType;
 import com.xiaozhi.websocket.llm.tool.ToolResponse;
 import io.reactivex.Flowable;
-import io.reactivex.schedulers.Schedulers;
+import io.reactivex.disposables.Disposable;
+import reactor.core.Disposables;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 /**
  * Coze LLM服务实现
@@ -85,42 +84,18 @@ public class CozeService extends AbstractLlmService {
                 .messages(cozeMessages)
                 .build();
 
+        // 同步接口，直接在调用线程上读取事件流，不再另外占用一个调度线程再阻塞调用线程等待结果
         try {
-            // 创建CompletableFuture来处理异步响应
-            CompletableFuture<String> future = new CompletableFuture<>();
-
-            // 发送请求并获取流式响应
-            StringBuilder fullResponse = new StringBuilder();
-            Flowable<ChatEvent> resp = coze.chat().stream(req);
-
-            resp.subscribeOn(Schedulers.io())
-                    .subscribe(
-                            event -> {
-                                if (ChatEventType.CONVERSATION_MESSAGE_DELTA.equals(event.getEvent())) {
-                                    String content = event.getMessage().getContent();
-                                    if (content != null && !content.isEmpty()) {
-                                        fullResponse.append(content);
-                                    }
-                                }
-                                if (ChatEventType.CONVERSATION_CHAT_COMPLETED.equals(event.getEvent())) {
-                                    future.complete(fullResponse.toString());
-                                }
-                            },
-                            throwable -> {
-                                logger.error("Coze API请求失败: {}", throwable.getMessage(), throwable);
-                                future.completeExceptionally(throwable);
-                            },
-                            () -> {
-                                // 如果没有收到CONVERSATION_CHAT_COMPLETED事件，确保完成future
-                                if (!future.isDone()) {
-                                    future.complete(fullResponse.toString());
-                                }
-                            });
-
-            // 等待响应，设置超时
-            return future.get(60, TimeUnit.SECONDS);
-
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            return coze.chat().stream(req)
+                    .takeUntil((ChatEvent event) -> ChatEventType.CONVERSATION_CHAT_COMPLETED.equals(event.getEvent()))
+                    .filter(event -> ChatEventType.CONVERSATION_MESSAGE_DELTA.equals(event.getEvent())
+                            && event.getMessage().getContent() != null)
+                    .map(event -> event.getMessage().getContent())
+                    .timeout(60, TimeUnit.SECONDS)
+                    .collect(StringBuilder::new, StringBuilder::append)
+                    .map(StringBuilder::toString)
+                    .blockingGet();
+        } catch (RuntimeException e) {
             logger.error("获取Coze响应时出错: {}", e.getMessage(), e);
             throw new IOException("获取Coze响应时出错: " + e.getMessage(), e);
         }
@@ -156,7 +131,10 @@ public class CozeService extends AbstractLlmService {
         try {
             Flowable<ChatEvent> resp = coze.chat().stream(req);
             CozeToolCallInfo toolCallInfo = new CozeToolCallInfo();
-            resp.subscribeOn(Schedulers.io())
+            // 流结束后注销取消回调
+            reactor.core.Disposable.Swap registration = Disposables.swap();
+            Disposable subscription = resp.subscribeOn(ProviderExecutors.rxScheduler())
+                    .doFinally(registration::dispose)
                     .subscribe(
                             event -> {
                                 if (ChatEventType.CONVERSATION_MESSAGE_DELTA.equals(event.getEvent())) {
@@ -220,6 +198,8 @@ public class CozeService extends AbstractLlmService {
                                     }
                                 }
                             });
+            // 对话取消时停止订阅，SDK随之关闭底层连接
+            registration.update(modelContext.getCancellationToken().onCancel(subscription::dispose));
         } catch (Exception e) {
             logger.error("创建流式请求时出错: {}", e.getMessage(), e);
             streamListener.onError(e);
@@ -243,7 +223,9 @@ public class CozeService extends AbstractLlmService {
         // 保存完整响应
         StringBuilder fullResponse = new StringBuilder();
         Flowable<ChatEvent> events = coze.chat().streamSubmitToolOutputs(toolReq);
-        events.subscribeOn(Schedulers.io())
+        reactor.core.Disposable.Swap registration = Disposables.swap();
+        Disposable subscription = events.subscribeOn(ProviderExecutors.rxScheduler())
+                .doFinally(registration::dispose)
                 .subscribe(
                         event -> {
                             if (ChatEventType.CONVERSATION_MESSAGE_DELTA.equals(event.getEvent())) {
@@ -266,6 +248,7 @@ public class CozeService extends AbstractLlmService {
                                 streamListener.onError(new IOException("未收到有效响应"));
                             }
                         });
+        registration.update(modelContext.getCancellationToken().onCancel(subscription::dispose));
     }
 
     /**
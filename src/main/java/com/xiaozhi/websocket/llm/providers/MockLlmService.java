@@ -0,0 +1,101 @@
+package com.xiaozhi.websocket.llm.providers;
+
+import com.xiaozhi.entity.SysMessage;
+import com.xiaozhi.utils.LatencyProfile;
+import com.xiaozhi.utils.ProviderExecutors;
+import com.xiaozhi.websocket.llm.api.AbstractLlmService;
+import com.xiaozhi.websocket.llm.api.StreamResponseListener;
+import com.xiaozhi.websocket.llm.memory.ModelContext;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 模拟LLM服务，不请求模型，按固定速率流式返回配置的回复，用于离线测试和压测
+ * <br/>
+ * 参数（配置的apiUrl，见LatencyProfile）：
+ * text 回复内容；latency 首个token的延迟（毫秒，默认300）；jitter 首token延迟抖动（毫秒，默认0）；
+ * rate 每秒token数（默认20，不大于0时一次性返回）；token 每个token的字数（默认2）；seed 随机种子。
+ */
+public class MockLlmService extends AbstractLlmService {
+
+    private static final String DEFAULT_TEXT = "好的，这是一段用于测试的模拟回复。今天天气晴朗，适合出门散步。还有什么可以帮你的吗？";
+
+    private final LatencyProfile profile;
+    private final String text;
+    private final List<String> tokens;
+    private final long latency;
+    private final long jitter;
+    private final double rate;
+
+    public MockLlmService(String endpoint, String appId, String apiKey, String apiSecret, String model) {
+        super(endpoint, appId, apiKey, apiSecret, model);
+        this.profile = LatencyProfile.parse(endpoint);
+        this.text = profile.getString("text", DEFAULT_TEXT);
+        this.latency = profile.getLong("latency", 300);
+        this.jitter = profile.getLong("jitter", 0);
+        this.rate = profile.getDouble("rate", 20);
+        this.tokens = split(text, (int) Math.max(1, profile.getLong("token", 2)));
+    }
+
+    @Override
+    protected String chat(List<Map<String, Object>> messages) throws IOException {
+        long streaming = rate > 0 ? (long) (tokens.size() * 1000 / rate) : 0;
+        LatencyProfile.sleep(profile.nextDelay(latency, jitter) + streaming);
+        return text;
+    }
+
+    @Override
+    protected void chatStream(List<Map<String, Object>> messages, StreamResponseListener streamListener,
+            ModelContext modelContext) throws IOException {
+        streamListener.onStart();
+
+        Flux<String> stream;
+        if (rate > 0) {
+            Duration interval = Duration.ofNanos((long) (1_000_000_000L / rate));
+            stream = Flux.interval(Duration.ZERO, interval)
+                    .take(tokens.size())
+                    .map(index -> tokens.get(index.intValue()));
+        } else {
+            stream = Flux.fromIterable(tokens);
+        }
+
+        // 监听器中可能有阻塞操作，与其他服务商一样在服务商执行器上回调；流结束后注销取消回调
+        Disposable.Swap registration = Disposables.swap();
+        Disposable subscription = Mono.delay(Duration.ofMillis(profile.nextDelay(latency, jitter)))
+                .thenMany(stream)
+                .publishOn(ProviderExecutors.scheduler())
+                .doFinally(signal -> registration.dispose())
+                .subscribe(
+                        streamListener::onToken,
+                        e -> {
+                            logger.error("模拟流式回复失败: {}", e.getMessage(), e);
+                            streamListener.onError(e);
+                        },
+                        () -> streamListener.onComplete(text, messages, this, SysMessage.MESSAGE_TYPE_NORMAL));
+        registration.update(modelContext.getCancellationToken().onCancel(subscription::dispose));
+    }
+
+    @Override
+    public String getProviderName() {
+        return "mock";
+    }
+
+    /**
+     * 按固定字数切分为token
+     */
+    private static List<String> split(String text, int size) {
+        List<String> tokens = new ArrayList<>();
+        for (int start = 0; start < text.length(); start += size) {
+            tokens.add(text.substring(start, Math.min(text.length(), start + size)));
+        }
+        return tokens;
+    }
+}
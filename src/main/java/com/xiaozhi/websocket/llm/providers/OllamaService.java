@@ -87,15 +87,30 @@ public class OllamaService extends AbstractLlmService {
         streamListener.onStart();
 
         // 发送请求
-        client.newCall(request).enqueue(new Callback() {
+        enqueueStreamCall(request, modelContext, new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
+                if (call.isCanceled()) {
+                    logger.debug("流式请求已取消 - SessionId: {}", modelContext.getSessionId());
+                    return;
+                }
                 logger.error("流式请求失败: {}", e.getMessage(), e);
                 streamListener.onError(e);
             }
 
             @Override
             public void onResponse(Call call, Response response) throws IOException {
+                try {
+                    handleResponse(response);
+                } catch (IOException e) {
+                    if (!call.isCanceled()) {
+                        throw e;
+                    }
+                    logger.debug("流式请求已取消 - SessionId: {}", modelContext.getSessionId());
+                }
+            }
+
+            private void handleResponse(Response response) throws IOException {
                 if (!response.isSuccessful()) {
                     String errorMsg = "流式请求响应失败: " + response;
                     logger.error(errorMsg);
@@ -142,6 +157,9 @@ public class OllamaService extends AbstractLlmService {
                         }
                     }
 
+                    if (modelContext.getCancellationToken().isCancelled()) {
+                        return;
+                    }
                     // 通知完成
                     streamListener.onComplete(fullResponse.toString(), messages, OllamaService.this, SysMessage.MESSAGE_TYPE_NORMAL);
                 }
@@ -0,0 +1,323 @@
+package com.xiaozhi.websocket.metrics;
+
+import com.xiaozhi.utils.opus.OpusCoderPool;
+import com.xiaozhi.websocket.service.SessionManager;
+import com.xiaozhi.websocket.service.SessionOutbound;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 音频链路指标
+ * <br/>
+ * 所有指标在启动时或第一次遇到某个服务商时注册，之后的记录只做计数或写入已注册的Timer，
+ * 每帧调用的方法（收发帧计数、VAD推断、Opus解码）不产生额外的对象分配。
+ * 帧计数基于LongAdder，以FunctionCounter的形式暴露，每秒帧数由Prometheus的rate()计算。
+ */
+@Component
+public class PipelineMetrics {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder vadInferred = new LongAdder();
+    private final LongAdder vadSkipped = new LongAdder();
+    private final LongAdder dialoguesCancelled = new LongAdder();
+    private final LongAdder llmCancelled = new LongAdder();
+    private final LongAdder ttsSkipped = new LongAdder();
+    private final LongAdder ttsDiscarded = new LongAdder();
+    private final LongAdder ttsCancelledChars = new LongAdder();
+    private final LongAdder bargeIns = new LongAdder();
+    private final LongAdder echoGated = new LongAdder();
+
+    private Timer vadInference;
+    private Timer opusDecode;
+    private Timer opusEncode;
+
+    // 按服务商或语句注册的指标
+    private final ConcurrentHashMap<String, Timer> sttTimers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Timer> ttsTimers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> llmTokens = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DistributionSummary> llmTokenRates = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Timer> dbTimers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("xiaozhi.sessions.active", sessionManager, s -> s.getSessionIds().size())
+                .description("当前WebSocket会话数")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.audio.frames", framesIn, LongAdder::sum)
+                .description("收发的音频帧数")
+                .tag("direction", "in")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.audio.frames", framesOut, LongAdder::sum)
+                .description("收发的音频帧数")
+                .tag("direction", "out")
+                .register(meterRegistry);
+        Gauge.builder("xiaozhi.mailbox.backlog", sessionManager, SessionManager::getMailboxBacklog)
+                .description("所有会话音频信箱中等待处理的帧数")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.mailbox.dropped", sessionManager, SessionManager::getMailboxDroppedFrames)
+                .description("音频信箱溢出丢弃的帧数")
+                .register(meterRegistry);
+        Gauge.builder("xiaozhi.outbound.queued", sessionManager,
+                s -> s.getOutboundBacklog(SessionOutbound.Lane.CONTROL))
+                .description("所有会话下行队列中排队的消息数")
+                .tag("lane", "control")
+                .register(meterRegistry);
+        Gauge.builder("xiaozhi.outbound.queued", sessionManager,
+                s -> s.getOutboundBacklog(SessionOutbound.Lane.AUDIO))
+                .description("所有会话下行队列中排队的消息数")
+                .tag("lane", "audio")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.outbound.dropped", sessionManager, SessionManager::getOutboundDroppedFrames)
+                .description("下行积压时丢弃的音频帧数")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.vad.frames", vadInferred, LongAdder::sum)
+                .description("VAD处理的帧数，按是否运行模型推断区分")
+                .tag("inference", "executed")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.vad.frames", vadSkipped, LongAdder::sum)
+                .description("VAD处理的帧数，按是否运行模型推断区分")
+                .tag("inference", "skipped")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.dialogue.cancelled", dialoguesCancelled, LongAdder::sum)
+                .description("回复播放完之前被中止的对话数")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.llm.cancelled", llmCancelled, LongAdder::sum)
+                .description("对话中止时还未结束的大模型流式请求数")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.tts.cancelled", ttsSkipped, LongAdder::sum)
+                .description("对话中止后未合成或丢弃的句子数，skipped为开始前取消，discarded为合成后丢弃")
+                .tag("stage", "skipped")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.tts.cancelled", ttsDiscarded, LongAdder::sum)
+                .description("对话中止后未合成或丢弃的句子数，skipped为开始前取消，discarded为合成后丢弃")
+                .tag("stage", "discarded")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.tts.cancelled.characters", ttsCancelledChars, LongAdder::sum)
+                .description("对话中止后跳过合成的字符数")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.bargein.triggered", bargeIns, LongAdder::sum)
+                .description("播放回复期间确认用户插话的次数")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.bargein.echo.gated", echoGated, LongAdder::sum)
+                .description("对话期间VAD判定为语音、按回声忽略的上行帧数")
+                .register(meterRegistry);
+        vadInference = Timer.builder("xiaozhi.vad.inference")
+                .description("单帧VAD模型推断耗时")
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofMillis(100))
+                .register(meterRegistry);
+        opusDecode = Timer.builder("xiaozhi.opus.decode")
+                .description("单帧Opus解码耗时")
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofMillis(50))
+                .register(meterRegistry);
+        opusEncode = Timer.builder("xiaozhi.opus.encode")
+                .description("一段PCM音频编码为Opus帧的耗时")
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofSeconds(5))
+                .register(meterRegistry);
+    }
+
+    /**
+     * 收到一帧设备音频
+     */
+    public void frameIn() {
+        framesIn.increment();
+    }
+
+    /**
+     * 向设备发送了一帧音频
+     */
+    public void frameOut() {
+        framesOut.increment();
+    }
+
+    public void recordVadInference(long nanos) {
+        vadInferred.increment();
+        vadInference.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 能量门限关闭，跳过了一帧VAD模型推断
+     */
+    public void vadInferenceSkipped() {
+        vadSkipped.increment();
+    }
+
+    /**
+     * 注册Opus编解码器复用池的指标，由OpusProcessor启动时调用
+     *
+     * @param coder encoder或decoder
+     */
+    public void registerOpusPool(String coder, OpusCoderPool<?> pool) {
+        FunctionCounter.builder("xiaozhi.opus.pool.acquired", pool, OpusCoderPool::getHits)
+                .description("会话获取的Opus编解码器数，按是否复用区分")
+                .tag("coder", coder)
+                .tag("result", "hit")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.opus.pool.acquired", pool, OpusCoderPool::getCreations)
+                .description("会话获取的Opus编解码器数，按是否复用区分")
+                .tag("coder", coder)
+                .tag("result", "created")
+                .register(meterRegistry);
+        FunctionCounter.builder("xiaozhi.opus.pool.evicted", pool, OpusCoderPool::getEvictions)
+                .description("复用池超出空闲上限释放的Opus编解码器数")
+                .tag("coder", coder)
+                .register(meterRegistry);
+        Gauge.builder("xiaozhi.opus.pool.idle", pool, OpusCoderPool::getIdleCount)
+                .description("复用池中空闲的Opus编解码器数")
+                .tag("coder", coder)
+                .register(meterRegistry);
+    }
+
+    public void recordOpusDecode(long nanos) {
+        opusDecode.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordOpusEncode(long nanos) {
+        opusEncode.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 语音结束到得到最终识别结果的耗时
+     */
+    public void recordStt(String provider, long nanos) {
+        Timer timer = sttTimers.get(provider);
+        if (timer == null) {
+            timer = sttTimers.computeIfAbsent(provider, p -> latencyTimer("xiaozhi.stt.latency",
+                    "语音结束到得到最终识别结果的耗时", p));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 单个句子的语音合成耗时
+     */
+    public void recordTts(String provider, long nanos) {
+        Timer timer = ttsTimers.get(provider);
+        if (timer == null) {
+            timer = ttsTimers.computeIfAbsent(provider, p -> latencyTimer("xiaozhi.tts.latency",
+                    "单个句子的语音合成耗时", p));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 一次大模型流式回复的token数和生成耗时（从第一个token到结束）
+     */
+    public void recordLlmTokens(String provider, int tokens, long nanos) {
+        LongAdder counter = llmTokens.get(provider);
+        if (counter == null) {
+            counter = llmTokens.computeIfAbsent(provider, p -> {
+                LongAdder adder = new LongAdder();
+                FunctionCounter.builder("xiaozhi.llm.tokens", adder, LongAdder::sum)
+                        .description("大模型流式返回的token数")
+                        .tag("provider", p)
+                        .register(meterRegistry);
+                return adder;
+            });
+        }
+        counter.add(tokens);
+        if (nanos <= 0) {
+            return;
+        }
+        DistributionSummary rate = llmTokenRates.get(provider);
+        if (rate == null) {
+            rate = llmTokenRates.computeIfAbsent(provider, p -> DistributionSummary.builder("xiaozhi.llm.tokens.rate")
+                    .description("单次回复每秒生成的token数")
+                    .baseUnit("tokens/s")
+                    .tag("provider", p)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+        rate.record(tokens * 1_000_000_000.0 / nanos);
+    }
+
+    /**
+     * 对话在回复播放完之前被中止
+     */
+    public void dialogueCancelled() {
+        dialoguesCancelled.increment();
+    }
+
+    /**
+     * 对话中止时大模型还在返回，后续响应被丢弃
+     */
+    public void llmCancelled() {
+        llmCancelled.increment();
+    }
+
+    /**
+     * 对话中止时句子还没开始合成，跳过合成
+     *
+     * @param characters 句子字符数
+     */
+    public void ttsSkipped(int characters) {
+        ttsSkipped.increment();
+        ttsCancelledChars.add(characters);
+    }
+
+    /**
+     * 句子合成完成时对话已中止，音频被丢弃
+     */
+    public void ttsDiscarded() {
+        ttsDiscarded.increment();
+    }
+
+    /**
+     * 确认用户插话，中止当前对话
+     */
+    public void bargeIn() {
+        bargeIns.increment();
+    }
+
+    /**
+     * 一帧上行语音按设备自身播放的回声忽略
+     */
+    public void echoGated() {
+        echoGated.increment();
+    }
+
+    /**
+     * 数据库写操作耗时，按Mapper语句区分
+     */
+    public void recordDbWrite(String statement, long nanos) {
+        Timer timer = dbTimers.get(statement);
+        if (timer == null) {
+            timer = dbTimers.computeIfAbsent(statement, s -> Timer.builder("xiaozhi.db.write")
+                    .description("数据库写操作耗时")
+                    .tag("statement", s)
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(Duration.ofSeconds(5))
+                    .register(meterRegistry));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer latencyTimer(String name, String description, String provider) {
+        return Timer.builder(name)
+                .description(description)
+                .tag("provider", provider)
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,544 @@
+package com.xiaozhi.websocket.service;
+
+import com.xiaozhi.entity.SysConfig;
+import com.xiaozhi.entity.SysDevice;
+import com.xiaozhi.utils.ProviderExecutors;
+import com.xiaozhi.websocket.tts.factory.TtsServiceFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import com.xiaozhi.websocket.transport.DeviceSession;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 准入控制服务
+ * <br/>
+ * 新连接受全局连接数和建连速率限制，超过时立即拒绝并通知设备随机退避后重连。
+ * 每轮对话开始识别前需要同时获得全局、用户、以及本轮使用的STT/LLM/TTS配置各自的许可；
+ * 每个限制器是一个令牌桶（限制速率）加一个并发上限，暂时拿不到许可的请求按先后排队，
+ * 超过排队期限仍未获得许可时放弃本轮对话，播放缓存的繁忙提示音。
+ * 所有限制器的占用、令牌和排队情况都注册为指标。
+ */
+@Service
+public class AdmissionService {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionService.class);
+
+    public static final String SCOPE_CONNECTION = "connection";
+    public static final String SCOPE_GLOBAL = "global";
+    public static final String SCOPE_USER = "user";
+    public static final String SCOPE_PROVIDER = "provider";
+
+    // 检查排队请求和超时许可的间隔
+    private static final long CHECK_INTERVAL_MS = 20;
+
+    // 用户和服务配置的限制器空闲超过该时间后移除，连同其指标
+    private static final long LIMITER_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    // 检查空闲限制器的间隔
+    private static final long EVICT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    @Value("${app.admission.enabled:false}")
+    private boolean enabled;
+
+    // 对话排队等待许可的最长时间，0表示不排队
+    @Value("${app.admission.queue-timeout-ms:2000}")
+    private long queueTimeoutMs;
+
+    // 单个对话许可的最长持有时间，超过后自动释放，防止异常路径漏释放
+    @Value("${app.admission.max-hold-seconds:300}")
+    private long maxHoldSeconds;
+
+    // 以下各项为0时表示不限制
+    @Value("${app.admission.connection.max-concurrent:0}")
+    private int connectionMaxConcurrent;
+
+    @Value("${app.admission.connection.rate:0}")
+    private double connectionRate;
+
+    @Value("${app.admission.global.max-concurrent:0}")
+    private int globalMaxConcurrent;
+
+    @Value("${app.admission.global.rate:0}")
+    private double globalRate;
+
+    @Value("${app.admission.user.max-concurrent:0}")
+    private int userMaxConcurrent;
+
+    @Value("${app.admission.user.rate:0}")
+    private double userRate;
+
+    @Value("${app.admission.provider.max-concurrent:0}")
+    private int providerMaxConcurrent;
+
+    @Value("${app.admission.provider.rate:0}")
+    private double providerRate;
+
+    // 拒绝连接时通知设备重连的随机退避上限
+    @Value("${app.admission.reconnect-spread-ms:10000}")
+    private long reconnectSpreadMs;
+
+    @Value("${app.admission.busy-prompt:当前使用的人比较多，请稍后再和我说话吧}")
+    private String busyPrompt;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private TtsServiceFactory ttsFactory;
+
+    @Autowired
+    private AudioService audioService;
+
+    @Autowired
+    private MessageService messageService;
+
+    // 限制器：scope:key -> Limiter
+    private final ConcurrentHashMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    // 排队中的对话请求
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+
+    // 已获得的许可：sessionId -> Permit
+    private final ConcurrentHashMap<String, Permit> connectionPermits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Permit> dialoguePermits = new ConcurrentHashMap<>();
+
+    // 繁忙提示音缓存：TTS配置和音色 -> 音频文件路径
+    private final ConcurrentHashMap<String, String> busyPromptCache = new ConcurrentHashMap<>();
+
+    private Counter admittedCounter;
+    private Counter queuedCounter;
+    private Counter rejectedCounter;
+    private Counter expiredCounter;
+
+    private Disposable ticker;
+    private long lastEviction = System.nanoTime();
+
+    @PostConstruct
+    public void init() {
+        admittedCounter = meterRegistry.counter("xiaozhi.admission.admitted");
+        queuedCounter = meterRegistry.counter("xiaozhi.admission.queued");
+        rejectedCounter = meterRegistry.counter("xiaozhi.admission.rejected");
+        expiredCounter = meterRegistry.counter("xiaozhi.admission.expired");
+        Gauge.builder("xiaozhi.admission.pending", pending, ConcurrentLinkedQueue::size).register(meterRegistry);
+        // 用户数量不固定，用户限制器只注册汇总指标
+        Gauge.builder("xiaozhi.admission.in_use", this, s -> s.sumUserLimiters(Limiter::getInUse))
+                .tag("scope", SCOPE_USER).tag("key", "all").register(meterRegistry);
+        Gauge.builder("xiaozhi.admission.blocked", this, s -> s.sumUserLimiters(Limiter::getBlocked))
+                .tag("scope", SCOPE_USER).tag("key", "all").register(meterRegistry);
+        if (enabled) {
+            ticker = Schedulers.parallel().schedulePeriodically(this::tick, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+            logger.info("准入控制已开启 - 连接: {}/{}每秒, 全局对话: {}/{}每秒, 用户: {}/{}每秒, 服务配置: {}/{}每秒, 排队: {}ms",
+                    connectionMaxConcurrent, connectionRate, globalMaxConcurrent, globalRate,
+                    userMaxConcurrent, userRate, providerMaxConcurrent, providerRate, queueTimeoutMs);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (ticker != null) {
+            ticker.dispose();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 新连接准入，不排队
+     *
+     * @return 是否允许连接
+     */
+    public boolean admitConnection(String sessionId) {
+        if (!enabled) {
+            return true;
+        }
+        List<Limiter> required = new ArrayList<>();
+        required.add(limiter(SCOPE_CONNECTION, "all", connectionMaxConcurrent, connectionRate));
+        Permit permit = tryAcquire(required);
+        if (permit == null) {
+            rejectedCounter.increment();
+            return false;
+        }
+        admittedCounter.increment();
+        connectionPermits.put(sessionId, permit);
+        return true;
+    }
+
+    /**
+     * 拒绝连接，通知设备随机退避后重连
+     */
+    public Mono<Void> rejectConnection(DeviceSession session) {
+        logger.warn("连接数或建连速率超过限制，拒绝连接 - SessionId: {}", session.getId());
+        long delay = ThreadLocalRandom.current().nextLong(reconnectSpreadMs + 1);
+        return messageService.sendReconnectMessage(session, delay)
+                .onErrorResume(e -> Mono.empty())
+                .then(session.close(DeviceSession.CLOSE_SERVICE_OVERLOAD, "service overload"));
+    }
+
+    /**
+     * 释放连接许可
+     */
+    public void releaseConnection(String sessionId) {
+        Permit permit = connectionPermits.remove(sessionId);
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    /**
+     * 对话准入，暂时没有许可时排队等待
+     *
+     * @return 获得许可时为true，排队超时为false
+     */
+    public Mono<Boolean> admitDialogue(String sessionId, SysDevice device, SysConfig sttConfig, SysConfig ttsConfig) {
+        if (!enabled) {
+            return Mono.just(true);
+        }
+        // 同一会话同时只有一轮对话，新一轮开始时释放上一轮的许可
+        releaseDialogue(sessionId);
+
+        List<Limiter> required = new ArrayList<>();
+        required.add(limiter(SCOPE_GLOBAL, "all", globalMaxConcurrent, globalRate));
+        if (device.getUserId() != null) {
+            required.add(limiter(SCOPE_USER, String.valueOf(device.getUserId()), userMaxConcurrent, userRate));
+        }
+        if (sttConfig != null) {
+            required.add(limiter(SCOPE_PROVIDER, "stt:" + sttConfig.getConfigId(), providerMaxConcurrent, providerRate));
+        }
+        if (device.getModelId() != null) {
+            required.add(limiter(SCOPE_PROVIDER, "llm:" + device.getModelId(), providerMaxConcurrent, providerRate));
+        }
+        if (ttsConfig != null) {
+            required.add(limiter(SCOPE_PROVIDER, "tts:" + ttsConfig.getConfigId(), providerMaxConcurrent, providerRate));
+        }
+
+        // 已有请求在排队时直接排到队尾，保证先来先得
+        Permit permit = pending.isEmpty() ? tryAcquire(required) : null;
+        if (permit != null) {
+            return Mono.just(admitted(sessionId, permit));
+        }
+        if (queueTimeoutMs <= 0) {
+            rejectedCounter.increment();
+            return Mono.just(false);
+        }
+        queuedCounter.increment();
+        long deadline = System.currentTimeMillis() + queueTimeoutMs;
+        return Mono.<Permit>create(sink -> {
+            Pending request = new Pending(required, deadline, sink);
+            pending.offer(request);
+            sink.onCancel(() -> {
+                request.cancelled = true;
+                pending.remove(request);
+                // 许可可能在取消的同时发出，没有被admitted认领时在这里归还
+                Permit granted = request.granted;
+                if (granted != null && granted.claim() && granted.release()) {
+                    drainPending();
+                }
+            });
+        }).filter(Permit::claim)
+                .map(acquired -> admitted(sessionId, acquired))
+                .defaultIfEmpty(false)
+                .doOnNext(admitted -> {
+                    if (!admitted) {
+                        logger.warn("对话排队超时 - SessionId: {}, 等待: {}ms", sessionId, queueTimeoutMs);
+                    }
+                });
+    }
+
+    /**
+     * 释放对话许可
+     */
+    public void releaseDialogue(String sessionId) {
+        Permit permit = dialoguePermits.remove(sessionId);
+        if (permit != null && permit.release()) {
+            drainPending();
+        }
+    }
+
+    /**
+     * 播放繁忙提示，提示音按TTS配置和音色缓存，只合成一次
+     */
+    public Mono<Void> playBusyPrompt(DeviceSession session, SysConfig ttsConfig, String voiceName) {
+        String cacheKey = (ttsConfig != null ? ttsConfig.getConfigId() : "default") + ":" + voiceName;
+        return Mono.fromCallable(() -> {
+            String audioPath = busyPromptCache.get(cacheKey);
+            if (audioPath == null || !new File(audioPath).exists()) {
+                audioPath = ttsFactory.getTtsService(ttsConfig, voiceName).textToSpeech(busyPrompt);
+                busyPromptCache.put(cacheKey, audioPath);
+            }
+            return audioPath;
+        })
+                .subscribeOn(ProviderExecutors.scheduler())
+                .flatMap(audioPath -> audioService.sendAudioMessage(session, audioPath, busyPrompt, true, true))
+                .onErrorResume(e -> {
+                    logger.error("播放繁忙提示失败 - SessionId: {}", session.getId(), e);
+                    return Mono.empty();
+                });
+    }
+
+    private boolean admitted(String sessionId, Permit permit) {
+        admittedCounter.increment();
+        Permit previous = dialoguePermits.put(sessionId, permit);
+        if (previous != null) {
+            // 上一轮还没有释放（如识别结果返回前再次开始说话），由排队检查处理等待的请求
+            previous.release();
+        }
+        return true;
+    }
+
+    /**
+     * 获取或创建限制器，并注册其指标（用户限制器只计入汇总指标）
+     */
+    private Limiter limiter(String scope, String key, int maxConcurrent, double rate) {
+        Limiter limiter = limiters.computeIfAbsent(scope + ":" + key, name -> {
+            Limiter created = new Limiter(scope, maxConcurrent, rate);
+            if (!SCOPE_USER.equals(scope)) {
+                created.meters.add(Gauge.builder("xiaozhi.admission.in_use", created, Limiter::getInUse)
+                        .tag("scope", scope).tag("key", key).register(meterRegistry));
+                created.meters.add(Gauge.builder("xiaozhi.admission.tokens", created, Limiter::getTokens)
+                        .tag("scope", scope).tag("key", key).register(meterRegistry));
+                created.meters.add(Gauge.builder("xiaozhi.admission.blocked", created, Limiter::getBlocked)
+                        .tag("scope", scope).tag("key", key).register(meterRegistry));
+            }
+            return created;
+        });
+        limiter.lastUsed = System.nanoTime();
+        return limiter;
+    }
+
+    private double sumUserLimiters(ToDoubleFunction<Limiter> value) {
+        double sum = 0;
+        for (Limiter limiter : limiters.values()) {
+            if (SCOPE_USER.equals(limiter.scope)) {
+                sum += value.applyAsDouble(limiter);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 移除空闲的用户和服务配置限制器及其指标，避免随用户和配置数量无限增长
+     */
+    private synchronized void evictIdleLimiters() {
+        long now = System.nanoTime();
+        Iterator<Limiter> iterator = limiters.values().iterator();
+        while (iterator.hasNext()) {
+            Limiter limiter = iterator.next();
+            if (!SCOPE_USER.equals(limiter.scope) && !SCOPE_PROVIDER.equals(limiter.scope)) {
+                continue;
+            }
+            if (limiter.inUse > 0 || now - limiter.lastUsed < LIMITER_IDLE_NANOS || isPendingOn(limiter)) {
+                continue;
+            }
+            iterator.remove();
+            for (Meter meter : limiter.meters) {
+                meterRegistry.remove(meter);
+            }
+        }
+    }
+
+    private boolean isPendingOn(Limiter limiter) {
+        for (Pending request : pending) {
+            if (request.required.contains(limiter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 同时获得所有限制器的许可，任何一个不满足时都不占用
+     */
+    private synchronized Permit tryAcquire(List<Limiter> required) {
+        long now = System.nanoTime();
+        for (Limiter limiter : required) {
+            if (!limiter.canAcquire(now)) {
+                limiter.blocked++;
+                return null;
+            }
+        }
+        for (Limiter limiter : required) {
+            limiter.acquire();
+        }
+        return new Permit(required);
+    }
+
+    private void tick() {
+        expireHeldPermits();
+        drainPending();
+        long now = System.nanoTime();
+        if (now - lastEviction >= EVICT_INTERVAL_NANOS) {
+            lastEviction = now;
+            evictIdleLimiters();
+        }
+    }
+
+    /**
+     * 按先后顺序处理排队请求，超过期限的放弃
+     */
+    private synchronized void drainPending() {
+        long now = System.currentTimeMillis();
+        Iterator<Pending> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Pending request = iterator.next();
+            if (request.cancelled) {
+                iterator.remove();
+                continue;
+            }
+            if (now >= request.deadline) {
+                iterator.remove();
+                rejectedCounter.increment();
+                request.sink.success();
+                continue;
+            }
+            Permit permit = tryAcquire(request.required);
+            if (permit != null) {
+                iterator.remove();
+                request.granted = permit;
+                request.sink.success(permit);
+                // 订阅方已取消时许可不会被认领，直接归还
+                if (request.cancelled && permit.claim()) {
+                    permit.release();
+                }
+            }
+        }
+    }
+
+    private void expireHeldPermits() {
+        long maxHoldNanos = TimeUnit.SECONDS.toNanos(maxHoldSeconds);
+        long now = System.nanoTime();
+        dialoguePermits.forEach((sessionId, permit) -> {
+            if (now - permit.acquiredAt > maxHoldNanos && dialoguePermits.remove(sessionId, permit)) {
+                permit.release();
+                expiredCounter.increment();
+                logger.warn("对话许可超过最长持有时间，自动释放 - SessionId: {}", sessionId);
+            }
+        });
+    }
+
+    /**
+     * 令牌桶加并发上限，状态由AdmissionService的锁保护
+     */
+    static class Limiter {
+        private final String scope;
+        private final int maxConcurrent;
+        private final double ratePerNano;
+        private final double burst;
+
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private volatile int inUse;
+        private volatile long blocked;
+        private volatile long lastUsed = System.nanoTime();
+        private final List<Meter> meters = new ArrayList<>();
+
+        Limiter(String scope, int maxConcurrent, double ratePerSecond) {
+            this.scope = scope;
+            this.maxConcurrent = maxConcurrent;
+            this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            // 允许一秒的突发
+            this.burst = Math.max(1, ratePerSecond);
+            this.tokens = burst;
+        }
+
+        boolean canAcquire(long now) {
+            if (maxConcurrent > 0 && inUse >= maxConcurrent) {
+                return false;
+            }
+            if (ratePerNano <= 0) {
+                return true;
+            }
+            tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+            lastRefill = now;
+            return tokens >= 1;
+        }
+
+        void acquire() {
+            inUse++;
+            if (ratePerNano > 0) {
+                tokens -= 1;
+            }
+        }
+
+        int getInUse() {
+            return inUse;
+        }
+
+        double getTokens() {
+            return ratePerNano > 0 ? tokens : Double.NaN;
+        }
+
+        long getBlocked() {
+            return blocked;
+        }
+    }
+
+    /**
+     * 一组限制器的许可
+     */
+    private class Permit {
+        private final List<Limiter> limiters;
+        private final long acquiredAt = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        // 排队获得的许可由接收方或取消方之一认领，保证只有一方负责归还
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        Permit(List<Limiter> limiters) {
+            this.limiters = limiters;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        boolean release() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            synchronized (AdmissionService.this) {
+                for (Limiter limiter : limiters) {
+                    limiter.inUse--;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Pending {
+        private final List<Limiter> required;
+        private final long deadline;
+        private final MonoSink<Permit> sink;
+        private volatile boolean cancelled;
+        private volatile Permit granted;
+
+        Pending(List<Limiter> required, long deadline, MonoSink<Permit> sink) {
+            this.required = required;
+            this.deadline = deadline;
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.xiaozhi.websocket.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * VAD与STT之间的单次语音音频通道
+ *
+ * 每段语音（一次SPEECH_START到SPEECH_END）创建一个通道，只允许一个订阅者。
+ * 队列有界，按下游请求量投递；下游（远程STT）处理不过来时按溢出策略处理，而不是无限缓存。
+ * 投递在独立的worker上进行，VAD线程写入时不会被下游阻塞。
+ */
+public class AudioChannel {
+    private static final Logger logger = LoggerFactory.getLogger(AudioChannel.class);
+
+    // 合并模式下单个音频块的最大字节数（16kHz单声道16bit约1秒）
+    private static final int MAX_COALESCED_BYTES = 32000;
+
+    /**
+     * 溢出策略
+     */
+    public enum OverflowPolicy {
+        // 丢弃最早的一帧
+        DROP_OLDEST,
+        // 将新帧合并到队尾的音频块，不丢音频
+        COALESCE,
+        // 立即以错误结束本次识别
+        FAIL_FAST;
+
+        public static OverflowPolicy of(String value) {
+            if (value == null) {
+                return DROP_OLDEST;
+            }
+            switch (value.trim().toLowerCase()) {
+                case "coalesce":
+                    return COALESCE;
+                case "fail-fast":
+                    return FAIL_FAST;
+                default:
+                    return DROP_OLDEST;
+            }
+        }
+    }
+
+    /**
+     * 写入结果
+     */
+    public enum EmitStatus {
+        OK,
+        DROPPED_OLDEST,
+        COALESCED,
+        // 通道已满且策略为FAIL_FAST
+        REJECTED,
+        // 通道已结束
+        CLOSED;
+
+        public boolean isAccepted() {
+            return this == OK || this == DROPPED_OLDEST || this == COALESCED;
+        }
+    }
+
+    private final String sessionId;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    private volatile FluxSink<byte[]> sink;
+    private volatile Scheduler.Worker worker;
+
+    // 以下状态由this保护
+    private boolean done;
+    private boolean terminated;
+    private Throwable error;
+    private int highWatermark;
+
+    // 统计信息
+    private final AtomicLong emittedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong coalescedFrames = new AtomicLong();
+    private final AtomicLong failedEmits = new AtomicLong();
+
+    public AudioChannel(String sessionId, int capacity, OverflowPolicy policy) {
+        this.sessionId = sessionId;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy != null ? policy : OverflowPolicy.DROP_OLDEST;
+    }
+
+    /**
+     * 获取音频流，只允许订阅一次
+     */
+    public Flux<byte[]> asFlux() {
+        return Flux.create(s -> {
+            if (!subscribed.compareAndSet(false, true)) {
+                s.error(new IllegalStateException("音频通道只允许一个订阅者"));
+                return;
+            }
+            worker = Schedulers.boundedElastic().createWorker();
+            sink = s;
+            s.onRequest(n -> scheduleDrain());
+            s.onDispose(() -> {
+                synchronized (this) {
+                    done = true;
+                    queue.clear();
+                }
+                worker.dispose();
+            });
+            scheduleDrain();
+        });
+    }
+
+    /**
+     * 写入一帧音频
+     *
+     * @param frame PCM音频数据
+     * @return 写入结果
+     */
+    public EmitStatus emit(byte[] frame) {
+        EmitStatus status;
+        synchronized (this) {
+            if (done) {
+                failedEmits.incrementAndGet();
+                return EmitStatus.CLOSED;
+            }
+            if (queue.size() < capacity) {
+                queue.offer(frame);
+                status = EmitStatus.OK;
+            } else {
+                status = overflow(frame);
+            }
+            highWatermark = Math.max(highWatermark, queue.size());
+        }
+        if (status.isAccepted()) {
+            emittedFrames.incrementAndGet();
+        }
+        if (status != EmitStatus.OK) {
+            logOverflow(status);
+        }
+        scheduleDrain();
+        return status;
+    }
+
+    /**
+     * 结束通道，已缓存的音频会继续投递完
+     */
+    public void complete() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * 队列已满时按策略处理，调用方持有锁
+     */
+    private EmitStatus overflow(byte[] frame) {
+        switch (policy) {
+            case COALESCE:
+                byte[] tail = queue.peekLast();
+                if (tail != null && tail.length + frame.length <= MAX_COALESCED_BYTES) {
+                    byte[] merged = new byte[tail.length + frame.length];
+                    System.arraycopy(tail, 0, merged, 0, tail.length);
+                    System.arraycopy(frame, 0, merged, tail.length, frame.length);
+                    queue.pollLast();
+                    queue.offer(merged);
+                    coalescedFrames.incrementAndGet();
+                    return EmitStatus.COALESCED;
+                }
+                // 合并块已达上限，退化为丢弃最早的帧
+                queue.poll();
+                queue.offer(frame);
+                droppedFrames.incrementAndGet();
+                return EmitStatus.DROPPED_OLDEST;
+            case FAIL_FAST:
+                done = true;
+                error = new IllegalStateException("音频通道已满，STT处理过慢 - SessionId: " + sessionId);
+                queue.clear();
+                failedEmits.incrementAndGet();
+                return EmitStatus.REJECTED;
+            case DROP_OLDEST:
+            default:
+                queue.poll();
+                queue.offer(frame);
+                droppedFrames.incrementAndGet();
+                return EmitStatus.DROPPED_OLDEST;
+        }
+    }
+
+    private void logOverflow(EmitStatus status) {
+        // 每段语音只在首次溢出时告警，避免刷屏
+        long overflowCount = droppedFrames.get() + coalescedFrames.get() + failedEmits.get();
+        if (overflowCount == 1) {
+            logger.warn("音频通道溢出 - SessionId: {}, 结果: {}, {}", sessionId, status, stats());
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("音频通道溢出 - SessionId: {}, 结果: {}, {}", sessionId, status, stats());
+        }
+    }
+
+    private void scheduleDrain() {
+        if (sink == null) {
+            return;
+        }
+        if (wip.getAndIncrement() == 0) {
+            try {
+                worker.schedule(this::drain);
+            } catch (Exception e) {
+                // worker已释放，说明订阅已取消
+                wip.set(0);
+            }
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        FluxSink<byte[]> s = sink;
+        for (;;) {
+            for (;;) {
+                byte[] next = null;
+                boolean finished;
+                Throwable err;
+                synchronized (this) {
+                    if (terminated || s.isCancelled()) {
+                        break;
+                    }
+                    finished = done && queue.isEmpty();
+                    err = error;
+                    if (finished) {
+                        terminated = true;
+                    } else if (s.requestedFromDownstream() > 0) {
+                        next = queue.poll();
+                    }
+                }
+                if (finished) {
+                    if (err != null) {
+                        s.error(err);
+                    } else {
+                        s.complete();
+                    }
+                    break;
+                }
+                if (next == null) {
+                    break;
+                }
+                s.next(next);
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 当前队列中的帧数
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * 当前填充率（0.0-1.0）
+     */
+    public double getFillLevel() {
+        return (double) size() / capacity;
+    }
+
+    public synchronized int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getEmittedFrames() {
+        return emittedFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    public long getCoalescedFrames() {
+        return coalescedFrames.get();
+    }
+
+    public long getFailedEmits() {
+        return failedEmits.get();
+    }
+
+    /**
+     * 统计信息摘要，用于日志
+     */
+    public String stats() {
+        return String.format("队列: %d/%d, 峰值: %d, 写入: %d, 丢弃: %d, 合并: %d, 失败: %d",
+                size(), capacity, getHighWatermark(), getEmittedFrames(), getDroppedFrames(),
+                getCoalescedFrames(), getFailedEmits());
+    }
+}
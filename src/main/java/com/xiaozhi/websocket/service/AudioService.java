@@ -1,19 +1,24 @@
 package com.xiaozhi.websocket.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xiaozhi.utils.AudioProfile;
 import com.xiaozhi.utils.AudioUtils;
+import com.xiaozhi.utils.CancellationToken;
 import com.xiaozhi.utils.OpusProcessor;
+import com.xiaozhi.utils.PcmOps;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import com.xiaozhi.websocket.trace.TurnTracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.socket.WebSocketMessage;
-import org.springframework.web.reactive.socket.WebSocketSession;
+import com.xiaozhi.websocket.transport.DeviceSession;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
@@ -29,7 +34,9 @@ import java.util.concurrent.atomic.AtomicLong;
 public class AudioService {
     private static final Logger logger = LoggerFactory.getLogger(AudioService.class);
 
-    private static final long OPUS_FRAME_INTERVAL_MS = AudioUtils.OPUS_FRAME_DURATION_MS;
+    // 内容固定的控制消息只编码一次
+    private static final byte[] TTS_START = "{\"type\":\"tts\",\"state\":\"start\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TTS_STOP = "{\"type\":\"tts\",\"state\":\"stop\"}".getBytes(StandardCharsets.UTF_8);
 
     @Autowired
     private ObjectMapper objectMapper;
@@ -40,6 +47,15 @@ public class AudioService {
     @Autowired
     private SessionManager sessionManager;
 
+    @Autowired
+    private TurnTracer turnTracer;
+
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    @Autowired
+    private BargeInDetector bargeInDetector;
+
     // 存储每个会话最后一次发送帧的时间戳
     private final Map<String, AtomicLong> lastFrameSentTime = new ConcurrentHashMap<>();
 
@@ -49,24 +65,14 @@ public class AudioService {
     /**
      * 发送TTS开始消息
      */
-    public Mono<Void> sendStart(WebSocketSession session) {
-        Map<String, Object> message = new HashMap<>();
-        message.put("type", "tts");
-        message.put("state", "start");
-
-        try {
-            String json = objectMapper.writeValueAsString(message);
-            return session.send(Mono.just(session.textMessage(json)));
-        } catch (Exception e) {
-            logger.error("发送TTS开始消息失败", e);
-            return Mono.empty();
-        }
+    public Mono<Void> sendStart(DeviceSession session) {
+        return sessionManager.sendText(session, TTS_START);
     }
 
     /**
      * 发送TTS句子开始消息
      */
-    public Mono<Void> sendSentenceStart(WebSocketSession session, String text) {
+    public Mono<Void> sendSentenceStart(DeviceSession session, String text) {
         Map<String, Object> message = new HashMap<>();
         message.put("type", "tts");
         message.put("state", "sentence_start");
@@ -74,7 +80,7 @@ public class AudioService {
 
         try {
             String json = objectMapper.writeValueAsString(message);
-            return session.send(Mono.just(session.textMessage(json)));
+            return sessionManager.sendText(session, json);
         } catch (Exception e) {
             logger.error("发送TTS句子开始消息失败", e);
             return Mono.empty();
@@ -84,27 +90,16 @@ public class AudioService {
     /**
      * 发送停止消息
      */
-    public Mono<Void> sendStop(WebSocketSession session) {
+    public Mono<Void> sendStop(DeviceSession session) {
         String sessionId = session.getId();
         // 检查是否需要关闭会话
         if (sessionManager.isCloseAfterChat(sessionId)) {
             sessionManager.closeSession(sessionId);
             return Mono.empty();
         }
-        Map<String, Object> message = new HashMap<>();
-        message.put("type", "tts");
-        message.put("state", "stop");
-
-        try {
-            String json = objectMapper.writeValueAsString(message);
-            // 标记播放结束
-            isPlaying.computeIfAbsent(sessionId, k -> new AtomicBoolean()).set(false);
-            return session.send(Mono.just(session.textMessage(json)));
-        } catch (Exception e) {
-            logger.error("发送停止消息失败", e);
-            isPlaying.computeIfAbsent(sessionId, k -> new AtomicBoolean()).set(false);
-            return Mono.empty();
-        }
+        // 标记播放结束
+        isPlaying.computeIfAbsent(sessionId, k -> new AtomicBoolean()).set(false);
+        return sessionManager.sendText(session, TTS_STOP);
     }
 
     /**
@@ -118,7 +113,7 @@ public class AudioService {
     /**
      * 发送音频消息
      * 
-     * @param session   WebSocketSession会话
+     * @param session   DeviceSession会话
      * @param audioPath 音频文件路径
      * @param text      对应的文本
      * @param isFirst   是否是开始消息
@@ -126,12 +121,32 @@ public class AudioService {
      * @return 操作完成的Mono
      */
     public Mono<Void> sendAudioMessage(
-        WebSocketSession session,
+        DeviceSession session,
         String audioPath,
         String text,
         boolean isFirst,
         boolean isLast) {
+        return sendAudioMessage(session, audioPath, text, isFirst, isLast, CancellationToken.NONE);
+    }
+
+    /**
+     * 发送音频消息，令牌取消后停止发送剩余的帧
+     * <br/>
+     * 取消由中止对话触发，结束消息已由中止方发送，这里不再重复发送。
+     *
+     * @param token 本轮对话的取消令牌
+     */
+    public Mono<Void> sendAudioMessage(
+        DeviceSession session,
+        String audioPath,
+        String text,
+        boolean isFirst,
+        boolean isLast,
+        CancellationToken token) {
         String sessionId = session.getId();
+        if (token.isCancelled()) {
+            return Mono.empty();
+        }
 
         // 标记开始播放
         AtomicBoolean playingState = isPlaying.computeIfAbsent(sessionId, k -> new AtomicBoolean(true));
@@ -160,6 +175,12 @@ public class AudioService {
         // 使用单独的变量存储播放状态引用
         final AtomicBoolean finalPlayingState = playingState;
 
+        // 按会话协商的参数编码和控制发送节奏
+        AudioProfile profile = sessionManager.getAudioProfile(sessionId);
+        long[] frameInterval = { profile.getFrameDuration() };
+        // 开启插话检测时记录每帧的能量，用于区分设备录到的回声
+        float[][] frameEnergies = { null };
+
         // 发送句子开始标记
         Mono<Void> sentenceStartMono = sendSentenceStart(session, text);
 
@@ -177,12 +198,20 @@ public class AudioService {
                 // 如果是opus文件，直接读取opus帧数据
                 logger.info("音频文件是opus文件，直接读取opus帧数据");
                 opusFrames = opusProcessor.readOpus(audioFile);
+                // 文件中的帧时长由生成时决定，按数据包实际时长发送
+                if (!opusFrames.isEmpty()) {
+                    frameInterval[0] = OpusProcessor.packetDurationMs(opusFrames.get(0),
+                            AudioUtils.OPUS_FRAME_DURATION_MS);
+                }
             } else {
                 // 如果不是opus文件，按照原来的逻辑处理
                 byte[] audioData = AudioUtils.readAsPcm(fullPath);
                 // 将PCM转换为Opus帧
                 logger.info("不是opus文件，将PCM转换为Opus帧");
-                opusFrames = opusProcessor.pcmToOpus(sessionId, audioData);
+                opusFrames = opusProcessor.pcmToOpus(sessionId, audioData, profile);
+                if (bargeInDetector.isEnabled()) {
+                    frameEnergies[0] = frameEnergies(audioData, opusFrames.size(), profile.getFrameDuration());
+                }
             }
 
             return opusFrames;
@@ -201,26 +230,31 @@ public class AudioService {
             // 使用Flux.range创建一个发送序列
             return Flux.range(0, opusFrames.size())
                     // 使用固定间隔发送帧
-                    .delayElements(Duration.ofMillis(OPUS_FRAME_INTERVAL_MS))
+                    .delayElements(Duration.ofMillis(frameInterval[0]))
                     // 确保在boundedElastic调度器上执行，以避免阻塞
                     .publishOn(Schedulers.boundedElastic())
-                    // 只有当会话仍在播放时才发送
-                    .takeWhile(i -> finalPlayingState.get())
+                    // 只有当会话仍在播放且对话未取消时才发送
+                    .takeWhile(i -> finalPlayingState.get() && !token.isCancelled())
                     // 发送每一帧
                     .flatMap(i -> {
                         // 更新活跃时间
                         sessionManager.updateLastActivity(sessionId);
+                        float[] energies = frameEnergies[0];
+                        bargeInDetector.onPlayback(sessionId,
+                                energies != null ? energies[i] : BargeInDetector.UNKNOWN_ENERGY);
                         // 发送帧数据
                         byte[] frame = opusFrames.get(i);
-                        return sendOpusFrame(session, frame);
+                        return sendOpusFrame(session, frame)
+                                .doOnSuccess(v -> turnTracer.frameSent(sessionId));
                     })
                     .then();
         });
 
         // 发送停止消息（只有在isLast为true时才发送）
+        Mono<Void> stopMessage = isLast ? sendStop(session) : Mono.empty();
         Mono<Void> stopMono = Mono.fromRunnable(() -> {
             finalPlayingState.set(false);
-        }).then(isLast ? sendStop(session) : Mono.empty());
+        }).then(Mono.defer(() -> token.isCancelled() ? Mono.<Void>empty() : stopMessage));
 
         // 组合所有操作，确保按顺序执行
         return startMono
@@ -239,17 +273,30 @@ public class AudioService {
                 });
     }
 
+    /**
+     * 按帧计算内部采样率（16kHz）PCM的平均绝对值，与编码后的Opus帧一一对应
+     */
+    private static float[] frameEnergies(byte[] pcm, int frames, int frameDuration) {
+        float[] energies = new float[frames];
+        int frameSamples = AudioUtils.SAMPLE_RATE * frameDuration / 1000;
+        int totalSamples = PcmOps.samples(pcm);
+        for (int i = 0; i < frames; i++) {
+            int start = i * frameSamples;
+            int length = Math.min(frameSamples, totalSamples - start);
+            energies[i] = length > 0 ? PcmOps.absMean(pcm, start * 2, length) : 0f;
+        }
+        return energies;
+    }
+
     /**
      * 发送Opus帧数据
      */
-    public Mono<Void> sendOpusFrame(WebSocketSession session, byte[] opusFrame) {
+    public Mono<Void> sendOpusFrame(DeviceSession session, byte[] opusFrame) {
         String sessionId = session.getId();
         try {
-            // 直接发送原始Opus帧数据作为二进制消息
-            WebSocketMessage wsMessage = session.binaryMessage(
-                    factory -> factory.wrap(opusFrame));
-            
-            return session.send(Mono.just(wsMessage))
+            // 直接发送原始Opus帧数据作为二进制消息，经下行队列的音频通道写出
+            return sessionManager.sendAudio(session, opusFrame)
+                    .doOnSuccess(v -> pipelineMetrics.frameOut())
                     .onErrorResume(error -> {
                         // 只有当不是连接关闭错误时才记录日志
                         if (!(error instanceof reactor.netty.channel.AbortedException) ||
@@ -0,0 +1,223 @@
+package com.xiaozhi.websocket.service;
+
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 插话（barge-in）检测
+ * <br/>
+ * 开启后，对话进行中（等待模型回复和播放期间）继续对设备上行的音频做VAD。设备麦克风会录到自己播放的回复，
+ * 这部分回声同样是人声，只靠VAD无法区分，因此同时记录下行每帧音频的能量：上行帧的能量要超过最近一段时间内
+ * 下行能量的最大值乘以回声耦合系数、再乘以余量，并且VAD判定为语音，才算作用户的声音，累计达到最短时长后确认插话。
+ * <br/>
+ * 回声耦合系数按会话自适应，上行与下行的能量比低于当前系数时快速跟随、高于时缓慢跟随，近似跟踪回声的下包络，
+ * 用户说话时抬高的能量比只会让系数缓慢上升。设备需要在播放期间持续上传麦克风音频（固件的实时监听模式）。
+ */
+@Component
+public class BargeInDetector {
+    private static final Logger logger = LoggerFactory.getLogger(BargeInDetector.class);
+
+    /**
+     * 下行帧能量未知（如直接发送的Opus文件）时传入的值
+     */
+    public static final float UNKNOWN_ENERGY = -1f;
+
+    // 能量未知的下行帧按正常语音的能量估计
+    private static final float UNKNOWN_REFERENCE = 0.1f;
+
+    // 保留的下行帧数，按20ms帧计算约2.5秒，应大于回声窗口
+    private static final int HISTORY = 128;
+
+    // 下行能量低于该值时（静音段）能量比没有意义，不更新耦合系数
+    private static final float MIN_REFERENCE = 0.005f;
+
+    // 耦合系数下降和上升时的跟随速度
+    private static final float COUPLING_FALL = 0.3f;
+    private static final float COUPLING_RISE = 0.02f;
+
+    @Value("${app.dialogue.barge-in.enabled:false}")
+    private boolean enabled;
+
+    // 下行音频从发送到在设备上播放、再被麦克风录到的最长时间
+    @Value("${app.dialogue.barge-in.echo-window-ms:500}")
+    private int echoWindowMs;
+
+    // 初始的回声耦合系数（上行回声能量与下行能量之比）
+    @Value("${app.dialogue.barge-in.echo-coupling:0.5}")
+    private float initialCoupling;
+
+    // 上行能量超过估计回声能量的倍数
+    @Value("${app.dialogue.barge-in.echo-margin:2.0}")
+    private float echoMargin;
+
+    // 判定为用户声音的最低帧能量
+    @Value("${app.dialogue.barge-in.min-energy:0.02}")
+    private float minEnergy;
+
+    // 判定为用户声音的最低语音概率
+    @Value("${app.dialogue.barge-in.speech-threshold:0.6}")
+    private float speechThreshold;
+
+    // 确认插话需要累计的用户语音时长
+    @Value("${app.dialogue.barge-in.min-speech-ms:240}")
+    private int minSpeechMs;
+
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    private final ConcurrentHashMap<String, State> states = new ConcurrentHashMap<>();
+
+    /**
+     * 会话的检测状态，由自身的锁保护
+     */
+    private static class State {
+        // 下行帧的发送时间和能量，环形缓冲区
+        final long[] times = new long[HISTORY];
+        final float[] energies = new float[HISTORY];
+        int next;
+        int size;
+        float coupling;
+        // 累计的用户语音时长，非用户语音的帧按帧长回退
+        int speechMs;
+        // 最近一次确认插话时累计的用户语音时长
+        int confirmedSpeechMs;
+
+        State(float coupling) {
+            this.coupling = coupling;
+        }
+
+        void add(long time, float energy) {
+            times[next] = time;
+            energies[next] = energy;
+            next = (next + 1) % HISTORY;
+            if (size < HISTORY) {
+                size++;
+            }
+        }
+
+        /**
+         * since之后发送的下行帧的最大能量，没有时为0
+         */
+        float reference(long since) {
+            float max = 0f;
+            for (int i = 1; i <= size; i++) {
+                int index = (next - i + HISTORY) % HISTORY;
+                if (times[index] < since) {
+                    break;
+                }
+                max = Math.max(max, energies[index]);
+            }
+            return max;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private State state(String sessionId) {
+        return states.computeIfAbsent(sessionId, k -> new State(initialCoupling));
+    }
+
+    /**
+     * 向设备发送了一帧回复音频
+     *
+     * @param energy 该帧PCM的平均绝对值（归一化），未知时为UNKNOWN_ENERGY
+     */
+    public void onPlayback(String sessionId, float energy) {
+        if (!enabled) {
+            return;
+        }
+        State state = state(sessionId);
+        synchronized (state) {
+            state.add(System.currentTimeMillis(), energy < 0 ? UNKNOWN_REFERENCE : energy);
+        }
+    }
+
+    /**
+     * 对话进行中收到一帧上行音频
+     *
+     * @param energy            VAD计算的帧能量
+     * @param speechProbability VAD模型给出的语音概率
+     * @param vadSpeaking       VAD是否处于说话状态
+     * @param frameMs           帧时长
+     * @return 确认插话时返回true
+     */
+    public boolean onCapture(String sessionId, float energy, float speechProbability, boolean vadSpeaking,
+            int frameMs) {
+        State state = state(sessionId);
+        synchronized (state) {
+            float reference = state.reference(System.currentTimeMillis() - echoWindowMs);
+            float echo = reference * state.coupling;
+            boolean speech = vadSpeaking && speechProbability >= speechThreshold && energy >= minEnergy;
+            boolean user = speech && energy > echo * echoMargin;
+
+            if (reference >= MIN_REFERENCE) {
+                float ratio = energy / reference;
+                float rate = ratio < state.coupling ? COUPLING_FALL : COUPLING_RISE;
+                state.coupling += rate * (ratio - state.coupling);
+            }
+
+            if (!user) {
+                if (speech) {
+                    // VAD判定为语音，但能量没有超出回声估计
+                    pipelineMetrics.echoGated();
+                }
+                state.speechMs = Math.max(0, state.speechMs - frameMs);
+                return false;
+            }
+            state.speechMs += frameMs;
+            if (state.speechMs < minSpeechMs) {
+                return false;
+            }
+            logger.info("确认插话 - SessionId: {}, 能量: {}, 下行参考: {}, 耦合系数: {}", sessionId, energy, reference,
+                    state.coupling);
+            state.confirmedSpeechMs = state.speechMs;
+            state.speechMs = 0;
+            pipelineMetrics.bargeIn();
+            return true;
+        }
+    }
+
+    /**
+     * 最近一次确认插话时累计的用户语音时长，用于截取送往识别的音频
+     */
+    public int getConfirmedSpeechMs(String sessionId) {
+        State state = states.get(sessionId);
+        if (state == null) {
+            return 0;
+        }
+        synchronized (state) {
+            return state.confirmedSpeechMs;
+        }
+    }
+
+    /**
+     * 确认插话需要累计的用户语音时长
+     */
+    public int getMinSpeechMs() {
+        return minSpeechMs;
+    }
+
+    /**
+     * 新一轮对话开始，清空累计的语音时长，耦合系数保留
+     */
+    public void reset(String sessionId) {
+        State state = states.get(sessionId);
+        if (state != null) {
+            synchronized (state) {
+                state.speechMs = 0;
+            }
+        }
+    }
+
+    public void cleanupSession(String sessionId) {
+        states.remove(sessionId);
+    }
+}
@@ -0,0 +1,157 @@
+package com.xiaozhi.websocket.service;
+
+import com.xiaozhi.entity.SysDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+import com.xiaozhi.websocket.transport.DeviceSession;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 连接排空服务 - 负责停机时平滑迁移设备连接
+ * <br/>
+ * 应用关闭时最先执行：不再接受新连接；空闲的会话立即断开，进行中的对话等待完成，超过期限后强制断开。
+ * 断开前通知设备在随机退避后重连，避免所有设备同时涌向其他节点；
+ * 断开的设备由DevicePresenceService在排空结束时批量更新为离线，而不是每个会话单独更新。
+ */
+@Service
+public class ConnectionDrainService implements SmartLifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionDrainService.class);
+
+    // 检查进行中对话的间隔
+    private static final long CHECK_INTERVAL_MS = 200;
+
+    // 等待关闭帧发送完成的时间
+    private static final long CLOSE_TIMEOUT_MS = 3000;
+
+    // 等待进行中对话完成的最长时间
+    @Value("${app.drain.timeout-seconds:20}")
+    private int timeoutSeconds;
+
+    // 设备重连的随机退避上限
+    @Value("${app.drain.reconnect-spread-seconds:10}")
+    private int reconnectSpreadSeconds;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private DialogueService dialogueService;
+
+    @Autowired
+    private DevicePresenceService devicePresenceService;
+
+    @Autowired
+    private MessageService messageService;
+
+    private volatile boolean running;
+    private volatile boolean draining;
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        drain();
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 最先停止，在Web服务器和其他组件关闭之前排空连接
+     */
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * 是否正在排空，排空期间拒绝新连接
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * 拒绝新连接，通知设备稍后重连
+     */
+    public Mono<Void> reject(DeviceSession session) {
+        logger.info("服务正在停机，拒绝新连接 - SessionId: {}", session.getId());
+        return sendReconnect(session);
+    }
+
+    private void drain() {
+        draining = true;
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutSeconds * 1000L;
+        int total = sessionManager.getSessionIds().size();
+        logger.info("开始排空连接 - 会话数: {}, 等待对话完成最长: {}秒", total, timeoutSeconds);
+
+        int forced = 0;
+        try {
+            while (!sessionManager.getSessionIds().isEmpty()) {
+                boolean expired = System.currentTimeMillis() >= deadline;
+                List<String> closed = new ArrayList<>();
+                List<Mono<Void>> closing = new ArrayList<>();
+                for (String sessionId : new ArrayList<>(sessionManager.getSessionIds())) {
+                    if (!expired && dialogueService.isDialogueActive(sessionId)) {
+                        continue;
+                    }
+                    if (expired && dialogueService.isDialogueActive(sessionId)) {
+                        forced++;
+                    }
+                    SysDevice device = sessionManager.getDeviceConfig(sessionId);
+                    if (device != null && device.getDeviceId() != null) {
+                        devicePresenceService.offline(device.getDeviceId(), sessionId);
+                    }
+                    DeviceSession session = sessionManager.getSession(sessionId);
+                    if (session != null) {
+                        closing.add(sendReconnect(session));
+                    }
+                    closed.add(sessionId);
+                }
+                if (!closing.isEmpty()) {
+                    Mono.when(closing).timeout(Duration.ofMillis(CLOSE_TIMEOUT_MS)).onErrorResume(e -> Mono.empty())
+                            .block();
+                }
+                closed.forEach(sessionManager::closeSession);
+                if (expired) {
+                    break;
+                }
+                Thread.sleep(CHECK_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // 断开的设备用一条SQL更新为离线
+            devicePresenceService.flush();
+        }
+        logger.info("连接排空完成 - 会话数: {}, 强制断开: {}, 耗时: {}ms", total, forced,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 通知设备在随机退避后重连，然后关闭连接
+     */
+    private Mono<Void> sendReconnect(DeviceSession session) {
+        long delay = ThreadLocalRandom.current().nextLong(reconnectSpreadSeconds * 1000L + 1);
+        return messageService.sendReconnectMessage(session, delay)
+                .onErrorResume(e -> Mono.empty())
+                .then(session.close(DeviceSession.CLOSE_SERVICE_RESTARTED, "service restarting"))
+                .onErrorResume(e -> Mono.empty());
+    }
+}
@@ -0,0 +1,244 @@
+package com.xiaozhi.websocket.service;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.xiaozhi.entity.SysDevice;
+import com.xiaozhi.service.SysDeviceService;
+import com.xiaozhi.websocket.cluster.ClusterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 设备在线状态服务
+ * <br/>
+ * 连接和断开只更新内存中的在线状态，由定时任务把变化合并成按状态分组的批量UPDATE写入数据库。
+ * 一个刷新周期内的反复上下线（例如设备快速重连）只保留最终状态，与已写入的状态相同时不再写库。
+ * 离线状态写入数据库后设备从内存中移除，内存中只保留在线和等待写库的设备。
+ * 管理端可以直接读取内存中的在线状态，不需要查询数据库。
+ */
+@Service
+public class DevicePresenceService {
+    private static final Logger logger = LoggerFactory.getLogger(DevicePresenceService.class);
+
+    private static final String STATE_ONLINE = "1";
+    private static final String STATE_OFFLINE = "0";
+
+    // 刷新间隔
+    @Value("${app.device.presence.flush-ms:2000}")
+    private long flushMs;
+
+    // 单条UPDATE最多包含的设备数
+    @Value("${app.device.presence.batch-size:500}")
+    private int batchSize;
+
+    @Autowired
+    private SysDeviceService deviceService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    // 设备在线状态，离线状态写库后移除
+    private final ConcurrentHashMap<String, Presence> presences = new ConcurrentHashMap<>();
+
+    // 状态有变化、等待写库的设备
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    // 最近一次写入数据库的状态，随设备一起移除
+    private final ConcurrentHashMap<String, String> persistedStates = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "device-presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        scheduler.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdown();
+        flush();
+    }
+
+    /**
+     * 设备会话建立
+     */
+    public void online(String deviceId, String sessionId) {
+        // 在compute中连接，避免与移除离线设备交错时连接到已移除的状态上
+        presences.compute(deviceId, (key, presence) -> {
+            Presence current = presence != null ? presence : new Presence(key);
+            current.connect(sessionId);
+            return current;
+        });
+        dirty.add(deviceId);
+    }
+
+    /**
+     * 设备会话断开，同一会话重复调用只处理一次
+     */
+    public void offline(String deviceId, String sessionId) {
+        Presence presence = presences.get(deviceId);
+        if (presence != null && presence.disconnect(sessionId)) {
+            dirty.add(deviceId);
+        }
+    }
+
+    /**
+     * 设备是否在线
+     */
+    public boolean isOnline(String deviceId) {
+        Presence presence = presences.get(deviceId);
+        return presence != null && presence.isOnline();
+    }
+
+    /**
+     * 设备在线状态
+     */
+    public Presence getPresence(String deviceId) {
+        return presences.get(deviceId);
+    }
+
+    /**
+     * 本节点上在线和离线状态还未写库的设备
+     */
+    public Map<String, Presence> getPresences() {
+        return Collections.unmodifiableMap(presences);
+    }
+
+    /**
+     * 把状态变化写入数据库
+     */
+    public synchronized void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        List<SysDevice> online = new ArrayList<>();
+        List<SysDevice> offline = new ArrayList<>();
+        List<String> offlineIds = new ArrayList<>();
+        for (String deviceId : new ArrayList<>(dirty)) {
+            dirty.remove(deviceId);
+            Presence presence = presences.get(deviceId);
+            if (presence == null) {
+                continue;
+            }
+            String state = presence.isOnline() ? STATE_ONLINE : STATE_OFFLINE;
+            if (STATE_OFFLINE.equals(state)) {
+                offlineIds.add(deviceId);
+            }
+            if (state.equals(persistedStates.get(deviceId))) {
+                // 刷新周期内断开又重连，数据库中的状态不变
+                continue;
+            }
+            if (STATE_OFFLINE.equals(state) && clusterService.isOwnedByOtherNode(deviceId)) {
+                // 设备已重连到其他节点，由该节点维护状态
+                persistedStates.put(deviceId, state);
+                continue;
+            }
+            SysDevice device = new SysDevice().setDeviceId(deviceId).setLastLogin(presence.getLastChange());
+            (STATE_ONLINE.equals(state) ? online : offline).add(device);
+        }
+        write(online, STATE_ONLINE);
+        write(offline, STATE_OFFLINE);
+        prune(offlineIds);
+    }
+
+    /**
+     * 移除离线状态已写入数据库的设备，写库失败等待重试的设备保留
+     */
+    private void prune(List<String> deviceIds) {
+        for (String deviceId : deviceIds) {
+            if (dirty.contains(deviceId) || !STATE_OFFLINE.equals(persistedStates.get(deviceId))) {
+                continue;
+            }
+            presences.computeIfPresent(deviceId, (key, presence) -> {
+                if (presence.isOnline()) {
+                    return presence;
+                }
+                persistedStates.remove(key);
+                return null;
+            });
+        }
+    }
+
+    private void write(List<SysDevice> devices, String state) {
+        for (int from = 0; from < devices.size(); from += batchSize) {
+            List<SysDevice> batch = devices.subList(from, Math.min(devices.size(), from + batchSize));
+            try {
+                deviceService.batchUpdateState(batch, state);
+                for (SysDevice device : batch) {
+                    persistedStates.put(device.getDeviceId(), state);
+                }
+                logger.debug("批量更新设备状态 - 状态: {}, 设备数: {}", state, batch.size());
+            } catch (Exception e) {
+                // 下个周期重试
+                logger.error("批量更新设备状态失败 - 状态: {}, 设备数: {}", state, batch.size(), e);
+                for (SysDevice device : batch) {
+                    dirty.add(device.getDeviceId());
+                }
+            }
+        }
+    }
+
+    /**
+     * 单个设备的在线状态
+     */
+    public static class Presence {
+        private final String deviceId;
+
+        // 设备当前的会话，重连时新会话可能先于旧会话断开
+        private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+
+        private volatile Date lastChange = new Date();
+
+        Presence(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        void connect(String sessionId) {
+            sessions.add(sessionId);
+            lastChange = new Date();
+        }
+
+        boolean disconnect(String sessionId) {
+            if (!sessions.remove(sessionId)) {
+                return false;
+            }
+            lastChange = new Date();
+            return true;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public boolean isOnline() {
+            return !sessions.isEmpty();
+        }
+
+        /**
+         * 最近一次上线或下线的时间
+         */
+        @JsonFormat(timezone = "GMT+8", pattern = "yyyy-MM-dd HH:mm:ss")
+        public Date getLastChange() {
+            return lastChange;
+        }
+    }
+}
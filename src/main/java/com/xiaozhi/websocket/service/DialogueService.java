@@ -5,29 +5,44 @@ import com.xiaozhi.entity.SysConfig;
 import com.xiaozhi.entity.SysDevice;
 import com.xiaozhi.service.ForgetService;
 import com.xiaozhi.utils.AudioUtils;
+import com.xiaozhi.utils.CancellationToken;
 import com.xiaozhi.utils.EmojiUtils;
 import com.xiaozhi.utils.EmojiUtils.EmoSentence;
 import com.xiaozhi.utils.OpusProcessor;
+import com.xiaozhi.utils.ProviderExecutors;
 import com.xiaozhi.websocket.llm.LlmManager;
+import com.xiaozhi.websocket.llm.SpeculativeChat;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import com.xiaozhi.websocket.service.VadService.VadResult;
 import com.xiaozhi.websocket.service.VadService.VadStatus;
 import com.xiaozhi.websocket.stt.SttService;
 import com.xiaozhi.websocket.stt.factory.SttServiceFactory;
+import com.xiaozhi.websocket.trace.TurnTrace.Stage;
+import com.xiaozhi.websocket.trace.TurnTracer;
+import com.xiaozhi.websocket.tts.TtsService;
 import com.xiaozhi.websocket.tts.factory.TtsServiceFactory;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
-import org.springframework.web.reactive.socket.WebSocketSession;
+import com.xiaozhi.websocket.transport.DeviceSession;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
 import reactor.core.scheduler.Schedulers;
 
+import javax.annotation.PostConstruct;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.text.DecimalFormat;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -77,14 +92,42 @@ public class DialogueService {
     @Autowired
     private OpusProcessor opusProcessor;
 
+    @Autowired
+    private EagerEndpointing eagerEndpointing;
+
+    @Autowired
+    private BargeInDetector bargeInDetector;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    @Autowired
+    private TurnTracer turnTracer;
+
+    @Autowired
+    private TtsScheduler ttsScheduler;
+
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     // 会话状态管理
     private final Map<String, AtomicInteger> seqCounters = new ConcurrentHashMap<>();
     private final Map<String, Long> sttStartTimes = new ConcurrentHashMap<>();
     private final Map<String, Long> llmStartTimes = new ConcurrentHashMap<>();
+    private final Map<String, Long> speechEndTimes = new ConcurrentHashMap<>();
     private final Map<String, StringBuilder> responses = new ConcurrentHashMap<>();
     private final Map<String, CopyOnWriteArrayList<Sentence>> sentenceQueue = new ConcurrentHashMap<>();
     private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
     private final Map<String, byte[]> pcmMap = new ConcurrentHashMap<>();
+    // 已调用LLM、回复还未播放完的会话
+    private final Set<String> activeDialogues = ConcurrentHashMap.newKeySet();
+    // 当前对话的取消令牌，回复播放完后移除
+    private final Map<String, CancellationToken> dialogueTokens = new ConcurrentHashMap<>();
+    // 对话期间为插话检测运行过VAD的会话，恢复监听时需要丢弃这期间的VAD状态
+    private final Set<String> bargeInVadSessions = ConcurrentHashMap.newKeySet();
     @Autowired
     private ForgetService forgetService;
 
@@ -98,16 +141,20 @@ public class DialogueService {
         private final boolean isLast;
         private boolean ready = false;
         private String audioPath = null;
-        private long timestamp = System.currentTimeMillis();
+        private volatile long synthesisStartTime = 0; // 开始合成的时间，等待合成名额期间为0
         private double modelResponseTime = 0.0; // 模型响应时间（秒）
         private double ttsGenerationTime = 0.0; // TTS生成时间（秒）
         private String dialogueId = null; // 对话ID
+        private final CancellationToken token; // 所属对话的取消令牌
+        private TtsScheduler.Job ttsJob; // 合成任务，由this保护
+        private boolean released = false;
 
-        public Sentence(int seq, String text, boolean isFirst, boolean isLast) {
+        public Sentence(int seq, String text, boolean isFirst, boolean isLast, CancellationToken token) {
             this.seq = seq;
             this.text = text;
             this.isFirst = isFirst;
             this.isLast = isLast;
+            this.token = token;
         }
 
         public void setAudio(String path) {
@@ -120,7 +167,30 @@ public class DialogueService {
         }
 
         public boolean isTimeout() {
-            return System.currentTimeMillis() - timestamp > TIMEOUT_MS;
+            long start = synthesisStartTime;
+            return start > 0 && System.currentTimeMillis() - start > TIMEOUT_MS;
+        }
+
+        public void markSynthesisStarted() {
+            this.synthesisStartTime = System.currentTimeMillis();
+        }
+
+        public synchronized void setTtsJob(TtsScheduler.Job job) {
+            if (released) {
+                job.release();
+            } else {
+                this.ttsJob = job;
+            }
+        }
+
+        /**
+         * 句子播放完或被丢弃，归还合成名额
+         */
+        public synchronized void release() {
+            released = true;
+            if (ttsJob != null) {
+                ttsJob.release();
+            }
         }
 
         public int getSeq() {
@@ -166,12 +236,37 @@ public class DialogueService {
         public String getDialogueId() {
             return dialogueId;
         }
+
+        public CancellationToken getToken() {
+            return token;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("xiaozhi.sentence.queue", sentenceQueue,
+                queues -> queues.values().stream().mapToInt(List::size).sum())
+                .description("等待播放的句子数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 将设备上行的一帧音频投递到会话信箱，由信箱按到达顺序依次调用processAudioData
+     */
+    public void enqueueAudioData(DeviceSession session, byte[] opusData) {
+        SessionMailbox mailbox = sessionManager.getMailbox(session.getId(),
+                frame -> processAudioData(session, frame).subscribe());
+        if (mailbox != null) {
+            mailbox.offer(opusData);
+        }
     }
 
     /**
      * 处理音频数据
+     * <br/>
+     * VAD在调用线程上同步执行。由会话信箱调用时同一会话的帧不会并发，保证按顺序处理。
      */
-    public Mono<Void> processAudioData(WebSocketSession session, byte[] opusData) {
+    public Mono<Void> processAudioData(DeviceSession session, byte[] opusData) {
         String sessionId = session.getId();
         SysDevice device = sessionManager.getDeviceConfig(sessionId);
 
@@ -181,9 +276,16 @@ public class DialogueService {
             return Mono.empty();
         }
         if (!sessionManager.isListening(sessionId)) {
+            if (isBargeInActive(sessionId)) {
+                return processBargeIn(session, device, opusData);
+            }
             logger.info("不在监听状态，忽略音频数据");
             return Mono.empty();
         }
+        if (bargeInVadSessions.remove(sessionId) && !sessionManager.isStreaming(sessionId)) {
+            // 对话期间的VAD状态里是回声，重新开始检测
+            vadService.removeState(sessionId);
+        }
 
         SysConfig sttConfig = null;//语音识别配置
         SysConfig ttsConfig = null;//语音合成配置
@@ -200,7 +302,6 @@ public class DialogueService {
         final SysConfig finalTtsConfig = ttsConfig;
         //logger.info("处理音频数据，vadService.processAudio(sessionId, opusData)");
         return Mono.fromCallable(() -> vadService.processAudio(sessionId, opusData))
-                .subscribeOn(Schedulers.boundedElastic())
                 .flatMap(vadResult -> {
                     if(vadResult.getProcessedData() == null){
                         return Mono.empty();
@@ -219,6 +320,7 @@ public class DialogueService {
                         case SPEECH_START:
                             // 检测到语音开始
                             sttStartTimes.put(sessionId, System.currentTimeMillis());
+                            turnTracer.begin(sessionId, device, finalSttConfig, finalTtsConfig);
                             //logger.info("检测到语音开始，开始语音识别");
                             return startStt(session, sessionId, finalSttConfig, finalTtsConfig,
                                     device, vadResult.getProcessedData());
@@ -227,22 +329,26 @@ public class DialogueService {
                             // 语音继续，发送数据到流式识别
                             //logger.info("检测到语音继续，发送数据到流式识别");
                             if (sessionManager.isStreaming(sessionId)) {
-                                Sinks.Many<byte[]> audioSink = sessionManager.getAudioSink(sessionId);
-                                if (audioSink != null) {
-                                    audioSink.tryEmitNext(vadResult.getProcessedData());
+                                AudioChannel audioChannel = sessionManager.getAudioChannel(sessionId);
+                                if (audioChannel != null) {
+                                    AudioChannel.EmitStatus status = audioChannel.emit(vadResult.getProcessedData());
+                                    if (!status.isAccepted()) {
+                                        // 通道已结束或按fail-fast策略拒绝，本段语音不再继续送往STT
+                                        logger.warn("音频写入STT通道失败 - SessionId: {}, 结果: {}, {}",
+                                                sessionId, status, audioChannel.stats());
+                                        sessionManager.setStreamingState(sessionId, false);
+                                    }
                                 }
                             }
                             return Mono.empty();
 
                         case SPEECH_END:
                             // 语音结束，完成流式识别
+                            turnTracer.mark(sessionId, Stage.SPEECH_END);
+                            speechEndTimes.put(sessionId, System.nanoTime());
                             if (sessionManager.isStreaming(sessionId)) {
-                                Sinks.Many<byte[]> audioSink = sessionManager.getAudioSink(sessionId);
-                                if (audioSink != null) {
-                                    audioSink.tryEmitComplete();
-                                    sessionManager.setStreamingState(sessionId, false);
-
-                                }
+                                sessionManager.closeAudioChannel(sessionId);
+                                sessionManager.setStreamingState(sessionId, false);
                             }
                             return Mono.empty();
 
@@ -256,11 +362,60 @@ public class DialogueService {
                 });
     }
 
+    /**
+     * 对话进行中是否检测插话：已开启，且有未中止的对话（复习模式的对话不检测）
+     */
+    private boolean isBargeInActive(String sessionId) {
+        if (!bargeInDetector.isEnabled()) {
+            return false;
+        }
+        CancellationToken token = dialogueTokens.get(sessionId);
+        return token != null && !token.isCancelled();
+    }
+
+    /**
+     * 对话进行中处理上行音频，只做VAD和插话检测
+     * <br/>
+     * 确认插话后中止当前对话，用VAD从语音开始累计的音频立即开始新一轮识别，之后的帧按正常流程送往STT。
+     * 识别在这里同步启动，保证下一帧到达时流式识别已经就绪。
+     */
+    private Mono<Void> processBargeIn(DeviceSession session, SysDevice device, byte[] opusData) {
+        String sessionId = session.getId();
+        bargeInVadSessions.add(sessionId);
+        VadResult vadResult = vadService.processAudio(sessionId, opusData);
+        if (vadResult.getStatus() == VadStatus.ERROR) {
+            return Mono.empty();
+        }
+        int frameMs = OpusProcessor.packetDurationMs(opusData, AudioUtils.OPUS_FRAME_DURATION_MS);
+        if (!bargeInDetector.onCapture(sessionId, vadService.getLastEnergy(sessionId),
+                vadService.getCurrentSpeechProbability(sessionId), vadResult.isSpeechActive(), frameMs)) {
+            // 播放期间VAD状态里大多是回声，只保留可能成为插话开头的一段，避免缓冲区随播放时长增长。
+            // 用户语音可能被回声帧打断，累计时长会回退，因此按最短时长的两倍保留
+            vadService.trimAudio(sessionId,
+                    2 * bargeInDetector.getMinSpeechMs() + vadService.getPreBufferDuration());
+            return Mono.empty();
+        }
+
+        // 只把确认为用户语音的一段（加上预缓冲）送去识别，之前的回声丢弃
+        int seedMs = bargeInDetector.getConfirmedSpeechMs(sessionId) + vadService.getPreBufferDuration();
+        byte[] initialAudio = vadService.getRecentAudio(sessionId, seedMs);
+        vadService.trimAudio(sessionId, seedMs);
+
+        Mono<Void> stop = abortDialogue(session, "barge-in");
+        bargeInVadSessions.remove(sessionId);
+        SysConfig sttConfig = device.getSttId() != null ? sessionManager.getCachedConfig(device.getSttId()) : null;
+        SysConfig ttsConfig = device.getTtsId() != null ? sessionManager.getCachedConfig(device.getTtsId()) : null;
+        sessionManager.updateLastActivity(sessionId);
+        sttStartTimes.put(sessionId, System.currentTimeMillis());
+        turnTracer.begin(sessionId, device, sttConfig, ttsConfig);
+        return startStt(session, sessionId, sttConfig, ttsConfig, device, initialAudio).then(stop);
+    }
+
     /**
      * 启动语音识别
      */
     private Mono<Void> startStt(
-            WebSocketSession session,
+            DeviceSession session,
             String sessionId,
             SysConfig sttConfig,
             SysConfig ttsConfig,
@@ -268,10 +423,10 @@ public class DialogueService {
             byte[] initialAudio) {
 
         // 如果已经在进行流式识别，先清理旧的资源
-        sessionManager.closeAudioSink(sessionId);
+        sessionManager.closeAudioChannel(sessionId);
 
-        // 创建新的音频数据接收器
-        Sinks.Many<byte[]> audioSink = sessionManager.createAudioSink(sessionId);
+        // 创建新的音频通道
+        AudioChannel audioChannel = sessionManager.createAudioChannel(sessionId);
         sessionManager.setStreamingState(sessionId, true);
 
         // 获取STT服务
@@ -284,24 +439,84 @@ public class DialogueService {
 
         // 发送初始音频数据
         if (initialAudio != null && initialAudio.length > 0) {
-            audioSink.tryEmitNext(initialAudio);
+            audioChannel.emit(initialAudio);
         }
 
+        // 准入控制：暂时没有许可时排队，期间音频继续写入通道；排队超时放弃本轮并播放繁忙提示
+        admissionService.admitDialogue(sessionId, device, sttConfig, ttsConfig)
+                .subscribe(admitted -> {
+                    if (admitted) {
+                        streamRecognition(session, sessionId, sttService, audioChannel, ttsConfig, device);
+                        return;
+                    }
+                    if (sessionManager.getAudioChannel(sessionId) == audioChannel) {
+                        sessionManager.closeAudioChannel(sessionId);
+                        sessionManager.setStreamingState(sessionId, false);
+                    }
+                    admissionService.playBusyPrompt(session, ttsConfig, device.getVoiceName()).subscribe();
+                });
+
+        return Mono.empty();
+    }
+
+    /**
+     * 获得准入许可后开始流式识别，识别完成后调用大模型
+     */
+    private void streamRecognition(
+            DeviceSession session,
+            String sessionId,
+            SttService sttService,
+            AudioChannel audioChannel,
+            SysConfig ttsConfig,
+            SysDevice device) {
+
         final SysConfig finalTtsConfig = ttsConfig;
 
         // 为当前对话生成唯一ID
         final String dialogueId = sessionId + "_" + System.currentTimeMillis();
         sessionManager.setSessionAttribute(sessionId, "currentDialogueId", dialogueId);
+        turnTracer.setDialogueId(sessionId, dialogueId);
+
+        // 开启提前端点检测时跟踪部分识别结果，复习模式下不调用大模型，无需跟踪
+        final EagerEndpointing.Tracker eagerTracker = reviewDialogueService.isInReviewMode(sessionId)
+                || reviewDialogueService.isInErrorReviewMode(sessionId) ? null
+                        : eagerEndpointing.start(sessionId, device);
+
         // 启动流式识别
-        sttService.streamRecognition(audioSink.asFlux())
+        sttService.streamRecognition(audioChannel.asFlux())
+                .doOnNext(partialText -> {
+                    if (eagerTracker != null) {
+                        eagerTracker.onPartial(partialText);
+                    }
+                })
                 .defaultIfEmpty("")
                 .last() // 获取最终结果
+                .doOnError(e -> {
+                    if (eagerTracker != null) {
+                        eagerTracker.cancel();
+                    }
+                    admissionService.releaseDialogue(sessionId);
+                    turnTracer.discard(sessionId);
+                })
                 .flatMap(finalText -> {
                     if (!StringUtils.hasText(finalText)) {
+                        if (eagerTracker != null) {
+                            eagerTracker.cancel();
+                        }
+                        admissionService.releaseDialogue(sessionId);
+                        turnTracer.discard(sessionId);
                         return Mono.empty();
                     }
+                    turnTracer.mark(sessionId, Stage.STT_FINAL);
+                    Long speechEnd = speechEndTimes.remove(sessionId);
+                    if (speechEnd != null) {
+                        pipelineMetrics.recordStt(sttService.getProviderName(), System.nanoTime() - speechEnd);
+                    }
+
+                    // 最终结果与预测一致时可接管提前发起的LLM调用
+                    final SpeculativeChat speculation = eagerTracker != null ? eagerTracker.finish(finalText) : null;
 
-                    initChat(sessionId);
+                    final CancellationToken token = initChat(sessionId);
 
                     // 设置会话为非监听状态，防止处理自己的声音
                     sessionManager.setListeningState(sessionId, false);
@@ -349,6 +564,19 @@ public class DialogueService {
                                         // TODO 在这里判断是否进入复习模式，如果是复习模式，则不需要调用大模型
                                         // 是否有退出的意图
                                         boolean exit = reviewDialogueService.containsExistIntent(finalText);
+                                        // 以下复习模式分支不调用大模型，作废提前发起的调用，结束本轮对话并归还准入许可
+                                        if (exit
+                                                || reviewDialogueService.isInReviewMode(sessionId)
+                                                || reviewDialogueService.isInErrorReviewMode(sessionId)
+                                                || reviewDialogueService.containsLearningIntent(finalText)) {
+                                            if (eagerTracker != null) {
+                                                eagerTracker.cancel();
+                                            }
+                                            finishDialogue(sessionId);
+                                            turnTracer.discard(sessionId);
+                                            // 复习模式的播放不检测插话
+                                            dialogueTokens.remove(sessionId, token);
+                                        }
                                         // 先检查是否已经在复习模式中
                                         if (reviewDialogueService.isInReviewMode(sessionId)) {
                                             if (exit) {
@@ -366,7 +594,7 @@ public class DialogueService {
                                                 // 如果是当前任务的最后单词,则鼓励用户
                                                 reviewDialogueService.processNextWord(session,sessionId, device,ttsConfig, dialogueId,lastWord)
                                                         .subscribe();
-                                            });
+                                            }, ProviderExecutors.executor());
                                             return; // 不再执行后续的大模型调用
                                         }
                                         else if (reviewDialogueService.isInErrorReviewMode(sessionId)) {
@@ -375,7 +603,7 @@ public class DialogueService {
                                                 return;
                                             }
                                             logger.info("检测在巩固错误单词模式复习中");
-                                            CompletableFuture.runAsync(() -> reviewDialogueService.processErrorNextWord(session, sessionId, device, ttsConfig,dialogueId).subscribe());
+                                            CompletableFuture.runAsync(() -> reviewDialogueService.processErrorNextWord(session, sessionId, device, ttsConfig,dialogueId).subscribe(), ProviderExecutors.executor());
                                             return;
                                         }
                                         // 判断是否需要进入复习模式
@@ -385,12 +613,12 @@ public class DialogueService {
                                             CompletableFuture.runAsync(() -> {
                                                 reviewDialogueService.tryEnterReviewMode(session,sessionId, finalText, device,ttsConfig,dialogueId)
                                                         .subscribe();
-                                            });
+                                            }, ProviderExecutors.executor());
                                             return; // 不再执行后续的大模型调用
                                         }
 
                                         // 使用句子切分处理响应
-                                        llmManager.chatStreamBySentence(device, finalText, true,
+                                        LlmManager.TriConsumer<String, Boolean, Boolean> sentenceHandler =
                                                 (sentence, isFirst, isLast) -> {
                                                     handleSentence(
                                                             session,
@@ -400,39 +628,64 @@ public class DialogueService {
                                                             isLast,
                                                             finalTtsConfig,
                                                             device.getVoiceName(),
-                                                            dialogueId); // 传递对话ID
-                                                });
+                                                            dialogueId, // 传递对话ID
+                                                            token);
+                                                };
+                                        if (speculation != null) {
+                                            if (llmManager.chatStreamBySentence(device, speculation, token,
+                                                    sentenceHandler)) {
+                                                eagerTracker.adopted(speculation);
+                                                return;
+                                            }
+                                            eagerTracker.cancel();
+                                        }
+                                        llmManager.chatStreamBySentence(device, finalText, true, token,
+                                                sentenceHandler);
                                     })));
                 }).subscribe();
-
-        return Mono.empty();
     }
 
     /**
      * 初始化对话状态
+     *
+     * @return 本轮对话的取消令牌，上一轮还未结束时先取消上一轮
      */
-    private void initChat(String sessionId) {
+    private CancellationToken initChat(String sessionId) {
+        CancellationToken token = new CancellationToken();
+        CancellationToken previous = dialogueTokens.put(sessionId, token);
+        if (previous != null) {
+            previous.cancel("superseded");
+        }
+        bargeInDetector.reset(sessionId);
         llmStartTimes.put(sessionId, System.currentTimeMillis());
+        activeDialogues.add(sessionId);
         responses.put(sessionId, new StringBuilder());
         seqCounters.putIfAbsent(sessionId, new AtomicInteger(0));
         sentenceQueue.putIfAbsent(sessionId, new CopyOnWriteArrayList<>());
         locks.putIfAbsent(sessionId, new ReentrantLock());
         // 初始化SentenceAudioService会话
         sentenceAudioService.initSession(sessionId);
+        return token;
     }
 
     /**
      * 处理LLM返回的句子
      */
     private void handleSentence(
-            WebSocketSession session,
+            DeviceSession session,
             String sessionId,
             String text,
             boolean isFirst,
             boolean isLast,
             SysConfig ttsConfig,
             String voiceName,
-            String dialogueId) { // 添加对话ID参数
+            String dialogueId, // 添加对话ID参数
+            CancellationToken token) {
+
+        // 对话已中止，不再处理模型后续返回的句子
+        if (token.isCancelled()) {
+            return;
+        }
 
         // 获取句子序列号
         int seq = seqCounters.get(sessionId).incrementAndGet();
@@ -452,13 +705,16 @@ public class DialogueService {
         }
 
         // 创建句子对象
-        Sentence sentence = new Sentence(seq, text, isFirst, isLast);
+        Sentence sentence = new Sentence(seq, text, isFirst, isLast, token);
         sentence.setModelResponseTime(responseTime); // 记录模型响应时间
         sentence.setDialogueId(dialogueId); // 设置对话ID
 
         // 添加到句子队列
         CopyOnWriteArrayList<Sentence> queue = sentenceQueue.get(sessionId);
         queue.add(sentence);
+        if (isFirst) {
+            turnTracer.mark(sessionId, Stage.FIRST_SENTENCE);
+        }
 
         // 如果句子为空且是结束状态，直接标记为准备好（不需要生成音频）
         if ((text == null || text.isEmpty()) && isLast) {
@@ -471,14 +727,34 @@ public class DialogueService {
         // 处理表情符号
         EmoSentence emoSentence = EmojiUtils.processSentence(text);
 
-        // 异步生成音频文件
-        CompletableFuture.runAsync(() -> {
+        // 异步生成音频文件，由调度器控制领先播放的句数和全局并发
+        sentence.setTtsJob(ttsScheduler.submit(sessionId, isFirst, () -> {
+            sentence.markSynthesisStarted();
+            // 排队期间对话已中止，不再合成
+            if (token.isCancelled()) {
+                pipelineMetrics.ttsSkipped(emoSentence.getTtsSentence().length());
+                sentence.setAudio(null);
+                processQueue(session, sessionId);
+                return;
+            }
             try {
                 // 生成音频
                 long ttsStartTime = System.currentTimeMillis();
-                String audioPath = ttsFactory.getTtsService(ttsConfig, voiceName)
-                        .textToSpeech(emoSentence.getTtsSentence());
+                TtsService ttsService = ttsFactory.getTtsService(ttsConfig, voiceName);
+                String audioPath = ttsService.textToSpeech(emoSentence.getTtsSentence());
                 long ttsDuration = System.currentTimeMillis() - ttsStartTime;
+                pipelineMetrics.recordTts(ttsService.getProviderName(), TimeUnit.MILLISECONDS.toNanos(ttsDuration));
+
+                // 合成期间对话已中止，音频不会播放，删除文件
+                if (token.isCancelled()) {
+                    pipelineMetrics.ttsDiscarded();
+                    if (audioPath != null) {
+                        Files.deleteIfExists(Paths.get(audioPath));
+                    }
+                    sentence.setAudio(null);
+                    processQueue(session, sessionId);
+                    return;
+                }
 
                 // 记录TTS生成时间
                 double ttsGenerationTime = ttsDuration / 1000.0;
@@ -491,6 +767,9 @@ public class DialogueService {
 
                 // 标记音频准备就绪
                 sentence.setAudio(audioPath);
+                if (audioPath != null) {
+                    turnTracer.mark(sessionId, Stage.FIRST_TTS_AUDIO);
+                }
 
                 // 如果是最后一个句子，存储助手的完整音频路径
                 if (isLast && audioPath != null) {
@@ -500,7 +779,9 @@ public class DialogueService {
                 // 尝试处理队列
                 processQueue(session, sessionId);
             } catch (Exception e) {
-                logger.error("生成音频失败 - 句子序号: {}, 错误: {}", seq, e.getMessage(), e);
+                if (!token.isCancelled()) {
+                    logger.error("生成音频失败 - 句子序号: {}, 错误: {}", seq, e.getMessage(), e);
+                }
                 // 即使失败也标记为准备好，以便队列继续处理
                 sentence.setAudio(null);
                 sentence.setTtsGenerationTime(0);
@@ -508,14 +789,14 @@ public class DialogueService {
                 // 尝试处理队列
                 processQueue(session, sessionId);
             }
-        });
+        }));
     }
 
     /**
      * 处理音频队列
      * 在音频生成完成后调用
      */
-    private void processQueue(WebSocketSession session, String sessionId) {
+    private void processQueue(DeviceSession session, String sessionId) {
         // 获取锁，确保线程安全
         ReentrantLock lock = locks.get(sessionId);
         if (lock == null) {
@@ -574,22 +855,29 @@ public class DialogueService {
                         sentenceToProcess.getAudioPath(),
                         sentenceToProcess.getText(),
                         sentenceToProcess.isFirst(), // 是否是第一句
-                        sentenceToProcess.isLast() // 是否是最后一句
+                        sentenceToProcess.isLast(), // 是否是最后一句
+                        sentenceToProcess.getToken()
                 ).subscribe(
                         null,
                         error -> {
                             // 移除已处理的句子，即使失败也移除
                             queue.remove(sentenceToProcess);
+                            sentenceToProcess.release();
                             // 递归调用，尝试处理下一个句子
                             processQueue(session, sessionId);
                         },
                         () -> {
                             // 从队列中移除已处理的句子
                             queue.remove(sentenceToProcess);
+                            sentenceToProcess.release();
 
-                            // 如果队列为空且是最后一句，重置监听状态
-                            if (queue.isEmpty() && sentenceToProcess.isLast()) {
+                            // 如果队列为空且是最后一句，重置监听状态；已中止的对话由中止方收尾
+                            if (queue.isEmpty() && sentenceToProcess.isLast()
+                                    && !sentenceToProcess.getToken().isCancelled()) {
+                                dialogueTokens.remove(sessionId, sentenceToProcess.getToken());
                                 sessionManager.setListeningState(sessionId, true);
+                                turnTracer.finish(sessionId);
+                                finishDialogue(sessionId);
                             } else {
                                 // 递归调用，尝试处理下一个句子
                                 processQueue(session, sessionId);
@@ -609,7 +897,7 @@ public class DialogueService {
     /**
      * 处理语音唤醒
      */
-    public Mono<Void> handleWakeWord(WebSocketSession session, String text) {
+    public Mono<Void> handleWakeWord(DeviceSession session, String text) {
         String sessionId = session.getId();
         SysDevice device = sessionManager.getDeviceConfig(sessionId);
 
@@ -624,7 +912,7 @@ public class DialogueService {
         logger.info("检测到唤醒词: \"{}\"", text);
 
         // 初始化对话处理状态
-        initChat(sessionId);
+        final CancellationToken token = initChat(sessionId);
 
         // 设置为非监听状态，防止处理自己的声音
         sessionManager.setListeningState(sessionId, false);
@@ -641,7 +929,7 @@ public class DialogueService {
                 .then(audioService.sendStart(session)) // 立即发送TTS开始状态
                 .then(Mono.fromRunnable(() -> {
                     // 使用句子切分处理响应
-                    llmManager.chatStreamBySentence(device, text, true,
+                    llmManager.chatStreamBySentence(device, text, true, token,
                             (sentence, isFirst, isLast) -> {
                                 // 使用SentenceAudioService处理句子
                                 sentenceAudioService.handleSentence(
@@ -651,7 +939,7 @@ public class DialogueService {
                                         isFirst,
                                         isLast,
                                         ttsConfig,
-                                        device.getVoiceName(),dialogueId);
+                                        device.getVoiceName(),dialogueId, token);
                             });
                 }).then());
     }
@@ -659,12 +947,15 @@ public class DialogueService {
     /**
      * 中止当前对话
      */
-    public Mono<Void> abortDialogue(WebSocketSession session, String reason) {
+    public Mono<Void> abortDialogue(DeviceSession session, String reason) {
         String sessionId = session.getId();
         logger.info("中止对话 - SessionId: {}, Reason: {}", sessionId, reason);
 
+        // 取消本轮对话：中断大模型请求，跳过未开始的语音合成，停止正在播放的句子
+        cancelDialogue(sessionId, reason);
+
         // 关闭音频流
-        sessionManager.closeAudioSink(sessionId);
+        sessionManager.closeAudioChannel(sessionId);
         sessionManager.setStreamingState(sessionId, false);
 
         // 清空句子队列
@@ -672,24 +963,62 @@ public class DialogueService {
         if (queue != null) {
             queue.clear();
         }
+        ttsScheduler.clearSession(sessionId);
+        sentenceAudioService.clearQueue(sessionId);
 
         // 重新设置监听状态
         sessionManager.setListeningState(sessionId, true);
+        turnTracer.abort(sessionId);
+        finishDialogue(sessionId);
 
         // 终止语音发送
         return audioService.sendStop(session);
     }
 
+    /**
+     * 取消会话当前的对话令牌
+     */
+    private void cancelDialogue(String sessionId, String reason) {
+        boolean active = isDialogueActive(sessionId);
+        CancellationToken token = dialogueTokens.remove(sessionId);
+        if (token != null && token.cancel(reason != null ? reason : "abort") && active) {
+            pipelineMetrics.dialogueCancelled();
+        }
+    }
+
+    /**
+     * 对话结束，归还准入许可
+     */
+    private void finishDialogue(String sessionId) {
+        activeDialogues.remove(sessionId);
+        admissionService.releaseDialogue(sessionId);
+    }
+
+    /**
+     * 会话是否有进行中的对话（正在识别、等待模型回复或正在播放）
+     */
+    public boolean isDialogueActive(String sessionId) {
+        return sessionManager.isStreaming(sessionId) || activeDialogues.contains(sessionId)
+                || audioService.isPlaying(sessionId);
+    }
+
     /**
      * 清理会话资源
      */
     public void cleanupSession(String sessionId) {
+        cancelDialogue(sessionId, "session closed");
         seqCounters.remove(sessionId);
         sttStartTimes.remove(sessionId);
+        speechEndTimes.remove(sessionId);
         llmStartTimes.remove(sessionId);
         responses.remove(sessionId);
         sentenceQueue.remove(sessionId);
+        ttsScheduler.clearSession(sessionId);
         locks.remove(sessionId);
+        bargeInVadSessions.remove(sessionId);
+        bargeInDetector.cleanupSession(sessionId);
+        turnTracer.abort(sessionId);
+        finishDialogue(sessionId);
 
         // 清理SentenceAudioService中的资源
         sentenceAudioService.cleanupSession(sessionId);
@@ -705,7 +1034,7 @@ public class DialogueService {
     /**
      * 退出复习模式
      */
-//    public Mono<Void> exitReviewMode(WebSocketSession session) {
+//    public Mono<Void> exitReviewMode(DeviceSession session) {
 //        return reviewDialogueService.exitReviewMode(session);
 //    }
 }
\ No newline at end of file
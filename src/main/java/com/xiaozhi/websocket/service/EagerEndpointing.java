@@ -0,0 +1,207 @@
+package com.xiaozhi.websocket.service;
+
+import com.xiaozhi.entity.SysDevice;
+import com.xiaozhi.websocket.llm.LlmManager;
+import com.xiaozhi.websocket.llm.SpeculativeChat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * 提前端点检测（eager endpointing）
+ * <br/>
+ * 正常流程要等VAD判定语音结束、STT返回最终结果后才调用LLM。开启后会观察流式STT的部分结果：
+ * 部分结果在一段时间内不再变化、且VAD已检测到一小段尾部静音时，用该结果提前发起LLM调用。
+ * 最终结果与预测文本一致（忽略标点和空白）时直接接管预测调用，否则丢弃并用最终结果重新发起。
+ */
+@Component
+public class EagerEndpointing {
+    private static final Logger logger = LoggerFactory.getLogger(EagerEndpointing.class);
+
+    // 检查部分结果是否稳定的间隔
+    private static final long CHECK_INTERVAL_MS = 50;
+
+    // 比较文本时忽略的标点和空白
+    private static final Pattern IGNORED_CHARS = Pattern.compile("[\\p{P}\\s]");
+
+    @Value("${app.dialogue.eager.enabled:false}")
+    private boolean enabled;
+
+    // 部分结果保持不变的最短时间
+    @Value("${app.dialogue.eager.stable-ms:300}")
+    private long stableMs;
+
+    // VAD检测到的尾部静音的最短时间，应小于app.vad.min-silence-duration
+    @Value("${app.dialogue.eager.trailing-silence-ms:200}")
+    private int trailingSilenceMs;
+
+    // 部分结果的最少字数
+    @Value("${app.dialogue.eager.min-chars:2}")
+    private int minChars;
+
+    @Autowired
+    private VadService vadService;
+
+    @Autowired
+    private LlmManager llmManager;
+
+    // 统计信息
+    private final AtomicLong turns = new AtomicLong();
+    private final AtomicLong speculations = new AtomicLong();
+    private final AtomicLong adopted = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong savedMillis = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 为一段语音开始跟踪部分结果，未开启时返回null
+     */
+    public Tracker start(String sessionId, SysDevice device) {
+        if (!enabled) {
+            return null;
+        }
+        turns.incrementAndGet();
+        return new Tracker(sessionId, device);
+    }
+
+    public long getTurns() {
+        return turns.get();
+    }
+
+    public long getSpeculations() {
+        return speculations.get();
+    }
+
+    public long getAdopted() {
+        return adopted.get();
+    }
+
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * 被接管的预测调用累计节省的时间（毫秒）
+     */
+    public long getSavedMillis() {
+        return savedMillis.get();
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : IGNORED_CHARS.matcher(text).replaceAll("");
+    }
+
+    /**
+     * 一段语音的部分结果跟踪
+     */
+    public class Tracker {
+        private final String sessionId;
+        private final SysDevice device;
+        private final Disposable ticker;
+
+        private volatile String lastText = "";
+        private volatile long lastChangeTime = System.currentTimeMillis();
+
+        // 以下状态由this保护
+        private SpeculativeChat speculation;
+        private boolean stopped;
+
+        private Tracker(String sessionId, SysDevice device) {
+            this.sessionId = sessionId;
+            this.device = device;
+            this.ticker = Schedulers.parallel().schedulePeriodically(this::check, CHECK_INTERVAL_MS,
+                    CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 收到STT的部分结果
+         */
+        public void onPartial(String text) {
+            if (text != null && !text.equals(lastText)) {
+                lastText = text;
+                lastChangeTime = System.currentTimeMillis();
+            }
+        }
+
+        private synchronized void check() {
+            if (stopped) {
+                return;
+            }
+            String text = lastText;
+            if (speculation != null) {
+                if (normalize(text).equals(normalize(speculation.getMessage()))) {
+                    return;
+                }
+                // 用户继续说话，之前的预测作废
+                discard("部分结果已变化");
+            }
+            if (normalize(text).length() < minChars
+                    || System.currentTimeMillis() - lastChangeTime < stableMs
+                    || vadService.getSilenceDuration(sessionId) < trailingSilenceMs) {
+                return;
+            }
+            speculation = llmManager.speculate(device, text, true);
+            speculations.incrementAndGet();
+            logger.info("部分识别结果已稳定，提前调用LLM - SessionId: {}, 文本: \"{}\"", sessionId, text);
+        }
+
+        /**
+         * 得到最终结果，返回可以接管的预测调用；没有预测或文本不一致时返回null
+         */
+        public synchronized SpeculativeChat finish(String finalText) {
+            stop();
+            if (speculation == null) {
+                return null;
+            }
+            if (normalize(finalText).equals(normalize(speculation.getMessage()))) {
+                return speculation;
+            }
+            discard("最终结果与预测不一致");
+            return null;
+        }
+
+        /**
+         * 预测调用已被接管，记录节省的时间
+         */
+        public void adopted(SpeculativeChat chat) {
+            long saved = System.currentTimeMillis() - chat.getStartTime();
+            adopted.incrementAndGet();
+            savedMillis.addAndGet(saved);
+            logger.info("接管提前发起的LLM调用 - SessionId: {}, 节省: {}ms", sessionId, saved);
+        }
+
+        /**
+         * 放弃本段语音的跟踪和预测（识别失败、进入复习模式等）
+         */
+        public synchronized void cancel() {
+            stop();
+            if (speculation != null) {
+                discard("本轮未调用LLM");
+            }
+        }
+
+        private void stop() {
+            stopped = true;
+            ticker.dispose();
+        }
+
+        private void discard(String reason) {
+            speculation.discard();
+            discarded.incrementAndGet();
+            logger.info("丢弃提前发起的LLM调用 - SessionId: {}, 原因: {}, 预测: \"{}\"", sessionId, reason,
+                    speculation.getMessage());
+            speculation = null;
+        }
+    }
+}
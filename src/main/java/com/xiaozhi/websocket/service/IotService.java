@@ -5,6 +5,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.xiaozhi.entity.SysDevice;
 import com.xiaozhi.utils.JsonUtil;
+import com.xiaozhi.websocket.cluster.ClusterCommand;
+import com.xiaozhi.websocket.cluster.ClusterService;
 import com.xiaozhi.websocket.iot.IotDescriptor;
 import com.xiaozhi.websocket.iot.IotMethod;
 import com.xiaozhi.websocket.iot.IotMethodParameter;
@@ -23,9 +25,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.socket.WebSocketSession;
+import com.xiaozhi.websocket.transport.DeviceSession;
 import reactor.core.publisher.Mono;
 
+import javax.annotation.PostConstruct;
 import java.util.*;
 
 /**
@@ -47,6 +50,33 @@ public class IotService {
     @Autowired
     private MessageService messageService;
 
+    @Autowired
+    private ClusterService clusterService;
+
+    /**
+     * 注册集群命令处理器，其他节点转发过来的IoT指令在本节点的设备会话上执行
+     */
+    @PostConstruct
+    public void init() {
+        clusterService.registerHandler(ClusterCommand.TYPE_IOT, command -> {
+            JsonNode payload;
+            try {
+                payload = objectMapper.readTree(command.getPayload());
+            } catch (Exception e) {
+                logger.error("[{}] - 无效的IoT集群命令: {}", TAG, command.getPayload(), e);
+                return;
+            }
+            String sessionId = sessionManager.getSessionByDeviceId(command.getDeviceId());
+            if (sessionId == null) {
+                logger.warn("[{}] - DeviceId: {} 不在本节点，忽略IoT指令", TAG, command.getDeviceId());
+                return;
+            }
+            Map<String, Object> parameters = objectMapper.convertValue(payload.path("parameters"),
+                    objectMapper.getTypeFactory().constructMapType(HashMap.class, String.class, Object.class));
+            sendIotMessage(sessionId, payload.path("name").asText(), payload.path("method").asText(), parameters);
+        });
+    }
+
     /**
      * 处理iot设备描述信息，形成function_call，注册进sessionManager，用于后续的llm调用及设备调用
      *
@@ -196,7 +226,7 @@ public class IotService {
         try {
             logger.info("[{}] - SessionId: {}, message send iotName: {}, methodName: {}, parameters: {}", TAG, sessionId,
                     iotName, methodName, JsonUtil.toJson(parameters));
-            WebSocketSession session = sessionManager.getSession(sessionId);
+            DeviceSession session = sessionManager.getSession(sessionId);
             if (session == null || !session.isOpen()) {
                 logger.error("[{}] - SessionId: {} not found or closed", TAG, sessionId);
                 return false;
@@ -217,6 +247,28 @@ public class IotService {
         }
         return false;
     }
+
+    /**
+     * 按设备ID发送iot消息，设备连接在其他节点时转发到该节点
+     *
+     * @param deviceId   设备ID
+     * @param iotName    iot设备名称
+     * @param methodName 方法名称
+     * @param parameters 方法参数
+     * @return 设备在本节点时返回是否发送成功；在其他节点时返回指令是否已送达该节点
+     */
+    public boolean sendIotMessageToDevice(String deviceId, String iotName, String methodName, Map<String, Object> parameters) {
+        String sessionId = sessionManager.getSessionByDeviceId(deviceId);
+        if (sessionId != null) {
+            return sendIotMessage(sessionId, iotName, methodName, parameters);
+        }
+        Map<String, Object> command = new HashMap<>();
+        command.put("name", iotName);
+        command.put("method", methodName);
+        command.put("parameters", parameters);
+        return clusterService.dispatch(new ClusterCommand(ClusterCommand.TYPE_IOT, deviceId, JsonUtil.toJson(command)));
+    }
+
     /**
      * 注册iot设备的函数到FunctionHolder
      *
@@ -5,8 +5,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.socket.WebSocketSession;
+import com.xiaozhi.websocket.transport.DeviceSession;
 import reactor.core.publisher.Mono;
 
 import java.util.List;
@@ -18,6 +19,9 @@ public class MessageService {
     private static final Logger logger = LoggerFactory.getLogger(MessageService.class);
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    @Autowired
+    private SessionManager sessionManager;
+
     /**
      * 发送文本消息给指定会话 - 响应式版本
      * 
@@ -26,7 +30,7 @@ public class MessageService {
      * @param state   消息状态
      * @return Mono<Void> 操作结果
      */
-    public Mono<Void> sendMessage(WebSocketSession session, String type, String state) {
+    public Mono<Void> sendMessage(DeviceSession session, String type, String state) {
         if (session == null || !session.isOpen()) {
             logger.warn("无法发送消息 - 会话已关闭或为null");
             return Mono.empty();
@@ -41,7 +45,7 @@ public class MessageService {
             String jsonMessage = response.toString();
             logger.info("发送消息 - SessionId: {}, Message: {}", session.getId(), jsonMessage);
 
-            return session.send(Mono.just(session.textMessage(jsonMessage)));
+            return sessionManager.sendText(session, jsonMessage);
         } catch (Exception e) {
             logger.error("发送消息时发生异常 - SessionId: {}, Error: {}", session.getId(), e.getMessage());
             return Mono.error(e);
@@ -57,7 +61,7 @@ public class MessageService {
      * @param message 消息文本内容
      * @return Mono<Void> 操作结果
      */
-    public Mono<Void> sendMessage(WebSocketSession session, String type, String state, String message) {
+    public Mono<Void> sendMessage(DeviceSession session, String type, String state, String message) {
         if (session == null || !session.isOpen()) {
             logger.warn("无法发送消息 - 会话已关闭或为null");
             return Mono.empty();
@@ -73,14 +77,14 @@ public class MessageService {
             String jsonMessage = response.toString();
             logger.info("发送消息 - SessionId: {}, Message: {}", session.getId(), jsonMessage);
 
-            return session.send(Mono.just(session.textMessage(jsonMessage)));
+            return sessionManager.sendText(session, jsonMessage);
         } catch (Exception e) {
             logger.error("发送消息时发生异常 - SessionId: {}, Error: {}", session.getId(), e.getMessage());
             return Mono.error(e);
         }
     }
 
-    public Mono<Void> sendMessage(WebSocketSession session, String type) {
+    public Mono<Void> sendMessage(DeviceSession session, String type) {
         if (session == null || !session.isOpen()) {
             logger.warn("无法发送消息 - 会话已关闭或为null");
             return Mono.empty();
@@ -94,14 +98,32 @@ public class MessageService {
             String jsonMessage = response.toString();
             logger.info("发送消息 - SessionId: {}, Message: {}", session.getId(), jsonMessage);
 
-            return session.send(Mono.just(session.textMessage(jsonMessage)));
+            return sessionManager.sendText(session, jsonMessage);
         } catch (Exception e) {
             logger.error("发送消息时发生异常 - SessionId: {}, Error: {}", session.getId(), e.getMessage());
             return Mono.error(e);
         }
     }
 
-    public Mono<Void> sendIotCommandMessage(WebSocketSession session, List<Map<String, Object>> commands) {
+    /**
+     * 通知设备在指定时间后重连，用于停机排空和过载拒绝
+     *
+     * @param session WebSocket会话
+     * @param delayMs 重连前等待的毫秒数
+     * @return Mono<Void> 操作结果
+     */
+    public Mono<Void> sendReconnectMessage(DeviceSession session, long delayMs) {
+        if (session == null || !session.isOpen()) {
+            return Mono.empty();
+        }
+        ObjectNode response = objectMapper.createObjectNode();
+        response.put("session_id", session.getId());
+        response.put("type", "reconnect");
+        response.put("delay_ms", delayMs);
+        return sessionManager.sendText(session, response.toString());
+    }
+
+    public Mono<Void> sendIotCommandMessage(DeviceSession session, List<Map<String, Object>> commands) {
         if (session == null || !session.isOpen()) {
             logger.warn("无法发送消息 - 会话已关闭或为null");
             return Mono.empty();
@@ -114,7 +136,7 @@ public class MessageService {
             response.set("commands", objectMapper.valueToTree(commands));
             String jsonMessage = response.toString();
             logger.debug("发送iot消息 - SessionId: {}, Message: {}", session.getId(), response);
-            return session.send(Mono.just(session.textMessage(jsonMessage)));
+            return sessionManager.sendText(session, jsonMessage);
         } catch (Exception e) {
             logger.error("发送消息时发生异常 - SessionId: {}, Error: {}", session.getId(), e.getMessage());
             return Mono.error(e);
@@ -1,13 +1,14 @@
 package com.xiaozhi.websocket.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xiaozhi.utils.AudioProfile;
 import com.xiaozhi.utils.AudioUtils;
 import com.xiaozhi.utils.OpusProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.socket.WebSocketSession;
+import com.xiaozhi.websocket.transport.DeviceSession;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
@@ -35,7 +36,6 @@ import java.util.regex.Pattern;
 public class MusicService {
     private static final Logger logger = LoggerFactory.getLogger(MusicService.class);
 
-    private static final long OPUS_FRAME_INTERVAL_MS = AudioUtils.OPUS_FRAME_DURATION_MS;
     private static final String API_BASE_URL = "http://www.jsrc.top:5566";
 
     @Autowired
@@ -75,12 +75,12 @@ public class MusicService {
     /**
      * 搜索并播放音乐
      * 
-     * @param session WebSocketSession会话
+     * @param session DeviceSession会话
      * @param song 歌曲名
      * @param artist 艺术家名（可选）
      * @return 操作完成的Mono
      */
-    public Mono<Void> playMusic(WebSocketSession session, String song, String artist) {
+    public Mono<Void> playMusic(DeviceSession session, String song, String artist) {
         String sessionId = session.getId();
 
         // 重置播放时间
@@ -148,8 +148,11 @@ public class MusicService {
     /**
      * 发送音频和同步歌词
      */
-    private Mono<Void> sendAudioWithLyrics(WebSocketSession session, String audioPath) {
+    private Mono<Void> sendAudioWithLyrics(DeviceSession session, String audioPath) {
         String sessionId = session.getId();
+        // 按会话协商的参数编码和控制发送节奏
+        AudioProfile profile = sessionManager.getAudioProfile(sessionId);
+        long frameInterval = profile.getFrameDuration();
 
         return Mono.fromCallable(() -> {
             File audioFile = new File(audioPath);
@@ -161,7 +164,7 @@ public class MusicService {
             byte[] audioData = AudioUtils.readAsPcm(audioPath);
 
             return opusProcessor.pcmToOpus(
-                session.getId(), audioData);
+                session.getId(), audioData, profile);
         })
         .subscribeOn(Schedulers.boundedElastic())
         .flatMap(frames -> {
@@ -172,7 +175,7 @@ public class MusicService {
             Map<Integer, String> lyricFrameMap = new HashMap<>();
             for (LyricLine line : lyrics) {
                 // 计算歌词对应的帧索引
-                int frameIndex = (int) (line.timeMs / OPUS_FRAME_INTERVAL_MS);
+                int frameIndex = (int) (line.timeMs / frameInterval);
                 if (frameIndex < frames.size()) {
                     lyricFrameMap.put(frameIndex, line.text);
                 }
@@ -180,7 +183,7 @@ public class MusicService {
 
             return Flux.range(0, frames.size())
                     // 使用固定间隔发送帧
-                    .delayElements(Duration.ofMillis(OPUS_FRAME_INTERVAL_MS))
+                    .delayElements(Duration.ofMillis(frameInterval))
                     // 确保在boundedElastic调度器上执行，以避免阻塞
                     .publishOn(Schedulers.boundedElastic())
                     // 发送每一帧并处理歌词
@@ -189,7 +192,7 @@ public class MusicService {
                         sessionManager.updateLastActivity(sessionId);
                         
                         // 更新当前播放时间
-                        currPlayTime.set(i * OPUS_FRAME_INTERVAL_MS);
+                        currPlayTime.set(i * frameInterval);
                         
                         // 先检查是否有对应这一帧的歌词需要发送
                         Mono<Void> lyricMono = Mono.empty();
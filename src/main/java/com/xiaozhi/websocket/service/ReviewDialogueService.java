@@ -18,7 +18,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.socket.WebSocketSession;
+import com.xiaozhi.websocket.transport.DeviceSession;
 
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
@@ -92,7 +92,7 @@ public class ReviewDialogueService {
      * @param device 设备信息
      * @return 是否已切换到复习模式
      */
-    public Mono<Boolean> tryEnterReviewMode(WebSocketSession session, String sessionId,String text, SysDevice device,SysConfig ttsConfig,String dialogueId) {
+    public Mono<Boolean> tryEnterReviewMode(DeviceSession session, String sessionId,String text, SysDevice device,SysConfig ttsConfig,String dialogueId) {
         // 检查文本是否包含学习相关意图
         logger.info("检查文本是否包含学习相关意图: {}", text);
         if (!containsLearningIntent(text)) {
@@ -156,7 +156,7 @@ public class ReviewDialogueService {
     /**
      * 开始复习会话
      */
-    private Mono<Void> startReviewSession(WebSocketSession session, String studentAccount,String dialogueId) {
+    private Mono<Void> startReviewSession(DeviceSession session, String studentAccount,String dialogueId) {
         String sessionId = session.getId();
         SysDevice device = sessionManager.getDeviceConfig(sessionId);
         
@@ -209,7 +209,7 @@ public class ReviewDialogueService {
     /**
      * 处理复习模式下的音频
      */
-    public Mono<Void> processReviewAudio(WebSocketSession session, byte[] audioData) {
+    public Mono<Void> processReviewAudio(DeviceSession session, byte[] audioData) {
         String sessionId = session.getId();
         SysDevice device = sessionManager.getDeviceConfig(sessionId);
         logger.info("在复习模式下收到学生发音，将提交到发音评估接口");
@@ -233,7 +233,7 @@ public class ReviewDialogueService {
     /**
      * 退出复习模式
      */
-    public Mono<Void> exitReviewMode(WebSocketSession session,String dialogueId) {
+    public Mono<Void> exitReviewMode(DeviceSession session,String dialogueId) {
         String sessionId = session.getId();
         reviewService.exitReviewMode(sessionId);
         reviewIndexMap.remove(sessionId);
@@ -257,7 +257,7 @@ public class ReviewDialogueService {
                 device.getVoiceName(),dialogueId);
     }
 
-    public Mono<Void> exitErrorReviewMode(WebSocketSession session,String dialogueId) {
+    public Mono<Void> exitErrorReviewMode(DeviceSession session,String dialogueId) {
         String sessionId = session.getId();
         reviewService.exitErrorReviewMode(sessionId);
         SysDevice device = sessionManager.getDeviceConfig(sessionId);
@@ -282,7 +282,7 @@ public class ReviewDialogueService {
     /**
      * 处理下一个单词
      */
-    public Mono<Void> processNextWord(WebSocketSession session, String sessionId,SysDevice device,SysConfig ttsConfig,String dialogueId, boolean isNewTask) {
+    public Mono<Void> processNextWord(DeviceSession session, String sessionId,SysDevice device,SysConfig ttsConfig,String dialogueId, boolean isNewTask) {
 
         String studentAccount = device.getStudentAccount();
         if (isNewTask) {
@@ -334,7 +334,7 @@ public class ReviewDialogueService {
         });
     }
 
-    public Mono<Void> checkErrorWords(Long calenderId, WebSocketSession session, String account, SysDevice device,SysConfig ttsConfig,String dialogueId) {
+    public Mono<Void> checkErrorWords(Long calenderId, DeviceSession session, String account, SysDevice device,SysConfig ttsConfig,String dialogueId) {
         // 错误单词列表
 //        sentenceAudioService.sendSingleMessage(
 //                session,
@@ -359,7 +359,7 @@ public class ReviewDialogueService {
         return entryErrorReviewMode(session, device, ttsConfig,dialogueId);
     }
 
-    public Mono<Void> entryErrorReviewMode(WebSocketSession session, SysDevice device, SysConfig ttsConfig,String dialogueId) {
+    public Mono<Void> entryErrorReviewMode(DeviceSession session, SysDevice device, SysConfig ttsConfig,String dialogueId) {
         String sessionId = session.getId();
         // 退出复习模型
         reviewService.exitReviewMode(sessionId);
@@ -402,7 +402,7 @@ public class ReviewDialogueService {
                 device.getVoiceName(),dialogueId);
     }
 
-    public Mono<Void> processErrorNextWord(WebSocketSession session, String sessionId,SysDevice device,SysConfig ttsConfig,String dialogueId) {
+    public Mono<Void> processErrorNextWord(DeviceSession session, String sessionId,SysDevice device,SysConfig ttsConfig,String dialogueId) {
         List<WordDTO> list = errorWordMap.get(sessionId);
         if (CollUtil.isEmpty(list)) {
             return exitErrorReviewMode(session, dialogueId);
@@ -1,22 +1,27 @@
 package com.xiaozhi.websocket.service;
 
 import com.xiaozhi.entity.SysConfig;
+import com.xiaozhi.utils.CancellationToken;
 import com.xiaozhi.utils.EmojiUtils;
 import com.xiaozhi.utils.EmojiUtils.EmoSentence;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import com.xiaozhi.websocket.tts.TtsService;
 import com.xiaozhi.websocket.tts.factory.TtsServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.socket.WebSocketSession;
+import com.xiaozhi.websocket.transport.DeviceSession;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -39,6 +44,12 @@ public class SentenceAudioService {
     @Autowired
     private SessionManager sessionManager;
 
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    @Autowired
+    private TtsScheduler ttsScheduler;
+
     // 会话状态管理
     private final Map<String, AtomicInteger> seqCounters = new ConcurrentHashMap<>();
     private final Map<String, Long> processingStartTimes = new ConcurrentHashMap<>();
@@ -55,10 +66,13 @@ public class SentenceAudioService {
         private final boolean isLast;
         private boolean ready = false;
         private String audioPath = null;
-        private long timestamp = System.currentTimeMillis();
+        private volatile long synthesisStartTime = 0; // 开始合成的时间，等待合成名额期间为0
         private double processingTime = 0.0; // 处理时间（秒）
         private double ttsGenerationTime = 0.0; // TTS生成时间（秒）
         private String dialogueId = null; // 对话ID
+        private CancellationToken token = CancellationToken.NONE; // 所属对话的取消令牌
+        private TtsScheduler.Job ttsJob; // 合成任务，由this保护
+        private boolean released = false;
         public Sentence(int seq, String text, boolean isFirst, boolean isLast) {
             this.seq = seq;
             this.text = text;
@@ -76,7 +90,30 @@ public class SentenceAudioService {
         }
 
         public boolean isTimeout() {
-            return System.currentTimeMillis() - timestamp > TIMEOUT_MS;
+            long start = synthesisStartTime;
+            return start > 0 && System.currentTimeMillis() - start > TIMEOUT_MS;
+        }
+
+        public void markSynthesisStarted() {
+            this.synthesisStartTime = System.currentTimeMillis();
+        }
+
+        public synchronized void setTtsJob(TtsScheduler.Job job) {
+            if (released) {
+                job.release();
+            } else {
+                this.ttsJob = job;
+            }
+        }
+
+        /**
+         * 句子播放完或被丢弃，归还合成名额
+         */
+        public synchronized void release() {
+            released = true;
+            if (ttsJob != null) {
+                ttsJob.release();
+            }
         }
 
         public int getSeq() {
@@ -121,6 +158,14 @@ public class SentenceAudioService {
         public String getDialogueId() {
             return dialogueId;
         }
+
+        public void setToken(CancellationToken token) {
+            this.token = token;
+        }
+
+        public CancellationToken getToken() {
+            return token;
+        }
     }
 
     /**
@@ -137,7 +182,7 @@ public class SentenceAudioService {
      * 处理句子，生成音频并发送
      */
     public void handleSentence(
-            WebSocketSession session,
+            DeviceSession session,
             String sessionId,
             String text,
             boolean isFirst,
@@ -145,6 +190,28 @@ public class SentenceAudioService {
             SysConfig ttsConfig,
             String voiceName,
             String dialogueId) {
+        handleSentence(session, sessionId, text, isFirst, isLast, ttsConfig, voiceName, dialogueId,
+                CancellationToken.NONE);
+    }
+
+    /**
+     * 处理句子，生成音频并发送；令牌取消后跳过合成和播放
+     */
+    public void handleSentence(
+            DeviceSession session,
+            String sessionId,
+            String text,
+            boolean isFirst,
+            boolean isLast,
+            SysConfig ttsConfig,
+            String voiceName,
+            String dialogueId,
+            CancellationToken token) {
+
+        // 对话已中止，不再处理模型后续返回的句子
+        if (token.isCancelled()) {
+            return;
+        }
 
         // 确保会话已初始化
         initSession(sessionId);
@@ -165,6 +232,7 @@ public class SentenceAudioService {
         Sentence sentence = new Sentence(seq, text, isFirst, isLast);
         sentence.setProcessingTime(processingTime); // 记录处理时间
         sentence.setDialogueId(dialogueId); // 设置对话ID
+        sentence.setToken(token);
         // 添加到句子队列
         CopyOnWriteArrayList<Sentence> queue = sentenceQueue.get(sessionId);
         queue.add(sentence);
@@ -180,16 +248,36 @@ public class SentenceAudioService {
         // 处理表情符号
         EmoSentence emoSentence = EmojiUtils.processSentence(text);
 
-        // 异步生成音频文件
-        CompletableFuture.runAsync(() -> {
+        // 异步生成音频文件，由调度器控制领先播放的句数和全局并发
+        sentence.setTtsJob(ttsScheduler.submit(sessionId, isFirst, () -> {
+            sentence.markSynthesisStarted();
+            // 排队期间对话已中止，不再合成
+            if (token.isCancelled()) {
+                pipelineMetrics.ttsSkipped(emoSentence.getTtsSentence().length());
+                sentence.setAudio(null);
+                processQueue(session, sessionId);
+                return;
+            }
             try {
                 logger.info("开始生成音频 - 句子序号: {}, 内容: \"{}\"", seq, text);
                 
                 // 生成音频
                 long ttsStartTime = System.currentTimeMillis();
-                String audioPath = ttsFactory.getTtsService(ttsConfig, voiceName)
-                        .textToSpeech(emoSentence.getTtsSentence());
+                TtsService ttsService = ttsFactory.getTtsService(ttsConfig, voiceName);
+                String audioPath = ttsService.textToSpeech(emoSentence.getTtsSentence());
                 long ttsDuration = System.currentTimeMillis() - ttsStartTime;
+                pipelineMetrics.recordTts(ttsService.getProviderName(), TimeUnit.MILLISECONDS.toNanos(ttsDuration));
+
+                // 合成期间对话已中止，音频不会播放，删除文件
+                if (token.isCancelled()) {
+                    pipelineMetrics.ttsDiscarded();
+                    if (audioPath != null) {
+                        Files.deleteIfExists(Paths.get(audioPath));
+                    }
+                    sentence.setAudio(null);
+                    processQueue(session, sessionId);
+                    return;
+                }
 
                 // 记录TTS生成时间
                 double ttsGenerationTime = ttsDuration / 1000.0;
@@ -206,7 +294,9 @@ public class SentenceAudioService {
                 // 尝试处理队列
                 processQueue(session, sessionId);
             } catch (Exception e) {
-                logger.error("生成音频失败 - 句子序号: {}, 错误: {}", seq, e.getMessage(), e);
+                if (!token.isCancelled()) {
+                    logger.error("生成音频失败 - 句子序号: {}, 错误: {}", seq, e.getMessage(), e);
+                }
                 // 即使失败也标记为准备好，以便队列继续处理
                 sentence.setAudio(null);
                 sentence.setTtsGenerationTime(0);
@@ -214,14 +304,14 @@ public class SentenceAudioService {
                 // 尝试处理队列
                 processQueue(session, sessionId);
             }
-        });
+        }));
     }
 
     /**
      * 处理音频队列
      * 在音频生成完成后调用
      */
-    private void processQueue(WebSocketSession session, String sessionId) {
+    private void processQueue(DeviceSession session, String sessionId) {
         // 获取锁，确保线程安全
         ReentrantLock lock = locks.get(sessionId);
         if (lock == null) {
@@ -280,18 +370,21 @@ public class SentenceAudioService {
                         sentenceToProcess.getAudioPath(),
                         sentenceToProcess.getText(),
                         sentenceToProcess.isFirst(), // 是否是第一句
-                        sentenceToProcess.isLast() // 是否是最后一句
+                        sentenceToProcess.isLast(), // 是否是最后一句
+                        sentenceToProcess.getToken()
                 ).subscribe(
                         null,
                         error -> {
                             // 移除已处理的句子，即使失败也移除
                             queue.remove(sentenceToProcess);
+                            sentenceToProcess.release();
                             // 递归调用，尝试处理下一个句子
                             processQueue(session, sessionId);
                         },
                         () -> {
                             // 从队列中移除已处理的句子
                             queue.remove(sentenceToProcess);
+                            sentenceToProcess.release();
 
                             // 如果队列为空且是最后一句，重置监听状态
                             if (queue.isEmpty() && sentenceToProcess.isLast()) {
@@ -317,7 +410,7 @@ public class SentenceAudioService {
      * 简化版的处理逻辑，适用于只有一个句子的情况
      */
     public Mono<Void> sendSingleMessage(
-            WebSocketSession session,
+            DeviceSession session,
             String sessionId,
             String text,
             SysConfig ttsConfig,
@@ -337,6 +430,17 @@ public class SentenceAudioService {
         }).then();
     }
 
+    /**
+     * 清空等待播放的句子，用于中止对话
+     */
+    public void clearQueue(String sessionId) {
+        CopyOnWriteArrayList<Sentence> queue = sentenceQueue.get(sessionId);
+        if (queue != null) {
+            queue.clear();
+        }
+        ttsScheduler.clearSession(sessionId);
+    }
+
     /**
      * 清理会话资源
      */
@@ -344,6 +448,7 @@ public class SentenceAudioService {
         seqCounters.remove(sessionId);
         processingStartTimes.remove(sessionId);
         sentenceQueue.remove(sessionId);
+        ttsScheduler.clearSession(sessionId);
         locks.remove(sessionId);
     }
 } 
\ No newline at end of file
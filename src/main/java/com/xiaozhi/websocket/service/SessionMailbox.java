@@ -0,0 +1,223 @@
+package com.xiaozhi.websocket.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reactor.core.scheduler.Scheduler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 单个会话的设备上行音频信箱
+ *
+ * 每个会话一个信箱，接收线程只负责入队，处理在共享的工作线程池上进行。
+ * 同一时刻最多只有一个线程在处理某个信箱，帧严格按到达顺序处理，处理函数内不需要为同一会话加锁；
+ * 每次最多连续处理BATCH帧后让出线程，避免一个繁忙的会话长期占用工作线程。
+ * 队列有界，会话处理不过来（如推断变慢）时按溢出策略丢帧，而不是无限堆积延迟。
+ */
+public class SessionMailbox {
+    private static final Logger logger = LoggerFactory.getLogger(SessionMailbox.class);
+
+    // 每次调度最多连续处理的帧数
+    private static final int BATCH = 16;
+
+    /**
+     * 溢出策略
+     */
+    public enum OverflowPolicy {
+        // 丢弃最早的一帧，保证处理的是最新的音频
+        DROP_OLDEST,
+        // 丢弃新到的帧
+        DROP_NEWEST;
+
+        public static OverflowPolicy of(String value) {
+            if (value != null && "drop-newest".equals(value.trim().toLowerCase())) {
+                return DROP_NEWEST;
+            }
+            return DROP_OLDEST;
+        }
+    }
+
+    private final String sessionId;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Scheduler scheduler;
+    private final Consumer<byte[]> handler;
+    private final LongAdder totalDropped;
+
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean closed;
+
+    // 统计信息
+    private final AtomicLong receivedFrames = new AtomicLong();
+    private final AtomicLong processedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicInteger highWatermark = new AtomicInteger();
+
+    /**
+     * @param sessionId    会话ID
+     * @param capacity     最多缓存的帧数
+     * @param policy       溢出策略
+     * @param scheduler    共享的工作线程池
+     * @param handler      帧处理函数，在工作线程上按顺序调用
+     * @param totalDropped 所有信箱共享的丢帧计数
+     */
+    public SessionMailbox(String sessionId, int capacity, OverflowPolicy policy, Scheduler scheduler,
+            Consumer<byte[]> handler, LongAdder totalDropped) {
+        this.sessionId = sessionId;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy != null ? policy : OverflowPolicy.DROP_OLDEST;
+        this.scheduler = scheduler;
+        this.handler = handler;
+        this.totalDropped = totalDropped;
+    }
+
+    /**
+     * 投递一帧音频
+     *
+     * @param frame Opus音频数据
+     * @return 是否入队，信箱已关闭或按DROP_NEWEST策略丢弃时返回false
+     */
+    public boolean offer(byte[] frame) {
+        if (closed) {
+            return false;
+        }
+        receivedFrames.incrementAndGet();
+        boolean accepted = true;
+        if (size.get() >= capacity) {
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                accepted = false;
+            } else if (queue.poll() != null) {
+                size.decrementAndGet();
+            }
+            dropped();
+        }
+        if (accepted) {
+            queue.offer(frame);
+            int current = size.incrementAndGet();
+            if (current > highWatermark.get()) {
+                highWatermark.set(current);
+            }
+        }
+        schedule();
+        return accepted;
+    }
+
+    /**
+     * 关闭信箱，丢弃尚未处理的帧，正在处理的帧会处理完
+     */
+    public void close() {
+        closed = true;
+        schedule();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void dropped() {
+        long count = droppedFrames.incrementAndGet();
+        totalDropped.increment();
+        // 每个会话只在首次丢帧时告警，避免刷屏
+        if (count == 1) {
+            logger.warn("音频信箱已满，开始丢帧 - SessionId: {}, 策略: {}, {}", sessionId, policy, stats());
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("音频信箱丢帧 - SessionId: {}, {}", sessionId, stats());
+        }
+    }
+
+    private void schedule() {
+        if (wip.getAndIncrement() == 0) {
+            try {
+                scheduler.schedule(this::drain);
+            } catch (Exception e) {
+                // 线程池已关闭（停机过程中），丢弃剩余的帧
+                wip.set(0);
+                clear();
+            }
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        for (;;) {
+            int processed = 0;
+            while (!closed && processed < BATCH) {
+                byte[] frame = queue.poll();
+                if (frame == null) {
+                    break;
+                }
+                size.decrementAndGet();
+                processed++;
+                try {
+                    handler.accept(frame);
+                } catch (Throwable e) {
+                    logger.error("处理音频帧失败 - SessionId: {}", sessionId, e);
+                }
+                processedFrames.incrementAndGet();
+            }
+            if (closed) {
+                clear();
+            } else if (processed == BATCH && size.get() > 0) {
+                // 本批已处理满，重新排队让出线程，剩余的帧下次继续
+                wip.set(1);
+                try {
+                    scheduler.schedule(this::drain);
+                } catch (Exception e) {
+                    wip.set(0);
+                    clear();
+                }
+                return;
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    private void clear() {
+        while (queue.poll() != null) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * 当前队列中的帧数
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getReceivedFrames() {
+        return receivedFrames.get();
+    }
+
+    public long getProcessedFrames() {
+        return processedFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * 统计信息摘要，用于日志
+     */
+    public String stats() {
+        return String.format("队列: %d/%d, 峰值: %d, 接收: %d, 处理: %d, 丢弃: %d",
+                size(), capacity, highWatermark.get(), getReceivedFrames(), getProcessedFrames(),
+                getDroppedFrames());
+    }
+}
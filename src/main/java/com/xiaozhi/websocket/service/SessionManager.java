@@ -2,27 +2,36 @@ package com.xiaozhi.websocket.service;
 
 import com.xiaozhi.entity.SysConfig;
 import com.xiaozhi.entity.SysDevice;
+import com.xiaozhi.utils.AudioProfile;
 import com.xiaozhi.websocket.iot.IotDescriptor;
 import com.xiaozhi.websocket.llm.tool.function.FunctionSessionHolder;
+import com.xiaozhi.websocket.transport.DeviceSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.socket.WebSocketSession;
-import reactor.core.publisher.Sinks;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
- * WebSocket会话管理服务
- * 负责管理所有WebSocket连接的会话状态
+ * 设备会话管理服务
+ * 负责管理所有设备连接（WebSocket、MQTT+UDP）的会话状态
  */
 @Service
 public class SessionManager {
@@ -32,7 +41,7 @@ public class SessionManager {
     private static final long INACTIVITY_TIMEOUT_SECONDS = 60;
 
     // 用于存储所有连接的会话
-    private final ConcurrentHashMap<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DeviceSession> sessions = new ConcurrentHashMap<>();
 
     // 用于存储会话和设备的映射关系
     private final ConcurrentHashMap<String, SysDevice> deviceConfigs = new ConcurrentHashMap<>();
@@ -49,12 +58,54 @@ public class SessionManager {
     // 用于跟踪会话是否处于监听状态
     private final ConcurrentHashMap<String, Boolean> listeningState = new ConcurrentHashMap<>();
 
-    // 用于存储每个会话的音频数据流
-    private final ConcurrentHashMap<String, Sinks.Many<byte[]>> audioSinks = new ConcurrentHashMap<>();
+    // 用于存储每个会话当前语音的音频通道
+    private final ConcurrentHashMap<String, AudioChannel> audioChannels = new ConcurrentHashMap<>();
+
+    // 音频通道容量（帧数），默认约3秒的60ms帧
+    @Value("${app.stt.audio-channel.capacity:50}")
+    private int audioChannelCapacity;
+
+    // 音频通道溢出策略：drop-oldest | coalesce | fail-fast
+    @Value("${app.stt.audio-channel.overflow:drop-oldest}")
+    private String audioChannelOverflow;
+
+    // 用于存储每个会话的上行音频信箱
+    private final ConcurrentHashMap<String, SessionMailbox> mailboxes = new ConcurrentHashMap<>();
+
+    // 音频信箱容量（帧数），默认约2秒的60ms帧
+    @Value("${app.inbound.mailbox.capacity:32}")
+    private int mailboxCapacity;
+
+    // 音频信箱溢出策略：drop-oldest | drop-newest
+    @Value("${app.inbound.mailbox.overflow:drop-oldest}")
+    private String mailboxOverflow;
+
+    // 处理音频信箱的工作线程数，不大于0时使用CPU核数
+    @Value("${app.inbound.mailbox.workers:0}")
+    private int mailboxWorkers;
+
+    // 所有会话共享的音频信箱工作线程池
+    private Scheduler mailboxScheduler;
+
+    // 所有信箱累计的丢帧数
+    private final LongAdder mailboxDroppedFrames = new LongAdder();
+
+    // 用于存储每个会话的下行消息队列
+    private final ConcurrentHashMap<String, SessionOutbound> outbounds = new ConcurrentHashMap<>();
+
+    // 下行音频最多排队的帧数，默认约3秒的60ms帧
+    @Value("${app.outbound.audio-capacity:50}")
+    private int outboundAudioCapacity;
+
+    // 所有下行队列累计丢弃的音频帧数
+    private final LongAdder outboundDroppedFrames = new LongAdder();
 
     // 用于跟踪会话是否正在进行流式识别
     private final ConcurrentHashMap<String, Boolean> streamingState = new ConcurrentHashMap<>();
 
+    // hello时协商的下行音频参数
+    private final ConcurrentHashMap<String, AudioProfile> audioProfiles = new ConcurrentHashMap<>();
+
     // 存储验证码生成状态
     private final ConcurrentHashMap<String, Boolean> captchaState = new ConcurrentHashMap<>();
 
@@ -75,6 +126,10 @@ public class SessionManager {
         // 每10秒检查一次不活跃的会话
         scheduler.scheduleAtFixedRate(this::checkInactiveSessions, 10, 10, TimeUnit.SECONDS);
         logger.info("不活跃会话检查任务已启动，超时时间: {}秒", INACTIVITY_TIMEOUT_SECONDS);
+
+        int workers = mailboxWorkers > 0 ? mailboxWorkers : Runtime.getRuntime().availableProcessors();
+        mailboxScheduler = Schedulers.newParallel("audio-mailbox", workers, true);
+        logger.info("音频信箱工作线程: {}, 容量: {}帧, 溢出策略: {}", workers, mailboxCapacity, mailboxOverflow);
     }
 
     /**
@@ -82,6 +137,9 @@ public class SessionManager {
      */
     @PreDestroy
     public void destroy() {
+        if (mailboxScheduler != null) {
+            mailboxScheduler.dispose();
+        }
         scheduler.shutdown();
         try {
             if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
@@ -122,38 +180,39 @@ public class SessionManager {
     }
 
     /**
-     * 注册新的WebSocket会话
+     * 注册新的设备会话
      * 
      * @param sessionId 会话ID
-     * @param session   WebSocket会话
+     * @param session   设备会话
      */
-    public void registerSession(String sessionId, WebSocketSession session) {
+    public void registerSession(String sessionId, DeviceSession session) {
         sessions.put(sessionId, session);
         listeningState.put(sessionId, false);
         streamingState.put(sessionId, false);
         updateLastActivity(sessionId); // 初始化活动时间
-        logger.info("WebSocket会话已注册 - SessionId: {}", sessionId);
+        logger.info("设备会话已注册 - SessionId: {}, 传输方式: {}", sessionId, session.getTransport());
     }
 
     /**
-     * 关闭并清理WebSocket会话
+     * 关闭并清理设备会话
      * 
      * @param sessionId 会话ID
      */
     public void closeSession(String sessionId) {
         // 关闭会话
-        WebSocketSession session = sessions.get(sessionId);
+        DeviceSession session = sessions.get(sessionId);
         if (session != null) {
             try {
                 session.close().subscribe();
             } catch (Exception e) {
-                logger.error("关闭WebSocket会话时发生错误 - SessionId: {}", sessionId, e);
+                logger.error("关闭设备会话时发生错误 - SessionId: {}", sessionId, e);
             }
         }
         sessions.remove(sessionId); // 清理session
         deviceConfigs.remove(sessionId); // 清理设备配置
         listeningState.remove(sessionId); // 清理监听状态
         streamingState.remove(sessionId); // 清理播放状态
+        audioProfiles.remove(sessionId); // 清理音频参数
         lastActivityTime.remove(sessionId); // 清理活动时间记录
         iotDescriptors.remove(sessionId); // 清理Iot部件描述信息
         functionHolders.remove(sessionId);// 清理function_call tools
@@ -161,12 +220,35 @@ public class SessionManager {
         sessionAttributes.remove(sessionId); // 清理会话属性
         
         // 清理音频流
-        Sinks.Many<byte[]> sink = audioSinks.remove(sessionId);
-        if (sink != null) {
-            sink.tryEmitComplete();
+        AudioChannel channel = audioChannels.remove(sessionId);
+        if (channel != null) {
+            channel.complete();
+        }
+
+        // 结束下行队列，已排队的消息写完后结束
+        SessionOutbound outbound = outbounds.remove(sessionId);
+        if (outbound != null) {
+            outbound.complete();
+            logger.debug("下行队列已关闭 - SessionId: {}, {}", sessionId, outbound.stats());
+        }
+
+        // 关闭音频信箱，未处理的帧直接丢弃
+        SessionMailbox mailbox = mailboxes.remove(sessionId);
+        if (mailbox != null) {
+            mailbox.close();
+            logger.debug("音频信箱已关闭 - SessionId: {}, {}", sessionId, mailbox.stats());
         }
 
-        logger.info("WebSocket会话已关闭 - SessionId: {}", sessionId);
+        logger.info("设备会话已关闭 - SessionId: {}", sessionId);
+    }
+
+    /**
+     * 获取所有会话ID
+     *
+     * @return 会话ID集合
+     */
+    public Set<String> getSessionIds() {
+        return Collections.unmodifiableSet(sessions.keySet());
     }
 
     /**
@@ -254,9 +336,9 @@ public class SessionManager {
      * 获取会话
      * 
      * @param sessionId 会话ID
-     * @return WebSocket会话
+     * @return 设备会话
      */
-    public WebSocketSession getSession(String sessionId) {
+    public DeviceSession getSession(String sessionId) {
         return sessions.get(sessionId);
     }
 
@@ -372,39 +454,175 @@ public class SessionManager {
     }
 
     /**
-     * 创建并注册音频数据接收器
-     * 
+     * 设置会话协商的下行音频参数
+     *
      * @param sessionId 会话ID
-     * @return 音频数据接收器
+     * @param profile   音频参数
      */
-    public Sinks.Many<byte[]> createAudioSink(String sessionId) {
-        Sinks.Many<byte[]> sink = Sinks.many().multicast().onBackpressureBuffer();
-        audioSinks.put(sessionId, sink);
-        return sink;
+    public void setAudioProfile(String sessionId, AudioProfile profile) {
+        audioProfiles.put(sessionId, profile);
+    }
+
+    /**
+     * 获取会话的下行音频参数
+     *
+     * @param sessionId 会话ID
+     * @return 音频参数，未协商时返回默认参数
+     */
+    public AudioProfile getAudioProfile(String sessionId) {
+        return audioProfiles.getOrDefault(sessionId, AudioProfile.DEFAULT);
+    }
+
+    /**
+     * 为新的一段语音创建并注册音频通道
+     * 
+     * @param sessionId 会话ID
+     * @return 音频通道
+     */
+    public AudioChannel createAudioChannel(String sessionId) {
+        AudioChannel channel = new AudioChannel(sessionId, audioChannelCapacity,
+                AudioChannel.OverflowPolicy.of(audioChannelOverflow));
+        AudioChannel previous = audioChannels.put(sessionId, channel);
+        if (previous != null) {
+            previous.complete();
+        }
+        return channel;
     }
 
     /**
-     * 获取音频数据接收器
+     * 获取音频通道
      * 
      * @param sessionId 会话ID
-     * @return 音频数据接收器
+     * @return 音频通道
      */
-    public Sinks.Many<byte[]> getAudioSink(String sessionId) {
-        return audioSinks.get(sessionId);
+    public AudioChannel getAudioChannel(String sessionId) {
+        return audioChannels.get(sessionId);
     }
 
     /**
-     * 关闭音频数据接收器
+     * 关闭音频通道，已缓存的音频会继续送往STT
      * 
      * @param sessionId 会话ID
      */
-    public void closeAudioSink(String sessionId) {
-        Sinks.Many<byte[]> sink = audioSinks.get(sessionId);
-        if (sink != null) {
-            sink.tryEmitComplete();
+    public void closeAudioChannel(String sessionId) {
+        AudioChannel channel = audioChannels.get(sessionId);
+        if (channel != null) {
+            channel.complete();
+            logger.debug("音频通道已关闭 - SessionId: {}, {}", sessionId, channel.stats());
         }
     }
 
+    /**
+     * 为WebSocket会话创建下行消息队列，连接建立时调用一次，返回的队列由session.send(outbound.asFlux())写出
+     *
+     * @param sessionId 会话ID
+     * @return 下行消息队列
+     */
+    public SessionOutbound openOutbound(String sessionId) {
+        SessionOutbound outbound = new SessionOutbound(sessionId, outboundAudioCapacity, outboundDroppedFrames);
+        SessionOutbound previous = outbounds.put(sessionId, outbound);
+        if (previous != null) {
+            previous.complete();
+        }
+        return outbound;
+    }
+
+    /**
+     * 发送控制消息（JSON文本），WebSocket传输下优先于排队中的音频帧写出
+     *
+     * @param session 设备会话
+     * @param json    消息内容
+     * @return 消息交给传输层后完成
+     */
+    public Mono<Void> sendText(DeviceSession session, String json) {
+        return Mono.defer(() -> session.sendText(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 发送预先编码的控制消息，用于内容固定的消息，避免每次序列化
+     *
+     * @param session 设备会话
+     * @param utf8    UTF-8编码的JSON
+     * @return 消息交给传输层后完成
+     */
+    public Mono<Void> sendText(DeviceSession session, byte[] utf8) {
+        return Mono.defer(() -> session.sendText(utf8));
+    }
+
+    /**
+     * 发送一帧音频
+     *
+     * @param session   设备会话
+     * @param opusFrame Opus帧
+     * @return 帧交给传输层或因积压被丢弃后完成
+     */
+    public Mono<Void> sendAudio(DeviceSession session, byte[] opusFrame) {
+        return Mono.defer(() -> session.sendAudio(opusFrame));
+    }
+
+    /**
+     * 所有会话下行队列中排队的消息数
+     */
+    public int getOutboundBacklog(SessionOutbound.Lane lane) {
+        int backlog = 0;
+        for (SessionOutbound outbound : outbounds.values()) {
+            backlog += outbound.size(lane);
+        }
+        return backlog;
+    }
+
+    /**
+     * 所有下行队列累计丢弃的音频帧数
+     */
+    public long getOutboundDroppedFrames() {
+        return outboundDroppedFrames.sum();
+    }
+
+    /**
+     * 获取会话的上行音频信箱，不存在时使用给定的处理函数创建
+     *
+     * @param sessionId 会话ID
+     * @param handler   帧处理函数，在工作线程上按到达顺序调用
+     * @return 音频信箱，会话已关闭时返回null
+     */
+    public SessionMailbox getMailbox(String sessionId, Consumer<byte[]> handler) {
+        SessionMailbox mailbox = mailboxes.get(sessionId);
+        if (mailbox != null) {
+            return mailbox;
+        }
+        if (!sessions.containsKey(sessionId)) {
+            return null;
+        }
+        return mailboxes.computeIfAbsent(sessionId, id -> new SessionMailbox(id, mailboxCapacity,
+                SessionMailbox.OverflowPolicy.of(mailboxOverflow), mailboxScheduler, handler,
+                mailboxDroppedFrames));
+    }
+
+    /**
+     * 所有会话信箱中等待处理的帧数
+     */
+    public int getMailboxBacklog() {
+        int backlog = 0;
+        for (SessionMailbox mailbox : mailboxes.values()) {
+            backlog += mailbox.size();
+        }
+        return backlog;
+    }
+
+    /**
+     * 所有信箱累计的丢帧数
+     */
+    public long getMailboxDroppedFrames() {
+        return mailboxDroppedFrames.sum();
+    }
+
+    /**
+     * 获取所有会话当前的音频通道，用于查看各会话的填充情况
+     */
+    public Map<String, AudioChannel> getAudioChannels() {
+        return Collections.unmodifiableMap(audioChannels);
+    }
+
     /**
      * 标记设备正在生成验证码
      * 
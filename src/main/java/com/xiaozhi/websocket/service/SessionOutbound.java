@@ -0,0 +1,253 @@
+package com.xiaozhi.websocket.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.netty.channel.AbortedException;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个会话的下行消息队列
+ *
+ * 每个连接只有一个长期存在的session.send(asFlux())，所有下行消息都经过这里写出，不再每条消息单独订阅一次。
+ * 消息分为控制和音频两个通道：控制消息（JSON）总是优先写出，可以越过排队中的音频帧；音频通道有界，
+ * 连接写不动时丢弃最早的帧，避免积压的音频让设备播放越来越滞后。
+ * 每次按下游请求量把当前排队的消息连续写出，由传输层在这一批写完后统一flush，合并小包。
+ * send返回的Mono在消息交给传输层后完成，同一流程内按顺序串联的消息（如最后一帧音频与tts stop）仍保持先后顺序。
+ */
+public class SessionOutbound {
+    private static final Logger logger = LoggerFactory.getLogger(SessionOutbound.class);
+
+    /**
+     * 消息通道
+     */
+    public enum Lane {
+        CONTROL,
+        AUDIO
+    }
+
+    private static final class Pending {
+        final WebSocketMessage message;
+        final MonoSink<Void> sink;
+
+        Pending(WebSocketMessage message, MonoSink<Void> sink) {
+            this.message = message;
+            this.sink = sink;
+        }
+    }
+
+    private final String sessionId;
+    private final int audioCapacity;
+    private final LongAdder totalDropped;
+
+    private final Queue<Pending> control = new ConcurrentLinkedQueue<>();
+    private final Queue<Pending> audio = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger controlSize = new AtomicInteger();
+    private final AtomicInteger audioSize = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    private volatile FluxSink<WebSocketMessage> sink;
+    private volatile boolean done;
+
+    // 统计信息
+    private final AtomicLong sentControl = new AtomicLong();
+    private final AtomicLong sentAudio = new AtomicLong();
+    private final AtomicLong droppedAudio = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicInteger highWatermark = new AtomicInteger();
+
+    /**
+     * @param sessionId     会话ID
+     * @param audioCapacity 音频通道最多排队的帧数
+     * @param totalDropped  所有会话共享的丢帧计数
+     */
+    public SessionOutbound(String sessionId, int audioCapacity, LongAdder totalDropped) {
+        this.sessionId = sessionId;
+        this.audioCapacity = Math.max(1, audioCapacity);
+        this.totalDropped = totalDropped;
+    }
+
+    /**
+     * 下行消息流，只允许订阅一次，交给session.send
+     */
+    public Flux<WebSocketMessage> asFlux() {
+        return Flux.create(s -> {
+            if (!subscribed.compareAndSet(false, true)) {
+                s.error(new IllegalStateException("下行队列只允许一个订阅者"));
+                return;
+            }
+            sink = s;
+            s.onRequest(n -> drain());
+            s.onDispose(() -> {
+                done = true;
+                drain();
+            });
+            drain();
+        });
+    }
+
+    /**
+     * 发送一条消息，订阅时入队
+     *
+     * @param message 消息
+     * @param lane    通道
+     * @return 消息交给传输层后完成；会话已关闭时以AbortedException结束；音频被丢弃时直接完成
+     */
+    public Mono<Void> send(WebSocketMessage message, Lane lane) {
+        return Mono.create(s -> offer(new Pending(message, s), lane));
+    }
+
+    /**
+     * 结束下行流，已排队的消息写完后结束
+     */
+    public void complete() {
+        done = true;
+        drain();
+    }
+
+    private void offer(Pending pending, Lane lane) {
+        if (done) {
+            abort(pending);
+            return;
+        }
+        if (lane == Lane.CONTROL) {
+            control.offer(pending);
+            controlSize.incrementAndGet();
+        } else {
+            if (audioSize.get() >= audioCapacity) {
+                Pending oldest = audio.poll();
+                if (oldest != null) {
+                    audioSize.decrementAndGet();
+                    drop(oldest);
+                }
+            }
+            audio.offer(pending);
+            audioSize.incrementAndGet();
+        }
+        int queued = controlSize.get() + audioSize.get();
+        if (queued > highWatermark.get()) {
+            highWatermark.set(queued);
+        }
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (;;) {
+            FluxSink<WebSocketMessage> s = sink;
+            if (s != null) {
+                if (s.isCancelled()) {
+                    clear();
+                } else {
+                    long requested = s.requestedFromDownstream();
+                    int emitted = 0;
+                    while (emitted < requested) {
+                        // 控制消息优先
+                        Pending next = control.poll();
+                        if (next != null) {
+                            controlSize.decrementAndGet();
+                            sentControl.incrementAndGet();
+                        } else {
+                            next = audio.poll();
+                            if (next == null) {
+                                break;
+                            }
+                            audioSize.decrementAndGet();
+                            sentAudio.incrementAndGet();
+                        }
+                        s.next(next.message);
+                        next.sink.success();
+                        emitted++;
+                    }
+                    if (emitted > 0) {
+                        flushes.incrementAndGet();
+                    }
+                    if (done && control.isEmpty() && audio.isEmpty()) {
+                        s.complete();
+                    }
+                }
+            } else if (done) {
+                // 还没有订阅就已关闭，例如连接建立过程中被拒绝
+                clear();
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    private void clear() {
+        Pending pending;
+        while ((pending = control.poll()) != null) {
+            controlSize.decrementAndGet();
+            abort(pending);
+        }
+        while ((pending = audio.poll()) != null) {
+            audioSize.decrementAndGet();
+            abort(pending);
+        }
+    }
+
+    private void abort(Pending pending) {
+        DataBufferUtils.release(pending.message.getPayload());
+        pending.sink.error(AbortedException.beforeSend());
+    }
+
+    private void drop(Pending pending) {
+        DataBufferUtils.release(pending.message.getPayload());
+        pending.sink.success();
+        long count = droppedAudio.incrementAndGet();
+        totalDropped.increment();
+        // 每个会话只在首次丢帧时告警，避免刷屏
+        if (count == 1) {
+            logger.warn("下行音频积压，开始丢帧 - SessionId: {}, {}", sessionId, stats());
+        }
+    }
+
+    /**
+     * 当前排队的消息数
+     */
+    public int size(Lane lane) {
+        return lane == Lane.CONTROL ? controlSize.get() : audioSize.get();
+    }
+
+    public long getSentControl() {
+        return sentControl.get();
+    }
+
+    public long getSentAudio() {
+        return sentAudio.get();
+    }
+
+    public long getDroppedAudio() {
+        return droppedAudio.get();
+    }
+
+    /**
+     * 统计信息摘要，用于日志
+     */
+    public String stats() {
+        long sent = getSentControl() + getSentAudio();
+        long batches = flushes.get();
+        return String.format("排队: 控制%d/音频%d(上限%d), 峰值: %d, 发送: 控制%d/音频%d, 丢弃: %d, 平均每批: %.1f",
+                size(Lane.CONTROL), size(Lane.AUDIO), audioCapacity, highWatermark.get(), getSentControl(),
+                getSentAudio(), getDroppedAudio(), batches == 0 ? 0.0 : (double) sent / batches);
+    }
+}
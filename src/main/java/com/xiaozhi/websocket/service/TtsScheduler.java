@@ -0,0 +1,261 @@
+package com.xiaozhi.websocket.service;
+
+import com.xiaozhi.utils.ProviderExecutors;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 语音合成调度
+ * <br/>
+ * 每个会话最多同时持有lookahead+1个合成名额（正在播放的一句加上领先播放的lookahead句），句子播放完（或被丢弃）后归还名额，
+ * 后面的句子才开始合成，避免长回复一次发起大量合成请求。拿到名额的任务进入全局队列，由最多max-concurrent个工作线程执行，
+ * 每轮对话的第一句优先，其余按提交顺序。
+ * <br/>
+ * 默认使用独立的线程池，服务商调用运行在虚拟线程模式时改为交给ProviderExecutors执行，并发上限不变。
+ */
+@Component
+public class TtsScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(TtsScheduler.class);
+
+    // 每个会话领先播放进度合成的句子数
+    @Value("${app.tts.scheduler.lookahead:2}")
+    private int lookahead;
+
+    // 全局同时进行的合成数，0表示CPU核数的4倍
+    @Value("${app.tts.scheduler.max-concurrent:0}")
+    private int maxConcurrent;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+
+    // 以下由this保护
+    private final Map<String, SessionState> sessions = new HashMap<>();
+    private final PriorityQueue<Job> ready = new PriorityQueue<>();
+    private int running;
+    private long submitted;
+
+    /**
+     * 一个句子的合成任务，句子播放完或不再需要时调用release归还会话的合成名额
+     */
+    public final class Job implements Comparable<Job> {
+        private final SessionState state;
+        private final boolean first;
+        private final Runnable task;
+        private final long order;
+        // 以下由TtsScheduler.this保护
+        private boolean admitted;
+        private boolean released;
+
+        private Job(SessionState state, boolean first, Runnable task, long order) {
+            this.state = state;
+            this.first = first;
+            this.task = task;
+            this.order = order;
+        }
+
+        /**
+         * 归还合成名额，可以重复调用
+         */
+        public void release() {
+            TtsScheduler.this.release(this);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (first != other.first) {
+                return first ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * 会话的待合成句子和已占用的名额
+     */
+    private static class SessionState {
+        final String sessionId;
+        final ArrayDeque<Job> waiting = new ArrayDeque<>();
+        int outstanding;
+
+        SessionState(String sessionId) {
+            this.sessionId = sessionId;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (lookahead < 0) {
+            lookahead = 0;
+        }
+        if (maxConcurrent <= 0) {
+            maxConcurrent = Runtime.getRuntime().availableProcessors() * 4;
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "tts-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        Gauge.builder("xiaozhi.tts.scheduler.waiting", this, TtsScheduler::getWaitingCount)
+                .description("等待合成名额或工作线程的句子数")
+                .register(meterRegistry);
+        Gauge.builder("xiaozhi.tts.scheduler.running", this, TtsScheduler::getRunningCount)
+                .description("正在合成的句子数")
+                .register(meterRegistry);
+        logger.info("语音合成调度 - 每会话领先句数: {}, 全局并发: {}", lookahead, maxConcurrent);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 提交一个句子的合成任务
+     *
+     * @param first 是否为本轮对话的第一句，第一句在全局队列中优先执行
+     * @param task  合成任务，对话已取消时应尽快返回
+     */
+    public Job submit(String sessionId, boolean first, Runnable task) {
+        synchronized (this) {
+            SessionState state = sessions.computeIfAbsent(sessionId, SessionState::new);
+            Job job = new Job(state, first, task, submitted++);
+            state.waiting.add(job);
+            admit(state);
+            dispatch();
+            return job;
+        }
+    }
+
+    /**
+     * 清空会话的合成名额，用于对话中止后句子队列被清空的情况
+     * <br/>
+     * 还在等待名额的任务立即进入全局队列，由任务自身检查取消令牌后跳过；之后归还旧任务的名额不再影响会话。
+     */
+    public void clearSession(String sessionId) {
+        synchronized (this) {
+            SessionState state = sessions.remove(sessionId);
+            if (state == null) {
+                return;
+            }
+            for (Job job : state.waiting) {
+                job.admitted = true;
+                ready.add(job);
+            }
+            state.waiting.clear();
+            dispatch();
+        }
+    }
+
+    public int getWaitingCount() {
+        synchronized (this) {
+            int count = ready.size();
+            for (SessionState state : sessions.values()) {
+                count += state.waiting.size();
+            }
+            return count;
+        }
+    }
+
+    public int getRunningCount() {
+        synchronized (this) {
+            return running;
+        }
+    }
+
+    private synchronized void release(Job job) {
+        if (job.released) {
+            return;
+        }
+        job.released = true;
+        SessionState state = job.state;
+        if (!job.admitted) {
+            // 还没开始合成，句子已经不需要了
+            state.waiting.remove(job);
+            removeIfIdle(state);
+            return;
+        }
+        state.outstanding--;
+        if (sessions.get(state.sessionId) == state) {
+            admit(state);
+            dispatch();
+            removeIfIdle(state);
+        }
+    }
+
+    /**
+     * 会话的名额全部归还且没有等待的句子时移除，下次提交时重新创建
+     */
+    private void removeIfIdle(SessionState state) {
+        if (state.outstanding == 0 && state.waiting.isEmpty() && sessions.get(state.sessionId) == state) {
+            sessions.remove(state.sessionId);
+        }
+    }
+
+    /**
+     * 会话还有空余名额时，按提交顺序把等待的任务放入全局队列
+     */
+    private void admit(SessionState state) {
+        while (state.outstanding <= lookahead && !state.waiting.isEmpty()) {
+            Job job = state.waiting.poll();
+            job.admitted = true;
+            state.outstanding++;
+            ready.add(job);
+        }
+    }
+
+    /**
+     * 工作线程有空闲时执行全局队列中优先级最高的任务
+     */
+    private void dispatch() {
+        while (running < maxConcurrent && !ready.isEmpty()) {
+            Job job = ready.poll();
+            running++;
+            Runnable wrapped = () -> {
+                try {
+                    job.task.run();
+                } catch (Exception e) {
+                    logger.error("语音合成任务异常: {}", e.getMessage(), e);
+                } finally {
+                    synchronized (this) {
+                        running--;
+                        dispatch();
+                    }
+                }
+            };
+            try {
+                if (ProviderExecutors.isVirtual()) {
+                    ProviderExecutors.executor().execute(wrapped);
+                } else {
+                    executor.execute(wrapped);
+                }
+            } catch (Exception e) {
+                // 停机期间线程池已关闭
+                running--;
+                logger.warn("提交语音合成任务失败: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.xiaozhi.websocket.service;
 
 import com.xiaozhi.utils.OpusProcessor;
+import com.xiaozhi.utils.PcmOps;
 import com.xiaozhi.utils.TarsosNoiseReducer;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
 import com.xiaozhi.websocket.vad.impl.SileroVadModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,9 +13,8 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
@@ -22,6 +23,9 @@ import java.util.concurrent.ConcurrentHashMap;
 public class VadService {
     private static final Logger logger = LoggerFactory.getLogger(VadService.class);
 
+    // Silero模型每次推断的样本数（16kHz下32ms）
+    private static final int VAD_WINDOW = 512;
+
     @Autowired
     private OpusProcessor opusDecoder;
 
@@ -29,6 +33,9 @@ public class VadService {
     @Autowired
     private SileroVadModel sileroVadModel;
 
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
     // VAD参数
     @Value("${app.vad.speech-threshold:0.5}")
     private float speechThreshold;
@@ -54,6 +61,19 @@ public class VadService {
     @Value("${app.vad.voice-enhancement-gain:1.5}")
     private float voiceEnhancementGain;
 
+    // 推断门限：未在说话时，只有能量或过零率达到门限的帧才运行模型推断
+    @Value("${app.vad.gate.enabled:true}")
+    private boolean gateEnabled;
+
+    @Value("${app.vad.gate.energy-threshold:0.005}")
+    private float gateEnergyThreshold;
+
+    @Value("${app.vad.gate.zcr-threshold:0.25}")
+    private float gateZcrThreshold;
+
+    @Value("${app.vad.gate.hangover-ms:300}")
+    private int gateHangoverMs;
+
     // 噪声抑制器
     private TarsosNoiseReducer tarsosNoiseReducer;
 
@@ -81,6 +101,15 @@ public class VadService {
                 logger.info("人声增强已启用，增益设置为: {}", voiceEnhancementGain);
             }
 
+            if (gateEnabled) {
+                logger.info("VAD推断门限已启用，能量: {}, 过零率: {}, 保持: {}ms", gateEnergyThreshold, gateZcrThreshold,
+                        gateHangoverMs);
+                if (gateEnergyThreshold > energyThreshold) {
+                    logger.warn("VAD推断门限能量{}高于语音能量阈值{}，可能漏检较轻的语音开始", gateEnergyThreshold,
+                            energyThreshold);
+                }
+            }
+
             // 检查SileroVadModel是否已注入
             if (sileroVadModel != null) {
                 logger.info("VAD服务初始化成功，使用SileroVadModel进行语音活动检测");
@@ -108,6 +137,7 @@ public class VadService {
         private long lastSpeechTime = 0;
         private long lastSilenceTime = 0; // 添加最后一次检测到静音的时间
         private float averageEnergy = 0;
+        private float lastEnergy = 0;
         private final List<Float> probabilities = new ArrayList<>();
         private final LinkedList<byte[]> preBuffer = new LinkedList<>();
         private int preBufferSize = 0; // 当前缓冲区大小（字节）
@@ -125,6 +155,20 @@ public class VadService {
         // 存储原始Opus数据
         private final List<byte[]> opusAudioData = new ArrayList<>();
 
+        // 每帧复用的浮点样本缓冲区，只在会话锁内使用
+        private float[] sampleBuffer = new float[0];
+
+        // 推断门限状态：是否打开，以及能量回落后剩余的保持时间（毫秒）
+        private boolean gateOpen = false;
+        private int gateHangoverLeft = 0;
+
+        // 最近的一个模型窗口的样本，帧比窗口短（20ms帧）时与新帧拼接
+        private final float[] window = new float[VAD_WINDOW];
+
+        // 会话内运行和跳过的模型推断帧数，整个连接期间累计
+        private long inferredFrames = 0;
+        private long skippedFrames = 0;
+
         public VadSessionState() {
             // 计算预缓冲区大小（16kHz, 16bit, mono = 32 bytes/ms）
             this.maxPreBufferSize = preBufferDuration * 32;
@@ -134,6 +178,53 @@ public class VadService {
             return speaking;
         }
 
+        /**
+         * 获取指定长度的浮点样本缓冲区，帧长不变时复用同一数组
+         */
+        public float[] sampleBuffer(int length) {
+            if (sampleBuffer.length != length) {
+                sampleBuffer = new float[length];
+            }
+            return sampleBuffer;
+        }
+
+        /**
+         * 模型推断的输入样本
+         * <br/>
+         * 帧不短于模型窗口（40/60ms帧）时直接使用本帧；更短时把本帧追加到最近的样本之后，取最后一个完整窗口，
+         * 这样20ms帧也能每帧得到一个有效的推断结果，而不是补零。每帧都需要调用，跳过推断的帧也要计入窗口。
+         */
+        public float[] inferenceWindow(float[] samples) {
+            int length = samples.length;
+            if (length >= window.length) {
+                return samples;
+            }
+            System.arraycopy(window, length, window, 0, window.length - length);
+            System.arraycopy(samples, 0, window, window.length - length, length);
+            return window;
+        }
+
+        /**
+         * 根据当前帧更新推断门限，返回是否需要运行模型推断
+         * <br/>
+         * 能量达到打开门限，或达到一半且过零率较高（清辅音）时打开；
+         * 打开后能量不低于一半门限时保持，低于后再保持hangover时间才关闭，避免句中停顿和词尾被截断
+         */
+        public boolean updateGate(float energy, float zcr, int frameMs) {
+            boolean loud = energy >= gateEnergyThreshold;
+            boolean active = energy >= gateEnergyThreshold * 0.5f;
+            if (loud || (active && zcr >= gateZcrThreshold)) {
+                gateOpen = true;
+                gateHangoverLeft = gateHangoverMs;
+            } else if (gateOpen && !active) {
+                gateHangoverLeft -= frameMs;
+                if (gateHangoverLeft <= 0) {
+                    gateOpen = false;
+                }
+            }
+            return gateOpen;
+        }
+
         public void setSpeaking(boolean speaking) {
             this.speaking = speaking;
             if (speaking) {
@@ -306,6 +397,31 @@ public class VadService {
             return new ArrayList<>(opusAudioData);
         }
 
+        /**
+         * 只保留最近maxBytes字节的音频数据，Opus数据按帧数与原始PCM对齐
+         */
+        public void trimAudio(int maxBytes) {
+            trimFrames(processedAudioData, maxBytes);
+            trimFrames(enhancedAudioData, maxBytes);
+            trimFrames(originalPcmData, maxBytes);
+            int excess = opusAudioData.size() - originalPcmData.size();
+            if (excess > 0) {
+                opusAudioData.subList(0, excess).clear();
+            }
+        }
+
+        private void trimFrames(List<byte[]> frames, int maxBytes) {
+            int keepFrom = frames.size();
+            int total = 0;
+            while (keepFrom > 0 && total < maxBytes) {
+                keepFrom--;
+                total += frames.get(keepFrom).length;
+            }
+            if (keepFrom > 0) {
+                frames.subList(0, keepFrom).clear();
+            }
+        }
+
         /**
          * 重置状态
          */
@@ -314,6 +430,7 @@ public class VadService {
             lastSpeechTime = 0;
             lastSilenceTime = 0;
             averageEnergy = 0;
+            lastEnergy = 0;
             probabilities.clear();
             preBuffer.clear();
             preBufferSize = 0;
@@ -321,6 +438,9 @@ public class VadService {
             enhancedAudioData.clear();
             originalPcmData.clear();
             opusAudioData.clear();
+            gateOpen = false;
+            gateHangoverLeft = 0;
+            Arrays.fill(window, 0f);
         }
     }
 
@@ -391,12 +511,25 @@ public class VadService {
                 state.addToPreBuffer(processedPcm);
 
                 // 计算音频能量
-                float[] samples = convertBytesToFloats(processedPcm);
+                float[] samples = state.sampleBuffer(PcmOps.samples(processedPcm));
+                convertBytesToFloats(processedPcm, samples);
                 float currentEnergy = calculateEnergy(samples);
+                state.lastEnergy = currentEnergy;
+                float[] inferenceSamples = state.inferenceWindow(samples);
                 state.updateAverageEnergy(currentEnergy);
 
-                // 执行VAD推断
-                float speechProb = runVadInference(samples);
+                // 执行VAD推断，未在说话且门限关闭时视为静音，跳过模型
+                float speechProb;
+                if (needsInference(state, samples, currentEnergy)) {
+                    long inferenceStart = System.nanoTime();
+                    speechProb = runVadInference(inferenceSamples);
+                    pipelineMetrics.recordVadInference(System.nanoTime() - inferenceStart);
+                    state.inferredFrames++;
+                } else {
+                    speechProb = 0.0f;
+                    pipelineMetrics.vadInferenceSkipped();
+                    state.skippedFrames++;
+                }
                 state.addProbability(speechProb);
 
                 // 根据VAD结果和能量判断语音状态
@@ -472,45 +605,36 @@ public class VadService {
     
     /**
      * 应用人声增强
-     * 增强人声频率范围的能量
+     * 增强人声频率范围的能量（包内可见，供基准测试直接调用）
      */
-    private byte[] applyVoiceEnhancement(byte[] pcmData) {
+    byte[] applyVoiceEnhancement(byte[] pcmData) {
         if (pcmData == null || pcmData.length < 2) {
             return pcmData;
         }
         
-        try {
-            // 创建新的字节数组用于存储增强后的音频
-            byte[] enhancedPcm = new byte[pcmData.length];
-            
-            // 转换为short数组进行处理
-            ByteBuffer buffer = ByteBuffer.wrap(pcmData).order(ByteOrder.LITTLE_ENDIAN);
-            ByteBuffer outBuffer = ByteBuffer.wrap(enhancedPcm).order(ByteOrder.LITTLE_ENDIAN);
-            
-            int sampleCount = pcmData.length / 2;
-            
-            // 简单的增益应用 - 直接增强所有样本
-            for (int i = 0; i < sampleCount; i++) {
-                short sample = buffer.getShort();
-                
-                // 应用增益，但避免溢出
-                float enhanced = sample * voiceEnhancementGain;
-                
-                // 限制在16位范围内
-                if (enhanced > Short.MAX_VALUE) {
-                    enhanced = Short.MAX_VALUE;
-                } else if (enhanced < Short.MIN_VALUE) {
-                    enhanced = Short.MIN_VALUE;
-                }
-                
-                outBuffer.putShort((short) enhanced);
-            }
-            
-            return enhancedPcm;
-        } catch (Exception e) {
-            logger.error("应用人声增强失败: {}", e.getMessage());
-            return pcmData; // 出错时返回原始数据
+        // 增强后的数据会保存到会话状态中，因此每帧使用新的数组
+        byte[] enhancedPcm = new byte[pcmData.length];
+
+        // 简单的增益应用 - 直接增强所有样本，超出16位范围的截断
+        PcmOps.gain(pcmData, 0, enhancedPcm, 0, PcmOps.samples(pcmData), voiceEnhancementGain);
+        return enhancedPcm;
+    }
+
+    /**
+     * 判断当前帧是否需要运行模型推断
+     * <br/>
+     * 说话过程中始终推断，由模型判断语音结束；未说话时由能量和过零率门限决定。
+     * 门限能量不高于语音能量阈值时，被跳过的帧本来也不会判定为语音开始，
+     * 门限提前打开的帧还会让模型在语音开始前得到几帧上下文。
+     */
+    private boolean needsInference(VadSessionState state, float[] samples, float energy) {
+        if (!gateEnabled) {
+            return true;
         }
+        float zcr = PcmOps.zeroCrossingRate(samples, 0, samples.length);
+        // 16kHz单声道，每毫秒16个样本
+        boolean open = state.updateGate(energy, zcr, samples.length / 16);
+        return open || state.isSpeaking();
     }
 
     /**
@@ -529,7 +653,7 @@ public class VadService {
 
         try {
             // SileroVadModel需要固定大小的输入(512)
-            final int requiredSize = 512;
+            final int requiredSize = VAD_WINDOW;
 
             // 如果样本长度正好是512，直接使用
             if (audioSamples.length == requiredSize) {
@@ -550,8 +674,8 @@ public class VadService {
             // 如果样本长度大于512，取中间的512个样本
             // 或者也可以分块处理并返回最大概率值
             float maxProbability = 0.0f;
+            float[] chunk = new float[requiredSize];
             for (int offset = 0; offset <= audioSamples.length - requiredSize; offset += requiredSize / 2) { // 使用50%重叠
-                float[] chunk = new float[requiredSize];
                 System.arraycopy(audioSamples, offset, chunk, 0, requiredSize);
                 float probability = sileroVadModel.getSpeechProbability(chunk);
                 maxProbability = Math.max(maxProbability, probability);
@@ -565,21 +689,11 @@ public class VadService {
     }
 
     /**
-     * 将PCM字节数组转换为浮点数组
+     * 将PCM字节数组转换为浮点数组，写入调用方提供的缓冲区（包内可见，供基准测试直接调用）
      */
-    private float[] convertBytesToFloats(byte[] pcmData) {
-        // 16位PCM，每个样本2个字节
-        int sampleCount = pcmData.length / 2;
-        float[] samples = new float[sampleCount];
-
-        // 将字节转换为16位整数，然后归一化到[-1, 1]
-        ByteBuffer buffer = ByteBuffer.wrap(pcmData).order(ByteOrder.LITTLE_ENDIAN);
-        for (int i = 0; i < sampleCount; i++) {
-            short sample = buffer.getShort();
-            samples[i] = sample / 32768.0f; // 归一化
-        }
-
-        return samples;
+    void convertBytesToFloats(byte[] pcmData, float[] samples) {
+        // 16位PCM，每个样本2个字节，归一化到[-1, 1]
+        PcmOps.toFloat(pcmData, 0, samples, 0, PcmOps.samples(pcmData));
     }
 
     /**
@@ -599,11 +713,7 @@ public class VadService {
      * 计算音频样本的能量
      */
     private float calculateEnergy(float[] samples) {
-        float energy = 0;
-        for (float sample : samples) {
-            energy += Math.abs(sample);
-        }
-        return energy / samples.length;
+        return PcmOps.absMean(samples, 0, samples.length);
     }
 
     /**
@@ -623,6 +733,11 @@ public class VadService {
             VadSessionState state = sessionStates.get(sessionId);
             if (state != null) {
 //                state.reset();
+                long total = state.inferredFrames + state.skippedFrames;
+                if (total > 0) {
+                    logger.info("VAD推断统计 - SessionId: {}, 推断帧: {}, 跳过帧: {} ({}%)", sessionId,
+                            state.inferredFrames, state.skippedFrames, state.skippedFrames * 100 / total);
+                }
             }
 //            sessionStates.remove(sessionId);
 
@@ -646,6 +761,21 @@ public class VadService {
         }
     }
 
+    /**
+     * 获取说话过程中当前的静音持续时间（毫秒），未在说话或未静音时返回0
+     */
+    public int getSilenceDuration(String sessionId) {
+        Object lock = getSessionLock(sessionId);
+
+        synchronized (lock) {
+            VadSessionState state = sessionStates.get(sessionId);
+            if (state == null || !state.isSpeaking()) {
+                return 0;
+            }
+            return state.getSilenceDuration();
+        }
+    }
+
     /**
      * 获取当前语音概率
      */
@@ -661,6 +791,34 @@ public class VadService {
         }
     }
 
+    /**
+     * 获取最近一帧的能量（人声增强后的平均绝对值）
+     */
+    public float getLastEnergy(String sessionId) {
+        Object lock = getSessionLock(sessionId);
+
+        synchronized (lock) {
+            VadSessionState state = sessionStates.get(sessionId);
+            return state != null ? state.lastEnergy : 0.0f;
+        }
+    }
+
+    /**
+     * 获取会话累计的模型推断帧数和跳过帧数
+     * @param sessionId 会话ID
+     * @return 长度为2的数组，依次为推断帧数、跳过帧数
+     */
+    public long[] getInferenceCounts(String sessionId) {
+        Object lock = getSessionLock(sessionId);
+        synchronized (lock) {
+            VadSessionState state = sessionStates.get(sessionId);
+            if (state != null) {
+                return new long[] { state.inferredFrames, state.skippedFrames };
+            }
+            return new long[2];
+        }
+    }
+
     /**
      * 获取处理过的音频数据
      * @param sessionId 会话ID
@@ -677,6 +835,53 @@ public class VadService {
         }
     }
     
+    /**
+     * 获取最近一段处理过的音频数据
+     * @param sessionId 会话ID
+     * @param durationMs 时长（毫秒）
+     * @return 合并后的PCM数据，不足时返回全部
+     */
+    public byte[] getRecentAudio(String sessionId, int durationMs) {
+        Object lock = getSessionLock(sessionId);
+        synchronized (lock) {
+            VadSessionState state = sessionStates.get(sessionId);
+            if (state == null) {
+                return new byte[0];
+            }
+            int maxBytes = durationMs * 32;
+            int keepFrom = state.processedAudioData.size();
+            int total = 0;
+            while (keepFrom > 0 && total < maxBytes) {
+                keepFrom--;
+                total += state.processedAudioData.get(keepFrom).length;
+            }
+            byte[] result = new byte[Math.min(total, maxBytes)];
+            int offset = result.length;
+            for (int i = state.processedAudioData.size() - 1; i >= keepFrom && offset > 0; i--) {
+                byte[] frame = state.processedAudioData.get(i);
+                int length = Math.min(frame.length, offset);
+                offset -= length;
+                System.arraycopy(frame, frame.length - length, result, offset, length);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 只保留最近一段音频数据，用于对话期间持续检测插话时限制缓冲区大小
+     * @param sessionId 会话ID
+     * @param durationMs 保留的时长（毫秒）
+     */
+    public void trimAudio(String sessionId, int durationMs) {
+        Object lock = getSessionLock(sessionId);
+        synchronized (lock) {
+            VadSessionState state = sessionStates.get(sessionId);
+            if (state != null) {
+                state.trimAudio(durationMs * 32);
+            }
+        }
+    }
+
     /**
      * 获取人声增强后的音频数据
      * 这是主要的音频数据获取方法，用于替代原来的getRawAudioData
@@ -768,6 +973,10 @@ public class VadService {
         logger.info("人声增强增益已更新为: {}", gain);
     }
 
+    public int getPreBufferDuration() {
+        return preBufferDuration;
+    }
+
     /**
      * 设置预缓冲区持续时间（毫秒）
      */
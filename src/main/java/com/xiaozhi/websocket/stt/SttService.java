@@ -36,4 +36,10 @@ public interface SttService {
   default boolean supportsStreaming() {
     return false;
   }
+
+  /**
+   * 释放服务持有的资源（识别器、连接池等），由SttServiceFactory在应用关闭时调用
+   */
+  default void shutdown() {
+  }
 }
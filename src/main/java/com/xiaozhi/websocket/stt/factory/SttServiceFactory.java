@@ -4,15 +4,18 @@ import com.xiaozhi.entity.SysConfig;
 import com.xiaozhi.websocket.stt.SttService;
 import com.xiaozhi.websocket.stt.providers.AliyunSttService;
 import com.xiaozhi.websocket.stt.providers.FunASRSttService;
+import com.xiaozhi.websocket.stt.providers.MockSttService;
 import com.xiaozhi.websocket.stt.providers.TencentSttService;
 import com.xiaozhi.websocket.stt.providers.VoskSttService;
 import com.xiaozhi.websocket.token.TokenManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -36,6 +39,14 @@ public class SttServiceFactory {
     // 注入TokenManager
     @Autowired
     private TokenManager tokenManager;
+
+    // FunASR识别模式：online | 2pass
+    @Value("${app.stt.funasr.mode:online}")
+    private String funasrMode;
+
+    // 每个FunASR配置保持的长连接数（借出加空闲）
+    @Value("${app.stt.funasr.pool-size:2}")
+    private int funasrPoolSize;
     /**
    * 应用启动时自动初始化Vosk服务
      */
@@ -69,6 +80,44 @@ public class SttServiceFactory {
     }
   }
 
+  /**
+   * 应用关闭时释放所有缓存服务的资源
+   */
+  @PreDestroy
+  public void shutdown() {
+    serviceCache.forEach((key, service) -> shutdownService(key, service));
+    serviceCache.clear();
+    voskInitialized = false;
+    fallbackProvider = null;
+  }
+
+  /**
+   * 配置更新后移除该配置的缓存服务并释放资源，下次使用时按新配置重新创建
+   */
+  public void evictService(Integer configId) {
+    if (configId == null) {
+      return;
+    }
+    String suffix = ":" + configId;
+    serviceCache.forEach((key, service) -> {
+      if (key.endsWith(suffix) && serviceCache.remove(key, service)) {
+        if (key.equals(fallbackProvider)) {
+          fallbackProvider = null;
+        }
+        shutdownService(key, service);
+      }
+    });
+  }
+
+  private void shutdownService(String key, SttService service) {
+    try {
+      service.shutdown();
+      logger.info("已关闭STT服务 - {}", key);
+    } catch (Exception e) {
+      logger.error("关闭STT服务失败 - {}", key, e);
+    }
+  }
+
   /**
    * 获取默认STT服务
    * 如果Vosk可用则返回Vosk，否则返回备选服务
@@ -166,7 +215,9 @@ public class SttServiceFactory {
     } else if ("aliyun".equals(provider)) {
       return new AliyunSttService(config);
     } else if ("funasr".equals(provider)) {
-      return new FunASRSttService(config);
+      return new FunASRSttService(config, funasrMode, funasrPoolSize);
+    } else if ("mock".equals(provider)) {
+      return new MockSttService(config);
     }
     // 可以添加其他服务提供商的支持
 
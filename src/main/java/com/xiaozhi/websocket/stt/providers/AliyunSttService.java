@@ -4,6 +4,7 @@ import com.alibaba.dashscope.audio.asr.recognition.Recognition;
 import com.alibaba.dashscope.audio.asr.recognition.RecognitionParam;
 import com.xiaozhi.entity.SysConfig;
 import com.xiaozhi.utils.AudioUtils;
+import com.xiaozhi.utils.ProviderExecutors;
 import com.xiaozhi.websocket.stt.SttService;
 
 import org.slf4j.Logger;
@@ -11,7 +12,6 @@ import org.slf4j.LoggerFactory;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Sinks;
-import reactor.core.scheduler.Schedulers;
 
 import java.nio.ByteBuffer;
 
@@ -70,8 +70,8 @@ public class AliyunSttService implements SttService {
         Recognition recognizer = new Recognition();
 
         // 在单独的线程中执行流式识别，避免阻塞
-        // 使用Reactor的Schedulers来管理线程
-        Schedulers.boundedElastic().schedule(() -> {
+        // blockingForEach会占住线程直到识别结束，交给服务商执行器（可切换为虚拟线程）
+        ProviderExecutors.scheduler().schedule(() -> {
             try {
                 recognizer.streamCall(param, rxAudioStream)
                         .blockingForEach(result -> {
@@ -0,0 +1,281 @@
+package com.xiaozhi.websocket.stt.providers;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FunASR长连接管理
+ * <br/>
+ * 预先建立并保持poolSize条（借出加空闲）到FunASR的WebSocket连接，每段语音借出一条已打开的连接，识别结束后归还复用，
+ * 省去每段语音的TCP/WS握手和新建客户端线程。FunASR协议下一条连接同一时间只能服务一段语音，
+ * 因此这里是连接池而不是在单条连接上复用多路语音。
+ * 空闲连接断开或建连失败时按指数退避加随机抖动重连，避免服务端重启后所有节点同时重连。
+ */
+public class FunASRConnectionManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(FunASRConnectionManager.class);
+
+    // 等待连接打开的超时时间
+    private static final long OPEN_TIMEOUT_MS = 5000;
+
+    // 重连退避的初始和最大间隔
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30000;
+
+    // 心跳检测间隔，超过该时间未收到pong则认为连接已断开
+    private static final int CONNECTION_LOST_TIMEOUT_SECONDS = 30;
+
+    private final URI uri;
+    private final int poolSize;
+
+    // 已打开的空闲连接
+    private final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+
+    // 正在为补充连接池而建立的连接数
+    private final AtomicInteger opening = new AtomicInteger();
+
+    // 已借出的连接数
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    // 连续建连失败次数，用于计算退避时间
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean reconnectScheduled = new AtomicBoolean(false);
+
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    private volatile boolean closed;
+
+    public FunASRConnectionManager(String apiUrl, int poolSize) {
+        this.uri = URI.create(apiUrl);
+        this.poolSize = Math.max(1, poolSize);
+    }
+
+    /**
+     * 预先建立连接
+     */
+    public void warmUp() {
+        replenish();
+    }
+
+    /**
+     * 借出一条已打开的连接，池中没有可用连接时新建
+     */
+    public Mono<Connection> acquire() {
+        if (closed) {
+            return Mono.error(new IllegalStateException("FunASR连接池已关闭"));
+        }
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if (connection.isOpen()) {
+                reusedCount.incrementAndGet();
+                inUse.incrementAndGet();
+                return Mono.just(connection);
+            }
+            connection.closeQuietly();
+        }
+        // 池中没有可用连接（并发超过poolSize或连接刚断开），直接新建
+        inUse.incrementAndGet();
+        return open().doOnError(e -> {
+            inUse.decrementAndGet();
+            replenish();
+        });
+    }
+
+    /**
+     * 归还连接
+     *
+     * @param connection 连接
+     * @param reusable   本段语音是否正常结束，只有正常结束的连接才放回池中
+     */
+    public void release(Connection connection, boolean reusable) {
+        connection.detach();
+        int using = inUse.decrementAndGet();
+        if (reusable && !closed && connection.isOpen() && idle.size() + opening.get() + using < poolSize) {
+            idle.offerFirst(connection);
+        } else {
+            connection.closeQuietly();
+            replenish();
+        }
+    }
+
+    /**
+     * 关闭所有空闲连接，不再补充
+     */
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.closeQuietly();
+        }
+    }
+
+    public int getInUseCount() {
+        return inUse.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    private Mono<Connection> open() {
+        Connection connection = new Connection(uri, this);
+        createdCount.incrementAndGet();
+        connection.connect();
+        return Mono.fromFuture(connection.opened)
+                .timeout(Duration.ofMillis(OPEN_TIMEOUT_MS))
+                .doOnError(e -> connection.closeQuietly());
+    }
+
+    /**
+     * 将连接总数（空闲、建立中、借出）补充到poolSize，退避期间不补充
+     */
+    private void replenish() {
+        while (!closed && !reconnectScheduled.get() && idle.size() + opening.get() + inUse.get() < poolSize) {
+            opening.incrementAndGet();
+            Connection connection = new Connection(uri, this);
+            createdCount.incrementAndGet();
+            connection.opened.whenComplete((opened, ex) -> {
+                opening.decrementAndGet();
+                if (ex == null) {
+                    failures.set(0);
+                    if (closed) {
+                        connection.closeQuietly();
+                    } else {
+                        idle.offerLast(connection);
+                    }
+                } else {
+                    connection.closeQuietly();
+                    scheduleReconnect(ex);
+                }
+            });
+            connection.connect();
+        }
+    }
+
+    private void scheduleReconnect(Throwable cause) {
+        if (closed || !reconnectScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        int attempt = failures.incrementAndGet();
+        long backoff = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(attempt - 1, 16));
+        // 在退避时间的一半到全部之间随机取值
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        logger.warn("FunASR连接不可用，{}ms后重连 - 地址: {}, 第{}次, 原因: {}", delay, uri, attempt,
+                cause != null ? cause.getMessage() : "连接关闭");
+        Schedulers.parallel().schedule(() -> {
+            reconnectScheduled.set(false);
+            replenish();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 空闲连接被关闭时调用
+     */
+    private void onIdleClosed(Connection connection, String reason) {
+        if (idle.remove(connection) && !closed) {
+            scheduleReconnect(new IOException(reason));
+        }
+    }
+
+    /**
+     * 单段语音的消息处理器
+     */
+    public interface Handler {
+        void onMessage(String message);
+
+        void onClosed(Exception cause);
+    }
+
+    /**
+     * 到FunASR的一条WebSocket连接
+     */
+    public static class Connection extends WebSocketClient {
+        private final FunASRConnectionManager manager;
+        private final CompletableFuture<Connection> opened = new CompletableFuture<>();
+        private volatile Handler handler;
+
+        Connection(URI uri, FunASRConnectionManager manager) {
+            super(uri);
+            this.manager = manager;
+            setConnectionLostTimeout(CONNECTION_LOST_TIMEOUT_SECONDS);
+        }
+
+        public void attach(Handler handler) {
+            this.handler = handler;
+        }
+
+        void detach() {
+            this.handler = null;
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            opened.complete(this);
+        }
+
+        @Override
+        public void onMessage(String message) {
+            Handler current = handler;
+            if (current != null) {
+                current.onMessage(message);
+            } else {
+                logger.debug("忽略空闲FunASR连接上的消息: {}", message);
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            logger.info("FunASR WS close，code：{}，reason：{}", code, reason);
+            IOException cause = new IOException("FunASR连接已关闭: " + reason);
+            opened.completeExceptionally(cause);
+            Handler current = handler;
+            if (current != null) {
+                current.onClosed(cause);
+            } else {
+                manager.onIdleClosed(this, reason);
+            }
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            logger.info("FunASR WS onError", ex);
+            opened.completeExceptionally(ex);
+            Handler current = handler;
+            if (current != null) {
+                current.onClosed(ex);
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                close();
+            } catch (Exception e) {
+                logger.debug("关闭FunASR连接失败", e);
+            }
+        }
+    }
+}
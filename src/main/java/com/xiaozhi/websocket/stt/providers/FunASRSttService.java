@@ -5,15 +5,15 @@ import com.alibaba.fastjson.JSONObject;
 import com.xiaozhi.entity.SysConfig;
 import com.xiaozhi.websocket.stt.SttService;
 import org.apache.commons.lang3.StringUtils;
-import org.java_websocket.client.WebSocketClient;
-import org.java_websocket.handshake.ServerHandshake;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Sinks;
 import reactor.core.scheduler.Schedulers;
 
-import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * FunASR STT服务实现
@@ -29,13 +29,24 @@ public class FunASRSttService implements SttService {
     private static final Logger logger = LoggerFactory.getLogger(FunASRSttService.class);
     private static final String PROVIDER_NAME = "funasr";
 
-    private static final String SPEAKING_START = "{\"mode\":\"online\",\"wav_name\":\"voice.wav\",\"is_speaking\":true,\"wav_format\":\"pcm\",\"chunk_size\":[5,10,5],\"itn\":true}";
+    public static final String MODE_ONLINE = "online";
+    public static final String MODE_2PASS = "2pass";
+
+    private static final String SPEAKING_START = "{\"mode\":\"%s\",\"wav_name\":\"voice.wav\",\"is_speaking\":true,\"wav_format\":\"pcm\",\"chunk_size\":[5,10,5],\"itn\":true}";
     private static final String SPEAKING_END = "{\"is_speaking\": false}";
 
+    // 发送结束标记后等待最终结果的时间，期间每收到一条消息重新计时
+    private static final long FINAL_WAIT_MS = 3000;
+
     private final String apiUrl;
+    private final String speakingStart;
+    private final FunASRConnectionManager connectionManager;
 
-    public FunASRSttService(SysConfig config) {
+    public FunASRSttService(SysConfig config, String mode, int poolSize) {
         this.apiUrl = config.getApiUrl();
+        this.speakingStart = String.format(SPEAKING_START, MODE_2PASS.equals(mode) ? MODE_2PASS : MODE_ONLINE);
+        this.connectionManager = new FunASRConnectionManager(apiUrl, poolSize);
+        this.connectionManager.warmUp();
     }
 
     @Override
@@ -54,56 +65,154 @@ public class FunASRSttService implements SttService {
         return true;
     }
 
+    /**
+     * 流式识别，每次返回截至当前的完整识别文本（部分结果），最后一个元素为最终结果
+     */
     public Flux<String> streamRecognition(Flux<byte[]> audioStream) {
-        // 创建结果接收器
-        Sinks.Many<String> respSink = Sinks.many().multicast().onBackpressureBuffer();
-
-        WebSocketClient webSocketClient = new WebSocketClient(URI.create(apiUrl)) {
-            @Override
-            public void onOpen(ServerHandshake handshake) {
-                send(SPEAKING_START);
-                audioStream.subscribeOn(Schedulers.boundedElastic())
-                        .subscribe(this::send,
-                                respSink::tryEmitError,
-                                () -> {
-                                    send(SPEAKING_END);
-                                });
-            }
+        return connectionManager.acquire()
+                .flatMapMany(connection -> new Utterance(connection).start(audioStream));
+    }
 
-            @Override
-            public void onMessage(String message) {
-                JSONObject jsonObject = JSON.parseObject(message);
-                if (jsonObject.getBoolean("is_final")) {
-                    respSink.tryEmitNext(jsonObject.getString("text"));
-                    respSink.tryEmitComplete();
+    /**
+     * 关闭连接池，借出的连接在本段语音结束后关闭
+     */
+    @Override
+    public void shutdown() {
+        connectionManager.close();
+    }
+
+    FunASRConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * 在一条借出的连接上进行的一段语音识别
+     * <br/>
+     * online模式下服务端返回增量文本；2pass模式下先返回2pass-online增量文本，
+     * 每个VAD分段结束后返回2pass-offline的修正结果，用来替换该分段的增量文本。
+     */
+    private class Utterance implements FunASRConnectionManager.Handler {
+        private final FunASRConnectionManager.Connection connection;
+        private final Sinks.Many<String> respSink = Sinks.many().multicast().onBackpressureBuffer();
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        // 已确定的文本与当前分段的增量文本，由this保护
+        private final StringBuilder committed = new StringBuilder();
+        private final StringBuilder pending = new StringBuilder();
+        private volatile String lastEmitted = "";
+
+        private volatile boolean endSent;
+        private volatile boolean reusable;
+        private volatile Disposable audioSubscription;
+        private volatile Disposable finalWait;
+
+        Utterance(FunASRConnectionManager.Connection connection) {
+            this.connection = connection;
+        }
+
+        Flux<String> start(Flux<byte[]> audioStream) {
+            connection.attach(this);
+            connection.send(speakingStart);
+            audioSubscription = audioStream.subscribeOn(Schedulers.boundedElastic())
+                    .subscribe(data -> {
+                                if (connection.isOpen()) {
+                                    connection.send(data);
+                                }
+                            },
+                            error -> {
+                                respSink.tryEmitError(error);
+                                finish(false);
+                            },
+                            () -> {
+                                if (connection.isOpen()) {
+                                    connection.send(SPEAKING_END);
+                                }
+                                endSent = true;
+                                scheduleFinalWait();
+                            });
+            return respSink.asFlux()
+                    .doFinally(signal -> {
+                        Disposable subscription = audioSubscription;
+                        if (subscription != null) {
+                            subscription.dispose();
+                        }
+                        Disposable wait = finalWait;
+                        if (wait != null) {
+                            wait.dispose();
+                        }
+                        connectionManager.release(connection, reusable && finished.get());
+                    });
+        }
+
+        @Override
+        public void onMessage(String message) {
+            JSONObject jsonObject;
+            try {
+                jsonObject = JSON.parseObject(message);
+            } catch (Exception e) {
+                logger.warn("无法解析FunASR消息: {}", message);
+                return;
+            }
+            String mode = jsonObject.getString("mode");
+            String text = jsonObject.getString("text");
+            String current;
+            synchronized (this) {
+                if (text != null && !text.isEmpty()) {
+                    if ("2pass-offline".equals(mode) || "offline".equals(mode)) {
+                        committed.append(text);
+                        pending.setLength(0);
+                    } else {
+                        pending.append(text);
+                    }
+                }
+                current = committed.toString() + pending;
+                if (current.isEmpty() || current.equals(lastEmitted)) {
+                    current = null;
+                } else {
+                    lastEmitted = current;
                 }
             }
-
-            @Override
-            public void onClose(int code, String reason, boolean remote) {
-                logger.info("FunASR WS close，reason：{}", reason);
+            if (current != null) {
+                respSink.tryEmitNext(current);
             }
-
-            @Override
-            public void onError(Exception ex) {
-                logger.info("FunASR WS onError", ex);
-                respSink.tryEmitError(ex);
+            if (endSent) {
+                if (jsonObject.getBooleanValue("is_final")) {
+                    finish(true);
+                } else {
+                    scheduleFinalWait();
+                }
             }
-        };
+        }
 
-        webSocketClient.connect();
+        @Override
+        public void onClosed(Exception cause) {
+            if (finished.get()) {
+                return;
+            }
+            // 已发送结束标记且拿到了文本，按正常结束处理；否则向上游报错
+            if (endSent && !lastEmitted.isEmpty()) {
+                finish(false);
+            } else if (finished.compareAndSet(false, true)) {
+                respSink.tryEmitError(cause);
+            }
+        }
+
+        /**
+         * 服务端未返回is_final时，最后一条消息之后安静FINAL_WAIT_MS即视为识别结束
+         */
+        private void scheduleFinalWait() {
+            Disposable previous = finalWait;
+            if (previous != null) {
+                previous.dispose();
+            }
+            finalWait = Schedulers.parallel().schedule(() -> finish(true), FINAL_WAIT_MS, TimeUnit.MILLISECONDS);
+        }
 
-        return respSink.asFlux()
-                .doOnCancel(() -> {
-                    if (webSocketClient.isOpen()) {
-                        webSocketClient.close();
-                    }
-                })
-                .doOnTerminate(() -> {
-                    if (webSocketClient.isOpen()) {
-                        webSocketClient.close();
-                    }
-                });
+        private void finish(boolean clean) {
+            if (finished.compareAndSet(false, true)) {
+                reusable = clean;
+                respSink.tryEmitComplete();
+            }
+        }
     }
-
 }
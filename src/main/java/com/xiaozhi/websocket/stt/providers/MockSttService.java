@@ -0,0 +1,88 @@
+package com.xiaozhi.websocket.stt.providers;
+
+import com.xiaozhi.entity.SysConfig;
+import com.xiaozhi.utils.AudioUtils;
+import com.xiaozhi.utils.LatencyProfile;
+import com.xiaozhi.websocket.stt.SttService;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 模拟语音识别服务，不识别音频，固定返回配置的文本，用于离线测试和压测
+ * <br/>
+ * 参数（配置的apiUrl，见LatencyProfile）：
+ * text 识别结果；latency 音频结束到给出最终结果的延迟（毫秒，默认200）；jitter 延迟抖动（毫秒，默认0）；seed 随机种子。
+ * 流式识别时每收到0.5秒音频给出一次部分结果（最终文本的前缀）。
+ */
+public class MockSttService implements SttService {
+
+    private static final String PROVIDER_NAME = "mock";
+
+    private static final String DEFAULT_TEXT = "你好，今天天气怎么样";
+
+    // 每0.5秒音频给出一次部分结果（16kHz、16位、单声道）
+    private static final int PARTIAL_BYTES = AudioUtils.SAMPLE_RATE;
+
+    // 每次部分结果增加的字数
+    private static final int PARTIAL_STEP = 2;
+
+    private final LatencyProfile profile;
+    private final String text;
+    private final long latency;
+    private final long jitter;
+
+    public MockSttService(SysConfig config) {
+        this.profile = LatencyProfile.parse(config.getApiUrl());
+        this.text = profile.getString("text", DEFAULT_TEXT);
+        this.latency = profile.getLong("latency", 200);
+        this.jitter = profile.getLong("jitter", 0);
+    }
+
+    @Override
+    public String getProviderName() {
+        return PROVIDER_NAME;
+    }
+
+    @Override
+    public String recognition(byte[] audioData) {
+        if (audioData == null || audioData.length == 0) {
+            return null;
+        }
+        LatencyProfile.sleep(profile.nextDelay(latency, jitter));
+        return text;
+    }
+
+    @Override
+    public Flux<String> streamRecognition(Flux<byte[]> audioStream) {
+        AtomicLong received = new AtomicLong();
+        return audioStream
+                .map(chunk -> received.addAndGet(chunk.length) / PARTIAL_BYTES)
+                .distinctUntilChanged()
+                .filter(count -> count > 0)
+                .map(this::partialText)
+                .filter(partial -> !partial.isEmpty())
+                .concatWith(Mono.defer(() -> {
+                    if (received.get() == 0) {
+                        return Mono.just("");
+                    }
+                    return Mono.delay(Duration.ofMillis(profile.nextDelay(latency, jitter))).thenReturn(text);
+                }));
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    /**
+     * 第count个部分结果，始终比最终文本短
+     */
+    private String partialText(long count) {
+        int length = (int) Math.min(count * PARTIAL_STEP, text.length() - 1);
+        return length > 0 ? text.substring(0, length) : "";
+    }
+}
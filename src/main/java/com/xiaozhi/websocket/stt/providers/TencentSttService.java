@@ -11,6 +11,7 @@ import com.tencent.core.ws.Credential;
 import com.tencent.core.ws.SpeechClient;
 import com.xiaozhi.entity.SysConfig;
 import com.xiaozhi.utils.AudioUtils;
+import com.xiaozhi.utils.ProviderExecutors;
 import com.xiaozhi.websocket.stt.SttService;
 
 import okhttp3.MediaType;
@@ -209,48 +210,57 @@ public class TencentSttService implements SttService {
             // 存储到活跃识别器映射中
             activeRecognizers.put(voiceId, recognizer);
 
-            // 启动识别器
-            recognizer.start();
+            // start()等待握手完成、stop()等待最终结果，都会阻塞线程，交给服务商执行器（可切换为虚拟线程）
+            ProviderExecutors.scheduler().schedule(() -> {
+                try {
+                    recognizer.start();
+                } catch (Exception e) {
+                    logger.error("启动语音识别失败 - VoiceId: {}", voiceId, e);
+                    activeRecognizers.remove(voiceId);
+                    resultSink.tryEmitError(e);
+                    return;
+                }
 
-            // 标记是否已经发送了停止信号
-            AtomicBoolean stopSent = new AtomicBoolean(false);
+                // 标记是否已经发送了停止信号
+                AtomicBoolean stopSent = new AtomicBoolean(false);
 
-            // 订阅音频流并发送数据
-            audioStream.subscribe(
-                    data -> {
-                        try {
-                            if (activeRecognizers.containsKey(voiceId)) {
-                                recognizer.write(data);
-                            }
-                        } catch (Exception e) {
-                            logger.error("发送音频数据时发生错误 - VoiceId: {}", voiceId, e);
-                            resultSink.tryEmitError(e);
-                        }
-                    },
-                    error -> {
-                        logger.error("音频流错误 - VoiceId: {}", voiceId, error);
-                        resultSink.tryEmitError(error);
-                        if (activeRecognizers.containsKey(voiceId)) {
-                            try {
-                                recognizer.stop();
-                            } catch (Exception e) {
-                                logger.error("停止识别器时发生错误 - VoiceId: {}", voiceId, e);
-                            } finally {
-                                recognizer.close();
-                                activeRecognizers.remove(voiceId);
-                            }
-                        }
-                    },
-                    () -> {
-                        if (activeRecognizers.containsKey(voiceId) && !stopSent.getAndSet(true)) {
+                // 订阅音频流并发送数据
+                audioStream.publishOn(ProviderExecutors.scheduler()).subscribe(
+                        data -> {
                             try {
-                                recognizer.stop();
+                                if (activeRecognizers.containsKey(voiceId)) {
+                                    recognizer.write(data);
+                                }
                             } catch (Exception e) {
-                                logger.error("停止识别器时发生错误 - VoiceId: {}", voiceId, e);
+                                logger.error("发送音频数据时发生错误 - VoiceId: {}", voiceId, e);
                                 resultSink.tryEmitError(e);
                             }
-                        }
-                    });
+                        },
+                        error -> {
+                            logger.error("音频流错误 - VoiceId: {}", voiceId, error);
+                            resultSink.tryEmitError(error);
+                            if (activeRecognizers.containsKey(voiceId)) {
+                                try {
+                                    recognizer.stop();
+                                } catch (Exception e) {
+                                    logger.error("停止识别器时发生错误 - VoiceId: {}", voiceId, e);
+                                } finally {
+                                    recognizer.close();
+                                    activeRecognizers.remove(voiceId);
+                                }
+                            }
+                        },
+                        () -> {
+                            if (activeRecognizers.containsKey(voiceId) && !stopSent.getAndSet(true)) {
+                                try {
+                                    recognizer.stop();
+                                } catch (Exception e) {
+                                    logger.error("停止识别器时发生错误 - VoiceId: {}", voiceId, e);
+                                    resultSink.tryEmitError(e);
+                                }
+                            }
+                        });
+            });
 
         } catch (Exception e) {
             logger.error("创建语音识别会话时发生错误", e);
@@ -261,6 +271,7 @@ public class TencentSttService implements SttService {
     }
 
     // 在服务关闭时释放资源
+    @Override
     public void shutdown() {
         // 关闭所有活跃的识别器
         activeRecognizers.forEach((id, recognizer) -> {
@@ -1,6 +1,6 @@
 package com.xiaozhi.websocket.stt.providers;
 
-import java.io.ByteArrayInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import javax.annotation.PostConstruct;
 
@@ -18,8 +18,6 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
-import org.json.JSONObject;
-
 /**
  * Vosk STT服务实现
  */
@@ -28,10 +26,19 @@ public class VoskSttService implements SttService {
     private static final Logger logger = LoggerFactory.getLogger(VoskSttService.class);
     private static final String PROVIDER_NAME = "vosk";
 
+    // 识别器池最多保留的空闲识别器数量
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // 单次识别时每次送入的音频字节数
+    private static final int CHUNK_SIZE = 4096;
+
     // Vosk模型相关对象
     private Model model;
     private String voskModelPath;
 
+    // 空闲识别器池，识别器reset后复用，避免每段语音都创建原生识别器
+    private final ArrayBlockingQueue<Recognizer> idleRecognizers = new ArrayBlockingQueue<>(POOL_SIZE);
+
     /**
      * 初始化Vosk模型
      */
@@ -75,87 +82,186 @@ public class VoskSttService implements SttService {
             return null;
         }
 
-        // 将原始音频数据转换为MP3格式并保存
-        String fileName = AudioUtils.saveAsWav(audioData);
-
-        try (Recognizer recognizer = new Recognizer(model, AudioUtils.SAMPLE_RATE)) {
-            ByteArrayInputStream audioStream = new ByteArrayInputStream(audioData);
-
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-
-            while ((bytesRead = audioStream.read(buffer)) != -1) {
-                if (recognizer.acceptWaveForm(buffer, bytesRead)) {
+        RecognizerLease lease = null;
+        try {
+            lease = borrow();
+            for (int offset = 0; offset < audioData.length; offset += CHUNK_SIZE) {
+                int length = Math.min(CHUNK_SIZE, audioData.length - offset);
+                byte[] chunk = new byte[length];
+                System.arraycopy(audioData, offset, chunk, 0, length);
+                String result = lease.accept(chunk);
+                if (result != null) {
                     // 如果识别到完整的结果
-                    return recognizer.getResult().replaceAll("\\s+", "");
+                    return result;
                 }
             }
 
             // 返回最终的识别结果
-            return recognizer.getFinalResult().replaceAll("\\s+", "");
-
+            return lease.finish();
         } catch (Exception e) {
             logger.error("处理音频时发生错误！", e);
             return null;
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
         }
     }
 
     @Override
     public Flux<String> streamRecognition(Flux<byte[]> audioStream) {
-        return Mono.fromCallable(() -> new Recognizer(model, AudioUtils.SAMPLE_RATE))
-                .flatMapMany(recognizer -> {
-                    return audioStream
-                            .publishOn(Schedulers.boundedElastic())
-                            .map(audioChunk -> {
-                                try {
-                                    boolean hasResult = recognizer.acceptWaveForm(audioChunk, audioChunk.length);
-                                    if (hasResult) {
-                                        // 提取部分识别结果中的文本
-                                        String result = recognizer.getResult();
-                                        JSONObject jsonResult = new JSONObject(result);
-                                        if (jsonResult.has("text") && !jsonResult.getString("text").isEmpty()) {
-                                            return jsonResult.getString("text").replaceAll("\\s+", "");
-                                        }
-                                    } else {
-                                        // 获取部分识别结果
-                                        String partialResult = recognizer.getPartialResult();
-                                        JSONObject jsonPartial = new JSONObject(partialResult);
-                                        if (jsonPartial.has("partial") && !jsonPartial.getString("partial").isEmpty()) {
-                                            return jsonPartial.getString("partial").replaceAll("\\s+", "");
-                                        }
-                                    }
-                                    return "";
-                                } catch (Exception e) {
-                                    logger.error("流式识别处理音频块时发生错误", e);
-                                    return "";
-                                }
-                            })
-                            .filter(text -> !text.isEmpty())
-                            .concatWith(Mono.fromSupplier(() -> {
-                                try {
-                                    // 流结束时获取最终结果
-                                    String finalResult = recognizer.getFinalResult().replaceAll("\\s+", "");
-                                    JSONObject jsonFinal = new JSONObject(finalResult);
-
-                                    recognizer.close();
-                                    return jsonFinal.getString("text").replaceAll("\\s+", "");
-                                } catch (Exception e) {
-                                    logger.error("获取最终识别结果时发生错误", e);
-                                    return "";
-                                }
-                            }))
-                            .doOnError(e -> {
-                                logger.error("流式识别过程中发生错误", e);
-                                try {
-                                    recognizer.close();
-                                } catch (Exception ex) {
-                                    logger.error("关闭识别器时发生错误", ex);
+        return Flux.using(this::borrow,
+                lease -> audioStream
+                        .publishOn(Schedulers.boundedElastic())
+                        .map(audioChunk -> {
+                            try {
+                                String result = lease.accept(audioChunk);
+                                if (result != null) {
+                                    return result;
                                 }
-                            });
-                })
+                                // 获取部分识别结果
+                                return lease.partial();
+                            } catch (Exception e) {
+                                logger.error("流式识别处理音频块时发生错误", e);
+                                return "";
+                            }
+                        })
+                        .filter(text -> !text.isEmpty())
+                        .concatWith(Mono.fromSupplier(() -> {
+                            try {
+                                // 流结束时获取最终结果
+                                return lease.finish();
+                            } catch (Exception e) {
+                                logger.error("获取最终识别结果时发生错误", e);
+                                return "";
+                            }
+                        }))
+                        .doOnError(e -> logger.error("流式识别过程中发生错误", e)),
+                RecognizerLease::release)
                 .onErrorResume(e -> {
                     logger.error("创建Vosk识别器时发生错误", e);
                     return Flux.empty();
                 });
     }
+
+    /**
+     * 关闭池中的空闲识别器
+     */
+    @Override
+    public void shutdown() {
+        Recognizer recognizer;
+        while ((recognizer = idleRecognizers.poll()) != null) {
+            recognizer.close();
+        }
+    }
+
+    /**
+     * 从池中借出识别器，池为空时新建
+     */
+    private RecognizerLease borrow() throws Exception {
+        Recognizer recognizer = idleRecognizers.poll();
+        if (recognizer == null) {
+            recognizer = new Recognizer(model, AudioUtils.SAMPLE_RATE);
+        }
+        return new RecognizerLease(recognizer);
+    }
+
+    /**
+     * 识别器的一次借用
+     * 流被取消时release可能与map中的识别调用并发，因此对识别器的所有操作都在同一把锁内，
+     * 归还后的调用直接返回空结果，保证识别器不会被两段语音同时使用
+     */
+    private class RecognizerLease {
+        private final Recognizer recognizer;
+        private boolean released;
+
+        RecognizerLease(Recognizer recognizer) {
+            this.recognizer = recognizer;
+        }
+
+        /**
+         * 送入音频，有完整结果时返回文本，否则返回null
+         */
+        synchronized String accept(byte[] audioChunk) {
+            if (released) {
+                return "";
+            }
+            if (recognizer.acceptWaveForm(audioChunk, audioChunk.length)) {
+                return extractText(recognizer.getResult(), "text");
+            }
+            return null;
+        }
+
+        synchronized String partial() {
+            if (released) {
+                return "";
+            }
+            return extractText(recognizer.getPartialResult(), "partial");
+        }
+
+        synchronized String finish() {
+            if (released) {
+                return "";
+            }
+            return extractText(recognizer.getFinalResult(), "text");
+        }
+
+        synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            try {
+                recognizer.reset();
+                if (idleRecognizers.offer(recognizer)) {
+                    return;
+                }
+            } catch (Exception e) {
+                logger.warn("重置Vosk识别器失败，直接关闭: {}", e.getMessage());
+            }
+            recognizer.close();
+        }
+    }
+
+    /**
+     * 从Vosk的结果JSON中取出指定字段的文本并去掉空白
+     * Vosk结果的格式固定为 {"text" : "..."} 或 {"partial" : "..."}，这里直接扫描字符串，
+     * 避免每个部分结果都构建一个JSONObject
+     */
+    static String extractText(String json, String field) {
+        if (json == null) {
+            return "";
+        }
+        int keyIndex = json.indexOf("\"" + field + "\"");
+        if (keyIndex < 0) {
+            return "";
+        }
+        int colon = json.indexOf(':', keyIndex + field.length() + 2);
+        int start = colon < 0 ? -1 : json.indexOf('"', colon + 1);
+        if (start < 0) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = start + 1; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\' && i + 1 < json.length()) {
+                char next = json.charAt(++i);
+                if (next == 'u' && i + 4 < json.length()) {
+                    c = (char) Integer.parseInt(json.substring(i + 1, i + 5), 16);
+                    i += 4;
+                } else if (next == 'n' || next == 't' || next == 'r') {
+                    continue;
+                } else {
+                    c = next;
+                }
+            }
+            if (!Character.isWhitespace(c)) {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
 }
@@ -0,0 +1,235 @@
+package com.xiaozhi.websocket.trace;
+
+import com.xiaozhi.utils.JsonUtil;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对话链路导出器
+ * <br/>
+ * 把每轮对话转换为一个OpenTelemetry Span（各阶段作为Span事件），按OTLP/JSON格式批量导出：
+ * file模式每批追加一行到本地文件，otlp模式POST到Collector的/v1/traces接口。
+ * 导出在单独的线程上进行，队列满时丢弃，不影响对话处理。
+ */
+@Component
+public class TraceExporter {
+    private static final Logger logger = LoggerFactory.getLogger(TraceExporter.class);
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private static final String EXPORTER_FILE = "file";
+    private static final String EXPORTER_OTLP = "otlp";
+
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final int BATCH_SIZE = 200;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    // none、file或otlp
+    @Value("${app.trace.exporter:none}")
+    private String exporter;
+
+    @Value("${app.trace.file:logs/turn-traces.jsonl}")
+    private String filePath;
+
+    @Value("${app.trace.otlp-endpoint:http://localhost:4318/v1/traces}")
+    private String otlpEndpoint;
+
+    @Value("${app.trace.service-name:xiaozhi-server}")
+    private String serviceName;
+
+    private final BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .connectTimeout(5, TimeUnit.SECONDS)
+            .readTimeout(5, TimeUnit.SECONDS)
+            .writeTimeout(5, TimeUnit.SECONDS)
+            .build();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "trace-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        logger.info("对话链路导出已开启 - 方式: {}, 目标: {}", exporter,
+                EXPORTER_FILE.equals(exporter) ? filePath : otlpEndpoint);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            flush();
+        }
+    }
+
+    public boolean isEnabled() {
+        return EXPORTER_FILE.equals(exporter) || EXPORTER_OTLP.equals(exporter);
+    }
+
+    /**
+     * 提交一轮对话的链路记录
+     */
+    public void export(TurnTrace trace, long endTime, boolean aborted) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!queue.offer(toSpan(trace, endTime, aborted))) {
+            logger.debug("链路导出队列已满，丢弃 - DialogueId: {}", trace.getDialogueId());
+        }
+    }
+
+    private synchronized void flush() {
+        while (!queue.isEmpty()) {
+            List<Map<String, Object>> spans = new ArrayList<>(BATCH_SIZE);
+            queue.drainTo(spans, BATCH_SIZE);
+            try {
+                String body = JsonUtil.toJson(toRequest(spans));
+                if (EXPORTER_FILE.equals(exporter)) {
+                    writeFile(body);
+                } else {
+                    post(body);
+                }
+            } catch (Exception e) {
+                // 导出失败不重试，避免堆积
+                logger.warn("导出对话链路失败 - 方式: {}, Span数: {}, 错误: {}", exporter, spans.size(), e.getMessage());
+            }
+        }
+    }
+
+    private void writeFile(String body) throws Exception {
+        File file = new File(filePath);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(body);
+            writer.write('\n');
+        }
+    }
+
+    private void post(String body) throws Exception {
+        Request request = new Request.Builder()
+                .url(otlpEndpoint)
+                .post(RequestBody.create(body, JSON))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                logger.warn("Collector返回错误 - {}: {}", response.code(), response.message());
+            }
+        }
+    }
+
+    /**
+     * 一轮对话对应一个Span：从检测到语音开始到最后一帧发送（或对话结束）
+     */
+    private Map<String, Object> toSpan(TurnTrace trace, long endTime, boolean aborted) {
+        List<Map<String, Object>> attributes = new ArrayList<>();
+        addAttribute(attributes, "dialogue.id", trace.getDialogueId());
+        addAttribute(attributes, "session.id", trace.getSessionId());
+        addAttribute(attributes, "device.id", trace.getDeviceId());
+        addAttribute(attributes, "provider.stt", trace.getSttProvider());
+        addAttribute(attributes, "provider.llm", trace.getLlmProvider());
+        addAttribute(attributes, "provider.tts", trace.getTtsProvider());
+        if (aborted) {
+            addAttribute(attributes, "dialogue.aborted", "true");
+        }
+
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (TurnTrace.Stage stage : TurnTrace.Stage.values()) {
+            if (trace.has(stage)) {
+                Map<String, Object> event = new LinkedHashMap<>();
+                event.put("timeUnixNano", toNanos(trace.getTime(stage)));
+                event.put("name", stage.getKey());
+                events.add(event);
+            }
+        }
+
+        Map<String, Object> span = new LinkedHashMap<>();
+        span.put("traceId", randomHex(16));
+        span.put("spanId", randomHex(8));
+        span.put("name", "dialogue.turn");
+        span.put("kind", 2); // SPAN_KIND_SERVER
+        span.put("startTimeUnixNano", toNanos(trace.getStartTime()));
+        span.put("endTimeUnixNano", toNanos(endTime));
+        span.put("attributes", attributes);
+        span.put("events", events);
+        return span;
+    }
+
+    private Map<String, Object> toRequest(List<Map<String, Object>> spans) {
+        List<Map<String, Object>> resourceAttributes = new ArrayList<>();
+        addAttribute(resourceAttributes, "service.name", serviceName);
+        Map<String, Object> resource = new LinkedHashMap<>();
+        resource.put("attributes", resourceAttributes);
+
+        Map<String, Object> scope = new LinkedHashMap<>();
+        scope.put("name", "com.xiaozhi.trace");
+        Map<String, Object> scopeSpans = new LinkedHashMap<>();
+        scopeSpans.put("scope", scope);
+        scopeSpans.put("spans", spans);
+
+        Map<String, Object> resourceSpans = new LinkedHashMap<>();
+        resourceSpans.put("resource", resource);
+        resourceSpans.put("scopeSpans", Collections.singletonList(scopeSpans));
+        return Collections.singletonMap("resourceSpans", Collections.singletonList(resourceSpans));
+    }
+
+    private static void addAttribute(List<Map<String, Object>> attributes, String key, String value) {
+        if (value == null) {
+            return;
+        }
+        Map<String, Object> attribute = new LinkedHashMap<>();
+        attribute.put("key", key);
+        attribute.put("value", Collections.singletonMap("stringValue", value));
+        attributes.add(attribute);
+    }
+
+    private static String toNanos(long millis) {
+        // OTLP/JSON中64位整数用字符串表示
+        return String.valueOf(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder sb = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++) {
+            sb.append(String.format("%02x", random.nextInt(256)));
+        }
+        return sb.toString();
+    }
+}
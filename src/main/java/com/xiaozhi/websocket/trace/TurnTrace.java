@@ -0,0 +1,113 @@
+package com.xiaozhi.websocket.trace;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 一轮对话的链路记录
+ * <br/>
+ * 从检测到用户开始说话起，记录各阶段第一次发生的时间（毫秒时间戳），最后一帧发送时间取最新值。
+ */
+public class TurnTrace {
+
+    /**
+     * 对话阶段，按正常顺序排列
+     */
+    public enum Stage {
+        SPEECH_END("vad_speech_end"), // VAD检测到语音结束
+        STT_FINAL("stt_final"), // 语音识别得到最终结果
+        LLM_FIRST_TOKEN("llm_first_token"), // 大模型返回第一个token
+        FIRST_SENTENCE("first_sentence"), // 切分出第一个句子
+        FIRST_TTS_AUDIO("first_tts_audio"), // 第一段合成音频就绪
+        FIRST_FRAME_SENT("first_frame_sent"), // 第一帧Opus发送给设备
+        LAST_FRAME_SENT("last_frame_sent"); // 最后一帧Opus发送给设备
+
+        private final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private final String sessionId;
+    private final String deviceId;
+    private final String sttProvider;
+    private final String llmProvider;
+    private final String ttsProvider;
+
+    // 检测到语音开始的时间
+    private final long startTime = System.currentTimeMillis();
+
+    private final AtomicLongArray stages = new AtomicLongArray(Stage.values().length);
+
+    private volatile String dialogueId;
+
+    public TurnTrace(String sessionId, String deviceId, String sttProvider, String llmProvider,
+            String ttsProvider) {
+        this.sessionId = sessionId;
+        this.deviceId = deviceId;
+        this.sttProvider = sttProvider;
+        this.llmProvider = llmProvider;
+        this.ttsProvider = ttsProvider;
+    }
+
+    /**
+     * 记录阶段时间，已记录过的阶段不覆盖
+     */
+    public void mark(Stage stage) {
+        stages.compareAndSet(stage.ordinal(), 0, System.currentTimeMillis());
+    }
+
+    /**
+     * 记录阶段时间，覆盖之前的记录
+     */
+    public void update(Stage stage) {
+        stages.set(stage.ordinal(), System.currentTimeMillis());
+    }
+
+    /**
+     * 阶段发生的时间，未发生时返回0
+     */
+    public long getTime(Stage stage) {
+        return stages.get(stage.ordinal());
+    }
+
+    public boolean has(Stage stage) {
+        return getTime(stage) > 0;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public String getSttProvider() {
+        return sttProvider;
+    }
+
+    public String getLlmProvider() {
+        return llmProvider;
+    }
+
+    public String getTtsProvider() {
+        return ttsProvider;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public String getDialogueId() {
+        return dialogueId;
+    }
+
+    public void setDialogueId(String dialogueId) {
+        this.dialogueId = dialogueId;
+    }
+}
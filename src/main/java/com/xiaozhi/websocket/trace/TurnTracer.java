@@ -0,0 +1,153 @@
+package com.xiaozhi.websocket.trace;
+
+import com.xiaozhi.entity.SysConfig;
+import com.xiaozhi.entity.SysDevice;
+import com.xiaozhi.websocket.service.SessionManager;
+import com.xiaozhi.websocket.trace.TurnTrace.Stage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对话链路追踪
+ * <br/>
+ * 每个会话同一时间只跟踪一轮对话：检测到语音开始时创建记录，各环节调用mark记录阶段时间，
+ * 回复播放完成或对话中止时结束。结束时把各阶段相对语音结束的延迟记入直方图
+ * （xiaozhi.turn.latency，按阶段和STT/LLM/TTS服务商分组），并交给TraceExporter导出。
+ * dialogueId和设备ID只出现在导出的链路中，不作为指标标签，避免标签数量无限增长。
+ */
+@Service
+public class TurnTracer {
+    private static final Logger logger = LoggerFactory.getLogger(TurnTracer.class);
+
+    private static final String UNKNOWN = "unknown";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private TraceExporter traceExporter;
+
+    // 每个会话当前跟踪的对话
+    private final ConcurrentHashMap<String, TurnTrace> traces = new ConcurrentHashMap<>();
+
+    /**
+     * 检测到语音开始，开始跟踪新一轮对话；上一轮还未结束时先结束上一轮
+     */
+    public void begin(String sessionId, SysDevice device, SysConfig sttConfig, SysConfig ttsConfig) {
+        SysConfig llmConfig = device.getModelId() != null ? sessionManager.getCachedConfig(device.getModelId()) : null;
+        TurnTrace trace = new TurnTrace(sessionId, device.getDeviceId(),
+                provider(sttConfig, "vosk"), provider(llmConfig, UNKNOWN), provider(ttsConfig, "edge"));
+        TurnTrace previous = traces.put(sessionId, trace);
+        if (previous != null) {
+            complete(previous, true);
+        }
+    }
+
+    /**
+     * 记录本轮对话的ID
+     */
+    public void setDialogueId(String sessionId, String dialogueId) {
+        TurnTrace trace = traces.get(sessionId);
+        if (trace != null) {
+            trace.setDialogueId(dialogueId);
+        }
+    }
+
+    /**
+     * 记录阶段第一次发生的时间，会话当前没有跟踪的对话时忽略
+     */
+    public void mark(String sessionId, Stage stage) {
+        TurnTrace trace = traces.get(sessionId);
+        if (trace != null) {
+            trace.mark(stage);
+        }
+    }
+
+    /**
+     * 发送了一帧Opus音频
+     */
+    public void frameSent(String sessionId) {
+        TurnTrace trace = traces.get(sessionId);
+        if (trace != null) {
+            trace.mark(Stage.FIRST_FRAME_SENT);
+            trace.update(Stage.LAST_FRAME_SENT);
+        }
+    }
+
+    /**
+     * 回复播放完成，结束本轮跟踪
+     */
+    public void finish(String sessionId) {
+        TurnTrace trace = traces.remove(sessionId);
+        if (trace != null) {
+            complete(trace, false);
+        }
+    }
+
+    /**
+     * 对话中止，结束本轮跟踪
+     */
+    public void abort(String sessionId) {
+        TurnTrace trace = traces.remove(sessionId);
+        if (trace != null) {
+            complete(trace, true);
+        }
+    }
+
+    /**
+     * 没有识别出内容，放弃本轮跟踪
+     */
+    public void discard(String sessionId) {
+        traces.remove(sessionId);
+    }
+
+    private void complete(TurnTrace trace, boolean aborted) {
+        // 没有得到识别结果的语音不算一轮对话
+        if (!trace.has(Stage.STT_FINAL)) {
+            return;
+        }
+        long speechEnd = trace.has(Stage.SPEECH_END) ? trace.getTime(Stage.SPEECH_END) : trace.getTime(Stage.STT_FINAL);
+        StringBuilder summary = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            if (stage == Stage.SPEECH_END || !trace.has(stage)) {
+                continue;
+            }
+            // 提前发起的LLM调用可能早于语音结束，按0计
+            long latency = Math.max(0, trace.getTime(stage) - speechEnd);
+            timer(trace, stage).record(latency, TimeUnit.MILLISECONDS);
+            summary.append(", ").append(stage.getKey()).append(": ").append(latency).append("ms");
+        }
+        long endTime = trace.has(Stage.LAST_FRAME_SENT) ? trace.getTime(Stage.LAST_FRAME_SENT)
+                : System.currentTimeMillis();
+        logger.info("对话链路 - DialogueId: {}, 中止: {}{}", trace.getDialogueId(), aborted, summary);
+        traceExporter.export(trace, endTime, aborted);
+    }
+
+    private Timer timer(TurnTrace trace, Stage stage) {
+        // 同名同标签的Timer只注册一次，之后直接返回已注册的实例
+        return Timer.builder("xiaozhi.turn.latency")
+                .description("语音结束到各对话阶段的延迟")
+                .tag("stage", stage.getKey())
+                .tag("stt", trace.getSttProvider())
+                .tag("llm", trace.getLlmProvider())
+                .tag("tts", trace.getTtsProvider())
+                .publishPercentileHistogram()
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(meterRegistry);
+    }
+
+    private static String provider(SysConfig config, String defaultProvider) {
+        return config != null && config.getProvider() != null ? config.getProvider() : defaultProvider;
+    }
+}
@@ -0,0 +1,69 @@
+package com.xiaozhi.websocket.transport;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * 设备会话，屏蔽具体的传输方式
+ * <br/>
+ * 对话、音频等服务只通过该接口与设备交互：控制消息（JSON）和音频帧分别发送，由传输层决定如何写出。
+ * 目前有两种实现：WebSocket（控制消息和音频在同一个连接上），以及MQTT+UDP（控制消息走MQTT，音频走加密UDP）。
+ */
+public interface DeviceSession {
+
+    /**
+     * 服务重启，设备应稍后重连（对应WebSocket关闭码1012）
+     */
+    int CLOSE_SERVICE_RESTARTED = 1012;
+
+    /**
+     * 服务过载，设备应退避后重连（对应WebSocket关闭码1013）
+     */
+    int CLOSE_SERVICE_OVERLOAD = 1013;
+
+    /**
+     * 会话ID，在服务端唯一
+     */
+    String getId();
+
+    /**
+     * 传输方式，与hello消息中的transport字段一致：websocket | udp
+     */
+    String getTransport();
+
+    boolean isOpen();
+
+    /**
+     * 发送控制消息
+     *
+     * @param utf8 UTF-8编码的JSON
+     * @return 消息交给传输层后完成
+     */
+    Mono<Void> sendText(byte[] utf8);
+
+    /**
+     * 发送一帧Opus音频
+     *
+     * @return 帧交给传输层或因积压被丢弃后完成
+     */
+    Mono<Void> sendAudio(byte[] opusFrame);
+
+    /**
+     * 在hello回复中填写与传输方式相关的字段，如transport和UDP的地址、密钥
+     */
+    void fillHello(ObjectNode hello);
+
+    /**
+     * 关闭会话
+     */
+    Mono<Void> close();
+
+    /**
+     * 关闭会话并说明原因
+     *
+     * @param code   关闭码，见CLOSE_*常量
+     * @param reason 原因
+     */
+    Mono<Void> close(int code, String reason);
+}
@@ -0,0 +1,307 @@
+package com.xiaozhi.websocket.transport;
+
+import cn.hutool.core.util.HexUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reactor.core.publisher.Mono;
+import reactor.netty.channel.AbortedException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MQTT+UDP传输，控制消息通过MQTT发布，音频通过加密UDP收发
+ * <br/>
+ * 每个MQTT连接对应一个会话。设备每次打开音频通道都会发送hello，服务端在回复中下发UDP地址、密钥和nonce，
+ * 设备发送的第一个有效UDP包确定下行地址；goodbye或新的hello会重置音频通道。
+ * AES-CTR没有完整性校验、ssrc在包头中明文传输，任何人都能构造出能解密的包，因此：
+ * 单个包的序号跳跃有上限；来自MQTT对端IP以外的新地址或超过上限的跳号，需要同一地址连续多个有效包确认后才接受，
+ * 确认前的包不改变序号和下行地址，伪造的包无法让会话拒收正常音频或把下行音频引走。
+ * 下行音频不排队：地址未知或UDP通道写不动时直接丢弃该帧，丢包由Opus解码端处理，不会让播放越来越滞后。
+ */
+public class MqttUdpDeviceSession implements DeviceSession {
+    private static final Logger logger = LoggerFactory.getLogger(MqttUdpDeviceSession.class);
+
+    public static final String TRANSPORT = "udp";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // 单个包允许的最大序号跳跃，60ms一帧约1分钟
+    private static final long MAX_SEQUENCE_JUMP = 1000;
+
+    // 新地址或超过上限的跳号需要连续多少个有效包确认
+    private static final int CONFIRM_PACKETS = 3;
+
+    // 确认窗口内相邻两个包的最大序号间隔
+    private static final long MAX_CONFIRM_GAP = 10;
+
+    private final String id;
+    private final String deviceId;
+    private final Channel mqttChannel;
+    private final Channel udpChannel;
+    private final String udpHost;
+    private final int udpPort;
+    private final int ssrc;
+    private final byte[] key;
+    private final long startTime = System.currentTimeMillis();
+
+    // MQTT连接的对端IP，来自该IP的地址变化（如NAT重新映射端口）直接接受
+    private final InetAddress peerAddress;
+
+    // 由this保护
+    private final UdpAudioCipher cipher;
+    private long remoteSequence = -1;
+
+    // 待确认的地址和序号，由this保护
+    private InetSocketAddress candidateAddress;
+    private long candidateSequence;
+    private int candidateCount;
+
+    private volatile String replyTopic;
+    private volatile InetSocketAddress remoteAddress;
+    private final AtomicLong localSequence = new AtomicLong();
+
+    // 统计信息
+    private final AtomicLong receivedAudio = new AtomicLong();
+    private final AtomicLong rejectedAudio = new AtomicLong();
+    private final AtomicLong sentAudio = new AtomicLong();
+    private final AtomicLong droppedAudio = new AtomicLong();
+
+    /**
+     * @param id          会话ID
+     * @param deviceId    设备ID
+     * @param mqttChannel 设备的MQTT连接
+     * @param udpChannel  服务端共享的UDP通道
+     * @param udpHost     下发给设备的UDP地址
+     * @param udpPort     下发给设备的UDP端口
+     * @param ssrc        会话的ssrc，用于识别UDP包所属的会话
+     * @param key         AES-128密钥
+     */
+    public MqttUdpDeviceSession(String id, String deviceId, Channel mqttChannel, Channel udpChannel,
+            String udpHost, int udpPort, int ssrc, byte[] key) {
+        this.id = id;
+        this.deviceId = deviceId;
+        this.mqttChannel = mqttChannel;
+        this.udpChannel = udpChannel;
+        this.udpHost = udpHost;
+        this.udpPort = udpPort;
+        this.ssrc = ssrc;
+        this.key = key.clone();
+        this.cipher = new UdpAudioCipher(key);
+        SocketAddress peer = mqttChannel.remoteAddress();
+        this.peerAddress = peer instanceof InetSocketAddress ? ((InetSocketAddress) peer).getAddress() : null;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    @Override
+    public String getTransport() {
+        return TRANSPORT;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mqttChannel.isActive();
+    }
+
+    /**
+     * 设置下行控制消息的主题，即设备订阅的主题
+     */
+    public void setReplyTopic(String replyTopic) {
+        this.replyTopic = replyTopic;
+    }
+
+    public String getReplyTopic() {
+        return replyTopic;
+    }
+
+    /**
+     * 设备的UDP地址，收到第一个有效UDP包之前为null
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * 重置音频通道，设备打开（hello）或关闭（goodbye）音频通道时调用，双方序号都从头开始
+     */
+    public synchronized void resetAudioChannel() {
+        remoteAddress = null;
+        remoteSequence = -1;
+        candidateAddress = null;
+        localSequence.set(0);
+    }
+
+    /**
+     * 处理收到的UDP包，ssrc已由调用方匹配
+     *
+     * @return 解密后的Opus帧；格式错误、重放、乱序或等待确认的包返回null
+     */
+    public synchronized byte[] receive(InetSocketAddress sender, byte[] packet) {
+        long sequence = UdpAudioCipher.sequence(packet);
+        if (sequence <= remoteSequence) {
+            rejectedAudio.incrementAndGet();
+            return null;
+        }
+        byte[] payload = cipher.open(packet);
+        if (payload == null) {
+            rejectedAudio.incrementAndGet();
+            return null;
+        }
+        boolean knownAddress = sender.equals(remoteAddress)
+                || (peerAddress != null && peerAddress.equals(sender.getAddress()));
+        boolean smallJump = sequence - Math.max(remoteSequence, 0) <= MAX_SEQUENCE_JUMP;
+        if (knownAddress && smallJump) {
+            // 当前地址的正常包打断其他地址的确认
+            candidateAddress = null;
+        } else if (!confirm(sender, sequence)) {
+            rejectedAudio.incrementAndGet();
+            return null;
+        }
+        remoteSequence = sequence;
+        if (!sender.equals(remoteAddress)) {
+            // 首个包或设备地址变化（如NAT重新映射）
+            logger.debug("设备UDP地址 - SessionId: {}, Address: {}", id, sender);
+            remoteAddress = sender;
+        }
+        receivedAudio.incrementAndGet();
+        return payload;
+    }
+
+    /**
+     * 记录一个需要确认的包，同一地址连续收到CONFIRM_PACKETS个序号递增且间隔不大的包时确认
+     */
+    private boolean confirm(InetSocketAddress sender, long sequence) {
+        if (sender.equals(candidateAddress) && sequence > candidateSequence
+                && sequence - candidateSequence <= MAX_CONFIRM_GAP) {
+            candidateCount++;
+        } else {
+            candidateAddress = sender;
+            candidateCount = 1;
+        }
+        candidateSequence = sequence;
+        if (candidateCount < CONFIRM_PACKETS) {
+            return false;
+        }
+        logger.info("设备UDP地址或序号变化已确认 - SessionId: {}, Address: {}, Sequence: {} -> {}", id, sender,
+                remoteSequence, sequence);
+        candidateAddress = null;
+        return true;
+    }
+
+    @Override
+    public Mono<Void> sendText(byte[] utf8) {
+        return Mono.create(sink -> {
+            String topic = replyTopic;
+            if (!mqttChannel.isActive() || topic == null) {
+                sink.error(AbortedException.beforeSend());
+                return;
+            }
+            MqttPublishMessage message = new MqttPublishMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                    new MqttPublishVariableHeader(topic, 0), Unpooled.wrappedBuffer(utf8));
+            mqttChannel.writeAndFlush(message).addListener(future -> {
+                if (future.isSuccess()) {
+                    sink.success();
+                } else {
+                    sink.error(future.cause());
+                }
+            });
+        });
+    }
+
+    @Override
+    public Mono<Void> sendAudio(byte[] opusFrame) {
+        return Mono.fromRunnable(() -> {
+            InetSocketAddress remote = remoteAddress;
+            if (remote == null || !udpChannel.isWritable()) {
+                drop();
+                return;
+            }
+            byte[] packet;
+            synchronized (this) {
+                packet = cipher.seal(ssrc, System.currentTimeMillis() - startTime, localSequence.incrementAndGet(),
+                        opusFrame);
+            }
+            udpChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(packet), remote));
+            sentAudio.incrementAndGet();
+        });
+    }
+
+    private void drop() {
+        long count = droppedAudio.incrementAndGet();
+        // 每个会话只在首次丢帧时告警，避免刷屏
+        if (count == 1) {
+            logger.warn("设备UDP地址未知或通道写不动，开始丢帧 - SessionId: {}, {}", id, stats());
+        }
+    }
+
+    @Override
+    public void fillHello(ObjectNode hello) {
+        hello.put("transport", TRANSPORT);
+        ObjectNode udp = hello.putObject("udp");
+        udp.put("server", udpHost);
+        udp.put("port", udpPort);
+        udp.put("key", HexUtil.encodeHexStr(key));
+        // nonce即包头模板，设备发送时填入长度、时间戳和序号
+        udp.put("nonce", HexUtil.encodeHexStr(UdpAudioCipher.header(ssrc, 0, 0, 0)));
+    }
+
+    @Override
+    public Mono<Void> close() {
+        return close(0, null);
+    }
+
+    /**
+     * MQTT 3.1.1没有服务端断开原因，先发布goodbye再断开连接，关闭码只记录日志
+     */
+    @Override
+    public Mono<Void> close(int code, String reason) {
+        if (!mqttChannel.isActive()) {
+            return Mono.empty();
+        }
+        if (reason != null) {
+            logger.info("关闭MQTT会话 - SessionId: {}, Code: {}, Reason: {}", id, code, reason);
+        }
+        ObjectNode goodbye = objectMapper.createObjectNode();
+        goodbye.put("type", "goodbye");
+        goodbye.put("session_id", id);
+        return sendText(goodbye.toString().getBytes(StandardCharsets.UTF_8))
+                .onErrorResume(e -> Mono.empty())
+                .then(Mono.fromRunnable(mqttChannel::close));
+    }
+
+    /**
+     * 统计信息摘要，用于日志
+     */
+    public String stats() {
+        return String.format("上行: %d(拒绝%d), 下行: %d(丢弃%d)", receivedAudio.get(), rejectedAudio.get(),
+                sentAudio.get(), droppedAudio.get());
+    }
+}
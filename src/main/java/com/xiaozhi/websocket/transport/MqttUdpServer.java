@@ -0,0 +1,436 @@
+package com.xiaozhi.websocket.transport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.xiaozhi.websocket.handler.DeviceMessageHandler;
+import com.xiaozhi.websocket.service.AdmissionService;
+import com.xiaozhi.websocket.service.ConnectionDrainService;
+import com.xiaozhi.websocket.service.SessionManager;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttConnAckVariableHeader;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPubAckMessage;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubAckMessage;
+import io.netty.handler.codec.mqtt.MqttSubAckPayload;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import io.netty.handler.codec.mqtt.MqttUnsubAckMessage;
+import io.netty.handler.codec.mqtt.MqttUnsubscribeMessage;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MQTT+UDP传输服务端
+ * <br/>
+ * 内置一个只服务设备的MQTT端点（MQTT 3.1.1，QoS 0/1），每个设备一个TCP连接，不经过外部Broker：
+ * 设备用CONNECT的clientId（GID@@@mac@@@uuid）标识自己，订阅的主题作为下行控制消息的主题，
+ * 发布的JSON消息交给DeviceMessageHandler处理，与WebSocket传输的文本消息相同。
+ * 音频通过一个共享的UDP端口收发，按包头中的ssrc找到会话；UDP不重传、不排队，弱网下不会因为丢包阻塞后续音频。
+ */
+@Component
+public class MqttUdpServer {
+    private static final Logger logger = LoggerFactory.getLogger(MqttUdpServer.class);
+
+    /**
+     * 设备未订阅主题时下行使用的主题前缀，后接mac（以下划线分隔）
+     */
+    public static final String P2P_TOPIC_PREFIX = "devices/p2p/";
+
+    private static final String CLIENT_ID_SEPARATOR = "@@@";
+
+    // 建立连接后等待CONNECT的最长时间(秒)
+    private static final int CONNECT_TIMEOUT_SECONDS = 10;
+
+    @Value("${app.mqtt.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.mqtt.port:1883}")
+    private int port;
+
+    @Value("${app.mqtt.udp-port:8884}")
+    private int udpPort;
+
+    // 下发给设备的UDP地址，为空时使用设备连接MQTT时的服务端地址
+    @Value("${app.mqtt.udp-host:}")
+    private String udpHost;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private DeviceMessageHandler deviceMessageHandler;
+
+    @Autowired
+    private ConnectionDrainService connectionDrainService;
+
+    @Autowired
+    private AdmissionService admissionService;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<Integer, MqttUdpDeviceSession> sessionsBySsrc = new ConcurrentHashMap<>();
+    private final UdpHandler udpHandler = new UdpHandler();
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Channel serverChannel;
+    private Channel udpChannel;
+
+    @PostConstruct
+    public void init() throws InterruptedException {
+        if (enabled) {
+            start();
+        }
+    }
+
+    /**
+     * 启动MQTT和UDP监听
+     */
+    public void start() throws InterruptedException {
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup();
+        udpChannel = new Bootstrap()
+                .group(workerGroup)
+                .channel(NioDatagramChannel.class)
+                .handler(udpHandler)
+                .bind(udpPort).sync().channel();
+        serverChannel = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                                .addLast("idle", new IdleStateHandler(CONNECT_TIMEOUT_SECONDS, 0, 0))
+                                .addLast("decoder", new MqttDecoder())
+                                .addLast("encoder", MqttEncoder.INSTANCE)
+                                .addLast("handler", new MqttHandler());
+                    }
+                })
+                .bind(port).sync().channel();
+        logger.info("MQTT+UDP传输已启动 - MQTT端口: {}, UDP端口: {}", getPort(), getUdpPort());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        if (udpChannel != null) {
+            udpChannel.close().syncUninterruptibly();
+        }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+            logger.info("MQTT+UDP传输已关闭");
+        }
+    }
+
+    /**
+     * 实际监听的MQTT端口（配置为0时由系统分配）
+     */
+    public int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    /**
+     * 实际监听的UDP端口
+     */
+    public int getUdpPort() {
+        return ((InetSocketAddress) udpChannel.localAddress()).getPort();
+    }
+
+    /**
+     * 从clientId解析设备ID：GID_xxx@@@aa_bb_cc_dd_ee_ff@@@uuid 中间一段为mac
+     *
+     * @return 以冒号分隔的mac，与WebSocket请求头device-Id一致；格式不符时返回null
+     */
+    static String parseDeviceId(String clientId) {
+        if (clientId == null) {
+            return null;
+        }
+        String[] parts = clientId.split(CLIENT_ID_SEPARATOR);
+        if (parts.length < 2 || !StringUtils.hasText(parts[1])) {
+            return null;
+        }
+        return parts[1].replace('_', ':');
+    }
+
+    private MqttUdpDeviceSession createSession(Channel channel, String deviceId) {
+        String host = udpHost;
+        if (!StringUtils.hasText(host)) {
+            host = ((InetSocketAddress) channel.localAddress()).getAddress().getHostAddress();
+        }
+        byte[] key = new byte[UdpAudioCipher.KEY_SIZE];
+        random.nextBytes(key);
+        while (true) {
+            int ssrc = random.nextInt();
+            if (!sessionsBySsrc.containsKey(ssrc)) {
+                MqttUdpDeviceSession session = new MqttUdpDeviceSession(UUID.randomUUID().toString(), deviceId,
+                        channel, udpChannel, host, getUdpPort(), ssrc, key);
+                if (sessionsBySsrc.putIfAbsent(ssrc, session) == null) {
+                    return session;
+                }
+            }
+        }
+    }
+
+    private static MqttFixedHeader fixedHeader(MqttMessageType type) {
+        return new MqttFixedHeader(type, false, MqttQoS.AT_MOST_ONCE, false, 0);
+    }
+
+    /**
+     * 单个设备的MQTT连接
+     */
+    private class MqttHandler extends SimpleChannelInboundHandler<MqttMessage> {
+        private MqttUdpDeviceSession session;
+        private String deviceId;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, MqttMessage message) {
+            if (message.decoderResult().isFailure()) {
+                logger.warn("MQTT消息解析失败 - Remote: {}", ctx.channel().remoteAddress(),
+                        message.decoderResult().cause());
+                ctx.close();
+                return;
+            }
+            MqttMessageType type = message.fixedHeader().messageType();
+            // CONNECT必须是第一条且只能有一条
+            if ((type == MqttMessageType.CONNECT) != (session == null)) {
+                logger.warn("MQTT协议错误，断开连接 - Remote: {}, Type: {}", ctx.channel().remoteAddress(), type);
+                ctx.close();
+                return;
+            }
+            switch (type) {
+                case CONNECT:
+                    handleConnect(ctx, (MqttConnectMessage) message);
+                    break;
+                case SUBSCRIBE:
+                    handleSubscribe(ctx, (MqttSubscribeMessage) message);
+                    break;
+                case UNSUBSCRIBE:
+                    ctx.writeAndFlush(new MqttUnsubAckMessage(fixedHeader(MqttMessageType.UNSUBACK),
+                            MqttMessageIdVariableHeader.from(
+                                    ((MqttUnsubscribeMessage) message).variableHeader().messageId())));
+                    break;
+                case PUBLISH:
+                    handlePublish(ctx, (MqttPublishMessage) message);
+                    break;
+                case PINGREQ:
+                    ctx.writeAndFlush(new MqttMessage(fixedHeader(MqttMessageType.PINGRESP)));
+                    break;
+                case DISCONNECT:
+                    ctx.close();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void handleConnect(ChannelHandlerContext ctx, MqttConnectMessage message) {
+            String clientId = message.payload().clientIdentifier();
+            String parsed = parseDeviceId(clientId);
+            if (parsed == null) {
+                logger.warn("无法从clientId解析设备ID - ClientId: {}", clientId);
+                refuse(ctx, MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED);
+                return;
+            }
+            // 停机或超过连接限制时直接拒绝，设备按自身的重连退避策略重试
+            if (connectionDrainService.isDraining()) {
+                logger.info("服务正在停机，拒绝MQTT连接 - DeviceId: {}", parsed);
+                refuse(ctx, MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+                return;
+            }
+            MqttUdpDeviceSession created = createSession(ctx.channel(), parsed);
+            if (!admissionService.admitConnection(created.getId())) {
+                logger.warn("连接数或建连速率超过限制，拒绝MQTT连接 - DeviceId: {}", parsed);
+                sessionsBySsrc.remove(created.getSsrc(), created);
+                refuse(ctx, MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
+                return;
+            }
+            session = created;
+            deviceId = parsed;
+            session.setReplyTopic(P2P_TOPIC_PREFIX + parsed.replace(':', '_'));
+
+            // 按设备声明的心跳间隔检测断线，超过1.5倍未收到任何消息即断开
+            int keepAlive = message.variableHeader().keepAliveTimeSeconds();
+            if (keepAlive > 0) {
+                ctx.pipeline().replace("idle", "idle", new IdleStateHandler(keepAlive * 3 / 2, 0, 0));
+            } else {
+                ctx.pipeline().remove("idle");
+            }
+
+            sessionManager.registerSession(session.getId(), session);
+            ctx.writeAndFlush(new MqttConnAckMessage(fixedHeader(MqttMessageType.CONNACK),
+                    new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_ACCEPTED, false)));
+
+            // 设备信息加载完成前暂停读取，与WebSocket传输一样保证hello等消息在设备注册之后处理
+            Channel channel = ctx.channel();
+            channel.config().setAutoRead(false);
+            deviceMessageHandler.onOpen(session, deviceId)
+                    .subscribe(null, e -> {
+                        logger.error("MQTT连接初始化失败 - SessionId: {}", session.getId(), e);
+                        channel.close();
+                    }, () -> channel.config().setAutoRead(true));
+        }
+
+        private void refuse(ChannelHandlerContext ctx, MqttConnectReturnCode code) {
+            ctx.writeAndFlush(new MqttConnAckMessage(fixedHeader(MqttMessageType.CONNACK),
+                    new MqttConnAckVariableHeader(code, false))).addListener(f -> ctx.close());
+        }
+
+        private void handleSubscribe(ChannelHandlerContext ctx, MqttSubscribeMessage message) {
+            List<Integer> granted = new ArrayList<>();
+            for (MqttTopicSubscription subscription : message.payload().topicSubscriptions()) {
+                String topic = subscription.topicName();
+                // 带通配符的订阅无法作为发布主题
+                if (topic.indexOf('#') < 0 && topic.indexOf('+') < 0) {
+                    session.setReplyTopic(topic);
+                }
+                // 下行消息只用QoS 0
+                granted.add(MqttQoS.AT_MOST_ONCE.value());
+            }
+            ctx.writeAndFlush(new MqttSubAckMessage(fixedHeader(MqttMessageType.SUBACK),
+                    MqttMessageIdVariableHeader.from(message.variableHeader().messageId()),
+                    new MqttSubAckPayload(granted)));
+        }
+
+        private void handlePublish(ChannelHandlerContext ctx, MqttPublishMessage message) {
+            MqttQoS qos = message.fixedHeader().qosLevel();
+            if (qos == MqttQoS.EXACTLY_ONCE) {
+                logger.warn("不支持QoS 2，断开连接 - SessionId: {}", session.getId());
+                ctx.close();
+                return;
+            }
+            if (qos == MqttQoS.AT_LEAST_ONCE) {
+                ctx.writeAndFlush(new MqttPubAckMessage(fixedHeader(MqttMessageType.PUBACK),
+                        MqttMessageIdVariableHeader.from(message.variableHeader().packetId())));
+            }
+            String payload = message.payload().toString(StandardCharsets.UTF_8);
+            String type;
+            try {
+                JsonNode jsonNode = objectMapper.readTree(payload);
+                type = jsonNode.path("type").asText();
+            } catch (IOException e) {
+                logger.warn("MQTT消息不是JSON - SessionId: {}, Payload: {}", session.getId(), payload);
+                return;
+            }
+            if ("goodbye".equals(type)) {
+                session.resetAudioChannel();
+                deviceMessageHandler.onGoodbye(session)
+                        .subscribe(null, e -> logger.error("处理goodbye失败 - SessionId: {}", session.getId(), e));
+                return;
+            }
+            if ("hello".equals(type)) {
+                // 设备打开新的音频通道，双方序号重新开始
+                session.resetAudioChannel();
+            }
+            deviceMessageHandler.onText(session, payload)
+                    .subscribe(null, e -> logger.error("处理MQTT消息失败 - SessionId: {}", session.getId(), e));
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception {
+            if (event instanceof IdleStateEvent) {
+                logger.info("MQTT连接超时未收到消息，断开 - Remote: {}", ctx.channel().remoteAddress());
+                ctx.close();
+                return;
+            }
+            super.userEventTriggered(ctx, event);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (session != null) {
+                sessionsBySsrc.remove(session.getSsrc(), session);
+                logger.debug("MQTT+UDP会话结束 - SessionId: {}, {}", session.getId(), session.stats());
+                deviceMessageHandler.onClose(session, deviceId);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (cause instanceof IOException) {
+                // 设备断网等连接异常，属于正常断开
+                logger.debug("MQTT连接异常断开 - Remote: {}", ctx.channel().remoteAddress());
+            } else {
+                logger.error("处理MQTT消息失败 - Remote: {}", ctx.channel().remoteAddress(), cause);
+            }
+            ctx.close();
+        }
+    }
+
+    /**
+     * 所有会话共享的UDP音频通道
+     */
+    @ChannelHandler.Sharable
+    private class UdpHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            ByteBuf content = packet.content();
+            if (content.readableBytes() < UdpAudioCipher.HEADER_SIZE) {
+                return;
+            }
+            byte[] data = new byte[content.readableBytes()];
+            content.readBytes(data);
+            MqttUdpDeviceSession session = sessionsBySsrc.get(UdpAudioCipher.ssrc(data));
+            if (session == null) {
+                return;
+            }
+            byte[] opusData = session.receive(packet.sender(), data);
+            if (opusData != null) {
+                deviceMessageHandler.onBinary(session, opusData)
+                        .subscribe(null, e -> logger.error("处理UDP音频失败 - SessionId: {}", session.getId(), e));
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            // UDP通道不能因单个包的异常关闭
+            logger.warn("处理UDP音频包失败", cause);
+        }
+    }
+}
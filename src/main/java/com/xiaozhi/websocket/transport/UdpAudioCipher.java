@@ -0,0 +1,120 @@
+package com.xiaozhi.websocket.transport;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * UDP音频包的封装和加解密，格式与固件一致
+ * <br/>
+ * 每个包由16字节包头和加密后的Opus帧组成。包头依次为：类型(1字节，音频为0x01)、标志(1)、负载长度(2)、
+ * ssrc(4)、时间戳(4)、序号(4)，多字节字段均为大端。负载用AES-128-CTR加密，包头整体作为计数器初值，
+ * 因此每个包的序号不同即可保证密钥流不重复。CTR模式不校验完整性，重放和乱序由调用方按序号过滤。
+ * 实例内部复用Cipher，不是线程安全的，调用方需要同步。
+ */
+public final class UdpAudioCipher {
+
+    public static final int HEADER_SIZE = 16;
+
+    public static final int KEY_SIZE = 16;
+
+    public static final byte TYPE_AUDIO = 0x01;
+
+    private final SecretKeySpec key;
+    private final Cipher cipher;
+
+    public UdpAudioCipher(byte[] key) {
+        if (key == null || key.length != KEY_SIZE) {
+            throw new IllegalArgumentException("UDP音频密钥必须为16字节");
+        }
+        this.key = new SecretKeySpec(key, "AES");
+        try {
+            this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("当前JVM不支持AES/CTR", e);
+        }
+    }
+
+    /**
+     * 生成包头，也是hello回复中nonce的格式（负载长度、时间戳、序号为0）
+     */
+    public static byte[] header(int ssrc, int payloadLength, long timestamp, long sequence) {
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = TYPE_AUDIO;
+        header[2] = (byte) (payloadLength >>> 8);
+        header[3] = (byte) payloadLength;
+        putInt(header, 4, ssrc);
+        putInt(header, 8, (int) timestamp);
+        putInt(header, 12, (int) sequence);
+        return header;
+    }
+
+    /**
+     * 加密一帧音频，返回完整的UDP包
+     */
+    public byte[] seal(int ssrc, long timestamp, long sequence, byte[] payload) {
+        byte[] packet = new byte[HEADER_SIZE + payload.length];
+        byte[] header = header(ssrc, payload.length, timestamp, sequence);
+        System.arraycopy(header, 0, packet, 0, HEADER_SIZE);
+        crypt(header, payload, 0, payload.length, packet, HEADER_SIZE);
+        return packet;
+    }
+
+    /**
+     * 解密UDP包的负载
+     *
+     * @return Opus帧；类型或长度不符时返回null
+     */
+    public byte[] open(byte[] packet) {
+        if (packet.length < HEADER_SIZE || packet[0] != TYPE_AUDIO) {
+            return null;
+        }
+        int length = payloadLength(packet);
+        if (length != packet.length - HEADER_SIZE) {
+            return null;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(packet, 0, header, 0, HEADER_SIZE);
+        byte[] payload = new byte[length];
+        crypt(header, packet, HEADER_SIZE, length, payload, 0);
+        return payload;
+    }
+
+    private void crypt(byte[] iv, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        try {
+            // CTR模式加密和解密相同
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            cipher.doFinal(in, inOffset, length, out, outOffset);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("UDP音频加解密失败", e);
+        }
+    }
+
+    public static int payloadLength(byte[] packet) {
+        return ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+    }
+
+    public static int ssrc(byte[] packet) {
+        return getInt(packet, 4);
+    }
+
+    /**
+     * 序号，无符号32位
+     */
+    public static long sequence(byte[] packet) {
+        return getInt(packet, 12) & 0xffffffffL;
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,90 @@
+package com.xiaozhi.websocket.transport;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.xiaozhi.websocket.service.SessionOutbound;
+
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * WebSocket传输，控制消息为文本帧，音频为二进制帧
+ * <br/>
+ * 连接建立后所有下行消息经SessionOutbound写出；下行队列建立前（如连接被拒绝时）直接发送。
+ */
+public class WebSocketDeviceSession implements DeviceSession {
+
+    public static final String TRANSPORT = "websocket";
+
+    private final WebSocketSession session;
+    private volatile SessionOutbound outbound;
+
+    public WebSocketDeviceSession(WebSocketSession session) {
+        this.session = session;
+    }
+
+    /**
+     * 底层的WebSocket会话，只由WebSocket处理器使用
+     */
+    public WebSocketSession getWebSocketSession() {
+        return session;
+    }
+
+    /**
+     * 设置下行队列，之后的消息都经队列写出
+     */
+    public void setOutbound(SessionOutbound outbound) {
+        this.outbound = outbound;
+    }
+
+    @Override
+    public String getId() {
+        return session.getId();
+    }
+
+    @Override
+    public String getTransport() {
+        return TRANSPORT;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return session.isOpen();
+    }
+
+    @Override
+    public Mono<Void> sendText(byte[] utf8) {
+        return send(new WebSocketMessage(WebSocketMessage.Type.TEXT, session.bufferFactory().wrap(utf8)),
+                SessionOutbound.Lane.CONTROL);
+    }
+
+    @Override
+    public Mono<Void> sendAudio(byte[] opusFrame) {
+        return send(session.binaryMessage(factory -> factory.wrap(opusFrame)), SessionOutbound.Lane.AUDIO);
+    }
+
+    private Mono<Void> send(WebSocketMessage message, SessionOutbound.Lane lane) {
+        SessionOutbound current = outbound;
+        if (current == null) {
+            return session.send(Mono.just(message));
+        }
+        return current.send(message, lane);
+    }
+
+    @Override
+    public void fillHello(ObjectNode hello) {
+        hello.put("transport", TRANSPORT);
+    }
+
+    @Override
+    public Mono<Void> close() {
+        return session.close();
+    }
+
+    @Override
+    public Mono<Void> close(int code, String reason) {
+        return session.close(new CloseStatus(code, reason));
+    }
+}
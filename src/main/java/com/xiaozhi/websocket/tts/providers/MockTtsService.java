@@ -0,0 +1,141 @@
+package com.xiaozhi.websocket.tts.providers;
+
+import com.xiaozhi.entity.SysConfig;
+import com.xiaozhi.utils.AudioUtils;
+import com.xiaozhi.utils.LatencyProfile;
+import com.xiaozhi.websocket.tts.TtsService;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * 模拟语音合成服务，不请求任何接口，按文本长度生成合成的16kHz PCM，用于离线测试和压测
+ * <br/>
+ * 每个文字生成一个带谐波和包络的浊音音节，标点生成停顿，相同文本得到相同音频。
+ * 参数（配置的apiUrl，见LatencyProfile）：
+ * latency 首字节延迟（毫秒，默认150）；jitter 首字节延迟抖动（毫秒，默认0）；
+ * speed 合成速度，为实时的倍数（默认10，即1秒音频耗时100毫秒，不大于0时不计合成耗时）；
+ * syllable 每个文字的时长（毫秒，默认200）；seed 随机种子。
+ */
+public class MockTtsService implements TtsService {
+
+    private static final String PROVIDER_NAME = "mock";
+
+    private static final int BYTES_PER_MS = AudioUtils.SAMPLE_RATE * 2 / 1000;
+
+    // 流式合成时每次回调的音频时长（毫秒）
+    private static final int CHUNK_MS = AudioUtils.OPUS_FRAME_DURATION_MS;
+
+    // 标点处的停顿时长（毫秒）
+    private static final int PAUSE_MS = 150;
+
+    // 基频，接近成年女声
+    private static final double PITCH = 220.0;
+
+    private final LatencyProfile profile;
+    private final long latency;
+    private final long jitter;
+    private final double speed;
+    private final int syllableMs;
+
+    public MockTtsService(SysConfig config, String voiceName, String outputPath) {
+        this.profile = LatencyProfile.parse(config.getApiUrl());
+        this.latency = profile.getLong("latency", 150);
+        this.jitter = profile.getLong("jitter", 0);
+        this.speed = profile.getDouble("speed", 10);
+        this.syllableMs = (int) Math.max(20, profile.getLong("syllable", 200));
+    }
+
+    @Override
+    public String getProviderName() {
+        return PROVIDER_NAME;
+    }
+
+    @Override
+    public String getAudioFileName() {
+        String uuid = UUID.randomUUID().toString().replace("-", "");
+        return uuid + ".wav";
+    }
+
+    @Override
+    public String textToSpeech(String text) throws Exception {
+        byte[] pcm = synthesize(text);
+        LatencyProfile.sleep(profile.nextDelay(latency, jitter) + synthesisMillis(pcm.length));
+        return AudioUtils.AUDIO_PATH + AudioUtils.saveAsWav(pcm);
+    }
+
+    @Override
+    public void streamTextToSpeech(String text, Consumer<byte[]> audioDataConsumer) throws Exception {
+        byte[] pcm = synthesize(text);
+        int chunkBytes = CHUNK_MS * BYTES_PER_MS;
+        LatencyProfile.sleep(profile.nextDelay(latency, jitter));
+        for (int offset = 0; offset < pcm.length; offset += chunkBytes) {
+            if (offset > 0) {
+                LatencyProfile.sleep(synthesisMillis(chunkBytes));
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            audioDataConsumer.accept(Arrays.copyOfRange(pcm, offset, Math.min(pcm.length, offset + chunkBytes)));
+        }
+    }
+
+    /**
+     * 生成音频所需的模拟耗时
+     */
+    private long synthesisMillis(int pcmBytes) {
+        if (speed <= 0) {
+            return 0;
+        }
+        return (long) (pcmBytes / BYTES_PER_MS / speed);
+    }
+
+    /**
+     * 文字生成浊音音节，其他字符生成停顿
+     */
+    private byte[] synthesize(String text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int syllableSamples = syllableMs * AudioUtils.SAMPLE_RATE / 1000;
+        int syllables = 0;
+        for (int i = 0; i < text.length(); i = text.offsetByCodePoints(i, 1)) {
+            int codePoint = text.codePointAt(i);
+            if (Character.isLetterOrDigit(codePoint)) {
+                // 音高随文字轻微变化，避免整段音频完全单调
+                writeSyllable(out, syllableSamples, PITCH * (1 + (codePoint % 7 - 3) * 0.03));
+                syllables++;
+            } else if (!Character.isWhitespace(codePoint)) {
+                writeSilence(out, PAUSE_MS * AudioUtils.SAMPLE_RATE / 1000);
+            }
+        }
+        if (syllables == 0) {
+            // 没有可读文字时也返回一小段静音，避免下游处理空音频
+            writeSilence(out, PAUSE_MS * AudioUtils.SAMPLE_RATE / 1000);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeSyllable(ByteArrayOutputStream out, int samples, double pitch) {
+        for (int n = 0; n < samples; n++) {
+            double t = (double) n / AudioUtils.SAMPLE_RATE;
+            // 升余弦包络
+            double envelope = 0.5 - 0.5 * Math.cos(2 * Math.PI * n / samples);
+            double value = Math.sin(2 * Math.PI * pitch * t)
+                    + 0.5 * Math.sin(4 * Math.PI * pitch * t)
+                    + 0.25 * Math.sin(6 * Math.PI * pitch * t);
+            writeSample(out, (short) (value / 1.75 * envelope * 8000));
+        }
+    }
+
+    private static void writeSilence(ByteArrayOutputStream out, int samples) {
+        for (int n = 0; n < samples; n++) {
+            writeSample(out, (short) 0);
+        }
+    }
+
+    private static void writeSample(ByteArrayOutputStream out, short sample) {
+        out.write(sample & 0xff);
+        out.write((sample >> 8) & 0xff);
+    }
+}
@@ -0,0 +1,84 @@
+package com.xiaozhi;
+
+import com.xiaozhi.entity.SysDevice;
+import com.xiaozhi.websocket.service.AdmissionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 准入控制：取消排队不泄漏许可，用户限制器不按用户注册指标，空闲限制器被移除
+ */
+public class AdmissionServiceTest {
+
+    private SimpleMeterRegistry registry;
+    private AdmissionService admissionService;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        admissionService = new AdmissionService();
+        ReflectionTestUtils.setField(admissionService, "enabled", true);
+        ReflectionTestUtils.setField(admissionService, "queueTimeoutMs", 2000L);
+        ReflectionTestUtils.setField(admissionService, "maxHoldSeconds", 300L);
+        ReflectionTestUtils.setField(admissionService, "globalMaxConcurrent", 1);
+        ReflectionTestUtils.setField(admissionService, "meterRegistry", registry);
+        admissionService.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        admissionService.destroy();
+    }
+
+    private static SysDevice device(int userId) {
+        SysDevice device = new SysDevice();
+        device.setUserId(userId);
+        return device;
+    }
+
+    @Test
+    public void cancelledQueuedRequestDoesNotLeakPermit() {
+        assertTrue(admissionService.admitDialogue("a", device(1), null, null).block(Duration.ofSeconds(1)));
+
+        // 排队中的请求被取消后，释放的许可不会交给已取消的订阅方
+        Disposable queued = admissionService.admitDialogue("b", device(2), null, null).subscribe();
+        queued.dispose();
+        admissionService.releaseDialogue("a");
+
+        assertTrue(admissionService.admitDialogue("c", device(3), null, null).block(Duration.ofSeconds(1)));
+    }
+
+    @Test
+    public void idleLimitersAreEvicted() {
+        assertTrue(admissionService.admitDialogue("a", device(1), null, null).block(Duration.ofSeconds(1)));
+        admissionService.releaseDialogue("a");
+
+        // 用户限制器只有汇总指标
+        assertNull(registry.find("xiaozhi.admission.in_use").tag("key", "1").gauge());
+        assertEquals(1, registry.get("xiaozhi.admission.blocked").tag("scope", AdmissionService.SCOPE_USER).gauges()
+                .size());
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> limiters = (Map<String, Object>) ReflectionTestUtils.getField(admissionService,
+                "limiters");
+        Object userLimiter = limiters.get("user:1");
+        assertNotNull(userLimiter);
+        ReflectionTestUtils.setField(userLimiter, "lastUsed", System.nanoTime() - Duration.ofHours(1).toNanos());
+        ReflectionTestUtils.invokeMethod(admissionService, "evictIdleLimiters");
+
+        assertFalse(limiters.containsKey("user:1"));
+        // 全局限制器不会被移除
+        assertTrue(limiters.containsKey("global:all"));
+        assertNotNull(registry.find("xiaozhi.admission.in_use").tag("key", "all")
+                .tag("scope", AdmissionService.SCOPE_GLOBAL).gauge());
+    }
+}
@@ -0,0 +1,83 @@
+package com.xiaozhi;
+
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import com.xiaozhi.websocket.service.BargeInDetector;
+import com.xiaozhi.websocket.service.SessionManager;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 插话检测：设备录到的回声不触发，盖过回声的用户语音累计到最短时长后触发
+ */
+public class BargeInDetectorTest {
+
+    private static final String SESSION_ID = "session";
+    private static final int FRAME_MS = 60;
+
+    private BargeInDetector detector;
+
+    @BeforeEach
+    public void setUp() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        ReflectionTestUtils.setField(metrics, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(metrics, "sessionManager", new SessionManager());
+        metrics.init();
+
+        detector = new BargeInDetector();
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "echoWindowMs", 500);
+        ReflectionTestUtils.setField(detector, "initialCoupling", 0.5f);
+        ReflectionTestUtils.setField(detector, "echoMargin", 2.0f);
+        ReflectionTestUtils.setField(detector, "minEnergy", 0.02f);
+        ReflectionTestUtils.setField(detector, "speechThreshold", 0.6f);
+        ReflectionTestUtils.setField(detector, "minSpeechMs", 240);
+        ReflectionTestUtils.setField(detector, "pipelineMetrics", metrics);
+    }
+
+    @Test
+    public void echoDoesNotTrigger() {
+        for (int i = 0; i < 50; i++) {
+            detector.onPlayback(SESSION_ID, 0.1f);
+            assertFalse(detector.onCapture(SESSION_ID, 0.06f, 0.95f, true, FRAME_MS), "第" + i + "帧回声触发了插话");
+        }
+    }
+
+    @Test
+    public void userSpeechOverPlaybackTriggers() {
+        // 先播放一段只有回声的回复，耦合系数收敛到回声水平
+        for (int i = 0; i < 20; i++) {
+            detector.onPlayback(SESSION_ID, 0.1f);
+            assertFalse(detector.onCapture(SESSION_ID, 0.04f, 0.9f, true, FRAME_MS));
+        }
+        int frames = 0;
+        boolean triggered = false;
+        while (!triggered && frames < 20) {
+            detector.onPlayback(SESSION_ID, 0.1f);
+            triggered = detector.onCapture(SESSION_ID, 0.25f, 0.9f, true, FRAME_MS);
+            frames++;
+        }
+        assertTrue(triggered);
+        assertEquals(4, frames, "应在累计240ms用户语音时触发");
+        // 送往识别的音频按确认时累计的用户语音截取
+        assertEquals(240, detector.getConfirmedSpeechMs(SESSION_ID));
+    }
+
+    @Test
+    public void speechWithoutPlaybackTriggers() {
+        assertFalse(detector.onCapture(SESSION_ID, 0.05f, 0.9f, true, FRAME_MS));
+        assertFalse(detector.onCapture(SESSION_ID, 0.05f, 0.9f, true, FRAME_MS));
+        assertFalse(detector.onCapture(SESSION_ID, 0.05f, 0.9f, true, FRAME_MS));
+        assertTrue(detector.onCapture(SESSION_ID, 0.05f, 0.9f, true, FRAME_MS));
+    }
+
+    @Test
+    public void nonSpeechFramesAreIgnored() {
+        for (int i = 0; i < 20; i++) {
+            assertFalse(detector.onCapture(SESSION_ID, 0.3f, 0.2f, false, FRAME_MS));
+        }
+    }
+}
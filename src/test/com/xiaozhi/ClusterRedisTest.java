@@ -0,0 +1,137 @@
+package com.xiaozhi;
+
+import com.xiaozhi.mapper.redis.DeviceRouteRedisMapper;
+import com.xiaozhi.websocket.cluster.ClusterCommand;
+import com.xiaozhi.websocket.cluster.ClusterService;
+import com.xiaozhi.websocket.service.SessionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import redis.embedded.RedisServer;
+
+import java.net.ServerSocket;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 集群模式：两个节点共用一个Redis，设备迁移时归属和租约一起写入，并通知原节点关闭会话
+ * <br/>
+ * 默认在随机端口上启动内嵌Redis；也可以通过-Dredis.host、-Dredis.port、-Dredis.password、-Dredis.database
+ * 指定已有的Redis。
+ */
+public class ClusterRedisTest {
+
+    private static final long LEASE_MILLIS = 30_000;
+
+    private RedisServer redisServer;
+    private LettuceConnectionFactory connectionFactory;
+    private StringRedisTemplate redisTemplate;
+    private DeviceRouteRedisMapper mapper;
+    private ClusterService nodeA;
+    private ClusterService nodeB;
+    private String deviceId;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        String host = System.getProperty("redis.host");
+        int port;
+        if (host != null) {
+            port = Integer.getInteger("redis.port", 6379);
+        } else {
+            host = "localhost";
+            port = freePort();
+            redisServer = new RedisServer(port);
+            redisServer.start();
+        }
+
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(host, port);
+        configuration.setPassword(System.getProperty("redis.password", ""));
+        configuration.setDatabase(Integer.getInteger("redis.database", 0));
+        connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+
+        mapper = new DeviceRouteRedisMapper();
+        ReflectionTestUtils.setField(mapper, "stringRedisTemplate", redisTemplate);
+        deviceId = "cluster-test-" + UUID.randomUUID();
+        nodeA = node("node-a-" + UUID.randomUUID());
+        nodeB = node("node-b-" + UUID.randomUUID());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        try {
+            if (connectionFactory != null) {
+                nodeA.destroy();
+                nodeB.destroy();
+                redisTemplate.delete("xiaozhi:cluster:device:" + deviceId);
+                connectionFactory.destroy();
+            }
+        } finally {
+            if (redisServer != null) {
+                redisServer.stop();
+            }
+        }
+    }
+
+    private ClusterService node(String nodeId) {
+        ClusterService node = new ClusterService();
+        ReflectionTestUtils.setField(node, "enabled", true);
+        ReflectionTestUtils.setField(node, "configuredNodeId", nodeId);
+        ReflectionTestUtils.setField(node, "leaseSeconds", (int) (LEASE_MILLIS / 1000));
+        ReflectionTestUtils.setField(node, "sessionManager", new SessionManager());
+        ReflectionTestUtils.setField(node, "deviceRouteRedisMapper", mapper);
+        ReflectionTestUtils.setField(node, "stringRedisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(node, "redisConnectionFactory", connectionFactory);
+        node.init();
+        return node;
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private long leaseLeft() {
+        Long ttl = redisTemplate.getExpire("xiaozhi:cluster:device:" + deviceId, TimeUnit.MILLISECONDS);
+        return ttl != null ? ttl : -2;
+    }
+
+    @Test
+    public void deviceMovesBetweenNodes() throws Exception {
+        CountDownLatch closed = new CountDownLatch(1);
+        nodeA.registerHandler(ClusterCommand.TYPE_CLOSE, command -> {
+            if (deviceId.equals(command.getDeviceId())) {
+                closed.countDown();
+            }
+        });
+
+        nodeA.onDeviceConnected(deviceId, "session-a");
+        assertEquals(nodeA.getNodeId(), mapper.getOwner(deviceId));
+        assertTrue(leaseLeft() > 0 && leaseLeft() <= LEASE_MILLIS, "归属没有租约");
+        assertTrue(nodeB.isOwnedByOtherNode(deviceId));
+
+        // 设备重连到节点B，归属连同租约一起改写，原节点收到关闭命令
+        nodeB.onDeviceConnected(deviceId, "session-b");
+        assertEquals(nodeB.getNodeId(), mapper.getOwner(deviceId));
+        assertTrue(leaseLeft() > 0 && leaseLeft() <= LEASE_MILLIS, "迁移后的归属没有租约");
+        assertTrue(closed.await(5, TimeUnit.SECONDS), "原节点没有收到关闭命令");
+
+        // 原节点的会话断开不影响新归属
+        nodeA.onDeviceDisconnected(deviceId, "session-a");
+        assertEquals(nodeB.getNodeId(), mapper.getOwner(deviceId));
+        assertFalse(mapper.renew(deviceId, nodeA.getNodeId(), LEASE_MILLIS));
+        assertTrue(mapper.renew(deviceId, nodeB.getNodeId(), LEASE_MILLIS));
+
+        nodeB.onDeviceDisconnected(deviceId, "session-b");
+        assertNull(mapper.getOwner(deviceId));
+    }
+}
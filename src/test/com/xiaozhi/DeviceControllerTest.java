@@ -0,0 +1,107 @@
+package com.xiaozhi;
+
+import com.xiaozhi.common.web.AjaxResult;
+import com.xiaozhi.common.web.HttpStatus;
+import com.xiaozhi.controller.DeviceController;
+import com.xiaozhi.entity.SysDevice;
+import com.xiaozhi.entity.SysUser;
+import com.xiaozhi.service.SysDeviceService;
+import com.xiaozhi.utils.CmsUtils;
+import com.xiaozhi.websocket.cluster.ClusterService;
+import com.xiaozhi.websocket.service.DevicePresenceService;
+import com.xiaozhi.websocket.service.IotService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 设备管理接口：只能操作当前用户的设备
+ */
+public class DeviceControllerTest {
+
+    private SysDeviceService deviceService;
+    private IotService iotService;
+    private DevicePresenceService presenceService;
+    private DeviceController controller;
+
+    @BeforeEach
+    public void setUp() {
+        deviceService = mock(SysDeviceService.class);
+        iotService = mock(IotService.class);
+        controller = new DeviceController();
+        ReflectionTestUtils.setField(controller, "deviceService", deviceService);
+        ReflectionTestUtils.setField(controller, "iotService", iotService);
+        presenceService = new DevicePresenceService();
+        ReflectionTestUtils.setField(presenceService, "clusterService", new ClusterService());
+        ReflectionTestUtils.setField(controller, "devicePresenceService", presenceService);
+
+        // 设备a属于用户1
+        when(deviceService.query(any(SysDevice.class))).thenAnswer(invocation -> {
+            SysDevice query = invocation.getArgument(0);
+            boolean owned = Integer.valueOf(1).equals(query.getUserId())
+                    && (query.getDeviceId() == null || "a".equals(query.getDeviceId()));
+            return owned ? Collections.singletonList(new SysDevice().setDeviceId("a")) : Collections.emptyList();
+        });
+        when(iotService.sendIotMessageToDevice(anyString(), anyString(), anyString(), anyMap())).thenReturn(true);
+    }
+
+    private static MockServerWebExchange exchange(int userId) {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/api/device/iot"));
+        SysUser user = new SysUser();
+        user.setUserId(userId);
+        exchange.getAttributes().put(CmsUtils.USER_ATTRIBUTE_KEY, user);
+        return exchange;
+    }
+
+    private static Map<String, Object> command(String deviceId) {
+        Map<String, Object> command = new HashMap<>();
+        command.put("deviceId", deviceId);
+        command.put("name", "Speaker");
+        command.put("method", "SetVolume");
+        return command;
+    }
+
+    @Test
+    public void iotCommandOnlyReachesOwnDevice() {
+        AjaxResult own = controller.iot(command("a"), exchange(1)).block();
+        assertEquals(HttpStatus.SUCCESS, own.get(AjaxResult.CODE_TAG));
+        verify(iotService).sendIotMessageToDevice(eq("a"), anyString(), anyString(), anyMap());
+
+        // 其他用户的设备
+        AjaxResult other = controller.iot(command("a"), exchange(2)).block();
+        assertNotEquals(HttpStatus.SUCCESS, other.get(AjaxResult.CODE_TAG));
+
+        // 未登录
+        MockServerWebExchange anonymous = MockServerWebExchange.from(MockServerHttpRequest.post("/api/device/iot"));
+        AjaxResult rejected = controller.iot(command("a"), anonymous).block();
+        assertNotEquals(HttpStatus.SUCCESS, rejected.get(AjaxResult.CODE_TAG));
+        verify(iotService, times(1)).sendIotMessageToDevice(anyString(), anyString(), anyString(), anyMap());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void presenceOnlyListsOwnDevices() {
+        presenceService.online("a", "s1");
+        presenceService.online("b", "s2");
+
+        List<DevicePresenceService.Presence> own = (List<DevicePresenceService.Presence>) controller
+                .presence(exchange(1)).block().get(AjaxResult.DATA_TAG);
+        assertEquals(1, own.size());
+        assertEquals("a", own.get(0).getDeviceId());
+
+        List<DevicePresenceService.Presence> other = (List<DevicePresenceService.Presence>) controller
+                .presence(exchange(2)).block().get(AjaxResult.DATA_TAG);
+        assertTrue(other.isEmpty());
+    }
+}
@@ -0,0 +1,76 @@
+package com.xiaozhi;
+
+import com.xiaozhi.service.SysDeviceService;
+import com.xiaozhi.websocket.cluster.ClusterService;
+import com.xiaozhi.websocket.service.DevicePresenceService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * 设备在线状态：离线状态写库后移除，写库失败的设备保留到重试成功
+ */
+public class DevicePresenceServiceTest {
+
+    private SysDeviceService deviceService;
+    private DevicePresenceService presenceService;
+
+    @BeforeEach
+    public void setUp() {
+        deviceService = mock(SysDeviceService.class);
+        presenceService = new DevicePresenceService();
+        ReflectionTestUtils.setField(presenceService, "batchSize", 500);
+        ReflectionTestUtils.setField(presenceService, "deviceService", deviceService);
+        ReflectionTestUtils.setField(presenceService, "clusterService", new ClusterService());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> persistedStates() {
+        return (Map<String, String>) ReflectionTestUtils.getField(presenceService, "persistedStates");
+    }
+
+    @Test
+    public void offlineDevicesAreRemovedAfterFlush() {
+        presenceService.online("a", "s1");
+        presenceService.online("b", "s2");
+        presenceService.flush();
+        assertEquals(2, presenceService.getPresences().size());
+
+        presenceService.offline("a", "s1");
+        presenceService.flush();
+        verify(deviceService).batchUpdateState(anyList(), eq("0"));
+        assertNull(presenceService.getPresence("a"));
+        assertFalse(persistedStates().containsKey("a"));
+        assertTrue(presenceService.isOnline("b"));
+
+        // 移除后重新上线按新设备处理，再次写入在线状态
+        presenceService.online("a", "s3");
+        presenceService.flush();
+        assertTrue(presenceService.isOnline("a"));
+        verify(deviceService, times(2)).batchUpdateState(anyList(), eq("1"));
+    }
+
+    @Test
+    public void failedOfflineWriteIsKeptForRetry() {
+        presenceService.online("a", "s1");
+        presenceService.flush();
+
+        when(deviceService.batchUpdateState(anyList(), eq("0"))).thenThrow(new RuntimeException("db down"));
+        presenceService.offline("a", "s1");
+        presenceService.flush();
+        assertNotNull(presenceService.getPresence("a"));
+
+        reset(deviceService);
+        presenceService.flush();
+        verify(deviceService).batchUpdateState(anyList(), eq("0"));
+        assertNull(presenceService.getPresence("a"));
+        assertTrue(persistedStates().isEmpty());
+    }
+}
@@ -0,0 +1,323 @@
+package com.xiaozhi;
+
+import com.xiaozhi.entity.SysConfig;
+import com.xiaozhi.entity.SysMessage;
+import com.xiaozhi.utils.AudioUtils;
+import com.xiaozhi.utils.CancellationToken;
+import com.xiaozhi.websocket.cluster.ClusterService;
+import com.xiaozhi.websocket.handler.DeviceMessageHandler;
+import com.xiaozhi.websocket.llm.api.LlmService;
+import com.xiaozhi.websocket.llm.api.StreamResponseListener;
+import com.xiaozhi.websocket.llm.memory.ChatMemory;
+import com.xiaozhi.websocket.llm.memory.ModelContext;
+import com.xiaozhi.websocket.llm.providers.MockLlmService;
+import com.xiaozhi.websocket.metrics.PipelineMetrics;
+import com.xiaozhi.websocket.service.AdmissionService;
+import com.xiaozhi.websocket.service.AudioService;
+import com.xiaozhi.websocket.service.BargeInDetector;
+import com.xiaozhi.websocket.service.DevicePresenceService;
+import com.xiaozhi.websocket.service.DialogueService;
+import com.xiaozhi.websocket.service.ReviewDialogueService;
+import com.xiaozhi.websocket.service.SentenceAudioService;
+import com.xiaozhi.websocket.service.SessionManager;
+import com.xiaozhi.websocket.service.TtsScheduler;
+import com.xiaozhi.websocket.service.VadService;
+import com.xiaozhi.websocket.trace.TurnTracer;
+import com.xiaozhi.websocket.transport.DeviceSession;
+import com.xiaozhi.websocket.tts.factory.TtsServiceFactory;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 对话取消：中止或连接关闭后模拟LLM不再回调，排队中的语音合成被跳过，正在合成的结果被丢弃且不播放
+ */
+public class DialogueCancellationTest {
+
+    private static final String SESSION_ID = "cancel-test";
+
+    private SimpleMeterRegistry registry;
+    private PipelineMetrics metrics;
+    private TtsScheduler ttsScheduler;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        metrics = new PipelineMetrics();
+        ReflectionTestUtils.setField(metrics, "meterRegistry", registry);
+        ReflectionTestUtils.setField(metrics, "sessionManager", new SessionManager());
+        metrics.init();
+
+        // 每个会话同时只合成一句，便于观察排队中的句子
+        ttsScheduler = new TtsScheduler();
+        ReflectionTestUtils.setField(ttsScheduler, "lookahead", 0);
+        ReflectionTestUtils.setField(ttsScheduler, "maxConcurrent", 1);
+        ReflectionTestUtils.setField(ttsScheduler, "meterRegistry", registry);
+        ttsScheduler.init();
+
+        // 模拟语音合成把音频写入该目录
+        new File(AudioUtils.AUDIO_PATH).mkdirs();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ttsScheduler.destroy();
+    }
+
+    @Test
+    public void tokenRunsCallbacksOnce() {
+        CancellationToken token = new CancellationToken();
+        AtomicInteger calls = new AtomicInteger();
+        token.onCancel(calls::incrementAndGet);
+        token.onCancel(calls::incrementAndGet).dispose();
+
+        assertTrue(token.cancel("abort"));
+        assertFalse(token.cancel("again"));
+        assertEquals(1, calls.get());
+        assertEquals("abort", token.getReason());
+
+        // 已取消的令牌上注册的回调立即执行
+        token.onCancel(calls::incrementAndGet);
+        assertEquals(2, calls.get());
+
+        assertFalse(CancellationToken.NONE.cancel("abort"));
+        assertFalse(CancellationToken.NONE.isCancelled());
+    }
+
+    @Test
+    public void cancelStopsMockLlmStream() throws Exception {
+        MockLlmService llm = new MockLlmService("text=一二三四五六七八九十&latency=0&rate=50&token=1", null, null,
+                null, "mock");
+        ModelContext modelContext = new ModelContext(SESSION_ID, SESSION_ID, null, false, new EmptyChatMemory());
+        CancellationToken token = new CancellationToken();
+        modelContext.setCancellationToken(token);
+
+        CountDownLatch firstToken = new CountDownLatch(1);
+        AtomicInteger tokens = new AtomicInteger();
+        AtomicInteger completions = new AtomicInteger();
+        llm.chatStream("你好", modelContext, new RecordingListener(tokens, completions) {
+            @Override
+            public void onToken(String token) {
+                super.onToken(token);
+                firstToken.countDown();
+            }
+        });
+
+        assertTrue(firstToken.await(5, TimeUnit.SECONDS));
+        token.cancel("abort");
+        int received = tokens.get();
+        Thread.sleep(300);
+
+        assertTrue(tokens.get() <= received + 1, "取消后仍在回调token: " + tokens.get());
+        assertTrue(tokens.get() < 10);
+        assertEquals(0, completions.get());
+    }
+
+    @Test
+    public void closingSessionCancelsMockLlmStream() throws Exception {
+        SessionManager sessionManager = new SessionManager();
+        DialogueService dialogueService = new DialogueService();
+        ReflectionTestUtils.setField(dialogueService, "sessionManager", sessionManager);
+        ReflectionTestUtils.setField(dialogueService, "audioService", mock(AudioService.class));
+        ReflectionTestUtils.setField(dialogueService, "sentenceAudioService", mock(SentenceAudioService.class));
+        ReflectionTestUtils.setField(dialogueService, "reviewDialogueService", mock(ReviewDialogueService.class));
+        ReflectionTestUtils.setField(dialogueService, "admissionService", mock(AdmissionService.class));
+        ReflectionTestUtils.setField(dialogueService, "bargeInDetector", mock(BargeInDetector.class));
+        ReflectionTestUtils.setField(dialogueService, "turnTracer", mock(TurnTracer.class));
+        ReflectionTestUtils.setField(dialogueService, "ttsScheduler", ttsScheduler);
+        ReflectionTestUtils.setField(dialogueService, "pipelineMetrics", metrics);
+
+        DeviceMessageHandler handler = new DeviceMessageHandler();
+        ReflectionTestUtils.setField(handler, "sessionManager", sessionManager);
+        ReflectionTestUtils.setField(handler, "dialogueService", dialogueService);
+        ReflectionTestUtils.setField(handler, "devicePresenceService", mock(DevicePresenceService.class));
+        ReflectionTestUtils.setField(handler, "clusterService", mock(ClusterService.class));
+        ReflectionTestUtils.setField(handler, "admissionService", mock(AdmissionService.class));
+        ReflectionTestUtils.setField(handler, "vadService", mock(VadService.class));
+
+        // 本轮对话的令牌交给模拟LLM，与正式流程一致
+        CancellationToken token = ReflectionTestUtils.invokeMethod(dialogueService, "initChat", SESSION_ID);
+        MockLlmService llm = new MockLlmService("text=一二三四五六七八九十&latency=0&rate=50&token=1", null, null,
+                null, "mock");
+        ModelContext modelContext = new ModelContext(SESSION_ID, SESSION_ID, null, false, new EmptyChatMemory());
+        modelContext.setCancellationToken(token);
+
+        CountDownLatch firstToken = new CountDownLatch(1);
+        AtomicInteger tokens = new AtomicInteger();
+        AtomicInteger completions = new AtomicInteger();
+        llm.chatStream("你好", modelContext, new RecordingListener(tokens, completions) {
+            @Override
+            public void onToken(String token) {
+                super.onToken(token);
+                firstToken.countDown();
+            }
+        });
+        assertTrue(firstToken.await(5, TimeUnit.SECONDS));
+
+        // 设备在回答过程中断开
+        DeviceSession session = mock(DeviceSession.class);
+        when(session.getId()).thenReturn(SESSION_ID);
+        handler.onClose(session, "aa:bb:cc:dd:ee:ff");
+        int received = tokens.get();
+        Thread.sleep(300);
+
+        assertTrue(token.isCancelled());
+        assertEquals("session closed", token.getReason());
+        assertTrue(tokens.get() <= received + 1, "连接关闭后仍在回调token: " + tokens.get());
+        assertEquals(0, completions.get());
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(dialogueService, "dialogueTokens")).isEmpty());
+    }
+
+    @Test
+    public void completedStreamDeregistersFromToken() throws Exception {
+        MockLlmService llm = new MockLlmService("text=一二三&latency=0&rate=0", null, null, null, "mock");
+        ModelContext modelContext = new ModelContext(SESSION_ID, SESSION_ID, null, false, new EmptyChatMemory());
+        CancellationToken token = new CancellationToken();
+        modelContext.setCancellationToken(token);
+
+        CountDownLatch completed = new CountDownLatch(1);
+        llm.chatStream("你好", modelContext, new RecordingListener(new AtomicInteger(), new AtomicInteger()) {
+            @Override
+            public void onComplete(String fullResponse, List<Map<String, Object>> hisMessages,
+                    LlmService llmService, String messageType) {
+                completed.countDown();
+            }
+        });
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!callbacks(token).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(callbacks(token).isEmpty(), "流结束后仍持有取消回调");
+    }
+
+    @Test
+    public void abortSkipsQueuedSynthesisAndPlayback() throws Exception {
+        AtomicInteger played = new AtomicInteger();
+        AudioService audioService = new AudioService() {
+            @Override
+            public Mono<Void> sendAudioMessage(DeviceSession session, String audioPath, String text, boolean isFirst,
+                    boolean isLast, CancellationToken token) {
+                if (!token.isCancelled()) {
+                    played.incrementAndGet();
+                }
+                return Mono.empty();
+            }
+        };
+        SentenceAudioService sentenceAudioService = new SentenceAudioService();
+        ReflectionTestUtils.setField(sentenceAudioService, "ttsFactory", new TtsServiceFactory());
+        ReflectionTestUtils.setField(sentenceAudioService, "audioService", audioService);
+        ReflectionTestUtils.setField(sentenceAudioService, "sessionManager", new SessionManager());
+        ReflectionTestUtils.setField(sentenceAudioService, "pipelineMetrics", metrics);
+        ReflectionTestUtils.setField(sentenceAudioService, "ttsScheduler", ttsScheduler);
+
+        SysConfig ttsConfig = new SysConfig();
+        ttsConfig.setProvider("mock");
+        ttsConfig.setApiUrl("latency=300&speed=0");
+
+        File audioDir = new File(AudioUtils.AUDIO_PATH);
+        int audioFiles = audioDir.list().length;
+        CancellationToken token = new CancellationToken();
+        sentenceAudioService.handleSentence(null, SESSION_ID, "第一句。", true, false, ttsConfig, null, "d", token);
+        sentenceAudioService.handleSentence(null, SESSION_ID, "第二句。", false, false, ttsConfig, null, "d", token);
+        sentenceAudioService.handleSentence(null, SESSION_ID, "第三句。", false, true, ttsConfig, null, "d", token);
+
+        // 第一句正在合成时中止
+        Thread.sleep(100);
+        token.cancel("abort");
+        sentenceAudioService.clearQueue(SESSION_ID);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ttsScheduler.getRunningCount() + ttsScheduler.getWaitingCount() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+
+        assertEquals(0, played.get());
+        assertEquals(2.0, registry.get("xiaozhi.tts.cancelled").tag("stage", "skipped").functionCounter().count());
+        assertEquals(1.0, registry.get("xiaozhi.tts.cancelled").tag("stage", "discarded").functionCounter().count());
+        // 丢弃的音频文件已删除
+        assertEquals(audioFiles, audioDir.list().length);
+        sentenceAudioService.cleanupSession(SESSION_ID);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Runnable> callbacks(CancellationToken token) {
+        List<Runnable> callbacks = (List<Runnable>) ReflectionTestUtils.getField(token, "callbacks");
+        return callbacks != null ? callbacks : Collections.emptyList();
+    }
+
+    private static class RecordingListener implements StreamResponseListener {
+        private final AtomicInteger tokens;
+        private final AtomicInteger completions;
+
+        RecordingListener(AtomicInteger tokens, AtomicInteger completions) {
+            this.tokens = tokens;
+            this.completions = completions;
+        }
+
+        @Override
+        public void onStart() {
+        }
+
+        @Override
+        public void onToken(String token) {
+            tokens.incrementAndGet();
+        }
+
+        @Override
+        public void onComplete(String fullResponse, List<Map<String, Object>> hisMessages, LlmService llmService,
+                String messageType) {
+            completions.incrementAndGet();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+        }
+    }
+
+    /**
+     * 不保存任何消息的对话记忆
+     */
+    private static class EmptyChatMemory implements ChatMemory {
+        @Override
+        public void addMessage(String deviceId, String sessionId, String sender, String content, Integer roleId,
+                String messageType, String audioPath) {
+        }
+
+        @Override
+        public List<SysMessage> getMessages(String deviceId, String messageType, Integer limit) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void clearMessages(String deviceId) {
+        }
+
+        @Override
+        public String getSystemMessage(String deviceId, Integer roleId) {
+            return null;
+        }
+
+        @Override
+        public void setSystemMessage(String deviceId, Integer roleId, String systemMessage) {
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.xiaozhi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.xiaozhi.websocket.handler.DeviceMessageHandler;
+import com.xiaozhi.websocket.service.AdmissionService;
+import com.xiaozhi.websocket.service.ConnectionDrainService;
+import com.xiaozhi.websocket.service.SessionManager;
+import com.xiaozhi.websocket.transport.DeviceSession;
+import com.xiaozhi.websocket.transport.MqttUdpDeviceSession;
+import com.xiaozhi.websocket.transport.MqttUdpServer;
+import com.xiaozhi.websocket.transport.UdpAudioCipher;
+
+import cn.hutool.core.util.HexUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import reactor.core.publisher.Mono;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * MQTT+UDP传输的端到端测试：模拟设备连接内置MQTT端点，hello获取UDP参数后收发加密音频
+ */
+public class MqttUdpTransportTest {
+
+    private static final String CLIENT_ID = "GID_test@@@aa_bb_cc_dd_ee_ff@@@8f0c2b6e";
+    private static final String TOPIC = "devices/p2p/aa_bb_cc_dd_ee_ff";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final BlockingQueue<String> opened = new LinkedBlockingQueue<>();
+    private final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> closed = new LinkedBlockingQueue<>();
+    private final BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<>();
+
+    private MqttUdpServer server;
+    private EventLoopGroup clientGroup;
+    private Channel client;
+
+    /**
+     * 只记录事件的消息处理：hello按真实流程由会话填写传输字段，音频原样回送
+     */
+    private class RecordingHandler extends DeviceMessageHandler {
+        @Override
+        public Mono<Void> onOpen(DeviceSession session, String deviceId) {
+            opened.add(deviceId);
+            return Mono.empty();
+        }
+
+        @Override
+        public Mono<Void> onText(DeviceSession session, String payload) {
+            ObjectNode hello = objectMapper.createObjectNode();
+            hello.put("type", "hello");
+            session.fillHello(hello);
+            hello.put("session_id", session.getId());
+            return session.sendText(hello.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public Mono<Void> onBinary(DeviceSession session, byte[] opusData) {
+            frames.add(opusData);
+            return session.sendAudio(opusData);
+        }
+
+        @Override
+        public void onClose(DeviceSession session, String deviceId) {
+            closed.add(deviceId);
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = new MqttUdpServer();
+        ReflectionTestUtils.setField(server, "port", 0);
+        ReflectionTestUtils.setField(server, "udpPort", 0);
+        ReflectionTestUtils.setField(server, "udpHost", "127.0.0.1");
+        ReflectionTestUtils.setField(server, "sessionManager", new SessionManager());
+        ReflectionTestUtils.setField(server, "deviceMessageHandler", new RecordingHandler());
+        ReflectionTestUtils.setField(server, "connectionDrainService", new ConnectionDrainService());
+        ReflectionTestUtils.setField(server, "admissionService", new AdmissionService());
+        server.start();
+
+        clientGroup = new NioEventLoopGroup(1);
+        client = new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                                .addLast(new MqttDecoder())
+                                .addLast(MqttEncoder.INSTANCE)
+                                .addLast(new SimpleChannelInboundHandler<MqttMessage>() {
+                                    @Override
+                                    protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+                                        if (msg instanceof MqttPublishMessage) {
+                                            // 处理器返回后负载会被释放，先复制
+                                            MqttPublishMessage publish = (MqttPublishMessage) msg;
+                                            received.add(publish.replace(Unpooled.copiedBuffer(publish.payload())));
+                                        } else {
+                                            received.add(msg);
+                                        }
+                                    }
+                                });
+                    }
+                })
+                .connect("127.0.0.1", server.getPort()).sync().channel();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (client != null) {
+            client.close().syncUninterruptibly();
+            clientGroup.shutdownGracefully();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void helloAndEncryptedAudioRoundTrip() throws Exception {
+        client.writeAndFlush(MqttMessageBuilders.connect().clientId(CLIENT_ID).keepAlive(60).build());
+        MqttMessage connAck = received.poll(5, TimeUnit.SECONDS);
+        assertTrue(connAck instanceof MqttConnAckMessage);
+        assertEquals(MqttConnectReturnCode.CONNECTION_ACCEPTED,
+                ((MqttConnAckMessage) connAck).variableHeader().connectReturnCode());
+        assertEquals("aa:bb:cc:dd:ee:ff", opened.poll(5, TimeUnit.SECONDS));
+
+        client.writeAndFlush(MqttMessageBuilders.subscribe().messageId(1)
+                .addSubscription(MqttQoS.AT_MOST_ONCE, TOPIC).build());
+        assertEquals(MqttMessageType.SUBACK, received.poll(5, TimeUnit.SECONDS).fixedHeader().messageType());
+
+        client.writeAndFlush(MqttMessageBuilders.publish().topicName("device-server").qos(MqttQoS.AT_MOST_ONCE)
+                .payload(Unpooled.copiedBuffer("{\"type\":\"hello\",\"transport\":\"udp\"}", StandardCharsets.UTF_8))
+                .build());
+        MqttPublishMessage reply = (MqttPublishMessage) received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(reply);
+        assertEquals(TOPIC, reply.variableHeader().topicName());
+        JsonNode hello = objectMapper.readTree(reply.payload().toString(StandardCharsets.UTF_8));
+        assertEquals("udp", hello.path("transport").asText());
+        JsonNode udp = hello.path("udp");
+        byte[] key = HexUtil.decodeHex(udp.path("key").asText());
+        byte[] nonce = HexUtil.decodeHex(udp.path("nonce").asText());
+        assertEquals(UdpAudioCipher.KEY_SIZE, key.length);
+        assertEquals(UdpAudioCipher.HEADER_SIZE, nonce.length);
+        int ssrc = UdpAudioCipher.ssrc(nonce);
+
+        UdpAudioCipher cipher = new UdpAudioCipher(key);
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            socket.setSoTimeout(5000);
+            InetAddress serverAddress = InetAddress.getByName(udp.path("server").asText());
+            int port = udp.path("port").asInt();
+
+            byte[] frame = new byte[120];
+            for (int i = 0; i < frame.length; i++) {
+                frame[i] = (byte) i;
+            }
+            byte[] packet = cipher.seal(ssrc, 0, 1, frame);
+            assertFalse(Arrays.equals(frame, Arrays.copyOfRange(packet, UdpAudioCipher.HEADER_SIZE, packet.length)));
+            socket.send(new DatagramPacket(packet, packet.length, serverAddress, port));
+            assertArrayEquals(frame, frames.poll(5, TimeUnit.SECONDS));
+
+            // 服务端回送的帧用同一密钥加密，序号从1开始
+            byte[] buffer = new byte[1500];
+            DatagramPacket echo = new DatagramPacket(buffer, buffer.length);
+            socket.receive(echo);
+            byte[] echoed = Arrays.copyOf(buffer, echo.getLength());
+            assertEquals(ssrc, UdpAudioCipher.ssrc(echoed));
+            assertEquals(1, UdpAudioCipher.sequence(echoed));
+            assertArrayEquals(frame, cipher.open(echoed));
+
+            // 重放的包被丢弃
+            socket.send(new DatagramPacket(packet, packet.length, serverAddress, port));
+            assertNull(frames.poll(300, TimeUnit.MILLISECONDS));
+        }
+
+        client.writeAndFlush(MqttMessageBuilders.disconnect().build());
+        assertEquals("aa:bb:cc:dd:ee:ff", closed.poll(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 直接构造会话，MQTT对端为10.0.0.1
+     */
+    private static MqttUdpDeviceSession udpSession(byte[] key) {
+        Channel mqttChannel = mock(Channel.class);
+        when(mqttChannel.remoteAddress()).thenReturn(new InetSocketAddress("10.0.0.1", 40000));
+        return new MqttUdpDeviceSession("s1", "aa:bb:cc:dd:ee:ff", mqttChannel, mock(Channel.class), "127.0.0.1",
+                8884, 7, key);
+    }
+
+    @Test
+    public void spoofedSequenceJumpIsRejected() {
+        byte[] key = new byte[UdpAudioCipher.KEY_SIZE];
+        UdpAudioCipher cipher = new UdpAudioCipher(key);
+        MqttUdpDeviceSession session = udpSession(key);
+        InetSocketAddress device = new InetSocketAddress("10.0.0.1", 50000);
+        byte[] frame = new byte[40];
+
+        assertNotNull(session.receive(device, cipher.seal(7, 0, 1, frame)));
+        // 伪造的超大序号不被接受，也不影响后续正常的包
+        assertNull(session.receive(device, cipher.seal(7, 0, 0xFFFFFFFFL, frame)));
+        assertNull(session.receive(device, cipher.seal(7, 0, 1 + 1001, frame)));
+        assertNotNull(session.receive(device, cipher.seal(7, 0, 2, frame)));
+        assertNotNull(session.receive(device, cipher.seal(7, 0, 3, frame)));
+
+        // 设备长时间丢包后的大幅跳号，连续多个包确认后接受
+        assertNull(session.receive(device, cipher.seal(7, 0, 5000, frame)));
+        assertNull(session.receive(device, cipher.seal(7, 0, 5001, frame)));
+        assertNotNull(session.receive(device, cipher.seal(7, 0, 5002, frame)));
+        assertNotNull(session.receive(device, cipher.seal(7, 0, 5003, frame)));
+    }
+
+    @Test
+    public void addressChangeOnlyFromPeerOrConfirmed() {
+        byte[] key = new byte[UdpAudioCipher.KEY_SIZE];
+        UdpAudioCipher cipher = new UdpAudioCipher(key);
+        MqttUdpDeviceSession session = udpSession(key);
+        InetSocketAddress device = new InetSocketAddress("10.0.0.1", 50000);
+        InetSocketAddress spoofer = new InetSocketAddress("192.0.2.9", 6000);
+        byte[] frame = new byte[40];
+
+        assertNotNull(session.receive(device, cipher.seal(7, 0, 1, frame)));
+        assertEquals(device, session.getRemoteAddress());
+
+        // 其他IP的单个包不改变下行地址和序号，穿插的正常包打断确认
+        assertNull(session.receive(spoofer, cipher.seal(7, 0, 10, frame)));
+        assertNull(session.receive(spoofer, cipher.seal(7, 0, 11, frame)));
+        assertNotNull(session.receive(device, cipher.seal(7, 0, 2, frame)));
+        assertNull(session.receive(spoofer, cipher.seal(7, 0, 12, frame)));
+        assertEquals(device, session.getRemoteAddress());
+
+        // MQTT对端IP上的端口变化（NAT重新映射）直接接受
+        InetSocketAddress remapped = new InetSocketAddress("10.0.0.1", 50001);
+        assertNotNull(session.receive(remapped, cipher.seal(7, 0, 3, frame)));
+        assertEquals(remapped, session.getRemoteAddress());
+
+        // 其他IP需要连续多个有效包确认
+        InetSocketAddress moved = new InetSocketAddress("198.51.100.7", 7000);
+        assertNull(session.receive(moved, cipher.seal(7, 0, 4, frame)));
+        assertNull(session.receive(moved, cipher.seal(7, 0, 5, frame)));
+        assertEquals(remapped, session.getRemoteAddress());
+        assertNotNull(session.receive(moved, cipher.seal(7, 0, 6, frame)));
+        assertEquals(moved, session.getRemoteAddress());
+    }
+}
@@ -0,0 +1,213 @@
+package com.xiaozhi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xiaozhi.utils.AudioUtils;
+import com.xiaozhi.utils.PcmOps;
+import com.xiaozhi.utils.opus.ConcentusOpusCodec;
+import com.xiaozhi.utils.opus.NativeOpusCodec;
+import com.xiaozhi.utils.opus.OpusCodec;
+
+/**
+ * Opus编解码实现的一致性和音质对比，使用基准测试的固定语音
+ * <br/>
+ * 编码器输出本身不要求一致（libopus与Concentus的版本和定点/浮点实现不同），因此比较的是：
+ * 同一组数据包两种解码器的输出差异（逐帧统计完全一致的比例），以及编码再解码后相对原始音频的信噪比。
+ * Concentus是纯Java实现、结果与平台无关，往返输出按CRC32逐位校验；升级Concentus或修改编码参数后需要重新生成。
+ * 没有原生libopus时只运行Concentus部分，可用 -Djna.library.path 指定库所在目录。
+ */
+public class OpusCodecQualityTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(OpusCodecQualityTest.class);
+
+    // 基准测试数据，-Pbenchmarks时在类路径上，否则从项目目录读取
+    private static final String FIXTURE = "fixtures/utterance-16k-mono.pcm";
+
+    private static final String FIXTURE_DIR = "src/benchmark/resources";
+
+    // Concentus往返输出的CRC32
+    private static final long CONCENTUS_ROUND_TRIP_CRC = 0x3c9e118bL;
+
+    // Concentus往返信噪比下限，24kbps时实测约8.4dB
+    private static final double CONCENTUS_MIN_SNR = 8.0;
+
+    private static final int FRAME_SIZE = AudioUtils.SAMPLE_RATE * AudioUtils.OPUS_FRAME_DURATION_MS / 1000;
+
+    // 对齐编解码延迟时搜索的最大样本数
+    private static final int MAX_LAG = 960;
+
+    @Test
+    public void concentusRoundTrip() throws Exception {
+        short[] original = fixture();
+        OpusCodec codec = new ConcentusOpusCodec();
+        short[] decoded = decode(codec, encode(codec, original));
+        double snr = alignedSnr(original, decoded);
+        logger.info("Concentus编码-Concentus解码: SNR={}dB", String.format("%.1f", snr));
+        assertEquals(original.length, decoded.length);
+        assertTrue(snr >= CONCENTUS_MIN_SNR, "Concentus往返信噪比过低: " + snr);
+        assertEquals(Long.toHexString(CONCENTUS_ROUND_TRIP_CRC), Long.toHexString(crc(decoded)),
+                "Concentus往返输出与基线不一致");
+    }
+
+    @Test
+    public void nativeAgainstConcentus() throws Exception {
+        NativeOpusCodec nativeCodec = loadNative();
+        assumeTrue(nativeCodec != null, "未找到原生libopus");
+        OpusCodec concentus = new ConcentusOpusCodec();
+        short[] original = fixture();
+
+        // 同一组数据包，两种解码器的输出
+        List<byte[]> packets = encode(concentus, original);
+        short[] byConcentus = decode(concentus, packets);
+        short[] byNative = decode(nativeCodec, packets);
+        assertEquals(byConcentus.length, byNative.length);
+        int identicalFrames = 0;
+        for (int offset = 0; offset < byNative.length; offset += FRAME_SIZE) {
+            int end = Math.min(byNative.length, offset + FRAME_SIZE);
+            if (Arrays.equals(Arrays.copyOfRange(byConcentus, offset, end), Arrays.copyOfRange(byNative, offset, end))) {
+                identicalFrames++;
+            }
+        }
+        double decoderSnr = snr(byConcentus, byNative, 0);
+        logger.info("{}与Concentus解码同一组数据包: 完全一致帧 {}/{}, SNR={}dB", nativeCodec.getVersion(),
+                identicalFrames, packets.size(), String.format("%.1f", decoderSnr));
+        assertTrue(decoderSnr > 30, "两种解码器输出差异过大: " + decoderSnr);
+
+        // 原生编码，两种解码器都能解码且音质不低于Concentus编码
+        List<byte[]> nativePackets = encode(nativeCodec, original);
+        double nativeSnr = alignedSnr(original, decode(concentus, nativePackets));
+        double concentusSnr = alignedSnr(original, byConcentus);
+        logger.info("原生编码-Concentus解码: SNR={}dB, Concentus编码: SNR={}dB", String.format("%.1f", nativeSnr),
+                String.format("%.1f", concentusSnr));
+        assertEquals(packets.size(), nativePackets.size());
+        assertTrue(nativeSnr > concentusSnr - 3, "原生编码音质明显低于Concentus: " + nativeSnr);
+    }
+
+    private static NativeOpusCodec loadNative() {
+        try {
+            return NativeOpusCodec.load("opus");
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static short[] fixture() throws Exception {
+        byte[] pcm;
+        try (InputStream in = OpusCodecQualityTest.class.getResourceAsStream("/" + FIXTURE)) {
+            pcm = in != null ? readAll(in) : Files.readAllBytes(projectDir().resolve(FIXTURE_DIR).resolve(FIXTURE));
+        }
+        short[] samples = new short[PcmOps.samples(pcm)];
+        PcmOps.toShort(pcm, 0, samples, 0, samples.length);
+        return samples;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 项目目录：优先使用surefire设置的basedir，否则由测试类所在的target/test-classes向上推导，不依赖当前工作目录
+     */
+    private static Path projectDir() throws Exception {
+        String basedir = System.getProperty("basedir");
+        if (basedir != null) {
+            return Paths.get(basedir);
+        }
+        Path classes = Paths.get(OpusCodecQualityTest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        return classes.getParent().getParent();
+    }
+
+    private static long crc(short[] samples) {
+        byte[] pcm = new byte[samples.length * 2];
+        PcmOps.toBytes(samples, 0, pcm, 0, samples.length);
+        CRC32 crc = new CRC32();
+        crc.update(pcm, 0, pcm.length);
+        return crc.getValue();
+    }
+
+    private static List<byte[]> encode(OpusCodec codec, short[] samples) throws Exception {
+        OpusCodec.Encoder encoder = codec.createEncoder(AudioUtils.SAMPLE_RATE, AudioUtils.CHANNELS,
+                AudioUtils.BITRATE, 5);
+        try {
+            List<byte[]> packets = new ArrayList<>();
+            byte[] out = new byte[1275];
+            for (int offset = 0; offset + FRAME_SIZE <= samples.length; offset += FRAME_SIZE) {
+                int length = encoder.encode(Arrays.copyOfRange(samples, offset, offset + FRAME_SIZE), 0, FRAME_SIZE,
+                        out, 0, out.length);
+                packets.add(Arrays.copyOf(out, length));
+            }
+            return packets;
+        } finally {
+            encoder.close();
+        }
+    }
+
+    private static short[] decode(OpusCodec codec, List<byte[]> packets) throws Exception {
+        OpusCodec.Decoder decoder = codec.createDecoder(AudioUtils.SAMPLE_RATE, AudioUtils.CHANNELS);
+        try {
+            short[] result = new short[packets.size() * FRAME_SIZE];
+            short[] frame = new short[FRAME_SIZE];
+            int total = 0;
+            for (byte[] packet : packets) {
+                int samples = decoder.decode(packet, 0, packet.length, frame, 0, FRAME_SIZE, false);
+                System.arraycopy(frame, 0, result, total, samples);
+                total += samples;
+            }
+            return Arrays.copyOf(result, total);
+        } finally {
+            decoder.close();
+        }
+    }
+
+    /**
+     * 搜索编解码延迟后的最大信噪比
+     */
+    private static double alignedSnr(short[] reference, short[] test) {
+        double best = Double.NEGATIVE_INFINITY;
+        for (int lag = 0; lag <= MAX_LAG; lag++) {
+            best = Math.max(best, snr(reference, test, lag));
+        }
+        return best;
+    }
+
+    /**
+     * test相对reference延迟lag个样本时的信噪比（dB）
+     */
+    private static double snr(short[] reference, short[] test, int lag) {
+        double signal = 0;
+        double noise = 0;
+        int length = Math.min(reference.length, test.length - lag);
+        for (int i = 0; i < length; i++) {
+            double expected = reference[i];
+            double error = expected - test[i + lag];
+            signal += expected * expected;
+            noise += error * error;
+        }
+        if (noise == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+}
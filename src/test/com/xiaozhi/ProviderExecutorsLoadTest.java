@@ -0,0 +1,111 @@
+package com.xiaozhi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xiaozhi.utils.ProviderExecutors;
+
+/**
+ * 服务商执行器压测：模拟大量对话同时阻塞在服务商SDK的网络等待上，
+ * 对比boundedElastic与虚拟线程模式下的最大并发对话数
+ */
+public class ProviderExecutorsLoadTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProviderExecutorsLoadTest.class);
+
+    // 模拟一次服务商调用的阻塞时间
+    private static final long PROVIDER_LATENCY_MS = 300;
+
+    // boundedElastic的默认线程上限
+    private static final int ELASTIC_CAP = 10 * Runtime.getRuntime().availableProcessors();
+
+    // 模拟的并发对话数，超过boundedElastic的上限
+    private static final int CONVERSATIONS = ELASTIC_CAP * 3;
+
+    @AfterEach
+    public void reset() {
+        ProviderExecutors.shutdown();
+    }
+
+    @Test
+    public void boundedElasticCeiling() throws Exception {
+        assertEquals(ProviderExecutors.MODE_BOUNDED_ELASTIC,
+                ProviderExecutors.configure(ProviderExecutors.MODE_BOUNDED_ELASTIC));
+        Result result = runConversations();
+        logger.info("bounded-elastic 模式: 对话数={}, 最大并发={}, 线程上限={}", CONVERSATIONS, result.peak, ELASTIC_CAP);
+        // 线程用满后其余对话排队，至少要分CONVERSATIONS/ELASTIC_CAP批完成
+        assertTrue(result.peak <= ELASTIC_CAP);
+        assertTrue(result.peak < CONVERSATIONS);
+        assertTrue(result.elapsedMs >= CONVERSATIONS / ELASTIC_CAP * PROVIDER_LATENCY_MS,
+                "耗时" + result.elapsedMs + "ms，对话没有因线程上限排队");
+    }
+
+    @Test
+    public void virtualThreadsRaiseConcurrentConversations() throws Exception {
+        ProviderExecutors.configure(ProviderExecutors.MODE_BOUNDED_ELASTIC);
+        Result elastic = runConversations();
+
+        String mode = ProviderExecutors.configure(ProviderExecutors.MODE_VIRTUAL);
+        assumeTrue(ProviderExecutors.MODE_VIRTUAL.equals(mode), "当前JVM不支持虚拟线程");
+        Result virtual = runConversations();
+        logger.info("最大并发对话: bounded-elastic={}, virtual={}; 耗时: {}ms / {}ms", elastic.peak, virtual.peak,
+                elastic.elapsedMs, virtual.elapsedMs);
+
+        // 虚拟线程模式下所有对话同时阻塞，并发数至少是boundedElastic的3倍，整体耗时约为一次调用
+        assertEquals(CONVERSATIONS, virtual.peak);
+        assertTrue(virtual.peak >= 3 * elastic.peak,
+                "并发对话数 virtual=" + virtual.peak + ", bounded-elastic=" + elastic.peak);
+        assertTrue(virtual.elapsedMs < elastic.elapsedMs,
+                "耗时 virtual=" + virtual.elapsedMs + "ms, bounded-elastic=" + elastic.elapsedMs + "ms");
+    }
+
+    /**
+     * 一次压测的结果
+     */
+    private static class Result {
+        final int peak;
+        final long elapsedMs;
+
+        Result(int peak, long elapsedMs) {
+            this.peak = peak;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    /**
+     * 并发发起阻塞调用，返回同时处于阻塞中的最大调用数和全部完成的耗时
+     */
+    private Result runConversations() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[CONVERSATIONS];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            futures[i] = CompletableFuture.runAsync(() -> {
+                int current = inFlight.incrementAndGet();
+                peak.accumulateAndGet(current, Math::max);
+                try {
+                    Thread.sleep(PROVIDER_LATENCY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }, ProviderExecutors.executor());
+        }
+        CompletableFuture.allOf(futures).get(60, TimeUnit.SECONDS);
+        long elapsed = System.currentTimeMillis() - start;
+        logger.info("{}个对话完成耗时 {}ms", CONVERSATIONS, elapsed);
+        return new Result(peak.get(), elapsed);
+    }
+}
@@ -0,0 +1,162 @@
+package com.xiaozhi;
+
+import com.xiaozhi.websocket.service.TtsScheduler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 语音合成调度：每个会话领先播放的句数受限，第一句在全局队列中优先，名额全部归还后会话状态被移除
+ */
+public class TtsSchedulerTest {
+
+    private TtsScheduler scheduler;
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+    private void createScheduler(int lookahead, int maxConcurrent) {
+        scheduler = new TtsScheduler();
+        ReflectionTestUtils.setField(scheduler, "lookahead", lookahead);
+        ReflectionTestUtils.setField(scheduler, "maxConcurrent", maxConcurrent);
+        ReflectionTestUtils.setField(scheduler, "meterRegistry", new SimpleMeterRegistry());
+        scheduler.init();
+    }
+
+    @BeforeEach
+    public void setUp() {
+        started.clear();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        scheduler.destroy();
+    }
+
+    private Runnable record(String name) {
+        return () -> started.add(name);
+    }
+
+    private Map<?, ?> sessions() {
+        return (Map<?, ?>) ReflectionTestUtils.getField(scheduler, "sessions");
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((scheduler.getRunningCount() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void limitsSentencesAheadOfPlayback() throws Exception {
+        createScheduler(2, 4);
+        List<TtsScheduler.Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            jobs.add(scheduler.submit("a", i == 0, record("a" + i)));
+        }
+        awaitIdle();
+        // 正在播放的一句加上领先的两句
+        assertEquals(3, started.size());
+        assertEquals(2, scheduler.getWaitingCount());
+
+        // 前三句在不同线程上并发执行，只比较集合
+        assertEquals(new HashSet<>(Arrays.asList("a0", "a1", "a2")), new HashSet<>(started));
+
+        // 第一句播放完，开始合成第四句
+        jobs.get(0).release();
+        awaitIdle();
+        assertEquals(4, started.size());
+        assertEquals("a3", started.get(3));
+
+        // 重复归还不会多放出名额
+        jobs.get(0).release();
+        awaitIdle();
+        assertEquals(4, started.size());
+    }
+
+    @Test
+    public void firstSentencesRunBeforeLaterOnes() throws Exception {
+        createScheduler(2, 1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit("a", true, () -> {
+            blocked.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        scheduler.submit("a", false, record("a1"));
+        scheduler.submit("a", false, record("a2"));
+        scheduler.submit("b", true, record("b0"));
+        release.countDown();
+        awaitIdle();
+        assertEquals(Arrays.asList("b0", "a1", "a2"), new ArrayList<>(started));
+    }
+
+    @Test
+    public void clearSessionRunsWaitingJobs() throws Exception {
+        createScheduler(0, 4);
+        scheduler.submit("a", true, record("a0"));
+        scheduler.submit("a", false, record("a1"));
+        scheduler.submit("a", false, record("a2"));
+        awaitIdle();
+        assertEquals(1, started.size());
+
+        // 等待名额的任务交给全局队列，由任务自身按取消令牌跳过
+        scheduler.clearSession("a");
+        awaitIdle();
+        assertEquals(3, started.size());
+        assertEquals(0, scheduler.getWaitingCount());
+
+        // 清空后的新任务不受旧任务占用的名额影响
+        scheduler.submit("a", true, record("a3"));
+        awaitIdle();
+        assertEquals(4, started.size());
+    }
+
+    @Test
+    public void idleSessionsAreRemoved() throws Exception {
+        createScheduler(1, 4);
+        List<TtsScheduler.Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            jobs.add(scheduler.submit("a", i == 0, record("a" + i)));
+        }
+        TtsScheduler.Job other = scheduler.submit("b", true, record("b0"));
+        awaitIdle();
+        assertEquals(2, sessions().size());
+
+        // 还没开始合成的句子直接丢弃，已开始的播放完后归还
+        jobs.get(3).release();
+        for (int i = 0; i < 3; i++) {
+            jobs.get(i).release();
+            awaitIdle();
+        }
+        other.release();
+        assertTrue(sessions().isEmpty(), "名额全部归还后仍保留会话状态: " + sessions().keySet());
+        assertEquals(0, scheduler.getWaitingCount());
+
+        // 移除后再提交重新创建
+        TtsScheduler.Job again = scheduler.submit("a", true, record("a4"));
+        awaitIdle();
+        assertEquals(1, sessions().size());
+        again.release();
+        assertTrue(sessions().isEmpty());
+    }
+}
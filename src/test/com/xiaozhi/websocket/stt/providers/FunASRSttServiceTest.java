@@ -0,0 +1,188 @@
+package com.xiaozhi.websocket.stt.providers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.xiaozhi.entity.SysConfig;
+import com.xiaozhi.websocket.stt.factory.SttServiceFactory;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * 使用本地模拟的FunASR服务验证长连接复用和2pass结果拼接
+ */
+public class FunASRSttServiceTest {
+
+    private MockFunASRServer server;
+    private FunASRSttService service;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = new MockFunASRServer();
+        server.start();
+        assertTrue(server.started.await(5, TimeUnit.SECONDS));
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (service != null) {
+            service.shutdown();
+        }
+        server.stop(1000);
+    }
+
+    @Test
+    public void reusesConnectionAcrossUtterances() throws Exception {
+        service = newService(FunASRSttService.MODE_2PASS, 1);
+
+        for (int i = 0; i < 3; i++) {
+            List<String> results = service.streamRecognition(Flux.just(new byte[640], new byte[640]))
+                    .collectList()
+                    .block(Duration.ofSeconds(5));
+            // 两个增量结果，之后2pass-offline的修正结果替换增量文本
+            assertEquals("你好", results.get(0));
+            assertEquals("你好你好", results.get(1));
+            assertEquals("你好。", results.get(results.size() - 1));
+            // 结果流结束后连接才归还，等归还后再开始下一段
+            waitForIdle();
+        }
+
+        assertEquals(1, server.connections.get());
+        assertTrue(service.getConnectionManager().getReusedCount() >= 2);
+    }
+
+    @Test
+    public void reconnectsAfterServerClosesIdleConnection() throws Exception {
+        service = newService(FunASRSttService.MODE_ONLINE, 1);
+        waitForIdle();
+
+        server.closeAll();
+        // 退避加抖动后补充新的空闲连接
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.connections.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, server.connections.get());
+
+        String last = service.streamRecognition(Flux.just(new byte[640]))
+                .last()
+                .block(Duration.ofSeconds(5));
+        assertEquals("你好。", last);
+    }
+
+    @Test
+    public void factoryShutsDownEvictedAndCachedServices() throws Exception {
+        SttServiceFactory factory = new SttServiceFactory();
+        ReflectionTestUtils.setField(factory, "funasrMode", FunASRSttService.MODE_ONLINE);
+        ReflectionTestUtils.setField(factory, "funasrPoolSize", 1);
+        SysConfig config = new SysConfig();
+        config.setConfigId(1);
+        config.setProvider("funasr");
+        config.setApiUrl("ws://127.0.0.1:" + server.getPort());
+
+        service = (FunASRSttService) factory.getSttService(config);
+        waitForIdle();
+        assertEquals(1, server.open.get());
+
+        // 配置更新后旧服务的连接被关闭，再次获取时按新配置创建
+        factory.evictService(1);
+        assertEquals(0, service.getConnectionManager().getIdleCount());
+        FunASRSttService recreated = (FunASRSttService) factory.getSttService(config);
+        assertNotSame(service, recreated);
+        service = recreated;
+        waitForIdle();
+
+        // 应用关闭时释放所有缓存服务的连接
+        factory.shutdown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.open.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, server.open.get());
+    }
+
+    private FunASRSttService newService(String mode, int poolSize) throws Exception {
+        SysConfig config = new SysConfig();
+        config.setApiUrl("ws://127.0.0.1:" + server.getPort());
+        FunASRSttService created = new FunASRSttService(config, mode, poolSize);
+        service = created;
+        waitForIdle();
+        return created;
+    }
+
+    private void waitForIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getConnectionManager().getIdleCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * 模拟FunASR：每个音频块返回一个增量结果，收到结束标记后返回修正结果和is_final
+     */
+    private static class MockFunASRServer extends WebSocketServer {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger open = new AtomicInteger();
+
+        MockFunASRServer() {
+            super(new InetSocketAddress("127.0.0.1", 0));
+            setReuseAddr(true);
+        }
+
+        void closeAll() {
+            for (WebSocket conn : getConnections()) {
+                conn.close();
+            }
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            connections.incrementAndGet();
+            open.incrementAndGet();
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            open.decrementAndGet();
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            if (message.contains("\"is_speaking\": false")) {
+                conn.send("{\"mode\":\"2pass-offline\",\"text\":\"你好。\",\"is_final\":true}");
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+            conn.send("{\"mode\":\"2pass-online\",\"text\":\"你好\",\"is_final\":false}");
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+}